@@ -41,6 +41,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -77,14 +78,12 @@ public class Circuit {
     final int circuitLevelFlowControl = 1000;
     final int circuitLevelFlowControlIncrement = 100;
     
-    /**  */
-    public static volatile int numberOfCircuitsInConstructor = 0;
     /** a pointer to the TLS-layer */
     private TLSConnection tls;
     /** stores the route */
     private Node[] routeNodes;
     /** number of nodes in the route, where the keys have been established */
-    private int routeEstablished;
+    private volatile int routeEstablished;
     /** used to receive incoming data */
     private Queue queue;
     /**
@@ -105,11 +104,19 @@ public class Circuit {
     /** ID */
     private int id;
     /** set to true, if route is established */
-    private boolean established;
+    private volatile boolean established;
     /** set to true, if no new streams are allowed */
-    private boolean closed;
+    private volatile boolean closed;
     /** set to true, if circuit is closed and inactive and may be removed from all sets */
     private boolean destruct;
+    /** set to true, while the circuit is in the circuit map of its TLSConnection */
+    private volatile boolean registered;
+    /** counters to update on state transitions */
+    private final CircuitStatistics statistics;
+    /** signaled when the circuit is established */
+    private final CircuitAvailability availability;
+    /** state of this circuit as counted in statistics; guarded by statistics */
+    private int countedState = CircuitStatistics.NONE;
     /**  */
     private Date created;
     /** last time, a cell was send that was not a padding cell */
@@ -148,10 +155,35 @@ public class Circuit {
     
 
     
+    /**
+     * initiates the fields of a circuit that is not yet built.
+     * Use buildCircuit() to build it (test cases use a CircuitBuilder directly).
+     */
+    Circuit(TLSConnectionAdmin fnh, Directory dir, TorEventService torEventService) {
+        this.directory = dir;
+        this.tlsConnectionAdmin = fnh;
+        this.torEventService = torEventService;
+        this.statistics = fnh.getCircuitStatistics();
+        this.availability = fnh.getCircuitAvailability();
+        closed = false;
+        established = false;
+        destruct = false;
+        sumStreamsSetupDelays = 0;
+        streamCounter = 0;
+        streamFails = 0;
+        ranking = -1; // unused circs have highest priority for selection
+        created = new Date();
+        lastAction = created;
+        lastCell = created;
+    }
+
     /**
      * initiates a circuit. tries to rebuild the circuit for a limited number of
      * times, if first attempt fails.
      * 
+     * Blocks the calling thread until the circuit is established,
+     * see buildCircuit() for the non-blocking variant.
+     * 
      * @param fnh
      *            a pointer to the TLS-Connection to the first node
      * @param dir
@@ -167,119 +199,67 @@ public class Circuit {
      */
     public Circuit(TLSConnectionAdmin fnh, Directory dir, TCPStreamProperties sp, TorEventService torEventService)
             throws IOException, TorException, InterruptedException  {
-        numberOfCircuitsInConstructor++;
-        boolean successful = false;
+        this(fnh, dir, torEventService);
+        CircuitBuildFuture future = new CircuitBuilder(this, fnh, sp).start();
         try {
-            // init variables
-            this.directory = dir;
-            this.tlsConnectionAdmin = fnh;
-            this.torEventService = torEventService;
-            closed = false;
-            established = false;
-            destruct = false;
-            sumStreamsSetupDelays = 0;
-            streamCounter = 0;
-            streamFails = 0;
-            ranking = -1; // unused circs have highest priority for selection
-            created = new Date();
-            lastAction = created;
-            lastCell = created;
-            
-            // save original Thread name
-            Thread currentThread = Thread.currentThread();
-            String originalThreadName = currentThread.getName();
-            
-            // get a new route
-            RouterImpl[] routeServers = CircuitAdmin.createNewRoute(dir, sp);
-            if (routeServers==null || routeServers.length<1) throw new TorException("Circuit: could not build route");
-            // try to build a circuit
-            long startSetupTime = System.currentTimeMillis();
-            for (int misses = 1;; ++misses) {
-                long currentSetupDuration = System.currentTimeMillis() - startSetupTime;
-                if (currentSetupDuration>=TorConfig.maxAllowedSetupDurationMs) {
-                    // stop here because it cannot be successful any more
-                    String msg = "Circuit: close-during-create " + toString() + ", because current duration of " + currentSetupDuration + " ms is already too long";
-                    log.info(msg);
-                    throw new IOException(msg);
-                }
-                
-                // set thread name
-                if (originalThreadName!=null && originalThreadName.startsWith("Idle Thread")) { 
-                    currentThread.setName(originalThreadName+" - Circuit to "+routeServers[routeServers.length-1].getNickname());
-                }
-                
-                if (Thread.interrupted()) {
-                    throw new InterruptedException();
-                }
-                try {
-                    // attach circuit to TLS
-                    log.fine("Circuit: connecting to " + routeServers[0].getNickname() + " (" + routeServers[0].getCountryCode() +  ") over tls");
-                    tls = fnh.getConnection(routeServers[0]);
-                    queue = new Queue(TorConfig.queueTimeoutCircuit);
-                    // attention: Addition to circuits-list is quite hidden here.
-                    id = tls.assignCircuitId(this);
-                    routeEstablished = 0;
-                    // connect to entry point = routeServers[0]
-                    log.fine("Circuit: sending create cell to " + routeServers[0].getNickname());
-                    routeNodes = new Node[routeServers.length];
-                    create(routeServers[0]);
-                    routeEstablished = 1;
-                    // extend route
-                    for (int i = 1; i < routeServers.length; ++i) {
-                        log.fine("Circuit: " + toString() + " extending to " + routeServers[i].getNickname() + " (" + routeServers[i].getCountryCode() + ")");
-                        extend(i, routeServers[i]);
-                        routeEstablished += 1;
-                    }
-                    // finished - success
-                    break;
-
-                } catch (Exception e) {
-                    // some error occurred during the creating of the circuit
-                    log.fine("Circuit: " + toString() + " Exception " + misses + " :" + e);
-                    // cleanup now
-                    if (id!=0) {
-                        tls.removeCircuit(id);
-                    }
-                    // error handling
-                    if (closed) {
-                        throw new IOException("Circuit: " + toString() + " closing during buildup");
-                    }
-                    if (misses >= TorConfig.reconnectCircuit) {
-                        // enough retries, exit
-                        if (e instanceof IOException) { 
-                            throw (IOException)e; 
-                        } else if (e instanceof IOException) { 
-                            throw (TorException)e; 
-                        } else {
-                            throw new TorException(e.toString());
-                        }
-                    }
-                    // build a new route over the hosts that are known to be
-                    // working, punish failing host
-                    routeServers = CircuitAdmin.restoreCircuit(dir, sp, routeServers, routeEstablished);
-                }
-            }
-            setupDurationMs = (int) (System.currentTimeMillis() - startSetupTime);
-            if (setupDurationMs<TorConfig.maxAllowedSetupDurationMs) {
-                established = true;
-                log.info("Circuit: " + toString() + " established within " + setupDurationMs + " ms - OK");
-                queueFlowControlHandler = new QueueFlowControlHandler(this,circuitLevelFlowControl,circuitLevelFlowControlIncrement);
-                queue.addHandler(queueFlowControlHandler);
-                // fire event
-                torEventService.fireEvent(new TorEvent(TorEvent.CIRCUIT_BUILD,this,"Circuit build " + toString()));
-                successful = true;
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof TorException) {
+                throw (TorException)cause;
             } else {
-                log.info("Circuit: close-after-create " + toString() + ", because established within " + setupDurationMs + " ms was too long");
-                close(true);
-            }
-        } finally {
-            numberOfCircuitsInConstructor--;
-            if (!successful) {
-                close(true);
+                throw new TorException(String.valueOf(cause));
             }
         }
     }
 
+    /**
+     * Build a new circuit in background, without blocking the calling thread.
+     * 
+     * @param fnh
+     *            a pointer to the TLS-Connection to the first node
+     * @param dir
+     *            a pointer to the directory
+     * @param sp
+     *            some properties for the stream that is the reason for building
+     *            the circuit
+     * @return the future of the circuit; use it to wait or to add a CircuitBuildListener
+     */
+    public static CircuitBuildFuture buildCircuit(TLSConnectionAdmin fnh, Directory dir, TCPStreamProperties sp, TorEventService torEventService) {
+        Circuit circuit = new Circuit(fnh, dir, torEventService);
+        return new CircuitBuilder(circuit, fnh, sp).start();
+    }
+
+    /**
+     * @return number of circuits currently in buildup
+     */
+    public static int getNumberOfCircuitsInBuild() {
+        return CircuitBuilder.getNumberOfBuildsInProgress();
+    }
+
+    /**
+     * Called by the CircuitBuilder after the keys with all nodes of the route are established.
+     * 
+     * @param setupDurationMs    time in milliseconds it took to establish the circuit
+     */
+    void buildFinished(int setupDurationMs) {
+        this.setupDurationMs = setupDurationMs;
+        established = true;
+        updateStatistics();
+        log.info("Circuit: " + toString() + " established within " + setupDurationMs + " ms - OK");
+        queueFlowControlHandler = new QueueFlowControlHandler(this,circuitLevelFlowControl,circuitLevelFlowControlIncrement);
+        queue.addHandler(queueFlowControlHandler);
+        // fire event
+        torEventService.fireEvent(new TorEvent(TorEvent.CIRCUIT_BUILD,this,"Circuit build " + toString()));
+        // wake up threads waiting for a circuit
+        availability.signal();
+    }
+
     /**
      * CellRelayIntroduce2: From the Introduction Point to Bob's OP (section 1.9 of Tor Rendezvous Specification)
      * 
@@ -482,35 +462,6 @@ public class Circuit {
         }
     }
 
-    /**
-     * initiates circuit, sends CREATE-cell. throws an error, if something went
-     * wrong
-     */
-    private void create(RouterImpl init) throws IOException, TorException {
-        // save starting point
-        routeNodes[0] = new Node(init);
-        // send create cell, set circID
-        sendCell(new CellCreate(this));
-        // wait for answer
-        Cell created = queue.receiveCell(Cell.CELL_CREATED);
-        // finish DH-exchange
-        routeNodes[0].finishDh(created.getPayload());
-    }
-
-    /**
-     * Extends the existing circuit one more hop. sends an EXTEND-cell.
-     */
-    private void extend(int i, RouterImpl next) throws IOException, TorException {
-        // save next node
-        routeNodes[i] = new Node(next);
-        // send extend cell
-        sendCell(new CellRelayExtend(this, routeNodes[i]));
-        // wait for extended-cell
-        CellRelay relay = queue.receiveRelayCell(CellRelay.RELAY_EXTENDED);
-        // finish DH-exchange
-        routeNodes[i].finishDh(relay.data);
-    }
-
     /**
      * adds node as the last one in the route
      * 
@@ -544,6 +495,18 @@ public class Circuit {
       updateRanking();
     }
 
+    /**
+     * Like reportStreamFailure(), but executed in background:
+     * for callers that must not block, e.g. the TLSDispatcherThread.
+     */
+    public void reportStreamFailureLater(final Stream stream) {
+        CircuitBuilder.getExecutor().execute(new Runnable() {
+            public void run() {
+                reportStreamFailure(stream);
+            }
+        });
+    }
+
     /**
      * find a free stream ID, other than zero
      */
@@ -669,6 +632,7 @@ public class Circuit {
         // left
         closed = true;
         established = false;
+        updateStatistics();
         // close all streams, removed closed streams
         for (Stream stream : new ArrayList<Stream>(streams.values())) {
             try {
@@ -721,7 +685,10 @@ public class Circuit {
         }
         
         // cleanup and maybe close tls
-        destruct = true;
+        if (!destruct) {
+            destruct = true;
+            statistics.circuitDestructed();
+        }
         log.fine("Circuit.close(): remove from tls? " + toString());
         if (tls!=null) {
             log.fine("Circuit.close(): remove from tls! " + toString());
@@ -733,6 +700,29 @@ public class Circuit {
         return true;
     }
 
+    /**
+     * Update the counters after a state transition.
+     * Always derives the state from the current flags: calls in wrong order do not matter.
+     */
+    private void updateStatistics() {
+        synchronized (statistics) {
+            int newState;
+            if (!registered) {
+                newState = CircuitStatistics.NONE;
+            } else if (closed) {
+                newState = CircuitStatistics.CLOSED;
+            } else if (established) {
+                newState = CircuitStatistics.ESTABLISHED;
+            } else {
+                newState = CircuitStatistics.BUILDING;
+            }
+            if (newState!=countedState) {
+                statistics.circuitStateChanged(countedState, newState);
+                countedState = newState;
+            }
+        }
+    }
+
     /** returns the route of the circuit. used to display route on a map or the like */
     public RouterImpl[] getRoute() {
         RouterImpl[] s = new RouterImpl[routeEstablished];
@@ -862,12 +852,37 @@ public class Circuit {
         return id;
     }
 
+    void setId(int id) {
+        this.id = id;
+    }
+
+    TLSConnection getTls() {
+        return tls;
+    }
+
+    void setTls(TLSConnection tls) {
+        this.tls = tls;
+    }
+
     public boolean isEstablished() {
         return established;
     }
 
     public void setEstablished(boolean established) {
         this.established = established;
+        updateStatistics();
+    }
+
+    /**
+     * Called by the TLSConnection when this circuit is added to/removed from its circuit map.
+     */
+    void setRegistered(boolean registered) {
+        this.registered = registered;
+        updateStatistics();
+    }
+
+    public CircuitStatistics getStatistics() {
+        return statistics;
     }
 
     public boolean isClosed() {
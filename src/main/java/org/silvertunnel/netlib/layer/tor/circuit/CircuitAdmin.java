@@ -21,7 +21,6 @@ package org.silvertunnel.netlib.layer.tor.circuit;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
 import java.util.Vector;
@@ -33,6 +32,7 @@ import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel.netlib.layer.tor.common.TorEventService;
 import org.silvertunnel.netlib.layer.tor.directory.Directory;
+import org.silvertunnel.netlib.layer.tor.directory.ExcludedRouters;
 import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
 //import org.silvertunnel.netlib.layer.tor.directory.service.DirectoryService;
 import org.silvertunnel.netlib.layer.tor.util.TorException;
@@ -156,9 +156,7 @@ public class CircuitAdmin {
             // spawn new circuit IN BACKGROUND, unless maximum number of
             // circuits reached
             log.fine("TLSConnectionAdmin.provideSuitableCircuits: spawning circuit to " + sp.getHostname() + " in background");
-            Thread spawnInBackground = new NewCircuitThread(tlsConnectionAdmin, dir, sp, torEventService);
-            spawnInBackground.setName("CuircuitAdmin.provideSuitableCircuits");
-            spawnInBackground.start();
+            Circuit.buildCircuit(tlsConnectionAdmin, dir, sp, torEventService);
         } else if ((returnValues == 0) && (numberOfExistingCircuits < TorConfig.circuitsMaximumNumber)) {
             // spawn new circuit, unless maximum number of circuits reached
             log.fine("TLSConnectionAdmin.provideSuitableCircuits: spawning circuit to " + sp.getHostname());
@@ -190,23 +188,24 @@ public class CircuitAdmin {
      * 
      * @param sp tcp stream properties
      * @param propousedRoute   array of fingerprints of routers that were proposed by tcp stream properties
-     * @param excludedServerNames selfexplained
+     * @param excludedRouters routers that must not be selected
      * @param route current route array
      * @param i index in array route up to which the route has to be built
      * @return a list of servers
      */
-    synchronized private static RouterImpl[] createNewRoute(Directory directory, TCPStreamProperties sp, Fingerprint[] proposedRoute, HashSet<Fingerprint> excludedServerFingerprints, RouterImpl[] route, int i, int maxIterations)
+    synchronized private static RouterImpl[] createNewRoute(Directory directory, TCPStreamProperties sp, Fingerprint[] proposedRoute, ExcludedRouters excludedRouters, RouterImpl[] route, int i, int maxIterations)
          throws TorException{
 
         float p = sp.getRankingInfluenceIndex();
-        HashSet<Fingerprint> previousExcludedServerFingerprints = new HashSet<Fingerprint>();
+        ExcludedRouters previousExcludedRouters = directory.createExcludedRouters();
 
         Map<Fingerprint,RouterImpl> validRoutersByFingerprint = directory.getValidRoutersByFingerprint();
-        for (RouterImpl r : validRoutersByFingerprint.values()) {
-            Integer allowedCircuitsWithNode = CircuitAdmin.currentlyUsedNodes.get(r.getFingerprint());
-            // exit server must be trusted
-            if ((allowedCircuitsWithNode != null) && (allowedCircuitsWithNode.intValue() > TorConfig.allowModeMultipleCircuits)) {
-                excludedServerFingerprints.add(r.getFingerprint());
+        // exclude nodes that are already used by too many circuits
+        synchronized (currentlyUsedNodes) {
+            for (Map.Entry<Fingerprint,Integer> e : currentlyUsedNodes.entrySet()) {
+                if (e.getValue().intValue() > TorConfig.allowModeMultipleCircuits) {
+                    excludedRouters.add(e.getKey());
+                }
             }
         }
 
@@ -219,54 +218,25 @@ public class CircuitAdmin {
         } else {
 
             if (i == route.length - 1) { 
-                // the last router has to accept exit policy
-
-                // determine suitable servers
-                HashSet<Fingerprint> suitableServerFingerprints = new HashSet<Fingerprint>(); 
-                for (RouterImpl r : validRoutersByFingerprint.values()) {
-                    // exit server must be trusted
-                    if (r.exitPolicyAccepts(sp.getAddr(), sp.getPort()) && (sp.isUntrustedExitAllowed() || r.isDirv2Exit())) {
-                        suitableServerFingerprints.add(r.getFingerprint());
-                    }
-                }
-
-                HashSet<Fingerprint> x = new HashSet<Fingerprint>(validRoutersByFingerprint.keySet());
-                x.removeAll(suitableServerFingerprints);
-                x.addAll(excludedServerFingerprints);
-                // now select one of them
-
-                route[i] = directory.selectRandomNode(validRoutersByFingerprint, x, p);
+                // the last router has to accept exit policy (and must be trusted)
+                route[i] = directory.selectRandomExit(excludedRouters, p, sp);
 
             } else if ((i == 0) && (!sp.isNonGuardEntryAllowed())) {
                 // entry node must be guard
-
-                // determine suitable servers
-                HashSet<Fingerprint> suitableServerFingerprints = new HashSet<Fingerprint>(); 
-                for (RouterImpl r : validRoutersByFingerprint.values()) {
-                    // entry server must be guard
-                    if (r.isDirv2Guard()) {
-                        suitableServerFingerprints.add(r.getFingerprint());
-                    }
-                }
-
-                HashSet<Fingerprint> x = new HashSet<Fingerprint>(validRoutersByFingerprint.keySet());
-                x.removeAll(suitableServerFingerprints);
-                x.addAll(excludedServerFingerprints);
-                // now select one of them
-                route[i] = directory.selectRandomNode(validRoutersByFingerprint, x, p);
+                route[i] = directory.selectRandomGuard(excludedRouters, p);
 
             } else {
-                route[i] = directory.selectRandomNode(validRoutersByFingerprint, excludedServerFingerprints, p);
+                route[i] = directory.selectRandomMiddle(excludedRouters, p);
             }
 
             if (route[i] == null) {
                 return null;
             }
-            previousExcludedServerFingerprints.addAll(excludedServerFingerprints);
-            excludedServerFingerprints.addAll(directory.excludeRelatedNodes(route[i]));
+            previousExcludedRouters.addAll(excludedRouters);
+            excludedRouters.addRelated(route[i]);
 
             int numberOfNodeOccurances;
-            Integer allowedCircuitsWithNode = CircuitAdmin.currentlyUsedNodes.get(route[i].getNickname());
+            Integer allowedCircuitsWithNode = CircuitAdmin.currentlyUsedNodes.get(route[i].getFingerprint());
             if (allowedCircuitsWithNode != null) {
                 numberOfNodeOccurances = allowedCircuitsWithNode.intValue() + 1;
             } else {
@@ -276,10 +246,10 @@ public class CircuitAdmin {
         }
 
         if (i > 0) {
-            RouterImpl[] aRoute = createNewRoute(directory, sp, proposedRoute, excludedServerFingerprints, route, i - 1, -1);
+            RouterImpl[] aRoute = createNewRoute(directory, sp, proposedRoute, excludedRouters, route, i - 1, -1);
             if (aRoute == null) {
 
-                previousExcludedServerFingerprints.add(route[i - 1].getFingerprint());
+                previousExcludedRouters.add(route[i - 1].getFingerprint());
                 if (maxIterations > -1) {
                     maxIterations = Math.min(maxIterations, Directory.RETRIES_ON_RECURSIVE_ROUTE_BUILD) - 1;
                 } else {
@@ -289,7 +259,7 @@ public class CircuitAdmin {
                     return null;
                 }
                 route = createNewRoute(directory, sp, proposedRoute,
-                        previousExcludedServerFingerprints, route, i, maxIterations);
+                        previousExcludedRouters, route, i, maxIterations);
 
             } else {
                 route = aRoute;
@@ -324,7 +294,7 @@ public class CircuitAdmin {
         // choose random servers to form route
         RouterImpl[] route = new RouterImpl[len];
 
-        HashSet<Fingerprint> excludedServerFingerprints = new HashSet<Fingerprint>();
+        ExcludedRouters excludedRouters = directory.createExcludedRouters();
         // take care, that none of the specified proposed servers is selected
         // before in route
         Fingerprint[] proposedRoute = sp.getProposedRouteFingerprints();
@@ -333,12 +303,12 @@ public class CircuitAdmin {
                 if (proposedRoute[j] != null) {
                     RouterImpl s = (RouterImpl) directory.getValidRoutersByFingerprint().get(proposedRoute[j]);
                     if (s != null) {
-                        excludedServerFingerprints.addAll(directory.excludeRelatedNodes(s));
+                        excludedRouters.addRelated(s);
                     }
                 }
             }
         }
-        RouterImpl[] result = createNewRoute(directory, sp, proposedRoute, excludedServerFingerprints, route, len-1, -1);
+        RouterImpl[] result = createNewRoute(directory, sp, proposedRoute, excludedRouters, route, len-1, -1);
 
         // the end
         if (result==null) {
@@ -387,6 +357,7 @@ public class CircuitAdmin {
 
         // decreasing ranking of the failed one
         route[failedNode].punishRanking();
+        directory.rankingsChanged();
 
         // reuse hosts that are required due to TCPStreamProperties
         if (sp.getRouteFingerprints() != null) {
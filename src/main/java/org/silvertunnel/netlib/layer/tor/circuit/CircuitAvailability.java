@@ -0,0 +1,101 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Condition "a new circuit is available": signaled each time a circuit build
+ * of the owning TLSConnectionAdmin finishes successfully.
+ *
+ * Usage (to avoid lost wake-ups):
+ * <pre>
+ * while (true) {
+ *     long version = circuitAvailability.getVersion();
+ *     if (conditionFulfilled()) break;
+ *     circuitAvailability.awaitChange(version, timeoutMs);
+ * }
+ * </pre>
+ *
+ * The number of concurrently waiting threads is limited (TorConfig.circuitAvailabilityMaxWaiters);
+ * further threads queue (fair, without spinning) for a free slot.
+ */
+public class CircuitAvailability {
+    private final Object lock = new Object();
+    /** incremented with each signal; guarded by lock */
+    private long version;
+
+    private final Semaphore waitSlots;
+
+    /**
+     * @param maxWaiters    maximum number of threads waiting concurrently
+     */
+    public CircuitAvailability(int maxWaiters) {
+        waitSlots = new Semaphore(Math.max(1, maxWaiters), true);
+    }
+
+    /**
+     * Wake up all waiting threads.
+     */
+    void signal() {
+        synchronized (lock) {
+            version++;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return the current version of the condition
+     */
+    public long getVersion() {
+        synchronized (lock) {
+            return version;
+        }
+    }
+
+    /**
+     * Wait until the condition was signaled after lastVersion was read.
+     *
+     * @param lastVersion    result of getVersion() before the caller checked its condition
+     * @param timeoutMs      maximum waiting time in milliseconds
+     * @return true=signaled; false=timeout
+     * @throws InterruptedException
+     */
+    public boolean awaitChange(long lastVersion, long timeoutMs) throws InterruptedException {
+        long endMillis = System.currentTimeMillis() + timeoutMs;
+        if (!waitSlots.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        try {
+            synchronized (lock) {
+                while (version==lastVersion) {
+                    long waitMillis = endMillis - System.currentTimeMillis();
+                    if (waitMillis<=0) {
+                        return false;
+                    }
+                    lock.wait(waitMillis);
+                }
+                return true;
+            }
+        } finally {
+            waitSlots.release();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Result of an asynchronous circuit build.
+ *
+ * Listeners can be added at any time; if the build is already finished
+ * the listener is called immediately by the calling thread.
+ */
+public class CircuitBuildFuture implements Future<Circuit> {
+    private static final Logger log = Logger.getLogger(CircuitBuildFuture.class.getName());
+
+    private final Circuit circuit;
+    /** used to abort the build on cancel() */
+    private CircuitBuilder builder;
+
+    private boolean done;
+    private boolean cancelled;
+    /** reason of the failure; null=success */
+    private Exception exception;
+    private List<CircuitBuildListener> listeners = new ArrayList<CircuitBuildListener>(2);
+
+
+    CircuitBuildFuture(Circuit circuit) {
+        this.circuit = circuit;
+    }
+
+    /**
+     * Register a callback for the end of the build.
+     *
+     * @param listener
+     */
+    public void addListener(CircuitBuildListener listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        // already finished
+        notifyListener(listener);
+    }
+
+    /**
+     * Called by the CircuitBuilder.
+     */
+    void setSucceeded() {
+        finish(null);
+    }
+
+    /**
+     * Called by the CircuitBuilder.
+     *
+     * @param e    reason of the failure
+     */
+    void setFailed(Exception e) {
+        finish(e);
+    }
+
+    private void finish(Exception e) {
+        List<CircuitBuildListener> listenersToNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            exception = e;
+            listenersToNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (CircuitBuildListener listener : listenersToNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(CircuitBuildListener listener) {
+        try {
+            if (exception==null) {
+                listener.circuitBuildSucceeded(circuit);
+            } else {
+                listener.circuitBuildFailed(circuit, exception);
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "unexpected exception in CircuitBuildListener", e);
+        }
+    }
+
+    /**
+     * Abort the build and close the circuit.
+     *
+     * @param mayInterruptIfRunning    ignored: no thread is blocked by the build
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+        }
+        if (builder!=null) {
+            builder.abort(new IOException("Circuit: " + circuit + " build cancelled"));
+        } else {
+            setFailed(new IOException("Circuit: " + circuit + " build cancelled"));
+        }
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized Circuit get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    public synchronized Circuit get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long endMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!done) {
+            long waitMillis = endMillis - System.currentTimeMillis();
+            if (waitMillis<=0) {
+                throw new TimeoutException("circuit not yet established: " + circuit);
+            }
+            wait(waitMillis);
+        }
+        return getResult();
+    }
+
+    private Circuit getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("Circuit: " + circuit + " build cancelled");
+        }
+        if (exception!=null) {
+            throw new ExecutionException(exception);
+        }
+        return circuit;
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    /**
+     * @return the circuit in buildup (also available before the build finished)
+     */
+    public Circuit getCircuit() {
+        return circuit;
+    }
+
+    void setBuilder(CircuitBuilder builder) {
+        this.builder = builder;
+    }
+}
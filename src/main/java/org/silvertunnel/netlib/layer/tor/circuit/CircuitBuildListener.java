@@ -0,0 +1,42 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+/**
+ * Callback of an asynchronous circuit build.
+ *
+ * The methods are called by one of the (few) circuit builder threads:
+ * implementations must return quickly and must not block.
+ */
+public interface CircuitBuildListener {
+    /**
+     * The circuit is established and can be used.
+     *
+     * @param circuit
+     */
+    void circuitBuildSucceeded(Circuit circuit);
+
+    /**
+     * The circuit could not be established; it is already closed.
+     *
+     * @param circuit
+     * @param e         the reason of the failure (IOException or TorException in most cases)
+     */
+    void circuitBuildFailed(Circuit circuit, Exception e);
+}
@@ -0,0 +1,515 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
+import org.silvertunnel.netlib.layer.tor.util.TorException;
+import org.silvertunnel.netlib.layer.tor.util.TorNoAnswerException;
+
+/**
+ * State machine that builds one circuit without blocking a thread
+ * while waiting for the answers of the routers.
+ *
+ * The builder is installed as QueueHandler of the circuit: the CREATED and
+ * EXTENDED cells are taken from the TLSDispatcherThread and the next step
+ * (finish DH, send next EXTEND) is executed by a small, shared pool of threads.
+ * All builds share these threads, independent of the number of circuits in buildup.
+ *
+ * New TLS connections are established by a separate pool and timeouts are fired
+ * by a separate timer thread: slow first hops never delay the steps or the timeouts of other builds.
+ *
+ * States: CONNECTING (choose route, attach to TLS) -> CREATING (wait for CREATED)
+ * -> EXTENDING (wait for EXTENDED, once per additional hop) -> ESTABLISHED or FAILED.
+ */
+class CircuitBuilder implements QueueHandler {
+    private static final Logger log = Logger.getLogger(CircuitBuilder.class.getName());
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_CREATING = 1;
+    private static final int STATE_EXTENDING = 2;
+    private static final int STATE_ESTABLISHED = 3;
+    private static final int STATE_FAILED = 4;
+
+    /** shared by all circuit builds: the steps of the state machine */
+    private static ExecutorService executor;
+    /** shared by all circuit builds: establish new TLS connections */
+    private static ExecutorService connectExecutor;
+    /** shared by all circuit builds: fire the timeouts (the handling is done by the executor) */
+    private static ScheduledExecutorService timer;
+    private static AtomicInteger threadCounter = new AtomicInteger();
+    /** number of builds that are not yet finished */
+    private static AtomicInteger numberOfBuildsInProgress = new AtomicInteger();
+
+    private final Circuit circuit;
+    private final TLSConnectionAdmin tlsConnectionAdmin;
+    private final TCPStreamProperties sp;
+    private final CircuitBuildFuture future;
+
+    private volatile int state = STATE_CONNECTING;
+    /** incremented with each (re)try; used to ignore events of former attempts */
+    private volatile int attempt;
+    private int misses;
+    private RouterImpl[] route;
+    private long startSetupTime;
+    private ScheduledFuture<?> stepTimeout;
+    private ScheduledFuture<?> deadline;
+
+
+    CircuitBuilder(Circuit circuit, TLSConnectionAdmin tlsConnectionAdmin, TCPStreamProperties sp) {
+        this.circuit = circuit;
+        this.tlsConnectionAdmin = tlsConnectionAdmin;
+        this.sp = sp;
+        this.future = new CircuitBuildFuture(circuit);
+        this.future.setBuilder(this);
+    }
+
+    /**
+     * @return the executor shared by all circuit builds
+     */
+    static synchronized ExecutorService getExecutor() {
+        if (executor==null) {
+            executor = createThreadPool(TorConfig.circuitBuildThreads, "CircuitBuilder");
+        }
+        return executor;
+    }
+
+    /**
+     * @return the executor that establishes new TLS connections for all circuit builds
+     */
+    static synchronized ExecutorService getConnectExecutor() {
+        if (connectExecutor==null) {
+            connectExecutor = createThreadPool(TorConfig.circuitConnectThreads, "CircuitBuilder connect");
+        }
+        return connectExecutor;
+    }
+
+    /**
+     * @return the timer shared by all circuit builds
+     */
+    static synchronized ScheduledExecutorService getTimer() {
+        if (timer==null) {
+            timer = new ScheduledThreadPoolExecutor(1, createThreadFactory("CircuitBuilder timer"));
+        }
+        return timer;
+    }
+
+    private static ExecutorService createThreadPool(int numberOfThreads, String name) {
+        int n = Math.max(1, numberOfThreads);
+        ThreadPoolExecutor result = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), createThreadFactory(name));
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
+    private static ThreadFactory createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name+" "+threadCounter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @return number of circuits currently in buildup
+     */
+    static int getNumberOfBuildsInProgress() {
+        return numberOfBuildsInProgress.get();
+    }
+
+    /**
+     * Start the build in background.
+     *
+     * @return the future to wait for or to register a listener at
+     */
+    synchronized CircuitBuildFuture start() {
+        numberOfBuildsInProgress.incrementAndGet();
+        startSetupTime = System.currentTimeMillis();
+        deadline = getTimer().schedule(new Runnable() {
+            public void run() {
+                getExecutor().execute(new Runnable() {
+                    public void run() {
+                        checkDeadline();
+                    }
+                });
+            }
+        }, TorConfig.maxAllowedSetupDurationMs, TimeUnit.MILLISECONDS);
+        submitAttempt();
+        return future;
+    }
+
+    /**
+     * Abort the build (if not yet finished).
+     */
+    synchronized void abort(Exception e) {
+        if (!isFinished()) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Choose the route of the circuit (overridden by test cases).
+     *
+     * @return the new route
+     */
+    RouterImpl[] createRoute() throws TorException {
+        return CircuitAdmin.createNewRoute(circuit.getDirectory(), sp);
+    }
+
+    /**
+     * Choose a route for the next attempt (overridden by test cases).
+     *
+     * @param failedRoute    route of the failed attempt
+     * @param failedNode     index of the node that did not answer
+     * @return the route with new nodes from failedNode on
+     */
+    RouterImpl[] restoreRoute(RouterImpl[] failedRoute, int failedNode) throws TorException {
+        return CircuitAdmin.restoreCircuit(circuit.getDirectory(), sp, failedRoute, failedNode);
+    }
+
+    ///////////////////////////////////////////////////////
+    // state machine steps, executed by the executor
+    ///////////////////////////////////////////////////////
+
+    private void submitAttempt() {
+        final int attemptNo = attempt;
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                runAttempt(attemptNo);
+            }
+        });
+    }
+
+    /**
+     * (Re)start the build: choose the route and get the TLS connection
+     * to the first hop - a new connection is established by the connect executor.
+     */
+    private void runAttempt(final int attemptNo) {
+        final RouterImpl firstHop;
+        synchronized (this) {
+            if (attemptNo!=attempt || isFinished()) {
+                return;
+            }
+            if (route==null) {
+                try {
+                    route = createRoute();
+                    if (route==null || route.length<1) {
+                        throw new TorException("Circuit: could not build route");
+                    }
+                } catch (Exception e) {
+                    fail(e);
+                    return;
+                }
+            }
+            firstHop = route[0];
+        }
+
+        TLSConnection tls = tlsConnectionAdmin.getExistingConnection(firstHop);
+        if (tls!=null) {
+            connected(attemptNo, tls);
+            return;
+        }
+
+        // establishing a new TLS connection can take a while: do not block the executor
+        getConnectExecutor().execute(new Runnable() {
+            public void run() {
+                connect(attemptNo, firstHop);
+            }
+        });
+    }
+
+    /**
+     * Establish the TLS connection to the first hop (executed by the connect executor)
+     * and continue in the executor.
+     */
+    private void connect(final int attemptNo, RouterImpl firstHop) {
+        synchronized (this) {
+            if (attemptNo!=attempt || isFinished()) {
+                return;
+            }
+        }
+        try {
+            log.fine("Circuit: connecting to " + firstHop.getNickname() + " (" + firstHop.getCountryCode() +  ") over tls");
+            final TLSConnection tls = tlsConnectionAdmin.getConnection(firstHop);
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    connected(attemptNo, tls);
+                }
+            });
+        } catch (final Exception e) {
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    attemptFailed(attemptNo, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Attach the circuit to the TLS connection of the first hop and send the CREATE cell.
+     */
+    private synchronized void connected(int attemptNo, TLSConnection tls) {
+        if (attemptNo!=attempt || isFinished()) {
+            return;
+        }
+        try {
+            if (circuit.isClosed()) {
+                throw new IOException("Circuit: " + circuit + " closing during buildup");
+            }
+            circuit.setTls(tls);
+            Queue queue = new Queue(TorConfig.queueTimeoutCircuit);
+            queue.addHandler(this);
+            circuit.setQueue(queue);
+            circuit.setRouteEstablished(0);
+            circuit.setRouteNodes(new Node[route.length]);
+            // attention: addition to circuits-list is quite hidden here
+            circuit.setId(tls.assignCircuitId(circuit));
+
+            // connect to entry point = route[0]
+            log.fine("Circuit: sending create cell to " + route[0].getNickname());
+            circuit.getRouteNodes()[0] = new Node(route[0]);
+            state = STATE_CREATING;
+            circuit.sendCell(new CellCreate(circuit));
+            scheduleStepTimeout(attemptNo);
+        } catch (Exception e) {
+            attemptFailed(attemptNo, e);
+        }
+    }
+
+    /**
+     * Process CREATED or EXTENDED: finish the DH exchange and extend
+     * to the next hop - or finish the build.
+     */
+    private synchronized void answerReceived(int attemptNo, Cell cell) {
+        if (attemptNo!=attempt || isFinished()) {
+            return;
+        }
+        cancelStepTimeout();
+        try {
+            Node[] routeNodes = circuit.getRouteNodes();
+            int hop = circuit.getRouteEstablished();
+            if (state==STATE_CREATING) {
+                routeNodes[hop].finishDh(cell.getPayload());
+            } else {
+                routeNodes[hop].finishDh(((CellRelay)cell).getData());
+            }
+            circuit.setRouteEstablished(++hop);
+
+            if (hop<route.length) {
+                // extend route
+                log.fine("Circuit: " + circuit + " extending to " + route[hop].getNickname() + " (" + route[hop].getCountryCode() + ")");
+                routeNodes[hop] = new Node(route[hop]);
+                state = STATE_EXTENDING;
+                circuit.sendCell(new CellRelayExtend(circuit, routeNodes[hop]));
+                scheduleStepTimeout(attemptNo);
+            } else {
+                succeed();
+            }
+        } catch (Exception e) {
+            attemptFailed(attemptNo, e);
+        }
+    }
+
+    /**
+     * Error handling of the current attempt: build a new route over the hosts
+     * that are known to be working (punish failing host) and retry
+     * - or give up.
+     */
+    private synchronized void attemptFailed(int attemptNo, Exception e) {
+        if (attemptNo!=attempt || isFinished()) {
+            return;
+        }
+        cancelStepTimeout();
+        misses++;
+        log.fine("Circuit: " + circuit + " Exception " + misses + " :" + e);
+
+        // cleanup now
+        Queue queue = circuit.getQueue();
+        if (queue!=null) {
+            queue.removeHandler(this);
+        }
+        if (circuit.getId()!=0 && circuit.getTls()!=null) {
+            circuit.getTls().removeCircuit(circuit.getId());
+        }
+
+        if (circuit.isClosed()) {
+            fail(new IOException("Circuit: " + circuit + " closing during buildup"));
+            return;
+        }
+        if (misses>=TorConfig.reconnectCircuit) {
+            // enough retries, exit
+            fail(e);
+            return;
+        }
+        try {
+            route = restoreRoute(route, circuit.getRouteEstablished());
+        } catch (Exception e2) {
+            fail(e2);
+            return;
+        }
+        attempt++;
+        state = STATE_CONNECTING;
+        submitAttempt();
+    }
+
+    private synchronized void checkDeadline() {
+        if (isFinished()) {
+            return;
+        }
+        long currentSetupDuration = System.currentTimeMillis() - startSetupTime;
+        String msg = "Circuit: close-during-create " + circuit + ", because current duration of " + currentSetupDuration + " ms is already too long";
+        log.info(msg);
+        fail(new IOException(msg));
+    }
+
+    private void succeed() {
+        state = STATE_ESTABLISHED;
+        cancelTimers();
+        numberOfBuildsInProgress.decrementAndGet();
+        circuit.getQueue().removeHandler(this);
+        circuit.buildFinished((int)(System.currentTimeMillis() - startSetupTime));
+        future.setSucceeded();
+    }
+
+    private void fail(Exception e) {
+        state = STATE_FAILED;
+        cancelTimers();
+        numberOfBuildsInProgress.decrementAndGet();
+        log.fine("Circuit: build of " + circuit + " failed: " + e);
+        circuit.close(true);
+        future.setFailed(e);
+    }
+
+    private boolean isFinished() {
+        return state==STATE_ESTABLISHED || state==STATE_FAILED;
+    }
+
+    private void scheduleStepTimeout(final int attemptNo) {
+        stepTimeout = getTimer().schedule(new Runnable() {
+            public void run() {
+                getExecutor().execute(new Runnable() {
+                    public void run() {
+                        attemptFailed(attemptNo, new TorNoAnswerException("Circuit: no answer after " + TorConfig.queueTimeoutCircuit + " s", TorConfig.queueTimeoutCircuit));
+                    }
+                });
+            }
+        }, TorConfig.queueTimeoutCircuit, TimeUnit.SECONDS);
+    }
+
+    private void cancelStepTimeout() {
+        if (stepTimeout!=null) {
+            stepTimeout.cancel(false);
+            stepTimeout = null;
+        }
+    }
+
+    private void cancelTimers() {
+        cancelStepTimeout();
+        if (deadline!=null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // QueueHandler: called by the TLSDispatcherThread
+    // (while holding the lock of the queue - so do not block here)
+    ///////////////////////////////////////////////////////
+
+    public boolean handleCell(final Cell cell) throws TorException {
+        final int currentState = state;
+        final int attemptNo = attempt;
+        if (currentState!=STATE_CREATING && currentState!=STATE_EXTENDING) {
+            return false;
+        }
+
+        Exception error = null;
+        if (currentState==STATE_CREATING) {
+            if (cell.getCommand()!=Cell.CELL_CREATED) {
+                error = new TorException("Queue.receiveCell: expected cell of type "
+                        + Cell.type(Cell.CELL_CREATED) + " received type " + cell.type());
+            }
+        } else {
+            if (!(cell instanceof CellRelay)) {
+                error = new TorException("Queue.receiveCell: expected cell of type "
+                        + Cell.type(Cell.CELL_RELAY) + " received type " + cell.type());
+            } else {
+                CellRelay relay = (CellRelay)cell;
+                if (relay.getRelayCommand()==CellRelay.RELAY_END && relay.getData()!=null) {
+                    error = new TorException("Queue.receiveRelayCell: expected relay-cell of type "
+                            + CellRelay.relayCommand(CellRelay.RELAY_EXTENDED)
+                            + ", received END-CELL for reason: " + relay.reasonForClosing());
+                } else if (relay.getRelayCommand()!=CellRelay.RELAY_EXTENDED) {
+                    error = new TorException("Queue.receiveRelayCell: expected relay-cell of type "
+                            + CellRelay.relayCommand(CellRelay.RELAY_EXTENDED)
+                            + " received type " + relay.relayCommand());
+                }
+            }
+        }
+
+        // continue in the executor
+        final Exception finalError = error;
+        try {
+            getExecutor().execute(new Runnable() {
+                public void run() {
+                    if (finalError==null) {
+                        answerReceived(attemptNo, cell);
+                    } else {
+                        attemptFailed(attemptNo, finalError);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            log.log(Level.WARNING, "could not continue circuit build", e);
+        }
+        return true;
+    }
+
+    /**
+     * The queue was closed, e.g. after receiving a DESTROY cell.
+     */
+    public void close() {
+        final int currentState = state;
+        final int attemptNo = attempt;
+        if (currentState!=STATE_CREATING && currentState!=STATE_EXTENDING) {
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                attemptFailed(attemptNo, new IOException("Circuit: " + circuit + " closing during buildup"));
+            }
+        });
+    }
+}
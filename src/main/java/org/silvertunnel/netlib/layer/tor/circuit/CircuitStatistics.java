@@ -0,0 +1,80 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+/**
+ * Live counters of the circuits and streams of one TLSConnectionAdmin.
+ *
+ * The counters are updated by the circuits and streams on each state transition,
+ * i.e. reading them does not need to iterate over the circuits.
+ *
+ * Circuits are counted while they are registered at a TLSConnection.
+ * Streams in state CLOSED are never uncounted, i.e. this is the total number of closed streams.
+ */
+public class CircuitStatistics {
+    /** not (or no longer) counted */
+    public static final int NONE = 0;
+    public static final int BUILDING = 1;
+    public static final int ESTABLISHED = 2;
+    public static final int CLOSED = 3;
+    private static final int NUMBER_OF_STATES = 4;
+
+    /** number of circuits per state; guarded by this */
+    private final int[] circuits = new int[NUMBER_OF_STATES];
+    /** total number of circuits that were destructed; guarded by this */
+    private int circuitsDestructed;
+    /** number of streams per state; guarded by this */
+    private final int[] streams = new int[NUMBER_OF_STATES];
+
+    /**
+     * Move one circuit from oldState to newState.
+     */
+    synchronized void circuitStateChanged(int oldState, int newState) {
+        circuits[oldState]--;
+        circuits[newState]++;
+    }
+
+    synchronized void circuitDestructed() {
+        circuitsDestructed++;
+    }
+
+    /**
+     * Move one stream from oldState to newState.
+     */
+    public synchronized void streamStateChanged(int oldState, int newState) {
+        streams[oldState]--;
+        streams[newState]++;
+    }
+
+    /**
+     * @return a consistent snapshot of all counters
+     */
+    public synchronized CircuitsStatus getStatus() {
+        CircuitsStatus result = new CircuitsStatus();
+        result.setCircuitsTotal(circuits[BUILDING] + circuits[ESTABLISHED] + circuits[CLOSED]);
+        result.setCircuitsAlive(circuits[BUILDING] + circuits[ESTABLISHED]);
+        result.setCircuitsEstablished(circuits[ESTABLISHED]);
+        result.setCircuitsClosed(circuits[CLOSED]);
+        result.setCircuitsDestructed(circuitsDestructed);
+        result.setStreamsBuilding(streams[BUILDING]);
+        result.setStreamsEstablished(streams[ESTABLISHED]);
+        result.setStreamsClosed(streams[CLOSED]);
+        return result;
+    }
+}
@@ -32,6 +32,14 @@ public class CircuitsStatus {
     private int circuitsEstablished = 0;
     /** closing down */
     private int circuitsClosed = 0;
+    /** total number of destructed circuits */
+    private int circuitsDestructed = 0;
+    /** RELAY_BEGIN sent, waiting for RELAY_CONNECTED */
+    private int streamsBuilding = 0;
+    /** connected, but not already closed */
+    private int streamsEstablished = 0;
+    /** total number of closed streams */
+    private int streamsClosed = 0;
     
     ///////////////////////////////////////////////////////
     // generated getters and setters
@@ -61,4 +69,28 @@ public class CircuitsStatus {
     public void setCircuitsClosed(int circuitsClosed) {
         this.circuitsClosed = circuitsClosed;
     }
+    public int getCircuitsDestructed() {
+        return circuitsDestructed;
+    }
+    public void setCircuitsDestructed(int circuitsDestructed) {
+        this.circuitsDestructed = circuitsDestructed;
+    }
+    public int getStreamsBuilding() {
+        return streamsBuilding;
+    }
+    public void setStreamsBuilding(int streamsBuilding) {
+        this.streamsBuilding = streamsBuilding;
+    }
+    public int getStreamsEstablished() {
+        return streamsEstablished;
+    }
+    public void setStreamsEstablished(int streamsEstablished) {
+        this.streamsEstablished = streamsEstablished;
+    }
+    public int getStreamsClosed() {
+        return streamsClosed;
+    }
+    public void setStreamsClosed(int streamsClosed) {
+        this.streamsClosed = streamsClosed;
+    }
 }
@@ -149,6 +149,15 @@ public class TLSConnection {
         this.dispatcher = new TLSDispatcherThread(this, new DataInputStream(tls.getInputStream()));
     }
 
+    /**
+     * creates a TLS connection object without physical connection - used by test cases.
+     * 
+     * @param server    the server this (simulated) connection leads to
+     */
+    TLSConnection(RouterImpl server) {
+        this.router = server;
+    }
+
     /**
      * converts a cell to bytes and transmitts it over the line. received data
      * is dispatched by the class TLSDispatcher
@@ -206,6 +215,7 @@ public class TLSConnection {
         } while (ID == 0);
         // memorize circuit
         circuitMap.put(new Integer(ID), c);
+        c.setRegistered(true);
         return ID;
     }
 
@@ -241,6 +251,11 @@ public class TLSConnection {
             return;
         }
         
+        if (tls==null) {
+            // no physical connection
+            return;
+        }
+
         // kill dispatcher
         log.fine("Closing dispatcher of TLS to " + router.getNickname());
         dispatcher.close();
@@ -300,12 +315,16 @@ public class TLSConnection {
         log.fine("remove circuit with circuitId="+circuitId+" from "+toString());
 
         // remove Circuit
-        boolean result;
+        Circuit removed;
         boolean doClose;
         synchronized(circuitMap) {
-            result = circuitMap.remove(circuitId)!=null;
+            removed = circuitMap.remove(circuitId);
             doClose = circuitMap.size()==0;
         }
+        boolean result = removed!=null;
+        if (result) {
+            removed.setRegistered(false);
+        }
         
         // last circuit of this TLSConnection removed: connection can be closed?
         if (doClose) {
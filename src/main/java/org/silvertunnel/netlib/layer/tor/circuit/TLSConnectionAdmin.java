@@ -46,6 +46,7 @@ import java.util.logging.Logger;
 
 import org.silvertunnel.netlib.api.NetLayer;
 import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
 import org.silvertunnel.netlib.layer.tor.util.PrivateKeyHandler;
 import org.silvertunnel.netlib.layer.tor.util.TorException;
@@ -79,6 +80,10 @@ public class TLSConnectionAdmin {
     /** lower layer network layer, e.g. TLS over TCP/IP to connect to TOR onion routers */
     private NetLayer lowerTlsConnectionNetLayer;
     private PrivateKeyHandler privateKeyHandler;
+    /** counters of the circuits and streams of the connections of this admin */
+    private final CircuitStatistics circuitStatistics = new CircuitStatistics();
+    /** signaled by the circuits of the connections of this admin */
+    private final CircuitAvailability circuitAvailability = new CircuitAvailability(TorConfig.circuitAvailabilityMaxWaiters);
     
     /**
      * initialize Handler of TLSConnections
@@ -117,6 +122,16 @@ public class TLSConnectionAdmin {
         return conn;
     }
  
+    /**
+     * @param router
+     *            the node to connect to
+     * @return the established TLS connection to the node; null if none exists yet
+     */
+    TLSConnection getExistingConnection(RouterImpl router) {
+        WeakReference<TLSConnection> weakConn = connectionMap.get(router.getFingerprint());
+        return (weakConn!=null) ? weakConn.get() : null;
+    }
+
     /**
      * Remove TLSConnection if it was closed.
      * 
@@ -194,5 +209,17 @@ public class TLSConnectionAdmin {
         }
         return result;
     }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    public CircuitStatistics getCircuitStatistics() {
+        return circuitStatistics;
+    }
+
+    public CircuitAvailability getCircuitAvailability() {
+        return circuitAvailability;
+    }
 }
 
@@ -60,10 +60,9 @@ import org.silvertunnel.netlib.layer.tor.common.TorEventService;
 import org.silvertunnel.netlib.layer.tor.directory.Directory;
 import org.silvertunnel.netlib.layer.tor.directory.HiddenServiceProperties;
 import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
-import org.silvertunnel.netlib.layer.tor.stream.ClosingThread;
 import org.silvertunnel.netlib.layer.tor.stream.ResolveStream;
-import org.silvertunnel.netlib.layer.tor.stream.StreamThread;
 import org.silvertunnel.netlib.layer.tor.stream.TCPStream;
+import org.silvertunnel.netlib.layer.tor.stream.TCPStreamRace;
 import org.silvertunnel.netlib.layer.tor.util.NetLayerStatusAdmin;
 import org.silvertunnel.netlib.layer.tor.util.PrivateKeyHandler;
 import org.silvertunnel.netlib.layer.tor.util.TorException;
@@ -87,6 +86,8 @@ public class Tor implements NetLayerStatusAdmin {
 
     private static final int TOR_CONNECT_MAX_RETRIES = 10;
     private static final long TOR_CONNECT_MILLICESCONDS_BETWEEN_RETRIES = 10;
+    /** waitForIdleCircuits() re-checks the directory at least this often */
+    private static final long WAIT_FOR_IDLE_CIRCUITS_MAX_SLICE_MS = 1000;
     
     private Directory directory;
     private TLSConnectionAdmin tlsConnectionAdmin;
@@ -205,58 +206,30 @@ public class Tor implements NetLayerStatusAdmin {
             waitForIdleCircuits(MIN_IDLE_CIRCUITS);
             
             // action
+            long circuitVersion = tlsConnectionAdmin.getCircuitAvailability().getVersion();
             Circuit[] cs = CircuitAdmin.provideSuitableCircuits(tlsConnectionAdmin, directory, sp, torEventService, false);
             if (cs==null || cs.length<1) {
                 // no valid circuit found: wait for new one created by the TorBackgroundMgmtThread
                 try {
-                    Thread.sleep(TorBackgroundMgmtThread.INTERVAL_S*1000L);
-                } catch (InterruptedException e) { }
+                    tlsConnectionAdmin.getCircuitAvailability().awaitChange(circuitVersion, TorBackgroundMgmtThread.INTERVAL_S*1000L);
+                } catch (InterruptedException e) {
+                    throw new IOException("Tor.connect: interrupted while waiting for a circuit");
+                }
                 continue;
             }
             if (TorConfig.veryAggressiveStreamBuilding) {
-    
-                for (int j = 0; j < cs.length; ++j) {
-                    // start N asynchronous stream building threads
-                    try {
-                        StreamThread[] streamThreads = new StreamThread[cs.length];
-                        for (int i = 0; i < cs.length; ++i)
-                            streamThreads[i] = new StreamThread(cs[i], sp);
-                        // wait for the first stream to return
-                        int chosenStream = -1;
-                        int waitingCounter = TorConfig.queueTimeoutStreamBuildup * 1000 / 10;
-                        while ((chosenStream < 0) && (waitingCounter >= 0)) {
-                            boolean atLeastOneAlive = false;
-                            for (int i = 0; (i < cs.length) && (chosenStream < 0); ++i)
-                                if (!streamThreads[i].isAlive()) {
-                                    if ((streamThreads[i].getStream() != null) && (streamThreads[i].getStream().isEstablished())) {
-                                        chosenStream = i;
-                                    }
-                                } else {
-                                    atLeastOneAlive = true;
-                                }
-                            if (!atLeastOneAlive)
-                                break;
-    
-                            final long SLEEPING_MS = 10;
-                            try {
-                                Thread.sleep(SLEEPING_MS);
-                            } catch (InterruptedException e) {
-                            }
-    
-                            --waitingCounter;
-                        }
-                        // return one and close others
-                        if (chosenStream >= 0) {
-                            TCPStream returnValue = streamThreads[chosenStream].getStream();
-                            new ClosingThread(streamThreads, chosenStream);
-                            return returnValue;
-                        }
-                    } catch (Exception e) {
-                        log.warning("Tor.connect(): " + e.getMessage());
-                        return null;
+                // race the stream over all suitable circuits once, the first RELAY_CONNECTED wins;
+                // if none connects: next full retry
+                try {
+                    TCPStreamRace race = new TCPStreamRace(cs, sp, TorConfig.streamBuildingHedgeDelayMs);
+                    TCPStream chosenStream = race.run(TorConfig.queueTimeoutStreamBuildup * 1000L);
+                    if (chosenStream != null) {
+                        return chosenStream;
                     }
+                } catch (InterruptedException e) {
+                    log.warning("Tor.connect(): " + e.getMessage());
+                    return null;
                 }
-    
             } else {
                 // build serial N streams, stop if successful
                 for (int i = 0; i < cs.length; ++i) {
@@ -460,9 +433,6 @@ public class Tor implements NetLayerStatusAdmin {
 
         // wait until server info and established circuits are available
         waitForIdleCircuits(TorConfig.minimumIdleCircuits);
-        try {
-            Thread.sleep(2000);
-        } catch (Exception e) { /* ignore it */ }
         log.info("Tor start completed!!!");
         startUpInProgress = false;
     }
@@ -474,10 +444,18 @@ public class Tor implements NetLayerStatusAdmin {
      */
     private void waitForIdleCircuits(int minExpectedIdleCircuits) {
         // wait until server info and established circuits are available
-        while (!directory.isDirectoryReady() || getCircuitsStatus().getCircuitsEstablished() < minExpectedIdleCircuits) {
+        while (true) {
+            long circuitVersion = tlsConnectionAdmin.getCircuitAvailability().getVersion();
+            if (directory.isDirectoryReady() && getCircuitsStatus().getCircuitsEstablished() >= minExpectedIdleCircuits) {
+                return;
+            }
             try {
-                Thread.sleep(100);
-            } catch (Exception e) { /* ignore it */ }
+                // woken up by each new circuit; the timeout only covers the directory becoming ready
+                tlsConnectionAdmin.getCircuitAvailability().awaitChange(circuitVersion, WAIT_FOR_IDLE_CIRCUITS_MAX_SLICE_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
@@ -500,44 +478,19 @@ public class Tor implements NetLayerStatusAdmin {
     }
 
     /**
-     * @return status summary of the Ciruits
+     * @return status summary of the Ciruits: a snapshot of live counters, cheap enough for frequent monitoring
      */
     public CircuitsStatus getCircuitsStatus()  {
-        // count circuits
-        int circuitsTotal = 0; // all circuits
-        int circuitsAlive = 0; // circuits that are building up, or that are established
-        int circuitsEstablished = 0; // established, but not already closed
-        int circuitsClosed = 0; // closing down
-        
-        for (TLSConnection tls : tlsConnectionAdmin.getConnections()) {
-            for (Circuit c : tls.getCircuits()) {
-                String flag = "";
-                ++circuitsTotal;
-                if (c.isClosed()) {
-                    flag = "C";
-                    ++circuitsClosed;
-                } else {
-                    flag = "B";
-                    ++circuitsAlive;
-                    if (c.isEstablished()) {
-                        flag = "E";
-                        ++circuitsEstablished;
-                    }
-                }
-                if (log.isLoggable(Level.FINER)) {
+        if (log.isLoggable(Level.FINER)) {
+            for (TLSConnection tls : tlsConnectionAdmin.getConnections()) {
+                for (Circuit c : tls.getCircuits()) {
+                    String flag = c.isClosed() ? "C" : (c.isEstablished() ? "E" : "B");
                     log.finer("Tor.getCircuitsStatus(): " + flag + " rank " + c.getRanking() + " fails " + c.getStreamFails() + " of " + c.getStreamCounter() + " TLS "
                             + tls.getRouter().getNickname() + "/" + c.toString());
                 }
             }
         }
-        
-        CircuitsStatus result = new CircuitsStatus();
-        result.setCircuitsTotal(circuitsTotal);
-        result.setCircuitsAlive(circuitsAlive);
-        result.setCircuitsEstablished(circuitsEstablished);
-        result.setCircuitsClosed(circuitsClosed);
-        
-        return result;
+        return tlsConnectionAdmin.getCircuitStatistics().getStatus();
     }
     /**
      * Remove the current history.
@@ -36,20 +36,26 @@
 package org.silvertunnel.netlib.layer.tor.clientimpl;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.silvertunnel.netlib.layer.tor.api.TorNetLayerStatus;
 import org.silvertunnel.netlib.layer.tor.circuit.Circuit;
+import org.silvertunnel.netlib.layer.tor.circuit.CircuitBuildFuture;
+import org.silvertunnel.netlib.layer.tor.circuit.CircuitBuildListener;
 import org.silvertunnel.netlib.layer.tor.circuit.CircuitsStatus;
-import org.silvertunnel.netlib.layer.tor.circuit.Stream;
 import org.silvertunnel.netlib.layer.tor.circuit.TLSConnection;
 import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.common.TorEvent;
+import org.silvertunnel.netlib.layer.tor.common.TorEventHandler;
 import org.silvertunnel.netlib.layer.tor.directory.DirectoryManagerThread;
 import org.silvertunnel.netlib.layer.tor.stream.TCPStream;
+import org.silvertunnel.netlib.layer.tor.util.HashedTimingWheel;
 
 /**
  * Management thread
@@ -71,9 +77,9 @@ class TorBackgroundMgmtThread extends Thread {
     static final int CIRCUITS_KEEP_ALIVE_INTERVAL_S = 30;
     /** interval of padding messages on streams in seconds */
     static final int STREAMS_KEEP_ALIVE_INTERVAL_S = 30;
+    /** number of buckets of the timing wheel (one bucket per INTERVAL_S) */
+    private static final int TIMING_WHEEL_TICKS = 64;
 
-    private static long idleThreadCounter = 0;
-    
     /** reference to main class */
     private Tor tor;
     /**
@@ -81,20 +87,23 @@ class TorBackgroundMgmtThread extends Thread {
      * upper bound is (numberOfCircuits+tor.torConfig.circuitsMaximumNumber)
      */
     private int numberOfCircuits; 
-    /** store the current time */
-    private long currentTimeMillis;
-    /** List of background threads (for graceful close) */
-    private List<Thread> backgroundThreads; 
+    /** keep-alive, stream setup and teardown timers of circuits and streams */
+    private HashedTimingWheel timingWheel;
+    /** closed circuits with a scheduled teardown timer */
+    private Set<Circuit> closingCircuits = new HashSet<Circuit>();
+    /** builds of idle circuits that are (maybe) still in progress (for graceful close) */
+    private List<CircuitBuildFuture> backgroundBuilds; 
     /** As stop() is depreciated we follow the Sun recommendation */
     private boolean stopped = false;
     private DirectoryManagerThread directoryManagerThread;
     
 
     TorBackgroundMgmtThread(Tor tor, int numberOfCircuits) {
-        this.backgroundThreads = new ArrayList<Thread>(numberOfCircuits);
+        this.backgroundBuilds = new ArrayList<CircuitBuildFuture>(numberOfCircuits);
         this.tor = tor;
         this.numberOfCircuits = numberOfCircuits;
-        currentTimeMillis = System.currentTimeMillis();
+        this.timingWheel = new HashedTimingWheel(INTERVAL_S * MILLISEC, TIMING_WHEEL_TICKS);
+        tor.getTorEventService().registerEventHandler(housekeepingEventHandler);
         spawnIdleCircuits(numberOfCircuits);
         this.directoryManagerThread = new DirectoryManagerThread(tor.getDirectory());
         setName(getClass().getName());
@@ -112,64 +121,167 @@ class TorBackgroundMgmtThread extends Thread {
             return;
         }
           
-        // Cleanup our background thread list
-        ListIterator<Thread> brtIterator = backgroundThreads.listIterator();
-        while (brtIterator.hasNext()) {
-            Thread brt = brtIterator.next();
-            if (!brt.isAlive()) {
-                brtIterator.remove();
+        // Cleanup our background build list
+        ListIterator<CircuitBuildFuture> buildIterator = backgroundBuilds.listIterator();
+        while (buildIterator.hasNext()) {
+            if (buildIterator.next().isDone()) {
+                buildIterator.remove();
             }
         }
 
-        // Spawn new background threads
+        // Spawn new background builds - they do not need an own thread each
         if (amount>0) {
             tor.updateStatus(TorNetLayerStatus.INITIAL_CICRUITES_ESTABLISHING);
         }
         for (int i = 0; i < amount; ++i) {
-            Thread brt = new Thread() {
-                public void run() {
-                    try {
-                        // idle threads should at least allow using port 80
-                        TCPStreamProperties sp = new TCPStreamProperties();
-                        sp.setPort(80);
-                        new Circuit(tor.getTlsConnectionAdmin(), tor.getDirectory(), sp, tor.getTorEventService());
-                    } catch (Exception e) {
-                        log.fine("TorBackgroundMgmtThread.spawnIdleCircuits: "+e.getMessage());
-                    }
-                }
-            };
-            log.finer("TorBackgroundMgmtThread.spawnIdleCircuits: Circuit-Spawning thread started.");
-            brt.setName("Idle Thread "+idleThreadCounter++);
-            brt.start();
-            backgroundThreads.add(brt);
+            // idle circuits should at least allow using port 80
+            TCPStreamProperties sp = new TCPStreamProperties();
+            sp.setPort(80);
+            CircuitBuildFuture build = Circuit.buildCircuit(tor.getTlsConnectionAdmin(), tor.getDirectory(), sp, tor.getTorEventService());
+            build.addListener(idleCircuitBuildListener);
+            log.finer("TorBackgroundMgmtThread.spawnIdleCircuits: Circuit build started.");
+            backgroundBuilds.add(build);
         }
     }
 
+    /** logs the result of idle circuit builds */
+    private static final CircuitBuildListener idleCircuitBuildListener = new CircuitBuildListener() {
+        public void circuitBuildSucceeded(Circuit circuit) {
+            log.finer("TorBackgroundMgmtThread.spawnIdleCircuits: established "+circuit);
+        }
+        public void circuitBuildFailed(Circuit circuit, Exception e) {
+            log.fine("TorBackgroundMgmtThread.spawnIdleCircuits: "+e.getMessage());
+        }
+    };
+
     /**
-     * sends keep-alive data on circuits
+     * Registers the timers of circuits and streams when they change their state.
+     * The timers are executed by this thread - the firing thread is never blocked here.
      */
-    private void sendKeepAlivePackets() {
-        for (TLSConnection tls : tor.getTlsConnectionAdmin().getConnections()) {
-            for (Circuit c : tls.getCircuits()) {
-                // check if this circuit needs a keep-alive-packet
-                if ((c.isEstablished()) && (currentTimeMillis - c.getLastCell().getTime() > CIRCUITS_KEEP_ALIVE_INTERVAL_S * MILLISEC)) {
+    private final TorEventHandler housekeepingEventHandler = new TorEventHandler() {
+        public void fireEvent(TorEvent event) {
+            switch (event.getType()) {
+            case TorEvent.CIRCUIT_BUILD:
+                scheduleCircuitKeepAlive((Circuit)event.getObject(), CIRCUITS_KEEP_ALIVE_INTERVAL_S * MILLISEC);
+                break;
+            case TorEvent.CIRCUIT_CLOSED:
+                scheduleCircuitTearDown((Circuit)event.getObject());
+                break;
+            case TorEvent.STREAM_BEGIN:
+                scheduleStreamSetupTimeout((TCPStream)event.getObject());
+                break;
+            case TorEvent.STREAM_BUILD:
+                TCPStream stream = (TCPStream)event.getObject();
+                scheduleStreamKeepAlive(stream, STREAMS_KEEP_ALIVE_INTERVAL_S * MILLISEC);
+                scheduleMaximumStreamsCheck(stream.getCircuit());
+                break;
+            }
+        }
+    };
+
+    /**
+     * sends keep-alive data on the circuit if it was idle for CIRCUITS_KEEP_ALIVE_INTERVAL_S
+     */
+    private void scheduleCircuitKeepAlive(final Circuit c, long delayMs) {
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                if (c.isClosed() || c.isDestruct()) {
+                    // no more keep-alive needed
+                    return;
+                }
+                long intervalMs = CIRCUITS_KEEP_ALIVE_INTERVAL_S * MILLISEC;
+                long idleMs = System.currentTimeMillis() - c.getLastCell().getTime();
+                if (idleMs >= intervalMs) {
                     if (log.isLoggable(Level.FINER)) {
                         log.finer("TorBackgroundMgmtThread.sendKeepAlivePackets(): Circuit " + c.toString());
                     }
                     c.sendKeepAlive();
+                    idleMs = 0;
                 }
-                // check streams in circuit
-                for (Stream streamX : c.getStreams().values()) {
-                    TCPStream stream = (TCPStream)streamX;
-                    if ((stream.isEstablished()) && (!stream.isClosed()) && (currentTimeMillis - stream.getLastCellSentDate().getTime() > STREAMS_KEEP_ALIVE_INTERVAL_S * MILLISEC)) {
-                        if (log.isLoggable(Level.FINER)) {
-                            log.finer("TorBackgroundMgmt.sendKeepAlivePackets(): Stream " + stream.toString());
-                        }
-                        stream.sendKeepAlive();
+                scheduleCircuitKeepAlive(c, intervalMs - idleMs);
+            }
+        }, delayMs);
+    }
+
+    /**
+     * sends keep-alive data on the stream if it was idle for STREAMS_KEEP_ALIVE_INTERVAL_S
+     */
+    private void scheduleStreamKeepAlive(final TCPStream stream, long delayMs) {
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                if (stream.isClosed()) {
+                    // no more keep-alive needed
+                    return;
+                }
+                long intervalMs = STREAMS_KEEP_ALIVE_INTERVAL_S * MILLISEC;
+                long idleMs = System.currentTimeMillis() - stream.getLastCellSentDate().getTime();
+                if (idleMs >= intervalMs) {
+                    if (log.isLoggable(Level.FINER)) {
+                        log.finer("TorBackgroundMgmt.sendKeepAlivePackets(): Stream " + stream.toString());
                     }
+                    stream.sendKeepAlive();
+                    idleMs = 0;
+                }
+                scheduleStreamKeepAlive(stream, intervalMs - idleMs);
+            }
+        }, delayMs);
+    }
+
+    /**
+     * closes the stream if it is not established in time
+     * (and removes streams that failed during setup from their circuit)
+     */
+    private void scheduleStreamSetupTimeout(final TCPStream stream) {
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                if (!stream.isEstablished()) {
+                    log.fine("TorBackgroundMgmtThread.tearDownClosedCircuits(): closing stream (too long building) " + stream.toString());
+                    stream.close(true);
                 }
             }
+        }, 2L * TorConfig.queueTimeoutStreamBuildup * MILLISEC);
+    }
+
+    /**
+     * soft-close the circuit if it should not accept more streams
+     */
+    private void scheduleMaximumStreamsCheck(final Circuit c) {
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                if (!c.isClosed() && c.getEstablishedStreams() > TorConfig.streamsPerCircuit) {
+                    log.fine("TorBackgroundMgmtThread.tearDownClosedCircuits(): closing (maximum streams) " + c.toString());
+                    c.close(false);
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * recall close() on a closed circuit again and again (to close the remaining
+     * streams, to do garbage collection and stuff) until it can be removed
+     */
+    private void scheduleCircuitTearDown(final Circuit c) {
+        synchronized (closingCircuits) {
+            if (c.isDestruct() || !closingCircuits.add(c)) {
+                // nothing to do or already scheduled
+                return;
+            }
         }
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                if (!c.isDestruct()) {
+                    c.close(false);
+                }
+                synchronized (closingCircuits) {
+                    closingCircuits.remove(c);
+                }
+                if (c.isDestruct()) {
+                    log.fine("TorBackgroundMgmtThread.tearDownClosedCircuits(): destructed circuit " + c.toString());
+                } else {
+                    scheduleCircuitTearDown(c);
+                }
+            }
+        }, INTERVAL_S * MILLISEC);
     }
 
     /**
@@ -185,7 +297,7 @@ class TorBackgroundMgmtThread extends Thread {
                 + circuitsStatus.getCircuitsClosed() + " closed = "
                 + circuitsStatus.getCircuitsTotal());
         // check if enough 'alive' circuits are there
-        if (circuitsStatus.getCircuitsAlive()+Circuit.numberOfCircuitsInConstructor < numberOfCircuits) {
+        if (circuitsStatus.getCircuitsAlive()+Circuit.getNumberOfCircuitsInBuild() < numberOfCircuits) {
             spawnIdleCircuits( (numberOfCircuits - circuitsStatus.getCircuitsAlive()) * 3 / 2 );
         } else if (circuitsStatus.getCircuitsEstablished() > numberOfCircuits + TorConfig.circuitsMaximumNumber) {
             // TODO: if for some reason there are too many established circuits. close the oldest ones
@@ -195,58 +307,15 @@ class TorBackgroundMgmtThread extends Thread {
     }
 
     /**
-     * used to close circuits that are marked for closing, but are still alive.
-     * They are closed, if no more streams are contained.
+     * removes closed TLS connections
+     * (circuits and streams are handled by the timers of the timingWheel)
      */
-    private void tearDownClosedCircuits() {
+    private void removeClosedConnections() {
         for (TLSConnection tls : tor.getTlsConnectionAdmin().getConnections()) {
-            log.finer("check tls="+tls);
             if (tls.isClosed()) {
                 log.fine("remove tls="+tls);
                 tor.getTlsConnectionAdmin().removeConnection(tls);
             }
-            for (Circuit c : tls.getCircuitMap().values()) {
-                // check if stream is establishing but doesn't had any action
-                // for a longer period of time
-                for (Stream streamX : c.getStreams().values()) {
-                    TCPStream s = (TCPStream)streamX;
-                    long diff = (currentTimeMillis - s.getLastAction().getTime()) / MILLISEC;
-                    if ((!s.isEstablished()) || s.isClosed()) {
-                        if (diff > (2 * TorConfig.queueTimeoutStreamBuildup)) {
-                            // log.info("close "+diff+" "+s.print());
-                            log.fine("TorBackgroundMgmtThread.tearDownClosedCircuits(): closing stream (too long building) " + s.toString());
-                            s.close(true);
-                        } else {
-                            // log.info("Checked "+diff+" "+s.print());
-                        }
-                    } else {
-                        // log.info("OK "+diff+" "+s.print());
-                    }
-                }
-                // check if circuit is establishing but doesn't had any action
-                // for a longer period of time
-                if ((!c.isEstablished()) && (!c.isClosed())) {
-                    if ((currentTimeMillis - c.getLastAction().getTime()) / MILLISEC > (2 * TorConfig.queueTimeoutCircuit)) {
-                        log.fine("TorBackgroundMgmtThread.tearDownClosedCircuits(): closing (too long building) " + c.toString());
-                        c.close(false);
-                    }
-                }
-                // check if this circuit should not accept more streams
-                if (c.getEstablishedStreams() > TorConfig.streamsPerCircuit) {
-                    log.fine("TorBackgroundMgmtThread.tearDownClosedCircuits(): closing (maximum streams) " + c.toString());
-                    c.close(false);
-                }
-                // if closed, recall close() again and again to do garbage
-                // collection and stuff
-                if (c.isClosed()) {
-                    c.close(false);
-                }
-                // check if this circuit can be removed from the set of circuits
-                if (c.isDestruct()) {
-                    log.fine("TorBackgroundMgmtThread.tearDownClosedCircuits(): destructing circuit " + c.toString());
-                    tls.removeCircuit(c.getId());
-                }
-            }
         }
     }
 
@@ -254,19 +323,20 @@ class TorBackgroundMgmtThread extends Thread {
         // stop sub-thread
         directoryManagerThread.setStopped(true);
         directoryManagerThread.interrupt();
+        tor.getTorEventService().removeEventHandler(housekeepingEventHandler);
         // stop this thread
         this.stopped = true;
         this.interrupt();
     }
 
     public void cleanup() {
-        ListIterator<Thread> brtIterator = backgroundThreads.listIterator();
-        while (brtIterator.hasNext()) {
-            Thread brt = brtIterator.next();
-            if (brt.isAlive()) {
-                brt.interrupt();
+        ListIterator<CircuitBuildFuture> buildIterator = backgroundBuilds.listIterator();
+        while (buildIterator.hasNext()) {
+            CircuitBuildFuture build = buildIterator.next();
+            if (!build.isDone()) {
+                build.cancel(true);
             }
-            brtIterator.remove();
+            buildIterator.remove();
         }
     }
 
@@ -278,11 +348,10 @@ class TorBackgroundMgmtThread extends Thread {
         // run until killed
         outerWhile: while (!stopped) {
             try {
-                currentTimeMillis = System.currentTimeMillis();
                 // do work
                 manageIdleCircuits();
-                tearDownClosedCircuits();
-                sendKeepAlivePackets();
+                removeClosedConnections();
+                timingWheel.advance();
                 // update final state
                 if (tor.getCircuitsStatus().getCircuitsEstablished() >= TorConfig.minimumIdleCircuits) {
                     tor.updateStatus(TorNetLayerStatus.READY);
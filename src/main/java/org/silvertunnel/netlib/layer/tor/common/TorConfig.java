@@ -97,12 +97,20 @@ public class TorConfig {
     public static int circuitsMaximumNumber = 30; 
     public static long maxAllowedSetupDurationMs = 10000; 
     public static final String TOR_SYSTEMPROPERTY_torMaxAllowedSetupDurationMs = "torMaxAllowedSetupDurationMs";
+    /** number of threads that drive all circuit builds (independent of the number of circuits in buildup); read at the first build */
+    public static int circuitBuildThreads = 4;
+    /** maximum number of new TLS connections established concurrently for circuit builds; read at the first build */
+    public static int circuitConnectThreads = 16;
+    /** maximum number of threads waiting concurrently for a new circuit (further threads queue up) */
+    public static int circuitAvailabilityMaxWaiters = 32;
     
     /** 0..1 */
     public static float rankingTransferPerServerUpdate = 0.95f;
 
     /** this is a truly asocial way of building streams!! */
     public static boolean veryAggressiveStreamBuilding = false;
+    /** veryAggressiveStreamBuilding: delay in milliseconds before the stream is raced over the next circuit (0=all at once) */
+    public static long streamBuildingHedgeDelayMs = 500;
 
     // directory parameters
     /** in minutes longer, since it updates the complete directory at once */
@@ -118,9 +126,24 @@ public class TorConfig {
     public static int dirV2ReloadRetries = 3;
     /** in seconds */
     public static int dirV2ReloadTimeout = 120;
-    public static int dirV2DescriptorsPerBatch = 1;
+    /** maximum number of router descriptors requested with one /tor/server/d/ request */
+    public static int dirV2DescriptorsPerBatch = 96;
     /** in millisecond */
     public static int dirV2NetworkStatusRequestTimeOut = 120000;
+    /**
+     * true=load the microdesc consensus flavour and microdescriptors (much smaller,
+     * but exit policies are port-only summaries: address specific rules are lost);
+     * false=load the full consensus and the full router descriptors
+     */
+    public static boolean dirUseMicrodescriptors = false;
+    /** maximum number of microdescriptors requested with one /tor/micro/d/ request */
+    public static int dirMicrodescriptorsPerRequest = 92;
+    /** maximum number of directory servers the consensus is downloaded from at the same time */
+    public static int dirConsensusMaxParallelDownloads = 3;
+    /** in milliseconds: interval to check the consensus download progress; start the first hedged download after this delay */
+    public static int dirConsensusHedgeDelayMs = 5000;
+    /** start a hedged consensus download if all running downloads together are slower */
+    public static int dirConsensusHedgeMinBytesPerSecond = 8*1024;
     
     /** to access directory servers: connect timeout: 1 minute */ 
     public static long DIR_CONNECT_TIMEOUT_MILLIS = 60L*1000L;
@@ -163,7 +186,7 @@ public class TorConfig {
     /** Wait at most until this number of descriptors is known */
     public static int minDescriptors = 10*routeMinLength;
     
-    /** True if there shouldn't be two class C addresses on the route */
+    /** True if there shouldn't be two routers of the same /16 network on the route */
     public static boolean routeUniqueClassC = true;
     /** True if there should be at most one router from one country (or block of countries) on the path */
     public static boolean routeUniqueCountry = true;
@@ -382,8 +405,12 @@ public class TorConfig {
 
             circuitClosesOnFailures = parseInt(config,"CircuitClosesOnFailures",circuitClosesOnFailures);
             circuitsMaximumNumber = parseInt(config,"circuitsMaximumNumber",circuitsMaximumNumber);
+            circuitBuildThreads = parseInt(config,"circuitBuildThreads",circuitBuildThreads);
+            circuitConnectThreads = parseInt(config,"circuitConnectThreads",circuitConnectThreads);
+            circuitAvailabilityMaxWaiters = parseInt(config,"circuitAvailabilityMaxWaiters",circuitAvailabilityMaxWaiters);
 
             veryAggressiveStreamBuilding = parseBoolean(config,"veryAggressiveStreamBuilding",veryAggressiveStreamBuilding);
+            streamBuildingHedgeDelayMs = parseInt(config,"streamBuildingHedgeDelayMs",(int)streamBuildingHedgeDelayMs);
             // directory parameters
             intervalDirectoryV1Refresh = parseInt(config,"DirectoryV1Refresh",intervalDirectoryV1Refresh);
             intervalDirectoryRefresh   = parseInt(config,"DirectoryRefresh",intervalDirectoryRefresh);
@@ -392,6 +419,11 @@ public class TorConfig {
             dirV2ReloadRetries = parseInt(config,"dirV2ReloadRetries",dirV2ReloadRetries);
             dirV2ReloadTimeout = parseInt(config,"dirV2ReloadTimeout",dirV2ReloadTimeout);
             dirV2DescriptorsPerBatch  = parseInt(config,"dirV2DescriptorsPerBatch",dirV2DescriptorsPerBatch);
+            dirUseMicrodescriptors = parseBoolean(config,"dirUseMicrodescriptors",dirUseMicrodescriptors);
+            dirMicrodescriptorsPerRequest = parseInt(config,"dirMicrodescriptorsPerRequest",dirMicrodescriptorsPerRequest);
+            dirConsensusMaxParallelDownloads = parseInt(config,"dirConsensusMaxParallelDownloads",dirConsensusMaxParallelDownloads);
+            dirConsensusHedgeDelayMs = parseInt(config,"dirConsensusHedgeDelayMs",dirConsensusHedgeDelayMs);
+            dirConsensusHedgeMinBytesPerSecond = parseInt(config,"dirConsensusHedgeMinBytesPerSecond",dirConsensusHedgeMinBytesPerSecond);
         } catch (IOException e) {
             log.warning("TorConfig.readFromConfig(): Warning: " + e.getMessage());
         }
@@ -475,8 +507,12 @@ public class TorConfig {
 
             config.append(writeInt("CircuitClosesOnFailures",circuitClosesOnFailures));
             config.append(writeInt("circuitsMaximumNumber",circuitsMaximumNumber));
+            config.append(writeInt("circuitBuildThreads",circuitBuildThreads));
+            config.append(writeInt("circuitConnectThreads",circuitConnectThreads));
+            config.append(writeInt("circuitAvailabilityMaxWaiters",circuitAvailabilityMaxWaiters));
             
             config.append(writeBoolean("veryAggressiveStreamBuilding",veryAggressiveStreamBuilding));
+            config.append(writeInt("streamBuildingHedgeDelayMs",(int)streamBuildingHedgeDelayMs));
 
             // FIXME: Check if this really works
             config.append(writeFloat("RankingTransferPerServerUpdate",rankingTransferPerServerUpdate));
@@ -488,6 +524,11 @@ public class TorConfig {
             config.append(writeInt("dirV2ReloadRetries",dirV2ReloadRetries));
             config.append(writeInt("dirV2ReloadTimeout",dirV2ReloadTimeout));
             config.append(writeInt("dirV2DescriptorsPerBatch",dirV2DescriptorsPerBatch));
+            config.append(writeBoolean("dirUseMicrodescriptors",dirUseMicrodescriptors));
+            config.append(writeInt("dirMicrodescriptorsPerRequest",dirMicrodescriptorsPerRequest));
+            config.append(writeInt("dirConsensusMaxParallelDownloads",dirConsensusMaxParallelDownloads));
+            config.append(writeInt("dirConsensusHedgeDelayMs",dirConsensusHedgeDelayMs));
+            config.append(writeInt("dirConsensusHedgeMinBytesPerSecond",dirConsensusHedgeMinBytesPerSecond));
 
             FileWriter writer = new FileWriter(new File(filename));
             writer.write(config.toString());
@@ -27,6 +27,8 @@ public class TorEvent {
     public final static int CIRCUIT_CLOSED = 11;
     public final static int STREAM_BUILD = 20;
     public final static int STREAM_CLOSED = 21;
+    /** RELAY_BEGIN sent, the stream is in setup */
+    public final static int STREAM_BEGIN = 22;
         
     private String description;
     private int type;
@@ -17,8 +17,8 @@
  */
 package org.silvertunnel.netlib.layer.tor.common;
 
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,7 +30,8 @@ import java.util.logging.Logger;
 public class TorEventService {
     private static final Logger log = Logger.getLogger(TorEventService.class.getName());
     
-    private Collection<TorEventHandler> eventHandlers = new ArrayList<TorEventHandler>();
+    /** events are fired by several threads: do not block them while handlers are (un)registered */
+    private Collection<TorEventHandler> eventHandlers = new CopyOnWriteArrayList<TorEventHandler>();
 
     public void registerEventHandler(TorEventHandler eventHandler) {
         eventHandlers.add(eventHandler);
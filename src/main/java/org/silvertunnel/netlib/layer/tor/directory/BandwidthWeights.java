@@ -0,0 +1,149 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * Position dependent bandwidth weights of a consensus ("bandwidth-weights" line,
+ * section 3.8.3 of the Tor directory protocol specification).
+ *
+ * An object is read-only.
+ */
+public class BandwidthWeights {
+    private static final Logger log = Logger.getLogger(BandwidthWeights.class.getName());
+
+    /** default of consensus parameter bwweightscale */
+    public static final int DEFAULT_SCALE = 10000;
+
+    /** router kinds (index of the second dimension of WEIGHT_NAMES) */
+    private static final int KIND_GUARD = 0;
+    private static final int KIND_NONE = 1;
+    private static final int KIND_EXIT = 2;
+    private static final int KIND_GUARD_AND_EXIT = 3;
+    private static final int NUMBER_OF_KINDS = 4;
+
+    /** names of the weights, indexed by position (RouterSampler.GUARD/MIDDLE/EXIT) and kind; null=not allowed */
+    private static final String[][] WEIGHT_NAMES = {
+        {"Wgg", "Wgm", null,  "Wgd"},
+        {"Wmg", "Wmm", "Wme", "Wmd"},
+        {"Weg", "Wem", "Wee", "Wed"},
+    };
+
+    /** weights, indexed by position*NUMBER_OF_KINDS+kind */
+    private final int[] weights = new int[RouterSampler.NUMBER_OF_ROLES*NUMBER_OF_KINDS];
+    private final int scale;
+
+    /**
+     * Weights without any preference: a router is weighted by its bandwidth only.
+     */
+    public BandwidthWeights() {
+        this("", DEFAULT_SCALE);
+    }
+
+    /**
+     * Parse the weights. Missing weights have the neutral value (=scale).
+     *
+     * @param bandwidthWeightsLine    content of the line "bandwidth-weights", e.g. "Wbd=0 Wbe=0 Wbg=4194 ..."
+     * @param scale                   consensus parameter bwweightscale
+     */
+    public BandwidthWeights(String bandwidthWeightsLine, int scale) {
+        this.scale = (scale>0) ? scale : DEFAULT_SCALE;
+        for (int position=0; position<WEIGHT_NAMES.length; position++) {
+            for (int kind=0; kind<NUMBER_OF_KINDS; kind++) {
+                weights[position*NUMBER_OF_KINDS+kind] = (WEIGHT_NAMES[position][kind]==null) ? 0 : this.scale;
+            }
+        }
+        for (String item : bandwidthWeightsLine.trim().split(" +")) {
+            int equals = item.indexOf('=');
+            if (equals<=0) {
+                continue;
+            }
+            try {
+                setWeight(item.substring(0, equals), Integer.parseInt(item.substring(equals+1)));
+            } catch (NumberFormatException e) {
+                log.info("ignored invalid bandwidth weight: "+item);
+            }
+        }
+    }
+
+    /**
+     * Read the weights from a binary directory snapshot.
+     * 
+     * @see #write(DataOutputStream)
+     */
+    static BandwidthWeights read(ByteBuffer in) {
+        BandwidthWeights result = new BandwidthWeights("", in.getInt());
+        int numberOfWeights = in.getInt();
+        if (numberOfWeights!=result.weights.length) {
+            throw new IllegalArgumentException("invalid number of bandwidth weights="+numberOfWeights);
+        }
+        for (int i=0; i<numberOfWeights; i++) {
+            result.weights[i] = in.getInt();
+        }
+        return result;
+    }
+
+    /**
+     * Write the weights into a binary directory snapshot.
+     * 
+     * @see #read(ByteBuffer)
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(scale);
+        out.writeInt(weights.length);
+        for (int weight : weights) {
+            out.writeInt(weight);
+        }
+    }
+
+    private void setWeight(String name, int value) {
+        for (int position=0; position<WEIGHT_NAMES.length; position++) {
+            for (int kind=0; kind<NUMBER_OF_KINDS; kind++) {
+                if (name.equals(WEIGHT_NAMES[position][kind])) {
+                    weights[position*NUMBER_OF_KINDS+kind] = Math.max(0, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param position     RouterSampler.GUARD, MIDDLE or EXIT
+     * @param guard        router has the Guard flag
+     * @param exit         router has the Exit flag
+     * @param bandwidth    bandwidth of the router (any unit)
+     * @return the bandwidth weighted for the position (same unit)
+     */
+    double getWeightedBandwidth(int position, boolean guard, boolean exit, int bandwidth) {
+        int kind;
+        if (guard && exit) {
+            kind = KIND_GUARD_AND_EXIT;
+        } else if (guard) {
+            kind = KIND_GUARD;
+        } else if (exit) {
+            kind = KIND_EXIT;
+        } else {
+            kind = KIND_NONE;
+        }
+        return ((double)bandwidth) * weights[position*NUMBER_OF_KINDS+kind] / scale;
+    }
+}
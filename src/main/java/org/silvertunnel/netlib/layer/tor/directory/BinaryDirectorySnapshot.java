@@ -0,0 +1,255 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.util.Util;
+
+/**
+ * Versioned binary snapshot of the parsed directory: the consensus entries
+ * and the routers with all information needed for path selection
+ * (addresses, ports, flags, bandwidths, compiled exit policies, country codes, encoded keys).
+ *
+ * It is written atomically after each directory update and read (memory-mapped)
+ * at startup: nothing must be parsed, verified or looked up again.
+ * The consensus and the router descriptors were checked before the snapshot was written.
+ *
+ * Format (big endian): magic, version, consensus header, consensus entries;
+ * each entry is followed by its router, if available.
+ * Any change of the format must increase VERSION: snapshots of other versions are ignored.
+ */
+class BinaryDirectorySnapshot {
+    /** key to locally store the snapshot */
+    static final String STORAGEKEY_DIRECTORY_SNAPSHOT_BIN = "directory-snapshot.bin";
+    /** "NLDS" */
+    private static final int MAGIC = 0x4e4c4453;
+    static final int VERSION = 1;
+
+    private final DirectoryConsensus consensus;
+    private final Map<Fingerprint,RouterImpl> routers;
+
+    private BinaryDirectorySnapshot(DirectoryConsensus consensus, Map<Fingerprint,RouterImpl> routers) {
+        this.consensus = consensus;
+        this.routers = routers;
+    }
+
+    /**
+     * Create the snapshot.
+     * 
+     * @param consensus    the current consensus
+     * @param routers      the routers of the consensus entries; routers without entry are ignored
+     * @return the snapshot
+     */
+    static byte[] write(DirectoryConsensus consensus, Map<Fingerprint,RouterImpl> routers) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(result);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        // consensus header
+        writeDate(out, consensus.getValidAfter());
+        writeDate(out, consensus.getFreshUntil());
+        writeDate(out, consensus.getValidUntil());
+        out.writeBoolean(consensus.isMicrodescFlavour());
+        out.writeBoolean(consensus.getBandwidthWeights()!=null);
+        if (consensus.getBandwidthWeights()!=null) {
+            consensus.getBandwidthWeights().write(out);
+        }
+
+        // consensus entries and routers
+        Map<Fingerprint,RouterStatusDescription> statuses = consensus.getFingerprintsNetworkStatusDescriptors();
+        out.writeInt(statuses.size());
+        for (RouterStatusDescription status : statuses.values()) {
+            writeBytes(out, status.getFingerprint().getBytes());
+            writeString(out, status.getNickname());
+            writeString(out, status.getIp());
+            out.writeInt(status.getOrPort());
+            out.writeInt(status.getDirPort());
+            writeString(out, status.getFlags());
+            out.writeInt(status.getBandwidth());
+            writeDate(out, status.getLastPublication());
+            writeBytes(out, status.getDigestDescriptor());
+            writeBytes(out, status.getDigestMicrodescriptor());
+
+            RouterImpl router = routers.get(status.getFingerprint());
+            out.writeBoolean(router!=null);
+            if (router!=null) {
+                router.writeSnapshot(out);
+            }
+        }
+        out.close();
+        return result.toByteArray();
+    }
+
+    /**
+     * Read a snapshot.
+     * 
+     * @param torConfig
+     * @param in           the snapshot, e.g. memory-mapped
+     * @return the snapshot
+     * @throws IOException if the snapshot is invalid or of another version
+     */
+    static BinaryDirectorySnapshot read(TorConfig torConfig, ByteBuffer in) throws IOException {
+        try {
+            if (in.getInt()!=MAGIC) {
+                throw new IOException("not a directory snapshot");
+            }
+            int version = in.getInt();
+            if (version!=VERSION) {
+                throw new IOException("directory snapshot of unsupported version="+version);
+            }
+
+            // consensus header
+            Date validAfter = readDate(in);
+            Date freshUntil = readDate(in);
+            Date validUntil = readDate(in);
+            boolean microdescFlavour = in.get()!=0;
+            BandwidthWeights bandwidthWeights = (in.get()!=0) ? BandwidthWeights.read(in) : null;
+
+            // consensus entries and routers
+            int numberOfStatuses = in.getInt();
+            Map<Fingerprint,RouterStatusDescription> statuses = new HashMap<Fingerprint,RouterStatusDescription>(2*numberOfStatuses);
+            Map<Fingerprint,RouterImpl> routers = new HashMap<Fingerprint,RouterImpl>(2*numberOfStatuses);
+            for (int i=0; i<numberOfStatuses; i++) {
+                RouterStatusDescription status = new RouterStatusDescription();
+                Fingerprint fingerprint = new FingerprintImpl(readBytes(in));
+                status.setFingerprint(fingerprint);
+                status.setNickname(readString(in));
+                status.setIp(readString(in));
+                status.setOrPort(in.getInt());
+                status.setDirPort(in.getInt());
+                status.setFlags(readString(in));
+                status.setBandwidth(in.getInt());
+                status.setLastPublication(readDate(in));
+                status.setDigestDescriptor(readBytes(in));
+                status.setDigestMicrodescriptor(readBytes(in));
+                statuses.put(fingerprint, status);
+
+                if (in.get()!=0) {
+                    routers.put(fingerprint, RouterImpl.readSnapshot(torConfig, fingerprint, in));
+                }
+            }
+            if (in.hasRemaining()) {
+                throw new IOException("directory snapshot with "+in.remaining()+" unexpected bytes at the end");
+            }
+
+            DirectoryConsensus consensus = new DirectoryConsensus(validAfter, freshUntil, validUntil, microdescFlavour,
+                    bandwidthWeights, statuses);
+            return new BinaryDirectorySnapshot(consensus, routers);
+
+        } catch (BufferUnderflowException e) {
+            throw new IOException("truncated directory snapshot");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid directory snapshot: "+e.getMessage());
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // helper methods to write and read values
+    ///////////////////////////////////////////////////////
+
+    /**
+     * @param value    null allowed
+     */
+    static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        if (value==null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    /**
+     * @return the value; null if null was written
+     */
+    static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length<0) {
+            return null;
+        }
+        if (length>in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] result = new byte[length];
+        in.get(result);
+        return result;
+    }
+
+    /**
+     * @param value    null allowed
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, (value==null) ? null : value.getBytes(Util.UTF8));
+    }
+
+    /**
+     * @return the value; null if null was written
+     */
+    static String readString(ByteBuffer in) {
+        byte[] bytes = readBytes(in);
+        try {
+            return (bytes==null) ? null : new String(bytes, Util.UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param value    null allowed
+     */
+    static void writeDate(DataOutputStream out, Date value) throws IOException {
+        out.writeLong((value==null) ? Long.MIN_VALUE : value.getTime());
+    }
+
+    /**
+     * @return the value; null if null was written
+     */
+    static Date readDate(ByteBuffer in) {
+        long time = in.getLong();
+        return (time==Long.MIN_VALUE) ? null : new Date(time);
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    DirectoryConsensus getConsensus() {
+        return consensus;
+    }
+
+    /**
+     * @return the routers of the snapshot by fingerprint
+     */
+    Map<Fingerprint,RouterImpl> getRouters() {
+        return routers;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.silvertunnel.netlib.layer.tor.api.RouterExitPolicy;
+
+/**
+ * Exit policy of a router, compiled for fast lookups.
+ *
+ * The IPv4 address space is split into ranges in which the same rules apply;
+ * each range refers to a table of port ranges with the result of the first matching rule.
+ * Ranges with equal tables share one table.
+ * A lookup is a binary search for the address range and a binary search for the port range.
+ *
+ * The port table that applies to most addresses is the default table of the policy;
+ * the other address ranges are its address-specific exceptions (e.g. "reject private:*").
+ *
+ * An object is read-only.
+ */
+class CompiledExitPolicy {
+    /** IP address that is used if the destination address is unknown */
+    static final long UNKNOWN_ADDRESS = 0xffffffffL;
+    private static final long MAX_ADDRESS_EXCLUSIVE = 0x100000000L;
+
+    /** first address of each address range, sorted; the first element is 0 */
+    private final long[] addressRangeStarts;
+    /** index in portTables for each address range */
+    private final int[] portTableOfAddressRange;
+    /**
+     * port tables: each element is (firstPortOfRange<<1 | accept), sorted;
+     * the first element is for port 0
+     */
+    private final int[][] portTables;
+    /** index in portTables of the table that applies to most addresses */
+    private final int defaultPortTable;
+
+    private CompiledExitPolicy(long[] addressRangeStarts, int[] portTableOfAddressRange, int[][] portTables) {
+        this.addressRangeStarts = addressRangeStarts;
+        this.portTableOfAddressRange = portTableOfAddressRange;
+        this.portTables = portTables;
+
+        // determine the default table
+        long[] numberOfAddresses = new long[portTables.length];
+        for (int i=0; i<addressRangeStarts.length; i++) {
+            numberOfAddresses[portTableOfAddressRange[i]] += rangeEnd(i) - addressRangeStarts[i];
+        }
+        int defaultTable = 0;
+        for (int i=1; i<numberOfAddresses.length; i++) {
+            if (numberOfAddresses[i]>numberOfAddresses[defaultTable]) {
+                defaultTable = i;
+            }
+        }
+        this.defaultPortTable = defaultTable;
+    }
+
+    /**
+     * Compile the exit policy.
+     *
+     * @param policy    rules, the first matching rule decides
+     * @return the compiled policy; null if the policy cannot be compiled (netmask is not a prefix)
+     */
+    static CompiledExitPolicy compile(RouterExitPolicy[] policy) {
+        // collect the rules that can match and the borders of their address ranges
+        List<RouterExitPolicy> rules = new ArrayList<RouterExitPolicy>(policy.length);
+        TreeSet<Long> addressBorders = new TreeSet<Long>();
+        addressBorders.add(0L);
+        for (RouterExitPolicy rule : policy) {
+            long netmask = rule.getNetmask() & 0xffffffffL;
+            long hostmask = ~netmask & 0xffffffffL;
+            if ((hostmask & (hostmask+1))!=0) {
+                return null;
+            }
+            if ((rule.getIp() & ~netmask)!=0) {
+                // never matches
+                continue;
+            }
+            rules.add(rule);
+            addressBorders.add(rule.getIp());
+            long end = rule.getIp() + hostmask + 1;
+            if (end<MAX_ADDRESS_EXCLUSIVE) {
+                addressBorders.add(end);
+            }
+        }
+
+        // determine the port table of each address range
+        List<Long> starts = new ArrayList<Long>(addressBorders.size());
+        List<Integer> tableIndexes = new ArrayList<Integer>(addressBorders.size());
+        List<int[]> tables = new ArrayList<int[]>();
+        Map<String,Integer> tableIndexByContent = new HashMap<String,Integer>();
+        for (Long start : addressBorders) {
+            int[] table = compilePortTable(rules, start);
+            String content = Arrays.toString(table);
+            Integer tableIndex = tableIndexByContent.get(content);
+            if (tableIndex==null) {
+                tableIndex = tables.size();
+                tables.add(table);
+                tableIndexByContent.put(content, tableIndex);
+            }
+            // merge with the previous range if the table is the same
+            if (tableIndexes.isEmpty() || !tableIndexes.get(tableIndexes.size()-1).equals(tableIndex)) {
+                starts.add(start);
+                tableIndexes.add(tableIndex);
+            }
+        }
+
+        long[] addressRangeStarts = new long[starts.size()];
+        int[] portTableOfAddressRange = new int[starts.size()];
+        for (int i=0; i<addressRangeStarts.length; i++) {
+            addressRangeStarts[i] = starts.get(i);
+            portTableOfAddressRange[i] = tableIndexes.get(i);
+        }
+        return new CompiledExitPolicy(addressRangeStarts, portTableOfAddressRange, tables.toArray(new int[tables.size()][]));
+    }
+
+    /**
+     * @return port table of all rules that match address
+     */
+    private static int[] compilePortTable(List<RouterExitPolicy> rules, long address) {
+        List<RouterExitPolicy> matchingRules = new ArrayList<RouterExitPolicy>();
+        TreeSet<Integer> portBorders = new TreeSet<Integer>();
+        portBorders.add(0);
+        for (RouterExitPolicy rule : rules) {
+            if (rule.getIp()==(address & rule.getNetmask())) {
+                matchingRules.add(rule);
+                if (rule.getLoPort()>0) {
+                    portBorders.add(rule.getLoPort());
+                }
+                if (rule.getHiPort()>=rule.getLoPort() && rule.getHiPort()<Integer.MAX_VALUE>>1) {
+                    portBorders.add(rule.getHiPort()+1);
+                }
+            }
+        }
+
+        int[] table = new int[portBorders.size()];
+        int size = 0;
+        Boolean previous = null;
+        for (Integer port : portBorders) {
+            boolean accept = false;
+            for (RouterExitPolicy rule : matchingRules) {
+                if (rule.getLoPort()<=port && rule.getHiPort()>=port) {
+                    accept = rule.isAccept();
+                    break;
+                }
+            }
+            if (previous==null || previous.booleanValue()!=accept) {
+                table[size++] = (port<<1) | (accept ? 1 : 0);
+                previous = accept;
+            }
+        }
+        return Arrays.copyOf(table, size);
+    }
+
+    /**
+     * @param address    IPv4 address as unsigned 32 bit value; UNKNOWN_ADDRESS if unknown
+     * @param port
+     * @return true=accepted
+     */
+    boolean accepts(long address, int port) {
+        return accepts(portTables[portTableOfAddressRange[indexOfAddressRange(address)]], port);
+    }
+
+    /**
+     * @param port
+     * @return true=accepted for all addresses outside of getExceptionRanges()
+     */
+    boolean acceptsByDefault(int port) {
+        return accepts(portTables[defaultPortTable], port);
+    }
+
+    /**
+     * @return the address ranges with other rules than the default:
+     *         pairs of first address and end address (exclusive), sorted; empty if the rules do not depend on the address
+     */
+    long[] getExceptionRanges() {
+        long[] result = new long[2*addressRangeStarts.length];
+        int size = 0;
+        for (int i=0; i<addressRangeStarts.length; i++) {
+            if (portTableOfAddressRange[i]!=defaultPortTable) {
+                if (size>0 && result[size-1]==addressRangeStarts[i]) {
+                    // adjacent to the previous exception
+                    result[size-1] = rangeEnd(i);
+                } else {
+                    result[size++] = addressRangeStarts[i];
+                    result[size++] = rangeEnd(i);
+                }
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    private static boolean accepts(int[] table, int port) {
+        if (port<0) {
+            return false;
+        }
+
+        // binary search: last element with first port <= port
+        int low = 0;
+        int high = table.length-1;
+        while (low<high) {
+            int mid = (low+high+1)>>>1;
+            if ((table[mid]>>>1)<=port) {
+                low = mid;
+            } else {
+                high = mid-1;
+            }
+        }
+        return (table[low] & 1)!=0;
+    }
+
+    /**
+     * Write the compiled policy into a binary directory snapshot.
+     * 
+     * @see #read(ByteBuffer)
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(addressRangeStarts.length);
+        for (int i=0; i<addressRangeStarts.length; i++) {
+            out.writeInt((int)addressRangeStarts[i]);
+            out.writeInt(portTableOfAddressRange[i]);
+        }
+        out.writeInt(portTables.length);
+        for (int[] table : portTables) {
+            out.writeInt(table.length);
+            for (int entry : table) {
+                out.writeInt(entry);
+            }
+        }
+    }
+
+    /**
+     * Read a compiled policy from a binary directory snapshot.
+     * 
+     * @see #write(DataOutputStream)
+     */
+    static CompiledExitPolicy read(ByteBuffer in) {
+        int numberOfRanges = in.getInt();
+        long[] addressRangeStarts = new long[numberOfRanges];
+        int[] portTableOfAddressRange = new int[numberOfRanges];
+        for (int i=0; i<numberOfRanges; i++) {
+            addressRangeStarts[i] = in.getInt() & 0xffffffffL;
+            portTableOfAddressRange[i] = in.getInt();
+        }
+        int[][] portTables = new int[in.getInt()][];
+        for (int i=0; i<portTables.length; i++) {
+            portTables[i] = new int[in.getInt()];
+            for (int j=0; j<portTables[i].length; j++) {
+                portTables[i][j] = in.getInt();
+            }
+        }
+        // consistency check: a lookup must never fail
+        if (numberOfRanges==0 || addressRangeStarts[0]!=0) {
+            throw new IllegalArgumentException("invalid address ranges");
+        }
+        for (int i=0; i<numberOfRanges; i++) {
+            int tableIndex = portTableOfAddressRange[i];
+            if (tableIndex<0 || tableIndex>=portTables.length || portTables[tableIndex].length==0) {
+                throw new IllegalArgumentException("invalid port table");
+            }
+        }
+        return new CompiledExitPolicy(addressRangeStarts, portTableOfAddressRange, portTables);
+    }
+
+    /**
+     * @return first address after address range i
+     */
+    private long rangeEnd(int i) {
+        return (i+1<addressRangeStarts.length) ? addressRangeStarts[i+1] : MAX_ADDRESS_EXCLUSIVE;
+    }
+
+    private int indexOfAddressRange(long address) {
+        int low = 0;
+        int high = addressRangeStarts.length-1;
+        while (low<high) {
+            int mid = (low+high+1)>>>1;
+            if (addressRangeStarts[mid]<=address) {
+                low = mid;
+            } else {
+                high = mid-1;
+            }
+        }
+        return low;
+    }
+}
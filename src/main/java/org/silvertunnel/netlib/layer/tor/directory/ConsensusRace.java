@@ -0,0 +1,304 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.InflaterInputStream;
+
+import org.silvertunnel.netlib.api.NetLayer;
+import org.silvertunnel.netlib.tool.SimpleHttpClient;
+import org.silvertunnel.netlib.util.CopyingInputStream;
+
+/**
+ * Download the consensus from several directory servers (hedged): start with one
+ * randomly chosen server, start the next one if the running downloads together
+ * are slower than minBytesPerSecond during the last hedge interval (i.e. also after
+ * the first interval if nothing has been received yet) or immediately if a
+ * running download failed. The first valid document that is not older than the current
+ * consensus wins, all other downloads are cancelled by closing their streams.
+ *
+ * The refresh time of a consensus only decides when to start the race: a mirror that
+ * still serves the current consensus after its refresh time delivers a usable document.
+ *
+ * A slow but alive directory server cannot delay the bootstrap any more
+ * until the overall timeout of its connection.
+ */
+class ConsensusRace {
+    private static final Logger log = Logger.getLogger(ConsensusRace.class.getName());
+
+    private final NetLayer dirConnectionNetLayer;
+    private final String path;
+    private final AuthorityKeyCertificates authorityKeyCertificates;
+    private final Date now;
+    private final Date minValidAfter;
+    private final VerifiedSignatures verifiedSignatures;
+
+    private final int maxParallelDownloads;
+    private final long hedgeDelayMs;
+    private final long minBytesPerSecond;
+
+    /**
+     * @param dirConnectionNetLayer       used to connect the directory servers
+     * @param path                        path of the (compressed) consensus document
+     * @param authorityKeyCertificates    needed to check the consensus document
+     * @param now                         current date and time
+     * @param minValidAfter               valid-after of the current consensus; null=accept every valid consensus
+     * @param verifiedSignatures          memo of already verified signatures; null=verify all signatures
+     * @param maxParallelDownloads        maximum number of downloads at the same time
+     * @param hedgeDelayMs                interval to check the progress
+     * @param minBytesPerSecond           start the next download if the running ones are slower
+     */
+    ConsensusRace(NetLayer dirConnectionNetLayer, String path, AuthorityKeyCertificates authorityKeyCertificates, Date now,
+            Date minValidAfter, VerifiedSignatures verifiedSignatures, int maxParallelDownloads, long hedgeDelayMs, long minBytesPerSecond) {
+        this.dirConnectionNetLayer = dirConnectionNetLayer;
+        this.path = path;
+        this.authorityKeyCertificates = authorityKeyCertificates;
+        this.now = now;
+        this.minValidAfter = minValidAfter;
+        this.verifiedSignatures = verifiedSignatures;
+        this.maxParallelDownloads = Math.max(1, maxParallelDownloads);
+        this.hedgeDelayMs = Math.max(1, hedgeDelayMs);
+        this.minBytesPerSecond = Math.max(0, minBytesPerSecond);
+    }
+
+    /**
+     * Run the race.
+     *
+     * @param dirRouters    candidates; every directory server is tried at most once
+     * @param rnd
+     * @return the winning download; null if no directory server delivered a usable consensus
+     */
+    Download run(List<RouterImpl> dirRouters, Random rnd) throws InterruptedException {
+        List<RouterImpl> candidates = new ArrayList<RouterImpl>(dirRouters);
+        List<Download> running = new ArrayList<Download>(maxParallelDownloads);
+        ExecutorService executor = Executors.newFixedThreadPool(maxParallelDownloads, Directory.DOWNLOAD_THREAD_FACTORY);
+        CompletionService<Download> completionService = new ExecutorCompletionService<Download>(executor);
+        try {
+            long lastCheckMillis = System.currentTimeMillis();
+            long lastCheckBytes = 0;
+            boolean startNext = true;
+            while (true) {
+                // start next download?
+                if (startNext && running.size()<maxParallelDownloads && !candidates.isEmpty()) {
+                    RouterImpl dirRouter = candidates.remove(rnd.nextInt(candidates.size()));
+                    log.info("download consensus from "+dirRouter.getFingerprint()+" ("+dirRouter.getNickname()+"), "+running.size()+" other download(s) running");
+                    Download download = new Download(dirRouter);
+                    running.add(download);
+                    completionService.submit(download);
+                    lastCheckMillis = System.currentTimeMillis();
+                    lastCheckBytes = getReceivedBytes(running);
+                }
+                if (running.isEmpty()) {
+                    // all candidates failed
+                    return null;
+                }
+
+                // wait for the next finished download or the next check
+                long waitMs = Math.max(1, lastCheckMillis + hedgeDelayMs - System.currentTimeMillis());
+                Future<Download> finished = completionService.poll(waitMs, TimeUnit.MILLISECONDS);
+                if (finished!=null) {
+                    Download download = getDownload(finished);
+                    running.remove(download);
+                    if (isUsable(download.getConsensus())) {
+                        log.info("consensus downloaded from "+download.getDirRouter().getNickname()
+                                +" (compressed size="+download.getReceivedBytes()+"), cancel "+running.size()+" other download(s)");
+                        return download;
+                    }
+                    log.info("consensus download from "+download.getDirRouter().getNickname()+" was not usable");
+                    // replace the failed download at once
+                    startNext = true;
+                    continue;
+                }
+
+                // check the progress
+                long currentMillis = System.currentTimeMillis();
+                long currentBytes = getReceivedBytes(running);
+                long bytesPerSecond = (currentBytes-lastCheckBytes)*1000L / Math.max(1, currentMillis-lastCheckMillis);
+                startNext = bytesPerSecond<minBytesPerSecond;
+                if (startNext && log.isLoggable(Level.FINE)) {
+                    log.fine("consensus download(s) too slow with "+bytesPerSecond+" bytes per second");
+                }
+                lastCheckMillis = currentMillis;
+                lastCheckBytes = currentBytes;
+            }
+        } finally {
+            // cancel the losers
+            for (Download download : running) {
+                download.cancel();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param consensus    null in the case of a failed download
+     * @return true if the consensus is valid now and not older than the current one
+     */
+    boolean isUsable(DirectoryConsensus consensus) {
+        if (consensus==null || !consensus.isValid(now)) {
+            return false;
+        }
+        return minValidAfter==null || !consensus.getValidAfter().before(minValidAfter);
+    }
+
+    private static Download getDownload(Future<Download> finished) throws InterruptedException {
+        try {
+            return finished.get();
+        } catch (ExecutionException e) {
+            // not expected: Download.call() catches all exceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long getReceivedBytes(List<Download> downloads) {
+        long result = 0;
+        for (Download download : downloads) {
+            result += download.getReceivedBytes();
+        }
+        return result;
+    }
+
+    /**
+     * Open the download of the compressed consensus.
+     * 
+     * @param dirRouter
+     * @return the stream, to be closed by the caller
+     */
+    InputStream openDownload(RouterImpl dirRouter) throws IOException {
+        return SimpleHttpClient.getInstance().getInputStream(dirConnectionNetLayer, dirRouter.getDirAddress(), path);
+    }
+
+    /**
+     * Download and parse the consensus from one directory server.
+     */
+    class Download implements Callable<Download> {
+        private final RouterImpl dirRouter;
+        /** the compressed document as received so far */
+        private final ByteArrayOutputStream compressedConsensus = new ByteArrayOutputStream();
+        private DirectoryConsensus consensus;
+        private InputStream in;
+        private boolean cancelled;
+
+        Download(RouterImpl dirRouter) {
+            this.dirRouter = dirRouter;
+        }
+
+        /**
+         * @return this, with consensus==null in the case of an error
+         */
+        public Download call() {
+            try {
+                InputStream newIn = openDownload(dirRouter);
+                synchronized (this) {
+                    if (cancelled) {
+                        newIn.close();
+                        return this;
+                    }
+                    in = newIn;
+                }
+                try {
+                    // parse the document and keep the compressed form for the cache
+                    CopyingInputStream copyingIn = new CopyingInputStream(newIn, compressedConsensus);
+                    DirectoryConsensus newConsensus = new DirectoryConsensus(new InflaterInputStream(copyingIn), authorityKeyCertificates, now, verifiedSignatures);
+                    copyingIn.copyRemaining();
+                    consensus = newConsensus;
+                } finally {
+                    newIn.close();
+                }
+            } catch (Exception e) {
+                if (isCancelled()) {
+                    log.fine("cancelled consensus download from "+dirRouter.getNickname());
+                } else {
+                    log.log(Level.WARNING, "consensus download from "+dirRouter.getNickname()+" failed", e);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Stop the download: close its stream.
+         */
+        void cancel() {
+            InputStream inToClose;
+            synchronized (this) {
+                cancelled = true;
+                inToClose = in;
+            }
+            if (inToClose!=null) {
+                try {
+                    inToClose.close();
+                } catch (IOException e) {
+                    log.log(Level.FINE, "exception while closing consensus download", e);
+                }
+            }
+        }
+
+        ///////////////////////////////////////////////////////
+        // getters and setters
+        ///////////////////////////////////////////////////////
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        long getReceivedBytes() {
+            return compressedConsensus.size();
+        }
+
+        RouterImpl getDirRouter() {
+            return dirRouter;
+        }
+
+        /**
+         * @return the parsed consensus; null if not (yet) successfully loaded
+         */
+        DirectoryConsensus getConsensus() {
+            return consensus;
+        }
+
+        byte[] getCompressedConsensus() {
+            return compressedConsensus.toByteArray();
+        }
+
+        /**
+         * Write the compressed consensus without copying it in memory.
+         */
+        void writeCompressedConsensus(OutputStream out) throws IOException {
+            compressedConsensus.writeTo(out);
+        }
+    }
+}
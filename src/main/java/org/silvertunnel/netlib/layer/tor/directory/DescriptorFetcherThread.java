@@ -17,8 +17,15 @@
  */
 package org.silvertunnel.netlib.layer.tor.directory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.zip.InflaterInputStream;
+
 import org.silvertunnel.netlib.api.NetLayer;
 import org.silvertunnel.netlib.api.util.TcpipNetAddress;
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.util.Encoding;
 import org.silvertunnel.netlib.tool.SimpleHttpClient;
 
 /**
@@ -28,6 +35,9 @@ import org.silvertunnel.netlib.tool.SimpleHttpClient;
 class DescriptorFetcherThread extends Thread {
     private static java.util.logging.Logger log = java.util.logging.Logger.getLogger(DescriptorFetcherThread.class.getName());
 
+    /** suffix of the URL path to download a document zlib compressed */
+    static final String COMPRESSED_SUFFIX = ".z";
+
     private boolean stopped = false;
     private boolean resolved = false;
     private boolean failed = false;
@@ -69,10 +79,10 @@ class DescriptorFetcherThread extends Thread {
     public static String downloadSingleDescriptor(String nodesDigestsToLoad, RouterStatusDescription directoryServer, NetLayer dirConnectionNetLayer) {
         // download descriptor(s)
         try {
-            String path = "/tor/server/d"+nodesDigestsToLoad;
+            String path = "/tor/server/d"+nodesDigestsToLoad+COMPRESSED_SUFFIX;
             TcpipNetAddress hostAndPort = new TcpipNetAddress(directoryServer.getIp(), directoryServer.getDirPort());
             
-            String httpResponse = SimpleHttpClient.getInstance().get(dirConnectionNetLayer, hostAndPort, path);
+            String httpResponse = SimpleHttpClient.getInstance().getInflated(dirConnectionNetLayer, hostAndPort, path);
             return httpResponse;
 
         } catch (Exception e) {
@@ -91,9 +101,9 @@ class DescriptorFetcherThread extends Thread {
     public static String downloadAllDescriptors(RouterImpl directoryServer, NetLayer dirConnectionNetLayer) {
         // download descriptor(s)
         try {
-            final String path = "/tor/server/all";
+            final String path = "/tor/server/all"+COMPRESSED_SUFFIX;
 
-            String httpResponse = SimpleHttpClient.getInstance().get(dirConnectionNetLayer, directoryServer.getDirAddress(), path);
+            String httpResponse = SimpleHttpClient.getInstance().getInflated(dirConnectionNetLayer, directoryServer.getDirAddress(), path);
             return httpResponse;
 
         } catch (Exception e) {
@@ -102,6 +112,58 @@ class DescriptorFetcherThread extends Thread {
         }
     }
 
+    /**
+     * Start the download of router descriptors.
+     * 
+     * @param digests                  digests of the router descriptors (not of the identity keys)
+     * @param directoryServer
+     * @param dirConnectionNetLayer
+     * @return the inflated descriptors, to be read while they are downloaded and closed by the caller
+     * @throws IOException in the case of an error
+     */
+    public static InputStream openDescriptors(Collection<Fingerprint> digests, RouterImpl directoryServer, NetLayer dirConnectionNetLayer)
+            throws IOException {
+        StringBuffer path = new StringBuffer("/tor/server/d/");
+        boolean first = true;
+        for (Fingerprint digest : digests) {
+            if (!first) {
+                path.append('+');
+            }
+            path.append(digest.getHex());
+            first = false;
+        }
+
+        path.append(COMPRESSED_SUFFIX);
+
+        return new InflaterInputStream(SimpleHttpClient.getInstance().getInputStream(dirConnectionNetLayer, directoryServer.getDirAddress(), path.toString()));
+    }
+
+    /**
+     * Start the download of microdescriptors.
+     * 
+     * @param digests                  SHA-256 digests of the microdescriptors
+     * @param directoryServer
+     * @param dirConnectionNetLayer
+     * @return the inflated microdescriptors, to be read while they are downloaded and closed by the caller
+     * @throws IOException in the case of an error
+     */
+    public static InputStream openMicrodescriptors(Collection<Fingerprint> digests, RouterImpl directoryServer, NetLayer dirConnectionNetLayer)
+            throws IOException {
+        StringBuffer path = new StringBuffer("/tor/micro/d/");
+        boolean first = true;
+        for (Fingerprint digest : digests) {
+            if (!first) {
+                path.append('-');
+            }
+            path.append(Encoding.toBase64(digest.getBytes()).replace("=", ""));
+            first = false;
+        }
+
+        path.append(COMPRESSED_SUFFIX);
+
+        return new InflaterInputStream(SimpleHttpClient.getInstance().getInputStream(dirConnectionNetLayer, directoryServer.getDirAddress(), path.toString()));
+    }
+
     public void run() {
         // run until killed
         while (!stopped) {
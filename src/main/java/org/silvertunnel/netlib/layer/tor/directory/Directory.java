@@ -34,12 +34,19 @@
  */
 package org.silvertunnel.netlib.layer.tor.directory;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.security.KeyPair;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -48,9 +55,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
 
 import org.silvertunnel.netlib.api.NetLayer;
 import org.silvertunnel.netlib.api.util.IpNetAddress;
@@ -62,9 +76,13 @@ import org.silvertunnel.netlib.layer.tor.api.TorNetLayerStatus;
 import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel.netlib.layer.tor.util.NetLayerStatusAdmin;
-import org.silvertunnel.netlib.layer.tor.util.Parsing;
 import org.silvertunnel.netlib.layer.tor.util.TorException;
+import org.silvertunnel.netlib.layer.tor.util.Util;
 import org.silvertunnel.netlib.tool.SimpleHttpClient;
+import org.silvertunnel.netlib.util.BinaryStorage;
+import org.silvertunnel.netlib.util.StorageOutputStream;
+import org.silvertunnel.netlib.util.StreamStorage;
+import org.silvertunnel.netlib.util.StreamStorageAdapter;
 import org.silvertunnel.netlib.util.StringStorage;
 
 
@@ -89,44 +107,57 @@ public class Directory {
     public static final int RETRIES_ON_RECURSIVE_ROUTE_BUILD = 10; 
     /** time intervals to poll descriptor fetchers for result in milliseconds */
     static final int FETCH_THREAD_QUERY_TIME_MS = 2000;
+    /** minimum time between two recreations of the samplers because of punished rankings in milliseconds */
+    private static final long RANKINGS_UPDATE_INTERVAL_MS = 60000;
 
     /** key to locally cache the authority key certificates */ 
     private static final String STORAGEKEY_AUTHORITY_KEY_CERTIFICATES_TXT = "authority-key-certificates.txt";
-    /** key to locally cache the consensus */ 
-    private static final String STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT = "directory-cached-consensus.txt";
+    /** key to locally cache the consensus (zlib compressed document) */ 
+    private static final String STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_Z = "directory-cached-consensus.z";
     /** key to locally cache the router descriptors */ 
     private static final String STORAGEKEY_DIRECTORY_CACHED_ROUTER_DESCRIPTORS_TXT = "directory-cached-router-descriptors.txt";
+    /** key to locally cache the consensus of the microdesc flavour (zlib compressed document) */ 
+    private static final String STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_MICRODESC_Z = "directory-cached-consensus-microdesc.z";
+    /** key to locally cache the microdescriptors */ 
+    private static final String STORAGEKEY_DIRECTORY_CACHED_MICRODESCRIPTORS_TXT = "directory-cached-microdescriptors.txt";
 
     private TorConfig torConfig;
     /** local cache */
     private StringStorage stringStorage;
+    /** the local cache to stream big documents */
+    private StreamStorage streamStorage;
+    /** memo of verified signatures of directory documents, stored in stringStorage; null=not loaded yet */
+    private VerifiedSignatures verifiedSignatures;
     /** lower layer network layer, e.g. TCP/IP to connect to directory servers */
     public NetLayer lowerDirConnectionNetLayer;
-    /** collection of all valid Tor server (all routers that are valid or were valid in the past) */
-    private Map<Fingerprint,RouterImpl> allFingerprintsRouters = Collections.synchronizedMap(new HashMap<Fingerprint,RouterImpl>());
-    /** the last valid consensus */
-    private DirectoryConsensus directoryConsensus;
-    /** cache: number of running routers in the consensus */
-    private int numOfRunningRoutersInDirectoryConsensus = 0;
     /**
-     * cache of a combination of fingerprintsRouters+directoryConsensus: valid routers + status
-     * 
-     * key=identity key
+     * collection of all valid Tor server (all routers that are valid or were valid in the past);
+     * only used by the update (guarded by this)
      */
-    private Map<Fingerprint,RouterImpl> validRoutersByFingerprint = new HashMap<Fingerprint,RouterImpl>();
-    /**
-     * Map that has class C address as key, and a HashSet with fingerprints
-     * of Nodes that have IP-Address of that class
-     */
-    private Map<String, HashSet<Fingerprint>> addressNeighbours;
+    private Map<Fingerprint,RouterImpl> allFingerprintsRouters = new HashMap<Fingerprint,RouterImpl>();
+    /** the last valid consensus, used by the update - readers use snapshot */
+    private DirectoryConsensus directoryConsensus;
+    /** consensus of the binary directory snapshot that was written or read last; null=none */
+    private DirectoryConsensus snapshotConsensus;
     /**
-     * HashMap where keys are CountryCodes, and values are HashSets with fingerprints
-     * of Nodes having an IP-address in the specific country
+     * routers of the binary directory snapshot that was written or read last;
+     * compared by identity of the routers, i.e. a replaced descriptor is a change
      */
-    private Map<String, HashSet<Fingerprint>> countryNeighbours;
+    private Map<Fingerprint,RouterImpl> snapshotRouters = Collections.emptyMap();
     /** HashSet excluded by config nodes */
     private HashSet<Fingerprint> excludedNodesByConfig;
     private Random rnd;
+    /**
+     * combination of allFingerprintsRouters+directoryConsensus (valid routers + status) and its indexes;
+     * replaced as a whole after each update, never modified
+     */
+    private volatile DirectorySnapshot snapshot;
+    /** true=ranking indexes changed after the creation of the samplers of snapshot */
+    private volatile boolean routerRankingsChanged;
+    /** time of the last creation of the samplers because of changed ranking indexes */
+    private long routerRankingsUpdateMillis;
+    /** guards the replacement of snapshot */
+    private final Object snapshotLock = new Object();
     
     private volatile boolean updateRunning = false;
     private int updateCounter = 0;
@@ -136,8 +167,17 @@ public class Directory {
     private NetLayerStatusAdmin statusAdmin;
 
     private static final long ONE_DAY_IN_MS = 1L*24L*60L*60L*1000L;
-    
-    private static final Pattern IPCLASSC_PATTERN = Parsing.compileRegexPattern("(.*)\\.");
+
+    /** threads of the descriptor and consensus downloads */
+    static final ThreadFactory DOWNLOAD_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "DescriptorDownloader "+counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
     
     /**
      * Initialize directory to prepare later network operations.
@@ -152,6 +192,7 @@ public class Directory {
         // save parameters
         this.torConfig = torConfig;
         this.stringStorage = stringStorage;
+        this.streamStorage = StreamStorageAdapter.getStreamStorage(stringStorage);
         this.lowerDirConnectionNetLayer = lowerDirConnectionNetLayer;
         this.statusAdmin = statusAdmin;
 
@@ -165,53 +206,26 @@ public class Directory {
         this.lowerDirConnectionNetLayer = new ControlNetLayer(lowerDirConnectionNetLayer, cp);
         
         // rest
-        addressNeighbours = new HashMap<String, HashSet<Fingerprint>>();
-        countryNeighbours = new HashMap<String, HashSet<Fingerprint>>();
         rnd = new Random();
         excludedNodesByConfig = new HashSet<Fingerprint>();
         Collection<byte[]> avoidedNodeFingerprints = TorConfig.avoidedNodeFingerprints;
         for (byte[] fingerprint : avoidedNodeFingerprints) {
             excludedNodesByConfig.add(new FingerprintImpl(fingerprint));
         }
+        snapshot = createSnapshot(null, Collections.<Fingerprint,RouterImpl>emptyMap(), 0);
     }
 
 
-    /**
-     * Add s to addressNeighbours and countryNeighbours.
-     * 
-     * @param r
-     */
-    private void addToNeighbours(RouterImpl r){
-        HashSet<Fingerprint> neighbours;
-        String ipClassCString = Parsing.parseStringByRE(r.getAddress().getHostAddress(), IPCLASSC_PATTERN, "");
-        
-        // add it to the addressNeighbours
-        neighbours =  addressNeighbours.get(ipClassCString);
-        if (neighbours==null) {
-            // first entry for this ipClassCString
-            neighbours = new HashSet<Fingerprint>();
-            addressNeighbours.put(ipClassCString, neighbours);
-        }
-        neighbours.add(r.getFingerprint());
-
-        // add it to the country neighbours
-        neighbours =  countryNeighbours.get(r.getCountryCode());
-        if (neighbours==null) {
-            // first entry for this s.countryCode
-            neighbours = new HashSet<Fingerprint>();
-            countryNeighbours.put(r.getCountryCode(), neighbours);
-        }
-        neighbours.add(r.getFingerprint());
-    }
-
     /**
      * 
      * @return true if directory was loaded and enough routers are available
      */
     public boolean isDirectoryReady() {
+        DirectorySnapshot current = snapshot;
+        int numOfRunningRoutersInDirectoryConsensus = current.getNumOfRunningRoutersInConsensus();
         if (numOfRunningRoutersInDirectoryConsensus > 0) {
             long minDescriptors = Math.max(Math.round(TorConfig.minDescriptorsPercentage*numOfRunningRoutersInDirectoryConsensus), TorConfig.minDescriptors);
-            if (validRoutersByFingerprint.size() > Math.max(minDescriptors, TorConfig.routeMinLength)) {
+            if (current.getValidRoutersByFingerprint().size() > Math.max(minDescriptors, TorConfig.routeMinLength)) {
                 // ready
                 return true;
             } else {
@@ -225,25 +239,31 @@ public class Directory {
     }
 
     /**
+     * @return the time to download the next consensus; null if no consensus is available
+     */
+    public Date getConsensusRefreshTime() {
+        DirectoryConsensus consensus = snapshot.getConsensus();
+        return (consensus==null) ? null : consensus.getRefreshTime();
+    }
+
+    /**
+     * Only called by the update.
+     * 
      * @return all routers that can be used; cached dirs a preferred if they are known
      */
     private Collection<RouterImpl> getDirRouters() {
         // filter
-        Collection<RouterImpl> cacheDirs;
-        Collection<RouterImpl> authorityDirs;
-        synchronized(allFingerprintsRouters) {
-            cacheDirs = new ArrayList<RouterImpl>(allFingerprintsRouters.size());
-            authorityDirs = new ArrayList<RouterImpl>();
-            for (RouterImpl r : allFingerprintsRouters.values()) {
-                if (r.isValid()) {
-                    // is this a authority dir?
-                    if (r.isDirv2Authority()) {
-                        authorityDirs.add(r);
-                        
-                       // is this a dir?    
-                    } else if (r.isDirv2V2dir()) {
-                        cacheDirs.add(r);
-                    }
+        Collection<RouterImpl> cacheDirs = new ArrayList<RouterImpl>(allFingerprintsRouters.size());
+        Collection<RouterImpl> authorityDirs = new ArrayList<RouterImpl>();
+        for (RouterImpl r : allFingerprintsRouters.values()) {
+            if (r.isValid()) {
+                // is this a authority dir?
+                if (r.isDirv2Authority()) {
+                    authorityDirs.add(r);
+                    
+                   // is this a dir?    
+                } else if (r.isDirv2V2dir()) {
+                    cacheDirs.add(r);
                 }
             }
         }
@@ -316,12 +336,20 @@ public class Directory {
         //
         statusAdmin.updateStatus(TorNetLayerStatus.CONSENSUS_LOADING);
 
-        // pre-check
+        // warm start: use the binary snapshot of the last run
         Date now = new Date();
+        if (directoryConsensus==null) {
+            readSnapshot(now);
+        }
+
+        // pre-check
         if (directoryConsensus!=null && !directoryConsensus.needsToBeRefreshed(now)) {
             log.info("no consensus update necessary ...");
         } else {
             AuthorityKeyCertificates authorityKeyCertificates = getAuthorityKeyCertificates();
+            VerifiedSignatures verifiedSignatures = getVerifiedSignatures();
+            final String consensusStorageKey = TorConfig.dirUseMicrodescriptors
+                    ? STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_MICRODESC_Z : STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_Z;
 
             //
             // first initialization attempt: use cached consensus
@@ -330,11 +358,17 @@ public class Directory {
             DirectoryConsensus newDirectoryConsensus = null;
             if (directoryConsensus==null || directoryConsensus.getFingerprintsNetworkStatusDescriptors().size()==0) {
                 // first initialization: try to load consensus from cache
-                String newDirectoryConsensusStr = stringStorage.get(STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT);
-                final int MIN_LENGTH_OF_CONSENSUS_STR = 100;
-                if (newDirectoryConsensusStr!=null && newDirectoryConsensusStr.length()>MIN_LENGTH_OF_CONSENSUS_STR) {
+                InputStream cachedConsensus = null;
+                try {
+                    cachedConsensus = streamStorage.getStream(consensusStorageKey);
+                } catch (IOException e) {
+                    log.info("error while opening consensus from local cache: "+e);
+                }
+                if (cachedConsensus!=null) {
                     try {
-                        newDirectoryConsensus = new DirectoryConsensus(newDirectoryConsensusStr, authorityKeyCertificates, now);
+                        // streamed: the document is never completely in memory
+                        newDirectoryConsensus = new DirectoryConsensus(new InflaterInputStream(cachedConsensus),
+                                authorityKeyCertificates, now, verifiedSignatures);
                         if (newDirectoryConsensus==null || !newDirectoryConsensus.isValid(now)) {
                             // cache result was not acceptable
                             newDirectoryConsensus = null;
@@ -348,6 +382,8 @@ public class Directory {
                     } catch (Exception e) {
                         newDirectoryConsensus = null;
                         log.info("error while loading consensus from local cache: "+e);
+                    } finally {
+                        close(cachedConsensus);
                     }
                 } else {
                     newDirectoryConsensus = null;
@@ -360,40 +396,38 @@ public class Directory {
             //
             log.info("load consensus from Tor network");
             if (newDirectoryConsensus==null) {
-                 // all v3 directory servers
-                List<RouterImpl> dirRouters = new ArrayList<RouterImpl>(getDirRouters());
-                
-                // Choose one randomly
-                while (dirRouters.size()>0) {
-                    int index = rnd.nextInt(dirRouters.size());
-                    RouterImpl dirRouter = dirRouters.get(index);
-                    log.info("Directory.updateNetworkStatusNew: Randomly chosen dirRouter to fetch consensus document: "+dirRouter.getFingerprint() +" ("+dirRouter.getNickname()+")");
-                    try {
-                        // download network status from server
-                        final String path = "/tor/status-vote/current/consensus";
-                        String newDirectoryConsensusStr = SimpleHttpClient.getInstance().get(lowerDirConnectionNetLayer, dirRouter.getDirAddress(), path);
-                        
-                        // Parse the document
-                        newDirectoryConsensus = new DirectoryConsensus(newDirectoryConsensusStr, authorityKeyCertificates, now);
-                        if (!newDirectoryConsensus.needsToBeRefreshed(now)) {
-                            // result is acceptable
-                            log.info("use new consensus");
-                            // save the directoryConsensus for later Tor-startups
-                            stringStorage.put(STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT, newDirectoryConsensusStr);
-                            break;
-                        }
-                        newDirectoryConsensus = null;
-                    } catch (Exception e) {
-                      log.log(Level.WARNING, "Directory.updateNetworkStatusNew Exception", e);
-                      dirRouters.remove(index);
-                      newDirectoryConsensus = null;
+                // download network status from all v3 directory servers (hedged): compressed, inflated while parsing
+                final String path = (TorConfig.dirUseMicrodescriptors
+                        ? "/tor/status-vote/current/consensus-microdesc" : "/tor/status-vote/current/consensus")
+                        + DescriptorFetcherThread.COMPRESSED_SUFFIX;
+                Date minValidAfter = (directoryConsensus==null) ? null : directoryConsensus.getValidAfter();
+                ConsensusRace race = new ConsensusRace(lowerDirConnectionNetLayer, path, authorityKeyCertificates, now, minValidAfter, verifiedSignatures,
+                        TorConfig.dirConsensusMaxParallelDownloads, TorConfig.dirConsensusHedgeDelayMs, TorConfig.dirConsensusHedgeMinBytesPerSecond);
+                try {
+                    ConsensusRace.Download download = race.run(new ArrayList<RouterImpl>(getDirRouters()), rnd);
+                    if (download!=null && directoryConsensus!=null
+                            && download.getConsensus().getValidAfter().equals(directoryConsensus.getValidAfter())) {
+                        // the mirrors do not serve a newer consensus yet: keep the current one (and its refresh time)
+                        log.info("consensus unchanged, valid-after="+directoryConsensus.getValidAfter());
+                    } else if (download!=null) {
+                        // result is acceptable
+                        log.info("use new consensus");
+                        newDirectoryConsensus = download.getConsensus();
+                        // save the directoryConsensus for later Tor-startups
+                        writeCachedConsensus(consensusStorageKey, download);
+                    } else {
+                        log.warning("Directory.updateNetworkStatusNew: no directory server delivered a usable consensus");
                     }
+                } catch (InterruptedException e) {
+                    log.log(Level.INFO, "interrupted while downloading the consensus", e);
+                    Thread.currentThread().interrupt();
                 }
             }  
 
             // finalize consensus update
             if (newDirectoryConsensus!=null) {
                 directoryConsensus = newDirectoryConsensus;
+                log.info("next consensus refresh at "+directoryConsensus.getRefreshTime());
             } 
         }
         // final check whether a new or at least an old consensus is available
@@ -420,28 +454,266 @@ public class Directory {
                 RouterImpl r = allFingerprintsRouters.get(fingerprint);
                 if (r!=null && r.isValid()) {
                     // valid server with description
+                    r.internFingerprint(fingerprint);
                     r.updateServerStatus(networkStatusDescription.getFlags());
+                    r.setConsensusBandwidth(networkStatusDescription.getBandwidth());
                     newValidRoutersByfingerprint.put(fingerprint, r);
                 }
                 if (networkStatusDescription.getFlags().contains("Running")) {
                     newNumOfRunningRoutersInDirectoryConsensus++;
                 }
             }
-            validRoutersByFingerprint = newValidRoutersByfingerprint;
-            numOfRunningRoutersInDirectoryConsensus=newNumOfRunningRoutersInDirectoryConsensus;
-        
-            log.info("updated torServers, new size="+validRoutersByFingerprint.size());
+            DirectorySnapshot current = snapshot;
+            if (directoryConsensus==current.getConsensus() && newValidRoutersByfingerprint.equals(current.getValidRoutersByFingerprint())) {
+                // same routers: keep the snapshot with its cached exit indexes
+                log.info("torServers unchanged, size="+newValidRoutersByfingerprint.size());
+            } else {
+                // build the indexes before the publication: readers continue to use the old snapshot meanwhile
+                publishSnapshot(createSnapshot(directoryConsensus, newValidRoutersByfingerprint, newNumOfRunningRoutersInDirectoryConsensus));
+                log.info("updated torServers, new size="+newValidRoutersByfingerprint.size());
+            }
             
-            // write server descriptors to local cache
-            StringBuffer allDescriptors = new StringBuffer();
-            for (RouterImpl r : validRoutersByFingerprint.values()) {
-                allDescriptors.append(r.getRouterDescriptor()).append("\n");
+            // the descriptors were written to the local cache by fetchDescriptors()
+            getVerifiedSignatures().save(stringStorage);
+
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Save the downloaded consensus for later Tor-startups, as it was received (compressed).
+     */
+    private void writeCachedConsensus(String consensusStorageKey, ConsensusRace.Download download) {
+        try {
+            StorageOutputStream out = streamStorage.putStream(consensusStorageKey, false);
+            try {
+                download.writeCompressedConsensus(out);
+                out.commit();
+            } finally {
+                out.close();
             }
-            stringStorage.put(STORAGEKEY_DIRECTORY_CACHED_ROUTER_DESCRIPTORS_TXT, allDescriptors.toString());
-            log.info("wrote router descriptors to local cache");
+        } catch (IOException e) {
+            log.log(Level.WARNING, "could not write consensus to local cache", e);
         }
     }
 
+    /**
+     * Rewrites the descriptors of the local cache while the descriptors are downloaded:
+     * the routers do not keep their descriptor texts, the still referenced descriptors
+     * of the old cache are copied first, the downloaded ones are appended one by one.
+     * 
+     * The old cache is kept until commit().
+     */
+    private class CachedDescriptorsWriter {
+        /** digests of the descriptors referenced by the consensus */
+        private final Set<Fingerprint> digests;
+        /** digests of the already written descriptors */
+        private final Set<Fingerprint> writtenDigests = new HashSet<Fingerprint>();
+        private final boolean microdescriptors;
+        /** null after an error or after commit()/close() */
+        private StorageOutputStream out;
+        private Writer writer;
+        private int written;
+
+        /**
+         * @param storageKey
+         * @param digests             digests of the descriptors referenced by the consensus
+         * @param microdescriptors    true=microdescriptors, false=router descriptors
+         */
+        CachedDescriptorsWriter(String storageKey, Set<Fingerprint> digests, boolean microdescriptors) {
+            this.digests = digests;
+            this.microdescriptors = microdescriptors;
+            try {
+                out = streamStorage.putStream(storageKey, true);
+                writer = new BufferedWriter(new OutputStreamWriter(out, Util.UTF8));
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not write descriptors to local cache", e);
+                return;
+            }
+            BufferedReader cached = openCachedDescriptors(storageKey);
+            if (cached!=null) {
+                try {
+                    String descriptor;
+                    while ((descriptor=readDescriptor(cached, microdescriptors))!=null) {
+                        write(getDigest(descriptor, microdescriptors), descriptor);
+                    }
+                } catch (IOException e) {
+                    log.info("error while copying "+storageKey+" from local cache: "+e);
+                } finally {
+                    Directory.close(cached);
+                }
+            }
+        }
+
+        /**
+         * Write the descriptor if it is referenced and not yet written.
+         * 
+         * @param digest        digest of the descriptor; null if unknown
+         * @param descriptor
+         */
+        synchronized void write(Fingerprint digest, String descriptor) {
+            if (writer==null || digest==null || !digests.contains(digest) || !writtenDigests.add(digest)) {
+                return;
+            }
+            try {
+                writer.write(descriptor);
+                if (!microdescriptors) {
+                    // microdescriptors end with their line break, their digest covers it
+                    writer.write("\n");
+                }
+                written++;
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not write descriptors to local cache", e);
+                close();
+            }
+        }
+
+        /**
+         * Replace the cached descriptors by the written ones.
+         */
+        synchronized void commit() {
+            if (writer==null) {
+                return;
+            }
+            try {
+                writer.flush();
+                out.commit();
+                log.info("wrote "+written+" descriptors to local cache");
+            } catch (IOException e) {
+                log.log(Level.WARNING, "could not write descriptors to local cache", e);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Keep the old cached descriptors if commit() was not called.
+         */
+        synchronized void close() {
+            if (out!=null) {
+                Directory.close(out);
+                out = null;
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Receives the descriptors while they are downloaded,
+     * called by several download threads at the same time.
+     */
+    private interface DescriptorConsumer {
+        /**
+         * @param descriptor    a single descriptor
+         * @param digest        digest of the descriptor; null if unknown
+         */
+        void add(String descriptor, Fingerprint digest);
+    }
+
+    /**
+     * @param in                  concatenated descriptors
+     * @param microdescriptors    true=microdescriptors, false=router descriptors
+     * @return the next descriptor; null if there is none
+     */
+    private static String readDescriptor(BufferedReader in, boolean microdescriptors) throws IOException {
+        return microdescriptors ? RouterImpl.readMicrodescriptor(in) : RouterImpl.readRouterDescriptor(in);
+    }
+
+    /**
+     * @param descriptor
+     * @param microdescriptors    true=microdescriptor, false=router descriptor
+     * @return the digest as referred by the consensus; null if unknown
+     */
+    private static Fingerprint getDigest(String descriptor, boolean microdescriptors) {
+        return microdescriptors ? RouterImpl.getMicrodescriptorDigest(descriptor) : RouterImpl.getDescriptorDigest(descriptor);
+    }
+
+    /**
+     * @return the cached descriptors, to be closed by the caller; null if not available
+     */
+    private BufferedReader openCachedDescriptors(String storageKey) {
+        try {
+            InputStream in = streamStorage.getStream(storageKey);
+            return (in==null) ? null : new BufferedReader(new InputStreamReader(in, Util.UTF8));
+        } catch (IOException e) {
+            log.info("error while opening "+storageKey+" from local cache: "+e);
+            return null;
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.log(Level.FINE, "could not close stream", e);
+        }
+    }
+
+    /**
+     * Initialize consensus and routers from the binary snapshot of the local cache,
+     * if the snapshot is available and its consensus is still valid.
+     * 
+     * @param now
+     */
+    private void readSnapshot(Date now) {
+        if (!(stringStorage instanceof BinaryStorage)) {
+            return;
+        }
+        ByteBuffer snapshotBytes = ((BinaryStorage)stringStorage).getBytes(BinaryDirectorySnapshot.STORAGEKEY_DIRECTORY_SNAPSHOT_BIN);
+        if (snapshotBytes==null) {
+            log.info("no directory snapshot in local cache");
+            return;
+        }
+        try {
+            BinaryDirectorySnapshot binarySnapshot = BinaryDirectorySnapshot.read(torConfig, snapshotBytes);
+            if (!binarySnapshot.getConsensus().isValid(now)) {
+                log.info("consensus of the directory snapshot is not valid any more");
+                return;
+            }
+            directoryConsensus = binarySnapshot.getConsensus();
+            allFingerprintsRouters.putAll(binarySnapshot.getRouters());
+            snapshotConsensus = directoryConsensus;
+            snapshotRouters = binarySnapshot.getRouters();
+            log.info("use directory snapshot from local cache with "+snapshotRouters.size()+" routers");
+        } catch (IOException e) {
+            log.info("directory snapshot from local cache could not be used: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Write the binary snapshot of consensus and valid routers to the local cache
+     * if it changed since the last snapshot.
+     */
+    private void writeSnapshot() {
+        if (!(stringStorage instanceof BinaryStorage)) {
+            return;
+        }
+        Map<Fingerprint,RouterImpl> validRoutersByFingerprint = snapshot.getValidRoutersByFingerprint();
+        if (directoryConsensus==snapshotConsensus && validRoutersByFingerprint.equals(snapshotRouters)) {
+            // unchanged
+            return;
+        }
+        try {
+            byte[] snapshotBytes = BinaryDirectorySnapshot.write(directoryConsensus, validRoutersByFingerprint);
+            ((BinaryStorage)stringStorage).putBytes(BinaryDirectorySnapshot.STORAGEKEY_DIRECTORY_SNAPSHOT_BIN, snapshotBytes);
+            snapshotConsensus = directoryConsensus;
+            snapshotRouters = validRoutersByFingerprint;
+            log.info("wrote directory snapshot with "+snapshotRouters.size()+" routers to local cache, size="+snapshotBytes.length);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "could not write the directory snapshot", e);
+        }
+    }
+
+    /**
+     * @return the memo of verified signatures, loaded from the local cache at the first call
+     */
+    private synchronized VerifiedSignatures getVerifiedSignatures() {
+        if (verifiedSignatures==null) {
+            verifiedSignatures = VerifiedSignatures.load(stringStorage);
+        }
+        return verifiedSignatures;
+    }
+
     private AuthorityKeyCertificates getAuthorityKeyCertificates() {
         // get now+1 day
         Date now = new Date();
@@ -485,8 +757,8 @@ public class Directory {
                 // download authority key certificates
                 try {
                     TcpipNetAddress hostAndPort = new TcpipNetAddress(authServerIpAndPort);
-                    String path = "/tor/keys/all";
-                    httpResponse = SimpleHttpClient.getInstance().get(lowerDirConnectionNetLayer, hostAndPort, path);
+                    String path = "/tor/keys/all"+DescriptorFetcherThread.COMPRESSED_SUFFIX;
+                    httpResponse = SimpleHttpClient.getInstance().getInflated(lowerDirConnectionNetLayer, hostAndPort, path);
 
                     // parse loaded result
                     AuthorityKeyCertificates newAuthorityKeyCertificates = new AuthorityKeyCertificates(httpResponse, minValidUntil);
@@ -526,15 +798,19 @@ public class Directory {
      * @param fingerprintsRouters    will be modified/updated inside this method
      * @param directoryConsensus     will be read
      */
-    private void fetchDescriptors(Map<Fingerprint,RouterImpl> fingerprintsRouters, DirectoryConsensus directoryConsensus) 
+    private void fetchDescriptors(final Map<Fingerprint,RouterImpl> fingerprintsRouters, DirectoryConsensus directoryConsensus) 
        throws TorException {
-        Set<Fingerprint> fingerprintsOfRoutersToLoad = new HashSet<Fingerprint>();
-        
-        for (RouterStatusDescription networkStatusDescription : directoryConsensus.getFingerprintsNetworkStatusDescriptors().values()) {
+        if (directoryConsensus.isMicrodescFlavour()) {
+            fetchMicrodescriptors(fingerprintsRouters, directoryConsensus);
+            return;
+        }
+        Map<Fingerprint,RouterStatusDescription> networkStatusDescriptions = directoryConsensus.getFingerprintsNetworkStatusDescriptors();
+        final Set<Fingerprint> fingerprintsOfRoutersToLoad = new HashSet<Fingerprint>();
+        for (RouterStatusDescription networkStatusDescription : networkStatusDescriptions.values()) {
             // check one router of the consensus
             RouterImpl r = fingerprintsRouters.get(networkStatusDescription.getFingerprint());
-            if (r==null || !r.isValid()) {
-                // router description not yet contained or too old -> load it
+            if (r==null || !r.isValid() || !r.hasDescriptor(networkStatusDescription.getDigestDescriptor())) {
+                // router description not yet contained, too old or replaced by a newer one -> load it
                 fingerprintsOfRoutersToLoad.add(networkStatusDescription.getFingerprint());
             }
         }
@@ -542,22 +818,27 @@ public class Directory {
         //
         // load missing descriptors
         //
-        final int ALL_DESCRIPTORS_STR_MIN_LEN = 1000;
        
         // try to load from local cache
-           String allDescriptors;
         if (fingerprintsRouters.size()==0) {
-            // try to load from local cache
-            allDescriptors = stringStorage.get(STORAGEKEY_DIRECTORY_CACHED_ROUTER_DESCRIPTORS_TXT);
-        
-            // split into single server descriptors
-            if (allDescriptors!=null && allDescriptors.length()>=ALL_DESCRIPTORS_STR_MIN_LEN) {
-                Map<Fingerprint,RouterImpl> parsedServers = RouterImpl.parseRouterDescriptors(torConfig, allDescriptors);
+            // try to load from local cache, split into single server descriptors while reading
+            Map<Fingerprint,RouterImpl> parsedServers = null;
+            BufferedReader allDescriptors = openCachedDescriptors(STORAGEKEY_DIRECTORY_CACHED_ROUTER_DESCRIPTORS_TXT);
+            if (allDescriptors!=null) {
+                try {
+                    parsedServers = RouterImpl.parseRouterDescriptors(torConfig, allDescriptors, getVerifiedSignatures());
+                } catch (IOException e) {
+                    log.info("error while loading router descriptors from local cache: "+e);
+                } finally {
+                    close(allDescriptors);
+                }
+            }
+            if (parsedServers!=null) {
                 Set<Fingerprint> fingerprintsOfRoutersToLoadCopy = new HashSet<Fingerprint>(fingerprintsOfRoutersToLoad);
                 for (Fingerprint fingerprint : fingerprintsOfRoutersToLoadCopy) {
                     // one searched fingerprint
                     RouterImpl r = parsedServers.get(fingerprint);
-                    if (r!=null && r.isValid()) {
+                    if (r!=null && r.isValid() && r.hasDescriptor(networkStatusDescriptions.get(fingerprint).getDigestDescriptor())) {
                         // found valid descriptor
                         fingerprintsRouters.put(fingerprint, r);
                         fingerprintsOfRoutersToLoad.remove(fingerprint);
@@ -567,51 +848,297 @@ public class Directory {
             log.info("loaded "+fingerprintsRouters.size()+" routers from local cache");
         }        
         
-        // load from directory server
-        final int TRHESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPIONS = 50;
-        log.info("load "+fingerprintsOfRoutersToLoad.size()+" routers from dir server(s) - start");
-        int successes = 0;
-        if (fingerprintsOfRoutersToLoad.size()<=TRHESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPIONS) {
-            // load the descriptions separately
-            // TODO: implement it
-            int attempts = fingerprintsOfRoutersToLoad.size();
-            log.info("loaded "+successes+" of "+attempts+" missing routers from directory server(s) with multiple requests");
-        } else {
-            // load all description with one request (usually done during startup)
-            List<RouterImpl> dirRouters = new ArrayList<RouterImpl>(getDirRouters());
-            while (dirRouters.size()>0) {
-                int i = rnd.nextInt(dirRouters.size());
-                RouterImpl directoryServer = dirRouters.get(i);
-                dirRouters.remove(i);
-                if (directoryServer.getDirPort()<1) {
-                    // cannot be used as directory server
-                    continue;
-                }
-                allDescriptors = DescriptorFetcherThread.downloadAllDescriptors(directoryServer, lowerDirConnectionNetLayer);
-    
-                // split into single server descriptors
-                if (allDescriptors!=null && allDescriptors.length()>=ALL_DESCRIPTORS_STR_MIN_LEN) {
-                    Map<Fingerprint,RouterImpl> parsedServers = RouterImpl.parseRouterDescriptors(torConfig, allDescriptors);
-                    int attempts = 0;
-                    for (Fingerprint fingerprint : fingerprintsOfRoutersToLoad) {
-                        // one searched fingerprint
-                        RouterImpl r = parsedServers.get(fingerprint);
-                        attempts++;
-                        if (r!=null) {
-                            // found search descriptor
-                            fingerprintsRouters.put(fingerprint, r);
-                            successes++;
+        // load from directory servers: multiple digests per request
+        List<Fingerprint> digestsToLoad = new ArrayList<Fingerprint>(fingerprintsOfRoutersToLoad.size());
+        for (Fingerprint fingerprint : fingerprintsOfRoutersToLoad) {
+            byte[] digest = networkStatusDescriptions.get(fingerprint).getDigestDescriptor();
+            if (digest!=null) {
+                digestsToLoad.add(new FingerprintImpl(digest));
+            }
+        }
+        log.info("load "+digestsToLoad.size()+" routers from dir server(s) - start");
+        if (digestsToLoad.isEmpty()) {
+            return;
+        }
+        // parse the descriptors and write them to local cache while they are downloaded
+        Set<Fingerprint> digests = new HashSet<Fingerprint>();
+        for (RouterStatusDescription networkStatusDescription : networkStatusDescriptions.values()) {
+            if (networkStatusDescription.getDigestDescriptor()!=null) {
+                digests.add(new FingerprintImpl(networkStatusDescription.getDigestDescriptor()));
+            }
+        }
+        final AtomicInteger successes = new AtomicInteger();
+        CachedDescriptorsWriter cache = new CachedDescriptorsWriter(STORAGEKEY_DIRECTORY_CACHED_ROUTER_DESCRIPTORS_TXT, digests, false);
+        try {
+            int batches = downloadDescriptors(digestsToLoad, TorConfig.dirV2DescriptorsPerBatch, false, cache, new DescriptorConsumer() {
+                public void add(String descriptor, Fingerprint digest) {
+                    RouterImpl r;
+                    try {
+                        r = new RouterImpl(torConfig, descriptor, getVerifiedSignatures());
+                    } catch (TorException e) {
+                        log.log(Level.INFO, ""+e);
+                        return;
+                    } catch (Exception e) {
+                        log.log(Level.INFO, "unexpected", e);
+                        return;
+                    }
+                    synchronized (fingerprintsRouters) {
+                        if (fingerprintsOfRoutersToLoad.remove(r.getFingerprint())) {
+                            // found searched descriptor
+                            fingerprintsRouters.put(r.getFingerprint(), r);
+                            successes.incrementAndGet();
                         }
                     }
-                    log.info("loaded "+successes+" of "+attempts+" missing routers from directory server \""+directoryServer.getNickname()+"\" with single request");
-                    break;
                 }
+            });
+            log.info("load routers from dir server(s), loaded "+successes.get()+" routers - finished");
+            if (batches>0) {
+                cache.commit();
             }
+        } finally {
+            cache.close();
         }
-        log.info("load routers from dir server(s), loaded "+successes+" routers - finished");
     }
     
     
+    /**
+     * Load the missing microdescriptors of a consensus of the microdesc flavour
+     * from the local cache and from directory caches.
+     * 
+     * @param fingerprintsRouters    will be modified/updated inside this method
+     * @param directoryConsensus     will be read
+     */
+    private void fetchMicrodescriptors(final Map<Fingerprint,RouterImpl> fingerprintsRouters, DirectoryConsensus directoryConsensus) {
+        // routers to (re)create, by digest of their microdescriptor
+        final Map<Fingerprint,RouterStatusDescription> statusesToLoad = new HashMap<Fingerprint,RouterStatusDescription>();
+        // digests of all microdescriptors of the consensus
+        Set<Fingerprint> digests = new HashSet<Fingerprint>();
+        int updated = 0;
+        for (RouterStatusDescription networkStatusDescription : directoryConsensus.getFingerprintsNetworkStatusDescriptors().values()) {
+            byte[] digest = networkStatusDescription.getDigestMicrodescriptor();
+            if (digest==null) {
+                continue;
+            }
+            Fingerprint digestKey = new FingerprintImpl(digest);
+            digests.add(digestKey);
+            RouterImpl r = fingerprintsRouters.get(networkStatusDescription.getFingerprint());
+            if (r!=null && r.hasMicrodescriptor(digest)) {
+                if (networkStatusDescription.getLastPublication().equals(r.getPublished()) && r.isValid()) {
+                    // up to date
+                    continue;
+                }
+                // e.g. new address: no need to download the microdescriptor again
+                try {
+                    fingerprintsRouters.put(networkStatusDescription.getFingerprint(), new RouterImpl(torConfig, networkStatusDescription, r));
+                    updated++;
+                    continue;
+                } catch (TorException e) {
+                    log.log(Level.INFO, ""+e);
+                }
+            }
+            statusesToLoad.put(digestKey, networkStatusDescription);
+        }
+        log.info("updated "+updated+" routers with known microdescriptor");
+
+        // try to load from local cache
+        if (fingerprintsRouters.size()==0) {
+            BufferedReader allMicrodescriptors = openCachedDescriptors(STORAGEKEY_DIRECTORY_CACHED_MICRODESCRIPTORS_TXT);
+            if (allMicrodescriptors!=null) {
+                try {
+                    int loaded = addMicrodescriptors(fingerprintsRouters, statusesToLoad, RouterImpl.splitMicrodescriptors(allMicrodescriptors));
+                    log.info("loaded "+loaded+" routers from local cache");
+                } catch (IOException e) {
+                    log.info("error while loading microdescriptors from local cache: "+e);
+                } finally {
+                    close(allMicrodescriptors);
+                }
+            }
+        }
+
+        // load from directory servers: multiple digests per request
+        log.info("load "+statusesToLoad.size()+" microdescriptors from dir server(s) - start");
+        List<Fingerprint> digestsToLoad = new ArrayList<Fingerprint>(statusesToLoad.keySet());
+        if (digestsToLoad.isEmpty()) {
+            return;
+        }
+        // create the routers and write the microdescriptors to local cache while they are downloaded
+        final AtomicInteger successes = new AtomicInteger();
+        CachedDescriptorsWriter cache = new CachedDescriptorsWriter(STORAGEKEY_DIRECTORY_CACHED_MICRODESCRIPTORS_TXT, digests, true);
+        try {
+            int batches = downloadDescriptors(digestsToLoad, TorConfig.dirMicrodescriptorsPerRequest, true, cache, new DescriptorConsumer() {
+                public void add(String microdescriptor, Fingerprint digest) {
+                    synchronized (statusesToLoad) {
+                        successes.addAndGet(addMicrodescriptors(fingerprintsRouters, statusesToLoad,
+                                Collections.singletonMap(digest, microdescriptor)));
+                    }
+                }
+            });
+            log.info("load microdescriptors from dir server(s), loaded "+successes.get()+" routers - finished");
+            if (batches>0) {
+                cache.commit();
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Download descriptors in batches of digests, in parallel from several directory servers.
+     * A batch that fails is retried with another directory server.
+     * 
+     * The descriptors are passed one by one to cache and consumer while they are downloaded:
+     * the complete answers are never kept in memory.
+     * 
+     * @param digests             digests of the descriptors to load
+     * @param batchSize           maximum number of digests per request
+     * @param microdescriptors    true=microdescriptors (/tor/micro/d/), false=router descriptors (/tor/server/d/)
+     * @param cache               receives all downloaded descriptors
+     * @param consumer            receives all downloaded descriptors
+     * @return number of successfully downloaded batches
+     */
+    private int downloadDescriptors(List<Fingerprint> digests, int batchSize, final boolean microdescriptors,
+            final CachedDescriptorsWriter cache, final DescriptorConsumer consumer) {
+        int result = 0;
+        batchSize = Math.max(1, batchSize);
+        int numberOfBatches = (digests.size()+batchSize-1)/batchSize;
+        if (numberOfBatches==0) {
+            return result;
+        }
+
+        // directory servers, shared by all batches
+        final List<RouterImpl> dirRouters = new ArrayList<RouterImpl>();
+        for (RouterImpl r : getDirRouters()) {
+            if (r.getDirPort()>0) {
+                dirRouters.add(r);
+            }
+        }
+
+        int threads = Math.max(1, Math.min(TorConfig.dirV2ReadMaxNumberOfThreads, numberOfBatches));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, DOWNLOAD_THREAD_FACTORY);
+        try {
+            List<Future<Boolean>> answers = new ArrayList<Future<Boolean>>(numberOfBatches);
+            for (int start=0; start<digests.size(); start+=batchSize) {
+                final Set<Fingerprint> batch = new HashSet<Fingerprint>(digests.subList(start, Math.min(start+batchSize, digests.size())));
+                answers.add(executor.submit(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return downloadBatch(batch, dirRouters, microdescriptors, cache, consumer);
+                    }
+                }));
+            }
+            for (Future<Boolean> answer : answers) {
+                try {
+                    if (answer.get()) {
+                        result++;
+                    }
+                } catch (InterruptedException e) {
+                    log.log(Level.INFO, "interrupted while downloading descriptors", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    log.log(Level.INFO, "unexpected", e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        log.info("downloaded "+result+" of "+numberOfBatches+" batches of descriptors");
+        return result;
+    }
+
+    /**
+     * Download one batch from randomly chosen directory servers:
+     * after an error the descriptors not yet received are requested from the next directory server.
+     * 
+     * @param batch         digests of the descriptors to load, received digests are removed
+     * @param dirRouters    candidates, guarded by itself; failed directory servers are removed
+     * @return true if the batch was downloaded; false if no directory server could deliver the batch
+     */
+    private boolean downloadBatch(Set<Fingerprint> batch, List<RouterImpl> dirRouters, boolean microdescriptors,
+            CachedDescriptorsWriter cache, DescriptorConsumer consumer) {
+        while (true) {
+            if (batch.isEmpty()) {
+                // completed by the previous directory servers
+                return true;
+            }
+            RouterImpl directoryServer;
+            synchronized (dirRouters) {
+                if (dirRouters.isEmpty()) {
+                    return false;
+                }
+                directoryServer = dirRouters.get(rnd.nextInt(dirRouters.size()));
+            }
+            if (downloadBatchFrom(directoryServer, batch, microdescriptors, cache, consumer)) {
+                return true;
+            }
+            // do not use this directory server again
+            synchronized (dirRouters) {
+                dirRouters.remove(directoryServer);
+            }
+        }
+    }
+
+    /**
+     * Download one batch from one directory server: parse the answer while it is received.
+     * 
+     * @param batch    digests of the descriptors to load, received digests are removed
+     * @return true=success; false=error, the descriptors received so far are already passed to cache and consumer
+     */
+    private boolean downloadBatchFrom(RouterImpl directoryServer, Set<Fingerprint> batch, boolean microdescriptors,
+            CachedDescriptorsWriter cache, DescriptorConsumer consumer) {
+        InputStream in = null;
+        try {
+            in = microdescriptors
+                    ? DescriptorFetcherThread.openMicrodescriptors(batch, directoryServer, lowerDirConnectionNetLayer)
+                    : DescriptorFetcherThread.openDescriptors(batch, directoryServer, lowerDirConnectionNetLayer);
+            BufferedReader descriptors = new BufferedReader(new InputStreamReader(in, Util.UTF8));
+            String descriptor;
+            while ((descriptor=readDescriptor(descriptors, microdescriptors))!=null) {
+                Fingerprint digest = getDigest(descriptor, microdescriptors);
+                batch.remove(digest);
+                cache.write(digest, descriptor);
+                consumer.add(descriptor, digest);
+            }
+            return true;
+        } catch (Exception e) {
+            log.fine("download of "+(microdescriptors ? "microdescriptors" : "descriptors")+" from "
+                    +directoryServer.getNickname()+" failed: "+e.getMessage());
+            return false;
+        } finally {
+            if (in!=null) {
+                close(in);
+            }
+        }
+    }
+
+    /**
+     * Create the routers of the expected microdescriptors.
+     * 
+     * @param fingerprintsRouters    the created routers are added
+     * @param statusesToLoad         expected microdescriptors by digest; the entries of created routers are removed
+     * @param microdescriptors       microdescriptors by digest
+     * @return number of created routers
+     */
+    private int addMicrodescriptors(Map<Fingerprint,RouterImpl> fingerprintsRouters,
+            Map<Fingerprint,RouterStatusDescription> statusesToLoad, Map<Fingerprint,String> microdescriptors) {
+        int result = 0;
+        for (Map.Entry<Fingerprint,String> microdescriptor : microdescriptors.entrySet()) {
+            RouterStatusDescription networkStatusDescription = statusesToLoad.get(microdescriptor.getKey());
+            if (networkStatusDescription==null) {
+                // not expected (e.g. an outdated microdescriptor from the cache)
+                continue;
+            }
+            try {
+                RouterImpl r = new RouterImpl(torConfig, networkStatusDescription, microdescriptor.getValue());
+                fingerprintsRouters.put(networkStatusDescription.getFingerprint(), r);
+                statusesToLoad.remove(microdescriptor.getKey());
+                result++;
+            } catch (TorException e) {
+                log.log(Level.INFO, ""+e);
+            }
+        }
+        return result;
+    }
+
     /**
      * Check whether the given route is compatible to the given restrictions
      * 
@@ -667,44 +1194,159 @@ public class Directory {
     }
 
     /**
-     * Exclude related nodes: family, class C and country (if specified in TorConfig)
+     * Exclude related nodes: family, /16 network and country (if specified in TorConfig)
      *
      * @param r node that should be excluded with all its relations
-     * @return set of excluded node names
+     * @return set of excluded node fingerprints
      */
     public Set<Fingerprint> excludeRelatedNodes(RouterImpl r){
-        HashSet<Fingerprint> excludedServerfingerprints = new HashSet<Fingerprint>();
-        HashSet<Fingerprint> myAddressNeighbours, myCountryNeighbours;
+        ExcludedRouters result = createExcludedRouters();
+        result.addRelated(r);
+        return result.getFingerprints();
+    }
 
-        if (TorConfig.routeUniqueClassC) {
-            myAddressNeighbours = getAddressNeighbours(r.getAddress().getHostAddress());
-            if (myAddressNeighbours != null)
-                excludedServerfingerprints.addAll(myAddressNeighbours);
-        } else {
-            excludedServerfingerprints.add(r.getFingerprint());
-        }
-        
-        // exclude all country insider, if desired
-        if (TorConfig.routeUniqueCountry) {
-            myCountryNeighbours = countryNeighbours.get(r.getCountryCode());
-            if (myCountryNeighbours != null) {
-                excludedServerfingerprints.addAll(myCountryNeighbours);
+    /**
+     * @return an empty set of excluded routers, based on the slots of the current consensus
+     */
+    public ExcludedRouters createExcludedRouters() {
+        return new ExcludedRouters(getSnapshot().getRouterSampler(RouterSampler.MIDDLE).getSlots());
+    }
+
+
+
+    /**
+     * Select a running router, weighted by its ranking.
+     * 
+     * @param p    user preference of considering the ranking index, see RouterImpl.getRefinedRankingIndex()
+     */
+    RouterImpl selectRandomNode(float p) {
+        return selectRandomMiddle(null, p);
+    }
+
+    /**
+     * Select a running router with Guard flag, weighted by its ranking.
+     * 
+     * @param excludedRouters               routers that must not be selected; null=none
+     * @param p                             user preference of considering the ranking index
+     * @return the router; null if no suitable router found
+     */
+    public RouterImpl selectRandomGuard(ExcludedRouters excludedRouters, float p) {
+        return getSnapshot().getRouterSampler(RouterSampler.GUARD).select(excludedRouters, p, null, rnd);
+    }
+
+    /**
+     * Select a running router, weighted by its ranking.
+     * 
+     * @param excludedRouters               routers that must not be selected; null=none
+     * @param p                             user preference of considering the ranking index
+     * @return the router; null if no suitable router found
+     */
+    public RouterImpl selectRandomMiddle(ExcludedRouters excludedRouters, float p) {
+        return getSnapshot().getRouterSampler(RouterSampler.MIDDLE).select(excludedRouters, p, null, rnd);
+    }
+
+    /**
+     * Select a running router whose exit policy accepts the destination of sp, weighted by its ranking.
+     * Routers without Exit flag are only selected if sp allows untrusted exits.
+     * 
+     * @param excludedRouters               routers that must not be selected; null=none
+     * @param p                             user preference of considering the ranking index
+     * @param sp                            destination
+     * @return the router; null if no suitable router found
+     */
+    public RouterImpl selectRandomExit(ExcludedRouters excludedRouters, float p, TCPStreamProperties sp) {
+        // weighted for the exit position in both cases
+        int samplerIndex = sp.isUntrustedExitAllowed() ? RouterSampler.UNTRUSTED_EXIT : RouterSampler.EXIT;
+        RouterSampler sampler = getSnapshot().getRouterSampler(samplerIndex);
+        return sampler.select(excludedRouters, p, sampler.getExitPolicyAccepting(sp.getAddr(), sp.getPort()), rnd);
+    }
+
+    /**
+     * The ranking of a router changed: the next selection will take it into account.
+     *
+     * Punishments are applied by the samplers immediately; the samplers are recreated
+     * at most every RANKINGS_UPDATE_INTERVAL_MS, not after each punishment.
+     */
+    public void rankingsChanged() {
+        routerRankingsChanged = true;
+    }
+
+    /**
+     * @return the current snapshot - never blocks because of a directory update
+     */
+    DirectorySnapshot getSnapshot() {
+        DirectorySnapshot result = snapshot;
+        if (routerRankingsChanged) {
+            synchronized (snapshotLock) {
+                long now = System.currentTimeMillis();
+                if (routerRankingsChanged && now-routerRankingsUpdateMillis>=RANKINGS_UPDATE_INTERVAL_MS) {
+                    routerRankingsChanged = false;
+                    routerRankingsUpdateMillis = now;
+                    snapshot = snapshot.withUpdatedRankings();
+                }
+                result = snapshot;
             }
         }
-        // exclude its family as well
-        excludedServerfingerprints.addAll(r.getFamily());
-
-        return excludedServerfingerprints;
+        return result;
     }
 
+    /**
+     * Replace the snapshot: all readers will see the new routers.
+     */
+    private void publishSnapshot(DirectorySnapshot newSnapshot) {
+        synchronized (snapshotLock) {
+            snapshot = newSnapshot;
+        }
+    }
 
+    /**
+     * @param consensus              null=not yet available
+     * @param validRouters           valid routers + status
+     * @param numOfRunningRouters    number of running routers in the consensus
+     * @return a new snapshot with the indexes of the routers
+     */
+    private DirectorySnapshot createSnapshot(DirectoryConsensus consensus, Map<Fingerprint,RouterImpl> validRouters, int numOfRunningRouters) {
+        RouterSampler[] routerSamplers = createRouterSamplers(validRouters, (consensus==null) ? null : consensus.getBandwidthWeights());
+        return new DirectorySnapshot(consensus, validRouters, numOfRunningRouters, routerSamplers);
+    }
 
-    /** TODO: add doc: when is this used? */
-    RouterImpl selectRandomNode(float p) {
-        return selectRandomNode(validRoutersByFingerprint, new HashSet<Fingerprint>(), p);
+    /**
+     * @param routers             valid routers
+     * @param bandwidthWeights    position dependent weights of the consensus; null=none
+     */
+    private RouterSampler[] createRouterSamplers(Map<Fingerprint, RouterImpl> routers, BandwidthWeights bandwidthWeights) {
+        RouterSlots slots = new RouterSlots(routers.values());
+        List<RouterImpl> guards = new ArrayList<RouterImpl>();
+        List<RouterImpl> middles = new ArrayList<RouterImpl>();
+        List<RouterImpl> exits = new ArrayList<RouterImpl>();
+        for (RouterImpl r : routers.values()) {
+            if (!r.isDirv2Running() || excludedNodesByConfig.contains(r.getFingerprint())) {
+                continue;
+            }
+            middles.add(r);
+            if (r.isDirv2Guard()) {
+                guards.add(r);
+            }
+            if (r.isDirv2Exit()) {
+                exits.add(r);
+            }
+        }
+        RouterSampler[] result = new RouterSampler[RouterSampler.NUMBER_OF_SAMPLERS];
+        if (bandwidthWeights==null) {
+            bandwidthWeights = new BandwidthWeights();
+        }
+        result[RouterSampler.GUARD] = new RouterSampler(slots, guards, bandwidthWeights, RouterSampler.GUARD);
+        result[RouterSampler.MIDDLE] = new RouterSampler(slots, middles, bandwidthWeights, RouterSampler.MIDDLE);
+        result[RouterSampler.EXIT] = new RouterSampler(slots, exits, bandwidthWeights, RouterSampler.EXIT);
+        result[RouterSampler.UNTRUSTED_EXIT] = new RouterSampler(slots, middles, bandwidthWeights, RouterSampler.EXIT);
+        log.fine("created router samplers: " + guards.size() + " guards, " + middles.size() + " running, " + exits.size() + " exits");
+        return result;
     }
 
-    /** TODO: add doc: when is this used? */
+    /**
+     * Select a router of torRouters, weighted by its ranking.
+     * This scans all routers: prefer selectRandomGuard/Middle/Exit().
+     */
     public RouterImpl selectRandomNode(Map<Fingerprint, RouterImpl> torRouters, HashSet<Fingerprint> excludedServerFingerprints, float p) {
         float rankingSum = 0;
         RouterImpl myServer;
@@ -713,7 +1355,7 @@ public class Directory {
         Iterator<RouterImpl> it = torRouters.values().iterator();
         while (it.hasNext()) {
             myServer = it.next();
-            if ((!excludedServerFingerprints.contains(myServer.getNickname())) && myServer.isDirv2Running()) {
+            if ((!excludedServerFingerprints.contains(myServer.getFingerprint())) && myServer.isDirv2Running()) {
                 rankingSum += myServer.getRefinedRankingIndex(p);
             }
         }
@@ -723,7 +1365,7 @@ public class Directory {
         it = torRouters.values().iterator();
         while (it.hasNext()) {
             myServer = it.next();
-            if ((!excludedServerFingerprints.contains(myServer.getNickname())) && myServer.isDirv2Running()) {
+            if ((!excludedServerFingerprints.contains(myServer.getFingerprint())) && myServer.isDirv2Running()) {
                 serverRandom -= myServer.getRefinedRankingIndex(p);
                 if (serverRandom <= 0) {
                     return myServer;
@@ -741,45 +1383,14 @@ public class Directory {
      * @return the router; null if no valid matching router found 
      */
     public RouterImpl getValidRouterByIpAddressAndOnionPort(IpNetAddress ipNetAddress, int onionPort) {
-        for (RouterImpl router : validRoutersByFingerprint.values()) {
-            if (router.getOrAddress().equals(new TcpipNetAddress(ipNetAddress, onionPort))) {
-                // router found
-                return router;
-            }
-        }
-        // not found
-        return null;
+        return snapshot.getRouterAddressIndex().get(ipNetAddress.getIpaddress(), onionPort);
     }
 
     /**
      * @return all valid routers with HSDir flag (hidden server directory), ordered by fingerprint
      */
     public RouterImpl[] getValidHiddenDirectoryServersOrderedByFingerprint() {
-        // copy all hidden server directory to list
-        List<RouterImpl> routersList;
-        synchronized(allFingerprintsRouters) {
-            routersList = new ArrayList<RouterImpl>(allFingerprintsRouters.values());
-        }
-        for (Iterator<RouterImpl> i=routersList.iterator(); i.hasNext();) {
-            RouterImpl r = i.next();
-            if ((!r.isDirv2HSDir()) || r.getDirPort()<1) {
-                // no hidden server directory: remove it from the list
-                i.remove();
-            }
-        }
-        
-        // copy list to array
-        RouterImpl[] routers = (RouterImpl[])routersList.toArray(new RouterImpl[routersList.size()]);
-        
-        // order by fingerprint
-        Comparator<RouterImpl> comp = new Comparator<RouterImpl>() {
-            public int compare(RouterImpl o1, RouterImpl o2) {
-                return o1.getFingerprint().compareTo(o2.getFingerprint());
-            }
-        };
-        Arrays.sort(routers, comp);
-        
-        return routers;
+        return snapshot.getHiddenDirectoryRing().toArray();
     }
 
     /**
@@ -789,48 +1400,10 @@ public class Directory {
      * @return three consecutive routers that are hidden service directories with router.fingerprint>f
      */
     public Collection<RouterImpl> getThreeHiddenDirectoryServersWithFingerpringGreaterThan(Fingerprint f) {
-        RouterImpl[] routers = getValidHiddenDirectoryServersOrderedByFingerprint();
-        
         final int REQUESTED_NUM_OF_ROUTERS = 3;
-        int numOfRoutersToFind = Math.min(REQUESTED_NUM_OF_ROUTERS, routers.length);
-        Collection<RouterImpl> result = new ArrayList<RouterImpl>(numOfRoutersToFind);
-        
-        // find the first and the consecutive routers
-        boolean takeNextRouters = false;
-        for (int i=0; i<2*routers.length; i++) {
-            RouterImpl r = routers[i%routers.length];
-
-            // does it match?
-            if (!takeNextRouters && r.getFingerprint().compareTo(f)>=0) {
-                // yes
-                takeNextRouters = true;
-            }
-
-            // take as part of the result?
-            if (takeNextRouters) {
-                // yes
-                result.add(r);
-                numOfRoutersToFind--;
-                if (numOfRoutersToFind<=0) {
-                    // the end
-                    break;
-                }
-                continue;
-            }
-        }
-        
-        return result;
+        return snapshot.getHiddenDirectoryRing().getSuccessors(f, REQUESTED_NUM_OF_ROUTERS);
     }
     
-    /**
-     * Return the set of neighbors by address of the specific IP in the dotted notation
-     */
-    private HashSet<Fingerprint> getAddressNeighbours(String address) {
-        String ipClassCString = Parsing.parseStringByRE(address, IPCLASSC_PATTERN, "");
-        HashSet<Fingerprint> neighbours = addressNeighbours.get(ipClassCString);
-        return neighbours;
-    }
-
     /**
      * should be called when TorJava is closing
      */
@@ -842,7 +1415,7 @@ public class Directory {
      */
     void print() {
         if (log.isLoggable(Level.FINE)) {
-            for (RouterImpl r : validRoutersByFingerprint.values()) {
+            for (RouterImpl r : snapshot.getValidRoutersByFingerprint().values()) {
                 log.fine(r.toString());
             }
         }
@@ -859,13 +1432,17 @@ public class Directory {
     }
 
 
+    /**
+     * @return the valid routers of the current snapshot - unmodifiable
+     */
     public Map<Fingerprint, RouterImpl> getValidRoutersByFingerprint() {
-        return validRoutersByFingerprint;
+        return snapshot.getValidRoutersByFingerprint();
     }
 
 
     public void setValidRoutersByFingerprint(Map<Fingerprint, RouterImpl> validRoutersByFingerprint) {
-        this.validRoutersByFingerprint = validRoutersByFingerprint;
+        DirectorySnapshot current = snapshot;
+        publishSnapshot(createSnapshot(current.getConsensus(), validRoutersByFingerprint, current.getNumOfRunningRoutersInConsensus()));
     }
  }
 
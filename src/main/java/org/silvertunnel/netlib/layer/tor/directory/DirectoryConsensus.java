@@ -18,22 +18,33 @@
 
 package org.silvertunnel.netlib.layer.tor.directory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
 import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.util.ByteLineReader;
 import org.silvertunnel.netlib.layer.tor.util.Encoding;
 import org.silvertunnel.netlib.layer.tor.util.Encryption;
-import org.silvertunnel.netlib.layer.tor.util.Parsing;
 import org.silvertunnel.netlib.layer.tor.util.TorException;
 import org.silvertunnel.netlib.layer.tor.util.Util;
 
@@ -43,6 +54,9 @@ import org.silvertunnel.netlib.layer.tor.util.Util;
  * directory protocol V3 network-status consensus document
  * of Tor.
  * 
+ * The document is parsed in a single pass, line by line as bytes;
+ * the signed part is hashed while reading.
+ * 
  * @author hapke
  */
 public class DirectoryConsensus {
@@ -51,11 +65,29 @@ public class DirectoryConsensus {
     private Date validAfter;
     private Date freshUntil;
     private Date validUntil;
+    /** randomly chosen time to download the next consensus, see getRefreshTime(); null=not yet chosen */
+    private Date refreshTime;
+    /** source of the refresh times */
+    private static final Random REFRESH_TIME_RANDOM = new Random();
     
     private Map<Fingerprint,RouterStatusDescription> fingerprintsNetworkStatusDescriptors = new HashMap<Fingerprint,RouterStatusDescription>();
-    
-    private static final Pattern VERSION_PATTERN = Parsing.compileRegexPattern("^network-status-version (\\d+)");
-    private static final Pattern SIGNEDDATA_PATTERN = Parsing.compileRegexPattern("^(network-status-version.*?directory-signature )");
+    /** position dependent weights; null=not contained in the consensus */
+    private BandwidthWeights bandwidthWeights;
+    /** true=microdesc consensus flavour: the routers refer to microdescriptors instead of router descriptors */
+    private boolean microdescFlavour;
+
+    /** the signed data ends with this keyword (inclusive) */
+    private static final String SIGNATURE_KEYWORD = "directory-signature ";
+    /** flavour of "network-status-version" */
+    private static final String MICRODESC_FLAVOUR = "microdesc";
+    /** digest algorithms of "directory-signature" */
+    private static final String SIGNATURE_ALGORITHM_SHA1 = "sha1";
+    private static final String SIGNATURE_ALGORITHM_SHA256 = "sha256";
+    private static final String BANDWIDTH_WEIGHT_SCALE_PARAM = "bwweightscale=";
+    private static final String BANDWIDTH_KEYWORD = "Bandwidth=";
+    /** maximum number of tokens per line that are interpreted */
+    private static final int MAX_TOKENS = 10;
+    private static final int CONSENSUS_MIN_VALID_SIGNATURES = 4;
 
     
     /**
@@ -68,88 +100,402 @@ public class DirectoryConsensus {
      */
     public DirectoryConsensus (String consensusStr, AuthorityKeyCertificates authorityKeyCertificates, Date currentDate)
     throws TorException, ParseException {
-        
-        // Check the version
-        String version = Parsing.parseStringByRE(consensusStr, VERSION_PATTERN, "");
-        if (!version.equals("3")) throw new TorException("wrong network status version");
+        this(consensusStr, authorityKeyCertificates, currentDate, null);
+    }
 
-        // parse and check valid-after, fresh-until, valid-until
-        setValidAfter(Parsing.parseTimestampLine("valid-after", consensusStr));
-        setFreshUntil(Parsing.parseTimestampLine("fresh-until", consensusStr));
-        setValidUntil(Parsing.parseTimestampLine("valid-until", consensusStr));
-        log.info("Directory.parseDirV3NetworkStatus: Consensus document validAfter="+getValidAfter()+", freshUntil="+getFreshUntil()+", validUntil="+getValidUntil());
-        if (!isValidDate(currentDate)) {
-            throw new TorException("invalid validAfter="+getValidAfter()+", freshUntil="+getFreshUntil()+" or and validUntil="+getValidUntil()+" for currentDate="+currentDate);
+    /**
+     * Parse a directory protocol V3 network-status consensus document
+     * 
+     * @param consensusStr                document received form directory server
+     * @param authorityKeyCertificates    all authority signing certificates - needed to check the consensus document
+     * @param currentDate                 current dae and time - needed to check the consensus document
+     * @param verifiedSignatures          memo of already verified signatures; null=verify all signatures
+     * @throws Exception if the consensus is invalid (e.g. empty or invalid signatures or outdated)
+     */
+    DirectoryConsensus (String consensusStr, AuthorityKeyCertificates authorityKeyCertificates, Date currentDate,
+            VerifiedSignatures verifiedSignatures)
+    throws TorException, ParseException {
+        try {
+            parse(new ByteArrayInputStream(consensusStr.getBytes(Util.UTF8)), authorityKeyCertificates, currentDate, verifiedSignatures);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            // not expected when reading from memory
+            throw new TorException("could not read consensus: "+e);
         }
-        
-        byte[] signedData = Parsing.parseStringByRE(consensusStr, SIGNEDDATA_PATTERN, "").getBytes();
-        log.info("consensus: extracted signed data (length)="+signedData.length);      
-        
-        // Parse signatures
-        Pattern pSignature = Pattern.compile("^directory-signature (\\S+) (\\S+)\\s*\n-----BEGIN SIGNATURE-----\n(.*?)-----END SIGNATURE",
-                Pattern.UNIX_LINES + Pattern.MULTILINE + Pattern.CASE_INSENSITIVE + Pattern.DOTALL);
-        Matcher mSig = pSignature.matcher(consensusStr);
-        Set<Fingerprint> dirIdentityKeyDigestOfMatchingSignatures = new HashSet<Fingerprint>();
-        while (mSig.find()) {
-            byte[] identityKeyDigest = Encoding.parseHex(mSig.group(1));
-            byte[] signingKeyDigest = Encoding.parseHex(mSig.group(2));
-            byte[] signature = Encoding.parseBase64(mSig.group(3));
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("Directory.parseDirV3NetworkStatus: Extracted identityKeyDigest(hex)="+Encoding.toHexString(identityKeyDigest));
-                log.info("Directory.parseDirV3NetworkStatus: Extracted signingKeyDigest(hex)="+Encoding.toHexString(signingKeyDigest));
-                log.info("Directory.parseDirV3NetworkStatus: Found signature(base64)="+Encoding.toBase64(signature));
+    }
+
+    /**
+     * Parse a directory protocol V3 network-status consensus document
+     * 
+     * @param consensus                   document received form directory server, e.g. the download stream
+     * @param authorityKeyCertificates    all authority signing certificates - needed to check the consensus document
+     * @param currentDate                 current dae and time - needed to check the consensus document
+     * @throws Exception if the consensus is invalid (e.g. empty or invalid signatures or outdated)
+     */
+    public DirectoryConsensus (InputStream consensus, AuthorityKeyCertificates authorityKeyCertificates, Date currentDate)
+    throws TorException, ParseException, IOException {
+        parse(consensus, authorityKeyCertificates, currentDate, null);
+    }
+
+    /**
+     * Parse a directory protocol V3 network-status consensus document
+     * 
+     * @param consensus                   document received form directory server, e.g. the inflated download stream
+     * @param authorityKeyCertificates    all authority signing certificates - needed to check the consensus document
+     * @param currentDate                 current dae and time - needed to check the consensus document
+     * @param verifiedSignatures          memo of already verified signatures; null=verify all signatures
+     * @throws Exception if the consensus is invalid (e.g. empty or invalid signatures or outdated)
+     */
+    DirectoryConsensus (InputStream consensus, AuthorityKeyCertificates authorityKeyCertificates, Date currentDate,
+            VerifiedSignatures verifiedSignatures)
+    throws TorException, IOException {
+        parse(consensus, authorityKeyCertificates, currentDate, verifiedSignatures);
+    }
+
+    /**
+     * Create a consensus of a binary directory snapshot:
+     * it was parsed and checked before the snapshot was written.
+     * 
+     * @param fingerprintsNetworkStatusDescriptors    the router entries
+     */
+    DirectoryConsensus(Date validAfter, Date freshUntil, Date validUntil, boolean microdescFlavour,
+            BandwidthWeights bandwidthWeights, Map<Fingerprint,RouterStatusDescription> fingerprintsNetworkStatusDescriptors) {
+        this.validAfter = validAfter;
+        this.freshUntil = freshUntil;
+        this.validUntil = validUntil;
+        this.microdescFlavour = microdescFlavour;
+        this.bandwidthWeights = bandwidthWeights;
+        this.fingerprintsNetworkStatusDescriptors = fingerprintsNetworkStatusDescriptors;
+    }
+
+    private void parse(InputStream consensus, AuthorityKeyCertificates authorityKeyCertificates, Date currentDate,
+            VerifiedSignatures verifiedSignatures)
+    throws TorException, IOException {
+        ByteLineReader reader = new ByteLineReader(consensus);
+        int[] t = new int[2*MAX_TOKENS];
+
+        // state of the signed data: the algorithm of a signature is only known at its beginning
+        MessageDigest digest = Encryption.getMessagesDigest();
+        MessageDigest digestSha256 = getMessageDigestSha256();
+        boolean inSignedData = false;
+        long signedDataLength = 0;
+        byte[] signedDataDigest = null;
+        byte[] signedDataDigestSha256 = null;
+
+        // state of the current signature
+        Fingerprint identityKeyDigest = null;
+        Fingerprint signingKeyDigest = null;
+        ByteArrayOutputStream signatureBase64 = null;
+        boolean signatureSha256 = false;
+        // all signatures, verified after parsing
+        List<Boolean> signaturesSha256 = new ArrayList<Boolean>();
+        List<Fingerprint> identityKeyDigests = new ArrayList<Fingerprint>();
+        List<Fingerprint> signingKeyDigests = new ArrayList<Fingerprint>();
+        List<byte[]> signatures = new ArrayList<byte[]>();
+
+        String version = null;
+        String bandwidthWeightsStr = null;
+        int bandwidthWeightScale = BandwidthWeights.DEFAULT_SCALE;
+        RouterStatusDescription router = null;
+
+        while (reader.readLine()) {
+            byte[] line = reader.getBuffer();
+            int len = reader.getLength();
+
+            // hash the signed data: from "network-status-version" up to and including "directory-signature "
+            if (signedDataDigest==null) {
+                if (!inSignedData && reader.startsWith("network-status-version")) {
+                    inSignedData = true;
+                }
+                if (inSignedData) {
+                    if (reader.startsWith(SIGNATURE_KEYWORD)) {
+                        digest.update(line, 0, SIGNATURE_KEYWORD.length());
+                        digestSha256.update(line, 0, SIGNATURE_KEYWORD.length());
+                        signedDataLength += SIGNATURE_KEYWORD.length();
+                        signedDataDigest = digest.digest();
+                        signedDataDigestSha256 = digestSha256.digest();
+                        log.info("consensus: extracted signed data (length)="+signedDataLength);
+                    } else {
+                        digest.update(line, 0, reader.getRawLength());
+                        digestSha256.update(line, 0, reader.getRawLength());
+                        signedDataLength += reader.getRawLength();
+                    }
+                }
             }
-            
-            // verify signature
-            AuthorityKeyCertificate authorityKeyCertificate = authorityKeyCertificates.getCertByFingerprints(
-                    new FingerprintImpl(identityKeyDigest), new FingerprintImpl(signingKeyDigest));
-            if (authorityKeyCertificate==null) {
-                log.fine("No authorityKeyCertificate found");
+
+            // content of a signature
+            if (signatureBase64!=null) {
+                if (reader.startsWith("-----END SIGNATURE")) {
+                    byte[] signature = signatureBase64.toByteArray();
+                    signatureBase64 = null;
+                    signaturesSha256.add(signatureSha256);
+                    identityKeyDigests.add(identityKeyDigest);
+                    signingKeyDigests.add(signingKeyDigest);
+                    signatures.add(Encoding.parseBase64(signature, 0, signature.length));
+                } else if (!reader.startsWith("-----BEGIN SIGNATURE-----")) {
+                    signatureBase64.write(line, 0, len);
+                }
                 continue;
             }
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("authorityKeyCertificate signingKeyDigest(hex)="+Encoding.toHexString(authorityKeyCertificate.getDirSigningKeyDigest().getBytes()));
+            if (len<1) {
+                continue;
             }
-            if (signature.length < 1) {
-                log.fine("No signature found in network status");
+
+            // single router: line "r" followed by "s" and the optional line "w Bandwidth="
+            if (line[0]=='r' && reader.startsWith("r ")) {
+                addRouter(router);
+                router = parseRouterLine(reader, t);
+                continue;
+            }
+            if (router!=null && line[0]=='m' && reader.startsWith("m ")) {
+                if (router.getDigestMicrodescriptor()==null) {
+                    router.setDigestMicrodescriptor(Encoding.parseBase64(line, 2, len));
+                }
                 continue;
             }
-            if (!Encryption.verifySignature(signature, authorityKeyCertificate.getDirSigningKey(), signedData)) {
-                log.fine("Directory signature verification failed for identityKeyDigest(hex)="+Encoding.toHexString(identityKeyDigest));
+            if (router!=null && len>=1 && line[0]=='s' && (len==1 || line[1]==' ')) {
+                if (router.getFlags()==null) {
+                    router.setFlags((len<=2) ? "" : reader.getString(2, len));
+                }
                 continue;
             }
-            // verification successful for this signature
-            dirIdentityKeyDigestOfMatchingSignatures.add(authorityKeyCertificate.getDirIdentityKeyDigest());
-            log.info("single signature verification ok for identityKeyDigest(hex)="+Encoding.toHexString(identityKeyDigest));
+            if (router!=null && line[0]=='w' && reader.startsWith("w ")) {
+                int n = reader.split(t);
+                for (int i=1; i<n; i++) {
+                    int bandwidth = parseKeyValue(reader, t[2*i], t[2*i+1], BANDWIDTH_KEYWORD);
+                    if (bandwidth>=0) {
+                        router.setBandwidth(bandwidth);
+                    }
+                }
+                continue;
+            }
+
+            // header and footer
+            if (reader.startsWith("network-status-version ")) {
+                if (version==null) {
+                    int n = reader.split(t);
+                    if (n>=2) {
+                        version = reader.getString(t[2], t[3]);
+                    }
+                    microdescFlavour = (n>=3) && MICRODESC_FLAVOUR.equals(reader.getString(t[4], t[5]));
+                }
+            } else if (reader.startsWith("valid-after ")) {
+                validAfter = (validAfter!=null) ? validAfter : Util.parseUtcTimestamp(line, "valid-after ".length());
+            } else if (reader.startsWith("fresh-until ")) {
+                freshUntil = (freshUntil!=null) ? freshUntil : Util.parseUtcTimestamp(line, "fresh-until ".length());
+            } else if (reader.startsWith("valid-until ")) {
+                validUntil = (validUntil!=null) ? validUntil : Util.parseUtcTimestamp(line, "valid-until ".length());
+            } else if (reader.startsWith("params ")) {
+                int n = reader.split(t);
+                for (int i=1; i<n; i++) {
+                    int scale = parseKeyValue(reader, t[2*i], t[2*i+1], BANDWIDTH_WEIGHT_SCALE_PARAM);
+                    if (scale>=0) {
+                        bandwidthWeightScale = scale;
+                    }
+                }
+            } else if (reader.startsWith("bandwidth-weights ")) {
+                addRouter(router);
+                router = null;
+                bandwidthWeightsStr = reader.getString("bandwidth-weights ".length(), len);
+            } else if (reader.startsWith("directory-footer")) {
+                addRouter(router);
+                router = null;
+            } else if (reader.startsWith(SIGNATURE_KEYWORD)) {
+                addRouter(router);
+                router = null;
+                // start of a signature: "directory-signature [algorithm] identityKeyDigest signingKeyDigest"
+                int n = reader.split(t);
+                String algorithm = (n==4) ? reader.getString(t[2], t[3]) : SIGNATURE_ALGORITHM_SHA1;
+                int first = (n==4) ? 4 : 2;
+                if ((n==3 || n==4) && (SIGNATURE_ALGORITHM_SHA1.equals(algorithm) || SIGNATURE_ALGORITHM_SHA256.equals(algorithm))) {
+                    signatureSha256 = SIGNATURE_ALGORITHM_SHA256.equals(algorithm);
+                    identityKeyDigest = new FingerprintImpl(Encoding.parseHex(reader.getString(t[first], t[first+1])));
+                    signingKeyDigest = new FingerprintImpl(Encoding.parseHex(reader.getString(t[first+2], t[first+3])));
+                    signatureBase64 = new ByteArrayOutputStream(256);
+                } else {
+                    log.info("ignored signature with unknown algorithm: "+reader.getString(0, len));
+                }
+            }
+        }
+        addRouter(router);
+
+        // Check the version
+        if (!"3".equals(version)) {
+            throw new TorException("wrong network status version");
         }
-        final int CONSENSUS_MIN_VALID_SIGNATURES = 4;
+
+        // check valid-after, fresh-until, valid-until
+        log.info("Directory.parseDirV3NetworkStatus: Consensus document validAfter="+getValidAfter()+", freshUntil="+getFreshUntil()+", validUntil="+getValidUntil());
+        if (!isValidDate(currentDate)) {
+            throw new TorException("invalid validAfter="+getValidAfter()+", freshUntil="+getFreshUntil()+" or and validUntil="+getValidUntil()+" for currentDate="+currentDate);
+        }
+
+        // check signatures
+        List<byte[]> signedDataDigests = new ArrayList<byte[]>(signatures.size());
+        for (Boolean sha256 : signaturesSha256) {
+            signedDataDigests.add(sha256 ? signedDataDigestSha256 : signedDataDigest);
+        }
+        Set<Fingerprint> dirIdentityKeyDigestOfMatchingSignatures = verifySignatures(identityKeyDigests, signingKeyDigests, signatures,
+                signedDataDigests, authorityKeyCertificates, verifiedSignatures);
         int sigNum = dirIdentityKeyDigestOfMatchingSignatures.size(); 
         if (sigNum<CONSENSUS_MIN_VALID_SIGNATURES) {
             throw new TorException("Directory signature verification failed: only "+sigNum+" (different) signatures found");
         }
         log.info("signature verification accepted");
-      
-        // Parse the single routers
-        Pattern pRouter = Pattern.compile("^r (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) (\\d+) (\\d+)\\s*\ns ([a-z0-9 ]+)?", 
-                Pattern.UNIX_LINES + Pattern.MULTILINE + Pattern.CASE_INSENSITIVE + Pattern.DOTALL);
-        Matcher m = pRouter.matcher(consensusStr);      
-        // Loop to extract all routers
-        while (m.find()) {
-            RouterStatusDescription sinfo = new RouterStatusDescription();
-            sinfo.setNickname(m.group(1));
-            Fingerprint fingerprint = new FingerprintImpl(Encoding.parseBase64(m.group(2))); 
-            sinfo.setFingerprint(fingerprint);
-            sinfo.setDigestDescriptor(Encoding.parseBase64(m.group(3)));
-            sinfo.setLastPublication(Util.parseUtcTimestamp(m.group(4)+" "+m.group(5)));
-            sinfo.setIp(m.group(6));
-            sinfo.setOrPort(Integer.parseInt(m.group(7)));
-            sinfo.setDirPort(Integer.parseInt(m.group(8)));
-            sinfo.setFlags(m.group(9));
-            if (sinfo.getFlags().contains("Running")) {
-                getFingerprintsNetworkStatusDescriptors().put(fingerprint, sinfo);
+
+        if (bandwidthWeightsStr!=null) {
+            bandwidthWeights = new BandwidthWeights(bandwidthWeightsStr, bandwidthWeightScale);
+        }
+    }
+
+    /**
+     * @return implementation of the SHA-256 message digest
+     */
+    private static MessageDigest getMessageDigestSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Parse a line "r nickname identity digest publication-date publication-time ip orport dirport"
+     * or, in the microdesc flavour, "r nickname identity publication-date publication-time ip orport dirport".
+     * 
+     * @return the router; null if the line is invalid
+     */
+    private static RouterStatusDescription parseRouterLine(ByteLineReader reader, int[] t) {
+        int n = reader.split(t);
+        if (n<8) {
+            return null;
+        }
+        // token index of the publication date
+        int d = (n>=9) ? 4 : 3;
+        byte[] line = reader.getBuffer();
+        int orPort = reader.parseInt(t[2*(d+3)], t[2*(d+3)+1]);
+        int dirPort = reader.parseInt(t[2*(d+4)], t[2*(d+4)+1]);
+        Date lastPublication = Util.parseUtcTimestamp(line, t[2*d]);
+        if (orPort<0 || dirPort<0 || lastPublication==null) {
+            return null;
+        }
+        RouterStatusDescription result = new RouterStatusDescription();
+        result.setNickname(reader.getString(t[2], t[3]));
+        result.setFingerprint(new FingerprintImpl(Encoding.parseBase64(line, t[4], t[5])));
+        if (n>=9) {
+            result.setDigestDescriptor(Encoding.parseBase64(line, t[6], t[7]));
+        }
+        result.setLastPublication(lastPublication);
+        result.setIp(reader.getString(t[2*(d+2)], t[2*(d+2)+1]));
+        result.setOrPort(orPort);
+        result.setDirPort(dirPort);
+        return result;
+    }
+
+    /**
+     * @return the value of a token "key=value"; -1 if the token has a different key or an invalid value
+     */
+    private static int parseKeyValue(ByteLineReader reader, int start, int end, String key) {
+        int valueStart = start+key.length();
+        if (valueStart>=end) {
+            return -1;
+        }
+        byte[] line = reader.getBuffer();
+        for (int i=0; i<key.length(); i++) {
+            if (line[start+i]!=key.charAt(i)) {
+                return -1;
             }
         }
-    }    
+        return reader.parseInt(valueStart, end);
+    }
+
+    /**
+     * Keep the router if it is complete and running.
+     */
+    private void addRouter(RouterStatusDescription router) {
+        if (router!=null && router.getFlags()!=null && router.getFlags().contains("Running")) {
+            fingerprintsNetworkStatusDescriptors.put(router.getFingerprint(), router);
+        }
+    }
+
+    /**
+     * Verify all signatures in parallel by the executor shared with the router descriptor parsing.
+     * 
+     * @param signedDataDigests     digest of the signed data for each signature (SHA-1 or SHA-256);
+     *                              elements are null if the signed data could not be determined
+     * @param verifiedSignatures    memo of already verified signatures; null=verify all signatures
+     * @return the identity key digests of the authorities with valid signature
+     */
+    private static Set<Fingerprint> verifySignatures(List<Fingerprint> identityKeyDigests, List<Fingerprint> signingKeyDigests,
+            List<byte[]> signatures, List<byte[]> signedDataDigests, final AuthorityKeyCertificates authorityKeyCertificates,
+            final VerifiedSignatures verifiedSignatures) {
+        List<Future<Fingerprint>> verifications = new ArrayList<Future<Fingerprint>>(signatures.size());
+        for (int i=0; i<signatures.size(); i++) {
+            final Fingerprint identityKeyDigest = identityKeyDigests.get(i);
+            final Fingerprint signingKeyDigest = signingKeyDigests.get(i);
+            final byte[] signature = signatures.get(i);
+            final byte[] signedDataDigest = signedDataDigests.get(i);
+            verifications.add(RouterImpl.getParsingExecutor().submit(new Callable<Fingerprint>() {
+                public Fingerprint call() {
+                    return verifySignature(identityKeyDigest, signingKeyDigest, signature,
+                            signedDataDigest, authorityKeyCertificates, verifiedSignatures);
+                }
+            }));
+        }
+
+        Set<Fingerprint> result = new HashSet<Fingerprint>();
+        for (Future<Fingerprint> verification : verifications) {
+            try {
+                Fingerprint dirIdentityKeyDigest = verification.get();
+                if (dirIdentityKeyDigest!=null) {
+                    result.add(dirIdentityKeyDigest);
+                }
+            } catch (InterruptedException e) {
+                log.log(Level.INFO, "interrupted while verifying the consensus signatures", e);
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.log(Level.INFO, "unexpected", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Verify a single signature.
+     * 
+     * @param signedDataDigest      null if the signed data could not be determined
+     * @param verifiedSignatures    memo of already verified signatures; null=verify the signature in any case
+     * @return the identity key digest of the authority if the signature is valid; null otherwise
+     */
+    private static Fingerprint verifySignature(Fingerprint identityKeyDigest, Fingerprint signingKeyDigest, byte[] signature,
+            byte[] signedDataDigest, AuthorityKeyCertificates authorityKeyCertificates, VerifiedSignatures verifiedSignatures) {
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Directory.parseDirV3NetworkStatus: Extracted identityKeyDigest(hex)="+identityKeyDigest.getHex());
+            log.fine("Directory.parseDirV3NetworkStatus: Extracted signingKeyDigest(hex)="+signingKeyDigest.getHex());
+            log.fine("Directory.parseDirV3NetworkStatus: Found signature(base64)="+Encoding.toBase64(signature));
+        }
+        AuthorityKeyCertificate authorityKeyCertificate = authorityKeyCertificates.getCertByFingerprints(identityKeyDigest, signingKeyDigest);
+        if (authorityKeyCertificate==null) {
+            log.fine("No authorityKeyCertificate found");
+            return null;
+        }
+        if (signature.length < 1 || signedDataDigest==null) {
+            log.fine("No signature found in network status");
+            return null;
+        }
+        boolean signatureValid = (verifiedSignatures==null)
+                ? Encryption.verifySignatureOfDigest(signature, authorityKeyCertificate.getDirSigningKey(), signedDataDigest)
+                : verifiedSignatures.verifySignatureOfDigest(signature, authorityKeyCertificate.getDirSigningKey(), signedDataDigest);
+        if (!signatureValid) {
+            log.fine("Directory signature verification failed for identityKeyDigest(hex)="+identityKeyDigest.getHex());
+            return null;
+        }
+        // verification successful for this signature
+        log.info("single signature verification ok for identityKeyDigest(hex)="+identityKeyDigest.getHex());
+        return authorityKeyCertificate.getDirIdentityKeyDigest();
+    }
 
     /**
      * Check the timestamps.
@@ -205,23 +551,50 @@ public class DirectoryConsensus {
 
     /**
      * @param now    the current time 
-     * @return true if a refresh should happen now
+     * @return true if a refresh should happen now: the refresh time is reached or the consensus is not valid
      */
     public boolean needsToBeRefreshed(Date now) {
-        if (validUntil.before(now)) {
+        if (validUntil!=null && validUntil.before(now)) {
             // too old
             log.warning("must be refrehed - but it is actually to late; validUntil="+validUntil);
             return true;
         }
         
-        // TODO: this algorithm must be improved based on the spec to prevent dir server from damage
-        if (freshUntil.before(now)) {
-            // should be refreshed soon
-            //TODO: return true;
+        // default check
+        if (!isValid(now)) {
+            return true;
         }
 
-        // default check
-        return !isValid(now);
+        // not fresh any more: the clients spread their downloads to protect the dir servers
+        return !getRefreshTime().after(now);
+    }
+
+    /**
+     * @return the time to download the next consensus, chosen randomly once per consensus
+     */
+    public synchronized Date getRefreshTime() {
+        if (refreshTime==null) {
+            refreshTime = chooseRefreshTime(validAfter, freshUntil, validUntil, REFRESH_TIME_RANDOM);
+        }
+        return refreshTime;
+    }
+
+    /**
+     * Choose the refresh time like a client of section 5.1 of the Tor directory protocol specification:
+     * randomly after fresh-until + 3/4 of the interval (fresh-until - valid-after),
+     * in the first 7/8 of the remaining time until valid-until.
+     * 
+     * @return the refresh time, between freshUntil and validUntil
+     */
+    static Date chooseRefreshTime(Date validAfter, Date freshUntil, Date validUntil, Random rnd) {
+        long interval = Math.max(0, freshUntil.getTime()-validAfter.getTime());
+        long earliest = freshUntil.getTime() + interval*3/4;
+        long latest = earliest + (validUntil.getTime()-earliest)*7/8;
+        if (latest<=earliest) {
+            // unusual times: refresh as soon as the consensus is not fresh any more
+            return freshUntil;
+        }
+        return new Date(earliest + (long)(rnd.nextDouble()*(latest-earliest)));
     }
 
     ///////////////////////////////////////////////////////
@@ -232,24 +605,35 @@ public class DirectoryConsensus {
         return validAfter;
     }
 
-    public void setValidAfter(Date validAfter) {
+    public synchronized void setValidAfter(Date validAfter) {
         this.validAfter = validAfter;
+        refreshTime = null;
     }
 
     public Date getFreshUntil() {
         return freshUntil;
     }
 
-    public void setFreshUntil(Date freshUntil) {
+    public synchronized void setFreshUntil(Date freshUntil) {
         this.freshUntil = freshUntil;
+        refreshTime = null;
     }
 
     public Date getValidUntil() {
         return validUntil;
     }
 
-    public void setValidUntil(Date validUntil) {
+    public synchronized void setValidUntil(Date validUntil) {
         this.validUntil = validUntil;
+        refreshTime = null;
+    }
+
+    public BandwidthWeights getBandwidthWeights() {
+        return bandwidthWeights;
+    }
+
+    public boolean isMicrodescFlavour() {
+        return microdescFlavour;
     }
 
     public Map<Fingerprint, RouterStatusDescription> getFingerprintsNetworkStatusDescriptors() {
@@ -17,6 +17,7 @@
  */
 package org.silvertunnel.netlib.layer.tor.directory;
 
+import java.util.Date;
 import java.util.logging.Logger;
 
 import org.silvertunnel.netlib.layer.tor.common.TorConfig;
@@ -40,6 +41,8 @@ public class DirectoryManagerThread extends Thread {
     private long currentTimeMillis;
     /** time stamp */
     private long dirNextUpdateTimeMillis;
+    /** time stamp of the last update */
+    private long dirLastUpdateTimeMillis;
 
     public DirectoryManagerThread(Directory directory) {
         this.directory = directory;
@@ -54,9 +57,14 @@ public class DirectoryManagerThread extends Thread {
      */
     private void updateDirectory() {
         currentTimeMillis = System.currentTimeMillis();
-        if ((currentTimeMillis > dirNextUpdateTimeMillis) || (directory.getValidRoutersByFingerprint().size() < 1)) {
+        // the consensus refresh time is randomly chosen between fresh-until and valid-until: update once at this time
+        Date consensusRefreshTime = directory.getConsensusRefreshTime();
+        boolean consensusRefreshDue = consensusRefreshTime!=null
+                && consensusRefreshTime.getTime()<=currentTimeMillis && dirLastUpdateTimeMillis<consensusRefreshTime.getTime();
+        if ((currentTimeMillis > dirNextUpdateTimeMillis) || consensusRefreshDue || (directory.getValidRoutersByFingerprint().size() < 1)) {
             log.info("DirectoryManagerThread.updateDirectory: updating directory");
             dirNextUpdateTimeMillis = currentTimeMillis + TorConfig.intervalDirectoryRefresh * 60 * MILLISEC;
+            dirLastUpdateTimeMillis = currentTimeMillis;
             directory.refreshListOfServers();
 
             /*
@@ -0,0 +1,130 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+
+/**
+ * Consistent view of the directory for the readers (e.g. path selection):
+ * consensus, valid routers and the indexes derived from them.
+ *
+ * Created by each directory update and published by Directory with a single volatile write;
+ * a reader takes all state of one update with a single volatile read and never waits for an update.
+ *
+ * An object is read-only (the routers themselves are shared and can change their ranking).
+ */
+class DirectorySnapshot {
+    /** consensus of the valid routers; null=not yet available */
+    private final DirectoryConsensus consensus;
+    /** valid routers + status, key=identity key; unmodifiable */
+    private final Map<Fingerprint,RouterImpl> validRoutersByFingerprint;
+    /** number of running routers in the consensus */
+    private final int numOfRunningRoutersInConsensus;
+    /** weighted selection of valid routers, indexed by RouterSampler.GUARD/MIDDLE/EXIT/UNTRUSTED_EXIT */
+    private final RouterSampler[] routerSamplers;
+    /** valid routers with HSDir flag (hidden service directories) */
+    private final HiddenDirectoryRing hiddenDirectoryRing;
+    /** valid routers by address and onion router port */
+    private final RouterAddressIndex routerAddressIndex;
+
+    /**
+     * @param consensus                         null=not yet available
+     * @param validRoutersByFingerprint         will be copied
+     * @param numOfRunningRoutersInConsensus
+     * @param routerSamplers                    samplers of validRoutersByFingerprint
+     */
+    DirectorySnapshot(DirectoryConsensus consensus, Map<Fingerprint,RouterImpl> validRoutersByFingerprint,
+            int numOfRunningRoutersInConsensus, RouterSampler[] routerSamplers) {
+        this.consensus = consensus;
+        this.validRoutersByFingerprint = Collections.unmodifiableMap(new HashMap<Fingerprint,RouterImpl>(validRoutersByFingerprint));
+        this.numOfRunningRoutersInConsensus = numOfRunningRoutersInConsensus;
+        this.routerSamplers = routerSamplers.clone();
+
+        // hidden service directory ring
+        List<RouterImpl> hsDirs = new ArrayList<RouterImpl>();
+        for (RouterImpl r : validRoutersByFingerprint.values()) {
+            if (r.isDirv2HSDir() && r.getDirPort()>=1) {
+                hsDirs.add(r);
+            }
+        }
+        hiddenDirectoryRing = new HiddenDirectoryRing(hsDirs);
+        routerAddressIndex = new RouterAddressIndex(this.validRoutersByFingerprint.values());
+    }
+
+    /**
+     * Create a snapshot with the same routers and indexes, but other samplers.
+     */
+    private DirectorySnapshot(DirectorySnapshot previous, RouterSampler[] routerSamplers) {
+        consensus = previous.consensus;
+        validRoutersByFingerprint = previous.validRoutersByFingerprint;
+        numOfRunningRoutersInConsensus = previous.numOfRunningRoutersInConsensus;
+        hiddenDirectoryRing = previous.hiddenDirectoryRing;
+        routerAddressIndex = previous.routerAddressIndex;
+        this.routerSamplers = routerSamplers;
+    }
+
+    /**
+     * @return a snapshot with the same routers, taking into account changed ranking indexes
+     */
+    DirectorySnapshot withUpdatedRankings() {
+        RouterSampler[] updated = new RouterSampler[routerSamplers.length];
+        for (int i=0; i<routerSamplers.length; i++) {
+            // same routers: keep the exit index
+            updated[i] = routerSamplers[i].withUpdatedRankings();
+        }
+        return new DirectorySnapshot(this, updated);
+    }
+
+    /**
+     * @param role    RouterSampler.GUARD, MIDDLE, EXIT or UNTRUSTED_EXIT
+     */
+    RouterSampler getRouterSampler(int role) {
+        return routerSamplers[role];
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    DirectoryConsensus getConsensus() {
+        return consensus;
+    }
+
+    Map<Fingerprint,RouterImpl> getValidRoutersByFingerprint() {
+        return validRoutersByFingerprint;
+    }
+
+    int getNumOfRunningRoutersInConsensus() {
+        return numOfRunningRoutersInConsensus;
+    }
+
+    HiddenDirectoryRing getHiddenDirectoryRing() {
+        return hiddenDirectoryRing;
+    }
+
+    RouterAddressIndex getRouterAddressIndex() {
+        return routerAddressIndex;
+    }
+}
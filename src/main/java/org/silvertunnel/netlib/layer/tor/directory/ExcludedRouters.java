@@ -0,0 +1,139 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+
+/**
+ * Set of routers that must not be selected for a route, e.g. routers related to the already selected ones.
+ *
+ * The routers are stored as BitSet of the slots of the consensus (see RouterSlots);
+ * routers without slot are stored by fingerprint.
+ *
+ * An object is not thread-safe.
+ */
+public class ExcludedRouters {
+    private final RouterSlots slots;
+    private final BitSet excludedSlots;
+    /** excluded routers without slot */
+    private final Set<Fingerprint> otherFingerprints;
+
+    ExcludedRouters(RouterSlots slots) {
+        this.slots = slots;
+        this.excludedSlots = new BitSet(slots.size());
+        this.otherFingerprints = new HashSet<Fingerprint>();
+    }
+
+    private ExcludedRouters(ExcludedRouters original) {
+        this.slots = original.slots;
+        this.excludedSlots = (BitSet)original.excludedSlots.clone();
+        this.otherFingerprints = new HashSet<Fingerprint>(original.otherFingerprints);
+    }
+
+    /**
+     * @return an independent copy
+     */
+    public ExcludedRouters copy() {
+        return new ExcludedRouters(this);
+    }
+
+    /**
+     * Exclude a single router.
+     */
+    public void add(Fingerprint fingerprint) {
+        int slot = slots.getSlot(fingerprint);
+        if (slot>=0) {
+            excludedSlots.set(slot);
+        } else {
+            otherFingerprints.add(fingerprint);
+        }
+    }
+
+    /**
+     * Exclude the router and all related routers: family, /16 network and country (if specified in TorConfig).
+     */
+    public void addRelated(RouterImpl r) {
+        int slot = slots.getSlot(r.getFingerprint());
+        if (slot>=0) {
+            slots.addRelated(slot, excludedSlots);
+        } else {
+            otherFingerprints.add(r.getFingerprint());
+        }
+    }
+
+    /**
+     * Exclude all routers of other.
+     */
+    public void addAll(ExcludedRouters other) {
+        if (other.slots==slots) {
+            excludedSlots.or(other.excludedSlots);
+        } else {
+            for (int slot=other.excludedSlots.nextSetBit(0); slot>=0; slot=other.excludedSlots.nextSetBit(slot+1)) {
+                add(other.slots.getRouter(slot).getFingerprint());
+            }
+        }
+        for (Fingerprint f : other.otherFingerprints) {
+            add(f);
+        }
+    }
+
+    public boolean contains(Fingerprint fingerprint) {
+        int slot = slots.getSlot(fingerprint);
+        return (slot>=0) ? excludedSlots.get(slot) : otherFingerprints.contains(fingerprint);
+    }
+
+    /**
+     * @return the fingerprints of all excluded routers
+     */
+    public Set<Fingerprint> getFingerprints() {
+        Set<Fingerprint> result = new HashSet<Fingerprint>(otherFingerprints);
+        for (int slot=excludedSlots.nextSetBit(0); slot>=0; slot=excludedSlots.nextSetBit(slot+1)) {
+            result.add(slots.getRouter(slot).getFingerprint());
+        }
+        return result;
+    }
+
+    /**
+     * @param targetSlots    slots of the caller
+     * @return the excluded routers as BitSet of targetSlots - do not modify it
+     */
+    BitSet getExcludedSlots(RouterSlots targetSlots) {
+        if (targetSlots==slots) {
+            return excludedSlots;
+        }
+        // the consensus changed in between
+        BitSet result = new BitSet(targetSlots.size());
+        for (Fingerprint f : getFingerprints()) {
+            int slot = targetSlots.getSlot(f);
+            if (slot>=0) {
+                result.set(slot);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ExcludedRouters(" + (excludedSlots.cardinality()+otherFingerprints.size()) + " routers)";
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Routers (of a RouterSampler) whose exit policy accepts a destination.
+ *
+ * Two indexes, created once per consensus:
+ * <ul>
+ * <li> per port: the routers whose default rules accept the port (see CompiledExitPolicy);
+ *      created at the first lookup of a port and never evicted
+ * <li> per destination prefix: the address ranges of all routers with address-specific rules,
+ *      with the routers that have such rules for the range
+ * </ul>
+ * A lookup takes the routers of the port and evaluates only the routers with address-specific rules
+ * for the destination exactly (and the rare routers without compiled policy).
+ * Both indexes are created at the first lookup: samplers that are never asked for exits do not pay for them.
+ *
+ * Thread safe.
+ */
+class ExitPolicyIndex {
+    private final RouterImpl[] routers;
+    /** created at the first lookup */
+    private volatile PrefixIndex prefixIndex;
+    /** key: port, value: routers whose default rules accept the port; guarded by itself */
+    private final Map<Integer,BitSet> routersByPort = new HashMap<Integer,BitSet>();
+    /** result of unknown address and port 0 (see RouterImpl.exitPolicyAccepts()) */
+    private final BitSet allRouters;
+
+    /**
+     * @param routers    the routers, the index of the array is the index in the results
+     */
+    ExitPolicyIndex(RouterImpl[] routers) {
+        this.routers = routers;
+        allRouters = new BitSet(routers.length);
+        allRouters.set(0, routers.length);
+    }
+
+    /**
+     * @param addr    destination address; null=unknown
+     * @param port    destination port
+     * @return the routers whose exit policy accepts the destination, see RouterImpl.exitPolicyAccepts() - do not modify it
+     */
+    BitSet getAccepting(InetAddress addr, int port) {
+        if (addr==null && port==0) {
+            return allRouters;
+        }
+        long ip;
+        if (addr==null) {
+            ip = CompiledExitPolicy.UNKNOWN_ADDRESS;
+        } else {
+            byte[] a = addr.getAddress();
+            if (a.length!=4) {
+                // not indexed
+                BitSet result = new BitSet(routers.length);
+                for (int i=0; i<routers.length; i++) {
+                    if (routers[i].exitPolicyAccepts(addr, port)) {
+                        result.set(i);
+                    }
+                }
+                return result;
+            }
+            ip = ((a[0]&0xffL)<<24) | ((a[1]&0xffL)<<16) | ((a[2]&0xffL)<<8) | (a[3]&0xffL);
+        }
+
+        PrefixIndex prefixes = getPrefixIndex();
+        BitSet byPort = getRoutersByPort(port);
+        int[] exceptions = prefixes.routersWithExceptions[prefixes.indexOfAddressRange(ip)];
+        if (exceptions.length==0 && prefixes.notCompiled.isEmpty()) {
+            return byPort;
+        }
+        BitSet result = (BitSet)byPort.clone();
+        for (int i : exceptions) {
+            result.set(i, routers[i].getCompiledExitPolicy().accepts(ip, port));
+        }
+        BitSet notCompiled = prefixes.notCompiled;
+        for (int i=notCompiled.nextSetBit(0); i>=0; i=notCompiled.nextSetBit(i+1)) {
+            result.set(i, routers[i].exitPolicyAccepts(addr, port));
+        }
+        return result;
+    }
+
+    /**
+     * @return the routers whose default rules accept the port (without the routers without compiled policy)
+     */
+    private BitSet getRoutersByPort(int port) {
+        synchronized (routersByPort) {
+            BitSet result = routersByPort.get(port);
+            if (result==null) {
+                result = new BitSet(routers.length);
+                for (int i=0; i<routers.length; i++) {
+                    CompiledExitPolicy policy = routers[i].getCompiledExitPolicy();
+                    if (policy!=null && policy.acceptsByDefault(port)) {
+                        result.set(i);
+                    }
+                }
+                routersByPort.put(port, result);
+            }
+            return result;
+        }
+    }
+
+    private PrefixIndex getPrefixIndex() {
+        PrefixIndex result = prefixIndex;
+        if (result==null) {
+            synchronized (this) {
+                result = prefixIndex;
+                if (result==null) {
+                    result = new PrefixIndex(routers);
+                    prefixIndex = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The address ranges of all address-specific rules. An object is read-only.
+     */
+    private static class PrefixIndex {
+        /** routers without compiled exit policy: always evaluated exactly */
+        private final BitSet notCompiled;
+        /** first address of each address range, sorted; the first element is 0 */
+        private final long[] addressRangeStarts;
+        /** indexes of the routers with address-specific rules for each address range */
+        private final int[][] routersWithExceptions;
+
+        PrefixIndex(RouterImpl[] routers) {
+            int n = routers.length;
+            notCompiled = new BitSet(n);
+
+            // borders of the address ranges of all exceptions
+            long[][] exceptionRanges = new long[n][];
+            TreeSet<Long> borders = new TreeSet<Long>();
+            borders.add(0L);
+            for (int i=0; i<n; i++) {
+                CompiledExitPolicy policy = routers[i].getCompiledExitPolicy();
+                if (policy==null) {
+                    notCompiled.set(i);
+                    continue;
+                }
+                exceptionRanges[i] = policy.getExceptionRanges();
+                for (long border : exceptionRanges[i]) {
+                    borders.add(border);
+                }
+            }
+            // the end of the address space does not start a range
+            borders.remove(0x100000000L);
+            addressRangeStarts = new long[borders.size()];
+            int k = 0;
+            for (Long border : borders) {
+                addressRangeStarts[k++] = border;
+            }
+
+            // routers with exceptions per address range
+            List<List<Integer>> lists = new ArrayList<List<Integer>>(addressRangeStarts.length);
+            for (int r=0; r<addressRangeStarts.length; r++) {
+                lists.add(null);
+            }
+            for (int i=0; i<n; i++) {
+                if (exceptionRanges[i]==null) {
+                    continue;
+                }
+                for (int e=0; e<exceptionRanges[i].length; e+=2) {
+                    long end = exceptionRanges[i][e+1];
+                    for (int r=indexOfAddressRange(exceptionRanges[i][e]); r<addressRangeStarts.length && addressRangeStarts[r]<end; r++) {
+                        if (lists.get(r)==null) {
+                            lists.set(r, new ArrayList<Integer>());
+                        }
+                        lists.get(r).add(i);
+                    }
+                }
+            }
+            routersWithExceptions = new int[addressRangeStarts.length][];
+            for (int r=0; r<addressRangeStarts.length; r++) {
+                List<Integer> list = lists.get(r);
+                int[] indexes = new int[(list==null) ? 0 : list.size()];
+                for (int j=0; j<indexes.length; j++) {
+                    indexes[j] = list.get(j);
+                }
+                routersWithExceptions[r] = indexes;
+            }
+        }
+
+        int indexOfAddressRange(long address) {
+            int result = Arrays.binarySearch(addressRangeStarts, address);
+            return (result>=0) ? result : -result-2;
+        }
+    }
+}
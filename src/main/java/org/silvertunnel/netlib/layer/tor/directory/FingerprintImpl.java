@@ -28,12 +28,24 @@ import org.silvertunnel.netlib.layer.tor.util.Parsing;
  * A finger print (a HASH_LEN-byte of asn1 encoded public key)
  * of an identity key or signing key of a router or directory server.
  * 
+ * The first 24 bytes are stored big-endian in three longs (zero padded),
+ * so that comparisons and hashing do not need to touch a byte array.
+ * 
  * An object is read only.
  * 
  * @author hapke
  */
 public class FingerprintImpl implements Fingerprint, Cloneable {
-    private byte[] bytes;
+    /** number of bytes stored in the words */
+    private static final int WORDS_BYTES = 24;
+
+    private final long word0;
+    private final long word1;
+    private final long word2;
+    private final int length;
+    /** bytes after the first WORDS_BYTES bytes; null if length<=WORDS_BYTES */
+    private final byte[] remainingBytes;
+    private final int hash;
     /** cache of result of getHex() */
     private String hexCache;
     
@@ -47,29 +59,75 @@ public class FingerprintImpl implements Fingerprint, Cloneable {
         }
         
         // save value
-        this.bytes = identityKey;
+        this.length = identityKey.length;
+        this.word0 = word(identityKey, 0);
+        this.word1 = word(identityKey, 8);
+        this.word2 = word(identityKey, 16);
+        this.remainingBytes = (length>WORDS_BYTES) ? Arrays.copyOfRange(identityKey, WORDS_BYTES, length) : null;
+        this.hash = computeHash();
+    }
+
+    /**
+     * @return the 8 bytes starting at offset as big-endian long, zero padded
+     */
+    private static long word(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i=offset; i<offset+8; i++) {
+            result <<= 8;
+            if (i<bytes.length) {
+                result |= bytes[i] & 0xffL;
+            }
+        }
+        return result;
+    }
+
+    private int computeHash() {
+        // mix all words (finalizer of MurmurHash3)
+        long h = word0 ^ Long.rotateLeft(word1, 21) ^ Long.rotateLeft(word2, 42) ^ length;
+        if (remainingBytes!=null) {
+            h ^= Arrays.hashCode(remainingBytes);
+        }
+        h ^= h>>>33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h>>>33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h>>>33;
+        return (int)h;
     }
     
     public String getHex() {
         if (hexCache==null) {
-            hexCache = Parsing.renderFingerprint(bytes, false);
+            hexCache = Parsing.renderFingerprint(getBytes(), false);
         }
         return hexCache;
     }
 
     public String getHexWithSpaces() {
-        return Parsing.renderFingerprint(bytes, true);
+        return Parsing.renderFingerprint(getBytes(), true);
     }
 
     /**
      * @return a copy of the internally byte array
      */
     public byte[] getBytes() {
-        byte[] result = new byte[bytes.length];
-        System.arraycopy(bytes, 0, result, 0, bytes.length);
+        byte[] result = new byte[length];
+        long[] words = {word0, word1, word2};
+        for (int i=0; i<length && i<WORDS_BYTES; i++) {
+            result[i] = (byte)(words[i>>3] >>> (56-8*(i&7)));
+        }
+        if (remainingBytes!=null) {
+            System.arraycopy(remainingBytes, 0, result, WORDS_BYTES, remainingBytes.length);
+        }
         return result;
     }
     
+    /**
+     * @return the first 8 bytes as big-endian value (zero padded), to be compared unsigned
+     */
+    long getPrefix() {
+        return word0;
+    }
+    
     @Override
     public String toString() {
         return "fingerprintHexWithSpaces="+getHexWithSpaces();
@@ -77,35 +135,71 @@ public class FingerprintImpl implements Fingerprint, Cloneable {
     
     @Override
     public int hashCode() {
-        return ((bytes[0]*256)+bytes[1]*256)+bytes[2];
+        return hash;
     }
     
     @Override
     public boolean equals(Object obj) {
+        if (this==obj) {
+            return true;
+        }
         if (!(obj instanceof FingerprintImpl))  {
             return false;
         }
         FingerprintImpl o = (FingerprintImpl)obj;
-        return Arrays.equals(this.bytes, o.bytes);
+        return hash==o.hash && word0==o.word0 && word1==o.word1 && word2==o.word2 && length==o.length
+                && Arrays.equals(remainingBytes, o.remainingBytes);
     }
 
     /**
+     * Compare the bytes as unsigned values, a prefix is less than the longer fingerprint
+     * (same order as comparing the hex strings).
+     *
      * @param other
      * @return      a negative integer, zero, or a positive integer as this object is less than, equal to, or greater than the specified object. 
      */
     public int compareTo(Fingerprint other) {
-        // performance optimization should be possible if necessary:
-        return getHex().compareTo(other.getHex());
+        if (!(other instanceof FingerprintImpl)) {
+            return getHex().compareTo(other.getHex());
+        }
+        FingerprintImpl o = (FingerprintImpl)other;
+        if (word0!=o.word0) {
+            return compareUnsigned(word0, o.word0);
+        }
+        if (word1!=o.word1) {
+            return compareUnsigned(word1, o.word1);
+        }
+        if (word2!=o.word2) {
+            return compareUnsigned(word2, o.word2);
+        }
+        if (remainingBytes!=null && o.remainingBytes!=null) {
+            int common = Math.min(remainingBytes.length, o.remainingBytes.length);
+            for (int i=0; i<common; i++) {
+                int diff = (remainingBytes[i]&0xff) - (o.remainingBytes[i]&0xff);
+                if (diff!=0) {
+                    return diff;
+                }
+            }
+        }
+        return length - o.length;
+    }
+
+    /**
+     * @return the comparison of a and b as unsigned values
+     */
+    private static int compareUnsigned(long a, long b) {
+        // flipping the sign bit maps the unsigned order to the signed order
+        long x = a ^ Long.MIN_VALUE;
+        long y = b ^ Long.MIN_VALUE;
+        return (x<y) ? -1 : ((x==y) ? 0 : 1);
     }
     
     /**
-     * Clone, but do not throw an exception.
+     * An object is read only: no copy is needed.
+     *
+     * @return this
      */
     public Fingerprint cloneReliable() throws RuntimeException {
-        try {
-            return (Fingerprint)clone();
-        } catch (CloneNotSupportedException e) {
-            throw new RuntimeException(e);
-        }
+        return this;
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+
+/**
+ * The hidden service directories (routers with HSDir flag) of a consensus,
+ * ordered by fingerprint and treated as ring: the successor of the last router is the first one.
+ *
+ * Built once per consensus. The first 8 bytes of each fingerprint are kept in a sorted long[]
+ * (sign bit flipped: the signed order of the values is the unsigned order of the bytes),
+ * a successor lookup is a binary search in this array.
+ *
+ * An object is read-only.
+ */
+class HiddenDirectoryRing {
+    private static final Comparator<RouterImpl> FINGERPRINT_ORDER = new Comparator<RouterImpl>() {
+        public int compare(RouterImpl o1, RouterImpl o2) {
+            return o1.getFingerprint().compareTo(o2.getFingerprint());
+        }
+    };
+
+    /** routers ordered by fingerprint */
+    private final RouterImpl[] routers;
+    /** key of the fingerprint of each router (see key()), ascending */
+    private final long[] keys;
+
+    /**
+     * @param hiddenDirectoryServers    routers of the ring (will not be modified)
+     */
+    HiddenDirectoryRing(Collection<RouterImpl> hiddenDirectoryServers) {
+        routers = hiddenDirectoryServers.toArray(new RouterImpl[hiddenDirectoryServers.size()]);
+        Arrays.sort(routers, FINGERPRINT_ORDER);
+        keys = new long[routers.length];
+        for (int i=0; i<routers.length; i++) {
+            keys[i] = key(routers[i].getFingerprint());
+        }
+    }
+
+    /**
+     * @return the first 8 bytes of the fingerprint with flipped sign bit
+     */
+    private static long key(Fingerprint fingerprint) {
+        FingerprintImpl f = (fingerprint instanceof FingerprintImpl)
+                ? (FingerprintImpl)fingerprint : new FingerprintImpl(fingerprint.getBytes());
+        return f.getPrefix() ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * @return index of the first router with fingerprint>=f; routers.length if there is none
+     */
+    private int indexOfFirstNotLessThan(Fingerprint f) {
+        long key = key(f);
+        // binary search: first router with key>=key(f)
+        int low = 0;
+        int high = routers.length;
+        while (low<high) {
+            int mid = (low+high)>>>1;
+            if (keys[mid]<key) {
+                low = mid+1;
+            } else {
+                high = mid;
+            }
+        }
+        // same first 8 bytes: compare the complete fingerprints
+        while (low<routers.length && keys[low]==key && routers[low].getFingerprint().compareTo(f)<0) {
+            low++;
+        }
+        return low;
+    }
+
+    /**
+     * @param f                   e.g. hidden service descriptor id
+     * @param numberOfRouters     maximum size of the result
+     * @return the first router with fingerprint>=f and its successors in the ring,
+     *         at most numberOfRouters and each router at most once
+     */
+    List<RouterImpl> getSuccessors(Fingerprint f, int numberOfRouters) {
+        int n = Math.min(numberOfRouters, routers.length);
+        List<RouterImpl> result = new ArrayList<RouterImpl>(n);
+        int start = indexOfFirstNotLessThan(f);
+        for (int i=0; i<n; i++) {
+            result.add(routers[(start+i)%routers.length]);
+        }
+        return result;
+    }
+
+    /**
+     * @return all routers, ordered by fingerprint - a copy
+     */
+    RouterImpl[] toArray() {
+        return routers.clone();
+    }
+
+    /**
+     * @return number of routers in the ring
+     */
+    int size() {
+        return routers.length;
+    }
+}
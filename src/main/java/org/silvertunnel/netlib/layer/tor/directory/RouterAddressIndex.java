@@ -0,0 +1,108 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Index of routers by IPv4 address and onion router port.
+ *
+ * Open addressing hash table with linear probing; the key (address<<16 | port) is kept
+ * in a long[], so that a lookup does not allocate any object.
+ * If several routers have the same address and port the first one is found.
+ *
+ * An object is read-only.
+ */
+class RouterAddressIndex {
+    /** key of an empty entry and of addresses that cannot be indexed (keys are never negative) */
+    private static final long NO_KEY = -1L;
+    private static final int MAX_PORT = 0xffff;
+
+    private final long[] keys;
+    private final RouterImpl[] routers;
+    private final int mask;
+
+    /**
+     * @param routers    routers to index; routers without IPv4 address are ignored
+     */
+    RouterAddressIndex(Collection<RouterImpl> routers) {
+        // load factor <= 0.5
+        int capacity = Integer.highestOneBit(Math.max(1, routers.size())*2)*2;
+        keys = new long[capacity];
+        Arrays.fill(keys, NO_KEY);
+        this.routers = new RouterImpl[capacity];
+        mask = capacity-1;
+        for (RouterImpl r : routers) {
+            long key = (r.getAddress()==null) ? NO_KEY : key(r.getAddress().getAddress(), r.getOrPort());
+            if (key==NO_KEY) {
+                continue;
+            }
+            int i = indexOf(key);
+            if (keys[i]==NO_KEY) {
+                keys[i] = key;
+                this.routers[i] = r;
+            }
+        }
+    }
+
+    /**
+     * @param ipAddress    IPv4 address
+     * @param orPort       onion router port
+     * @return the router; null if not found
+     */
+    RouterImpl get(byte[] ipAddress, int orPort) {
+        long key = key(ipAddress, orPort);
+        if (key==NO_KEY) {
+            return null;
+        }
+        return routers[indexOf(key)];
+    }
+
+    /**
+     * @return the slot of key or the empty slot where it belongs
+     */
+    private int indexOf(long key) {
+        int i = hash(key) & mask;
+        while (keys[i]!=NO_KEY && keys[i]!=key) {
+            i = (i+1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @return key of address and port; NO_KEY if not an IPv4 address or not a valid port
+     */
+    private static long key(byte[] ipAddress, int port) {
+        if (ipAddress==null || ipAddress.length!=4 || port<0 || port>MAX_PORT) {
+            return NO_KEY;
+        }
+        long ip = ((ipAddress[0]&0xffL)<<24) | ((ipAddress[1]&0xffL)<<16) | ((ipAddress[2]&0xffL)<<8) | (ipAddress[3]&0xffL);
+        return (ip<<16) | port;
+    }
+
+    private static int hash(long key) {
+        // finalizer of MurmurHash3
+        long h = key;
+        h ^= h>>>33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h>>>33;
+        return (int)h;
+    }
+}
@@ -17,21 +17,37 @@
  */
 package org.silvertunnel.netlib.layer.tor.directory;
 
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.silvertunnel.netlib.api.util.TcpipNetAddress;
 import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
@@ -41,7 +57,6 @@ import org.silvertunnel.netlib.layer.tor.common.LookupServiceUtil;
 import org.silvertunnel.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel.netlib.layer.tor.util.Encoding;
 import org.silvertunnel.netlib.layer.tor.util.Encryption;
-import org.silvertunnel.netlib.layer.tor.util.Parsing;
 import org.silvertunnel.netlib.layer.tor.util.TorException;
 import org.silvertunnel.netlib.layer.tor.util.Util;
 
@@ -59,11 +74,10 @@ public class RouterImpl implements Router, Cloneable {
     
     TorConfig torConfig;
     
-    /**
-     * The raw router descriptor which has been handed to us. 
-     * In the normal case we just return this stored descriptor.
-     */
-    private String routerDescriptor;
+    /** SHA-1 digest of the router descriptor; null=not created from a router descriptor */
+    private byte[] digestDescriptor;
+    /** SHA-256 digest of the microdescriptor; null=created from a router descriptor */
+    private byte[] digestMicrodescriptor;
 
     /** Information extracted from the Router descriptor. */
     private String nickname; 
@@ -82,6 +96,7 @@ public class RouterImpl implements Router, Cloneable {
     private int bandwidthBurst;
     private int bandwidthObserved;
  
+    /** interned: shared by all routers with the same platform */
     private String platform;
     private Date published;
 
@@ -90,19 +105,28 @@ public class RouterImpl implements Router, Cloneable {
 
     private int uptime;
     
-    private RSAPublicKey onionKey;
+    /** volatile: decoded lazily by the first reader, see getOnionKey() */
+    private volatile RSAPublicKey onionKey;
+    /** PKCS#1 encoded onionKey of a parsed router, decoded at the first use (e.g. for a hop) */
+    private byte[] onionKeyEncoded;
     private RSAPrivateKey onionKeyPrivate;
     
-    private RSAPublicKey signingKey;
+    /** volatile: decoded lazily by the first reader, see getSigningKey() */
+    private volatile RSAPublicKey signingKey;
+    /** PKCS#1 encoded signingKey of a parsed router, decoded at the first use */
+    private byte[] signingKeyEncoded;
     private RSAPrivateKey signingKeyPrivate;
   
+    /** shared by all routers with the same exit policy, see SharedExitPolicy */
     private RouterExitPolicy[] exitpolicy;
+    /** exitpolicy compiled for fast lookups; null=not available, use exitpolicy */
+    private CompiledExitPolicy compiledExitPolicy;
 
-    private byte[] routerSignature;
     private String contact;
     
-    /** Fingerprints of the routers of the family */
-    private Set<String/*TODO: Fingerprint*/> family = new HashSet<String>();
+    /** members of the family as given in the descriptor: $fingerprint or nickname */
+    private String[] family = NO_FAMILY;
+    private static final String[] NO_FAMILY = new String[0];
     
     /** based on the time of loading this data */
     private Date validUntil;
@@ -125,6 +149,8 @@ public class RouterImpl implements Router, Cloneable {
 
     /** internal Server-Ranking data */
     private float rankingIndex;
+    /** bandwidth measured by the directory authorities (kilobytes per second); -1=unknown */
+    private int consensusBandwidth = -1;
     /** see updateServerRanking() */
     private static final int highBandwidth = 2097152; 
     /** see updateServerRanking() */
@@ -132,44 +158,18 @@ public class RouterImpl implements Router, Cloneable {
     /** coefficient to decrease server ranking if the server fails to respond in time */
     private static final float punishmentFactor = 0.75f;
 
-    // patterns used to parse a router descriptor
-    private static Pattern ROUTER_PATTERN;
-    private static Pattern PLATFORM_PATTERN ;
-    private static Pattern PUBLISHED_PATTERN;
-    private static Pattern UPTIME_PATTERN;
-    private static Pattern FINGERPRINT_PATTERN;
-    private static Pattern CONTACT_PATTERN;
-    private static Pattern ROUTER_PATTERN2;
-    private static Pattern ONIONKEY_PATTERN;
-    private static Pattern SIGNINGKEY_PATTERN;
-    private static Pattern STRINGFAMILY_PATTERN;
-    private static Pattern STRINGOPTFAMILY_PATTERN_PATTERN;
-    private static Pattern PFAMILY_PATTERN;
-    private static Pattern ROUTERSIGNATURE_PATTERN;
-    private static Pattern SHA1INPUT_PATTERN;
-
-    {
-        // initialize patterns,
-        // do it here to be able to log exceptions
-        try {
-            ROUTER_PATTERN = Parsing.compileRegexPattern("^router (\\w+) (\\S+) (\\d+) (\\d+) (\\d+)");
-            PLATFORM_PATTERN = Parsing.compileRegexPattern("^platform (.*?)$");
-            PUBLISHED_PATTERN = Parsing.compileRegexPattern("^published (.*?)$");
-            UPTIME_PATTERN = Parsing.compileRegexPattern("^uptime (\\d+)");
-            FINGERPRINT_PATTERN = Parsing.compileRegexPattern("^(?:opt )?fingerprint (.*?)$");
-            CONTACT_PATTERN = Parsing.compileRegexPattern("^contact (.*?)$");
-            ROUTER_PATTERN2 = Parsing.compileRegexPattern("^bandwidth (\\d+) (\\d+) (\\d+)?");
-            ONIONKEY_PATTERN = Parsing.compileRegexPattern("^onion-key\n(.*?END RSA PUBLIC KEY......)");
-            SIGNINGKEY_PATTERN = Parsing.compileRegexPattern("^signing-key\n(.*?END RSA PUBLIC KEY-----\n)");
-            STRINGFAMILY_PATTERN = Parsing.compileRegexPattern("^family (.*?)$");
-            STRINGOPTFAMILY_PATTERN_PATTERN = Parsing.compileRegexPattern("^opt family (.*?)$");
-            PFAMILY_PATTERN = Pattern.compile("(\\S+)");
-            ROUTERSIGNATURE_PATTERN = Parsing.compileRegexPattern("^router-signature\n-----BEGIN SIGNATURE-----(.*?)-----END SIGNATURE-----");
-            SHA1INPUT_PATTERN = Parsing.compileRegexPattern("^(router .*?router-signature\n)");
-        } catch (Exception e) {
-            log.log(Level.SEVERE, "could not initialize all patterns", e);
-        }
-    }
+    /** end of the signature of a router descriptor */
+    private static final String END_SIGNATURE = "END SIGNATURE-----";
+    /** first keyword of a microdescriptor */
+    private static final String MICRODESCRIPTOR_START = "onion-key";
+    private static final String MICRODESCRIPTOR_DIGEST_ALGORITHM = "SHA-256";
+    /** descriptors parsed by one task of the executor */
+    private static final int DESCRIPTORS_PER_PARSING_TASK = 64;
+
+    /** shared by all parsings of multiple router descriptors and signature verifications of the consensus */
+    private static ExecutorService parsingExecutor;
+    private static AtomicInteger parsingThreadCounter = new AtomicInteger();
+
     private static final int MAX_ROUTERDESCRIPTOR_LENGTH = 10000;
 
     /**
@@ -179,6 +179,18 @@ public class RouterImpl implements Router, Cloneable {
      *            a router descriptor to initialize the object from
      */
     RouterImpl(TorConfig torConfig, String routerDescriptor) throws TorException {
+        this(torConfig, routerDescriptor, null);
+    }
+
+    /**
+     * takes a router descriptor as string
+     * 
+     * @param routerDescriptor
+     *            a router descriptor to initialize the object from
+     * @param verifiedSignatures
+     *            memo of already verified signatures; null=verify the signature in any case
+     */
+    RouterImpl(TorConfig torConfig, String routerDescriptor, VerifiedSignatures verifiedSignatures) throws TorException {
         if (torConfig == null) {
             throw new TorException("torConfig is null");
         }
@@ -189,7 +201,55 @@ public class RouterImpl implements Router, Cloneable {
         
         this.torConfig = torConfig;
         init();
-        parseRouterDescriptor(routerDescriptor);
+        parseRouterDescriptor(routerDescriptor, verifiedSignatures);
+        updateServerRanking();
+
+        this.countryCode = LookupServiceUtil.getCountryCodeOfIpAddress(this.address);
+    }
+
+    /**
+     * Create a router of the microdesc consensus flavour.
+     * 
+     * @param status            entry of the consensus
+     * @param microdescriptor   the microdescriptor of the router (its digest is not checked here)
+     */
+    RouterImpl(TorConfig torConfig, RouterStatusDescription status, String microdescriptor) throws TorException {
+        if (torConfig == null) {
+            throw new TorException("torConfig is null");
+        }
+        if (microdescriptor.length()>MAX_ROUTERDESCRIPTOR_LENGTH) {
+            throw new TorException("skipped router with microdescriptor of length="+microdescriptor.length());
+        }
+
+        this.torConfig = torConfig;
+        init();
+        parseMicrodescriptor(status, microdescriptor);
+        updateServerRanking();
+
+        this.countryCode = LookupServiceUtil.getCountryCodeOfIpAddress(this.address);
+    }
+
+    /**
+     * Create a router of the microdesc consensus flavour with a changed consensus entry
+     * (e.g. a new address), but with the same microdescriptor as previous.
+     * 
+     * @param status      entry of the consensus
+     * @param previous    router with the microdescriptor of status
+     */
+    RouterImpl(TorConfig torConfig, RouterStatusDescription status, RouterImpl previous) throws TorException {
+        if (torConfig == null) {
+            throw new TorException("torConfig is null");
+        }
+
+        this.torConfig = torConfig;
+        init();
+        parseConsensusEntry(status);
+        // information of the microdescriptor
+        onionKey = previous.onionKey;
+        onionKeyEncoded = previous.onionKeyEncoded;
+        family = previous.family;
+        exitpolicy = previous.exitpolicy;
+        compiledExitPolicy = previous.compiledExitPolicy;
         updateServerRanking();
 
         this.countryCode = LookupServiceUtil.getCountryCodeOfIpAddress(this.address);
@@ -234,8 +294,8 @@ public class RouterImpl implements Router, Cloneable {
     }
 
     /**
-     * takes input data and initializes the server object with it. A router
-     * descriptor and a signature will be automatically generated.
+     * takes input data and initializes the server object with it.
+     * The signed router descriptor can be generated with renderRouterDescriptor().
      */
     RouterImpl(TorConfig torConfig,String varNickname, InetAddress varAddress, int varOrPort, int varSocksPort,
             int varDirPort, int varBandwidthAvg, int varBandwidthBurst,
@@ -275,16 +335,27 @@ public class RouterImpl implements Router, Cloneable {
         this.signingKeyPrivate = varSigningKeyPrivate;
 
         this.exitpolicy = varExitpolicy;
+        this.compiledExitPolicy = (varExitpolicy==null) ? null : CompiledExitPolicy.compile(varExitpolicy);
 
         this.contact = varContact;
         
-        this.family = varFamily;
+        if (varFamily!=null) {
+            this.family = varFamily.toArray(new String[varFamily.size()]);
+        }
         
-        // Render router descriptor
-        this.routerDescriptor = renderRouterDescriptor();
         this.countryCode = LookupServiceUtil.getCountryCodeOfIpAddress(this.address);
     }
 
+    /**
+     * Create a router of a binary directory snapshot, see readSnapshot().
+     */
+    private RouterImpl(TorConfig torConfig, Fingerprint fingerprint) {
+        this.torConfig = torConfig;
+        this.fingerprint = fingerprint;
+        this.platform = "unknown";
+        this.contact = "";
+    }
+
     /** Constructor-indepentent initialization **/
     private void init() {
          // unknown/new
@@ -339,208 +410,404 @@ public class RouterImpl implements Router, Cloneable {
     }
 
     /**
-     * This function parses the exit policy items from the router descriptor.
+     * Parse the value of one exit policy item ("accept" or "reject" line).
      * 
-     * @param routerDescriptor
-     *            a router descriptor with exit policy items.
-     * @return the complete exit policy
+     * @param accept    true=accept, false=reject
+     * @param value     e.g. "*:80" or "10.0.0.0/8:1-1024"
+     * @return the item; null if the value has no port part
      */
-    private RouterExitPolicy[] parseExitPolicy(String routerDescriptor) {
-        ArrayList<RouterExitPolicy> epList = new ArrayList<RouterExitPolicy>(30);
-        RouterExitPolicy ep;
-
-        Pattern p = Pattern.compile("^(accept|reject) (.*?):(.*?)$",
-                Pattern.DOTALL + Pattern.MULTILINE + Pattern.CASE_INSENSITIVE
-                        + Pattern.UNIX_LINES);
-        Matcher m = p.matcher(routerDescriptor);
-
-        // extract all exit policies from description
-        int nr = 0;
-        while (m.find() && (nr < MAX_EXITPOLICY_ITEMS)) {
-            boolean epAccept;
-            long epIp;
-            long epNetmask;
-            int epLoPort;
-            int epHiPort;
-            epAccept = m.group(1).equals("accept");
-            // parse network
-            String network = m.group(2);
-            epIp = 0;
-            epNetmask = 0;
-            if (!network.equals("*")) {
-                int slash = network.indexOf("/");
-                if (slash >= 0) {
-                    epIp = Encoding.dottedNotationToBinary(network.substring(0,
-                            slash));
-                                        String netmask = network.substring(slash + 1);
-                                        if (netmask.indexOf(".")>-1)
-                                            epNetmask = Encoding.dottedNotationToBinary(netmask);
-                                        else epNetmask = (((0xffffffffL << (32-(Integer.parseInt(netmask))))) & 0xffffffffL);
+    private static RouterExitPolicy parseExitPolicyItem(boolean accept, String value) {
+        int colon = value.indexOf(':');
+        if (colon<0) {
+            return null;
+        }
+        String network = value.substring(0, colon);
+        String ports = value.substring(colon+1);
+
+        // parse network
+        long epIp = 0;
+        long epNetmask = 0;
+        if (!network.equals("*")) {
+            int slash = network.indexOf("/");
+            if (slash >= 0) {
+                epIp = Encoding.dottedNotationToBinary(network.substring(0, slash));
+                String netmask = network.substring(slash + 1);
+                if (netmask.indexOf(".")>-1) {
+                    epNetmask = Encoding.dottedNotationToBinary(netmask);
                 } else {
-                    epIp = Encoding.dottedNotationToBinary(network);
-                    epNetmask = 0xffffffff;
+                    epNetmask = (((0xffffffffL << (32-(Integer.parseInt(netmask))))) & 0xffffffffL);
                 }
+            } else {
+                epIp = Encoding.dottedNotationToBinary(network);
+                epNetmask = 0xffffffff;
             }
-            epIp = epIp & epNetmask;
-            // parse port range
-            if (m.group(3).equals("*")) {
-                epLoPort = 0;
-                epHiPort = 65535;
+        }
+        epIp = epIp & epNetmask;
+
+        // parse port range
+        int epLoPort;
+        int epHiPort;
+        if (ports.equals("*")) {
+            epLoPort = 0;
+            epHiPort = 65535;
+        } else {
+            int dash = ports.indexOf("-");
+            if (dash > 0) {
+                epLoPort = Integer.parseInt(ports.substring(0, dash));
+                epHiPort = Integer.parseInt(ports.substring(dash + 1));
             } else {
-                int dash = m.group(3).indexOf("-");
-                if (dash > 0) {
-                    epLoPort = Integer
-                            .parseInt(m.group(3).substring(0, dash));
-                    epHiPort = Integer.parseInt(m.group(3)
-                            .substring(dash + 1));
-                } else {
-                    epLoPort = Integer.parseInt(m.group(3));
-                    epHiPort = epLoPort;
-                }
-                ;
+                epLoPort = Integer.parseInt(ports);
+                epHiPort = epLoPort;
             }
-            ;
-            ++nr;
-            epList.add(new RouterExitPolicyImpl(epAccept, epIp, epNetmask, epLoPort, epHiPort));
         }
-
-        return (RouterExitPolicy[]) (epList.toArray(new RouterExitPolicy[epList.size()]));
+        return new RouterExitPolicyImpl(accept, epIp, epNetmask, epLoPort, epHiPort);
     }
 
     /**
      * parse multiple router descriptors from one String.
      * 
+     * The String is split at the descriptor boundaries,
+     * the descriptors are parsed in parallel (in batches) by a shared executor.
+     * 
      * @param tor
      * @param routerDescriptors
      * @return the result; if multiple entries with the same fingerprint are in routerDescriptors,
      *         the last be be considered
      */
     public static Map<Fingerprint,RouterImpl> parseRouterDescriptors(TorConfig torConfig, String routerDescriptors) {
-        Map<Fingerprint,RouterImpl> result = new HashMap<Fingerprint,RouterImpl>();
-
-        // split into single server descriptors
-        Pattern p = Pattern.compile(
-                "^(router.*?END SIGNATURE-----)", Pattern.DOTALL
-                        + Pattern.MULTILINE + Pattern.CASE_INSENSITIVE
-                        + Pattern.UNIX_LINES);
-        Matcher m = p.matcher(routerDescriptors);
-        while (m.find()) {
-            // parse single descriptor 
+        return parseRouterDescriptors(torConfig, routerDescriptors, null);
+    }
+
+    /**
+     * parse multiple router descriptors from one String.
+     * 
+     * @param tor
+     * @param routerDescriptors
+     * @param verifiedSignatures    memo of already verified signatures; null=verify all signatures
+     * @return the result; if multiple entries with the same fingerprint are in routerDescriptors,
+     *         the last be be considered
+     */
+    static Map<Fingerprint,RouterImpl> parseRouterDescriptors(final TorConfig torConfig, String routerDescriptors,
+            final VerifiedSignatures verifiedSignatures) {
+        // split into single server descriptors and parse them
+        return parseRouterDescriptors(torConfig, splitRouterDescriptors(routerDescriptors), verifiedSignatures);
+    }
+
+    /**
+     * parse multiple router descriptors from a stream, e.g. from the local cache.
+     * 
+     * Only the single descriptors are kept in memory, not the complete text.
+     * 
+     * @param tor
+     * @param routerDescriptors     is not closed
+     * @param verifiedSignatures    memo of already verified signatures; null=verify all signatures
+     * @return the result; if multiple entries with the same fingerprint are in routerDescriptors,
+     *         the last be be considered
+     */
+    static Map<Fingerprint,RouterImpl> parseRouterDescriptors(TorConfig torConfig, BufferedReader routerDescriptors,
+            VerifiedSignatures verifiedSignatures) throws IOException {
+        return parseRouterDescriptors(torConfig, splitRouterDescriptors(routerDescriptors), verifiedSignatures);
+    }
+
+    /**
+     * parse the single router descriptors in parallel (in batches) by a shared executor.
+     */
+    private static Map<Fingerprint,RouterImpl> parseRouterDescriptors(final TorConfig torConfig, final List<String> descriptors,
+            final VerifiedSignatures verifiedSignatures) {
+        List<Future<List<RouterImpl>>> batches = new ArrayList<Future<List<RouterImpl>>>();
+        for (int start=0; start<descriptors.size(); start+=DESCRIPTORS_PER_PARSING_TASK) {
+            final int batchStart = start;
+            final int batchEnd = Math.min(start+DESCRIPTORS_PER_PARSING_TASK, descriptors.size());
+            Callable<List<RouterImpl>> task = new Callable<List<RouterImpl>>() {
+                public List<RouterImpl> call() {
+                    return parseRouterDescriptorBatch(torConfig, descriptors.subList(batchStart, batchEnd), verifiedSignatures);
+                }
+            };
+            if (descriptors.size()<=DESCRIPTORS_PER_PARSING_TASK) {
+                // not worth to switch the thread
+                FutureTask<List<RouterImpl>> future = new FutureTask<List<RouterImpl>>(task);
+                future.run();
+                batches.add(future);
+            } else {
+                batches.add(getParsingExecutor().submit(task));
+            }
+        }
+
+        // collect the results in the original order
+        Map<Fingerprint,RouterImpl> result = new HashMap<Fingerprint,RouterImpl>(2*descriptors.size());
+        for (Future<List<RouterImpl>> batch : batches) {
+            try {
+                for (RouterImpl singleServer : batch.get()) {
+                    result.put(singleServer.fingerprint, singleServer);
+                }
+            } catch (InterruptedException e) {
+                log.log(Level.INFO, "interrupted while parsing router descriptors", e);
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                log.log(Level.INFO, "unexpected", e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the descriptors: each starts with a line "router" and ends with "END SIGNATURE-----"
+     */
+    private static List<String> splitRouterDescriptors(String routerDescriptors) {
+        List<String> result = new ArrayList<String>();
+        int pos = 0;
+        while (true) {
+            int start = pos;
+            if (!routerDescriptors.startsWith("router", pos)) {
+                // next line that starts with "router"
+                start = routerDescriptors.indexOf("\nrouter", pos);
+                if (start<0) {
+                    break;
+                }
+                start++;
+            }
+            int end = routerDescriptors.indexOf(END_SIGNATURE, start);
+            if (end<0) {
+                break;
+            }
+            end += END_SIGNATURE.length();
+            // avoid reference to the very big routerDescriptors String:
+            result.add(new String(routerDescriptors.substring(start, end)));
+            pos = end;
+        }
+        return result;
+    }
+
+    /**
+     * Same as splitRouterDescriptors(String), but line by line.
+     * 
+     * @return the descriptors: each starts with a line "router" and ends with "END SIGNATURE-----"
+     */
+    private static List<String> splitRouterDescriptors(BufferedReader routerDescriptors) throws IOException {
+        List<String> result = new ArrayList<String>();
+        String descriptor;
+        while ((descriptor=readRouterDescriptor(routerDescriptors))!=null) {
+            result.add(descriptor);
+        }
+        return result;
+    }
+
+    /**
+     * Read the next router descriptor, see splitRouterDescriptors(String).
+     * 
+     * @param routerDescriptors    concatenated router descriptors
+     * @return the descriptor: starts with a line "router" and ends with "END SIGNATURE-----"; null if there is none
+     */
+    static String readRouterDescriptor(BufferedReader routerDescriptors) throws IOException {
+        StringBuilder descriptor = null;
+        String line;
+        while ((line=routerDescriptors.readLine())!=null) {
+            if (descriptor==null) {
+                if (!line.startsWith("router")) {
+                    continue;
+                }
+                descriptor = new StringBuilder();
+            } else {
+                descriptor.append('\n');
+            }
+            int end = line.indexOf(END_SIGNATURE);
+            if (end<0) {
+                descriptor.append(line);
+            } else {
+                descriptor.append(line, 0, end+END_SIGNATURE.length());
+                return descriptor.toString();
+            }
+        }
+        // incomplete or no descriptor
+        return null;
+    }
+
+    /**
+     * @param routerDescriptor
+     * @return the SHA-1 digest of the signed part of the descriptor (as referred by the consensus);
+     *         null if the descriptor has no signature
+     */
+    static Fingerprint getDescriptorDigest(String routerDescriptor) {
+        final String SIGNATURE_LINE = "\nrouter-signature\n";
+        int signature = routerDescriptor.indexOf(SIGNATURE_LINE);
+        if (signature<0) {
+            return null;
+        }
+        return new FingerprintImpl(Encryption.getDigest(routerDescriptor.substring(0, signature+SIGNATURE_LINE.length()).getBytes()));
+    }
+
+    /**
+     * @return the routers of the descriptors that could be parsed
+     */
+    private static List<RouterImpl> parseRouterDescriptorBatch(TorConfig torConfig, List<String> descriptors,
+            VerifiedSignatures verifiedSignatures) {
+        List<RouterImpl> result = new ArrayList<RouterImpl>(descriptors.size());
+        for (String singleDescriptor : descriptors) {
             try {
-                String singleDescriptor = m.group(1);
-                
-                // avoid reference to the very big routerDescriptors String:
-                singleDescriptor = new String(singleDescriptor);
-                
-                // parse and store a single router
-                RouterImpl singleServer = new RouterImpl(torConfig, singleDescriptor);
-                result.put(singleServer.fingerprint, singleServer);
+                // parse a single router
+                result.add(new RouterImpl(torConfig, singleDescriptor, verifiedSignatures));
             } catch (TorException e) {
                 log.log(Level.INFO, ""+e);
             } catch (Exception e) {
                 log.log(Level.INFO, "unexpected", e);
             }
         }
-            
         return result;
     }
+
+    /**
+     * @return the executor shared by all parsings of multiple router descriptors
+     *         and signature verifications of the consensus
+     */
+    static synchronized ExecutorService getParsingExecutor() {
+        if (parsingExecutor==null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DirectoryParser "+parsingThreadCounter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            // descriptors are only parsed from time to time
+            executor.allowCoreThreadTimeOut(true);
+            parsingExecutor = executor;
+        }
+        return parsingExecutor;
+    }
     
     
     /**
      * extracts all relevant information from the router descriptor and saves it
      * in the member variables.
      * 
+     * The descriptor is read line by line, each line is interpreted by its keyword.
+     * 
      * @param rd
      *            string encoded router descriptor
      */
-    private void parseRouterDescriptor(String rd)
+    private void parseRouterDescriptor(String rd, VerifiedSignatures verifiedSignatures)
             throws TorException {
-        this.routerDescriptor = rd;
-
-        // Router item: nickname, hostname, onion-router-port, socks-port, dir-port
-        Matcher m = ROUTER_PATTERN.matcher(rd);
-        m.find();
-
-        
-        this.nickname = m.group(1);
-
-        this.hostname = m.group(2);
-        this.orPort = Integer.parseInt(m.group(3));
-        this.socksPort = Integer.parseInt(m.group(4));
-        this.dirPort = Integer.parseInt(m.group(5));
+        boolean routerFound = false;
+        platform = "unknown";
+        contact = "";
+        String publishedStr = "";
+        String fingerprintStr = "";
+        String familyStr = null;
+        String stringOnionKey = "";
+        String stringSigningKey = "";
+        String signatureStr = "";
+        int sha1InputEnd = -1;
+        List<RouterExitPolicy> epList = new ArrayList<RouterExitPolicy>(30);
+
+        int lineStart = 0;
+        while (lineStart<rd.length()) {
+            int lineEnd = rd.indexOf('\n', lineStart);
+            if (lineEnd<0) {
+                lineEnd = rd.length();
+            }
+            String line = rd.substring(lineStart, lineEnd);
+            int nextLineStart = lineEnd+1;
+            if (line.startsWith("opt ")) {
+                line = line.substring(4);
+            }
+            int space = line.indexOf(' ');
+            String keyword = (space<0) ? line : line.substring(0, space);
+            String value = (space<0) ? "" : line.substring(space+1);
+
+            if (keyword.equals("router") && !routerFound) {
+                // Router item: nickname, hostname, onion-router-port, socks-port, dir-port
+                String[] items = value.split(" ");
+                this.nickname = items[0];
+                this.hostname = items[1];
+                this.orPort = Integer.parseInt(items[2]);
+                this.socksPort = Integer.parseInt(items[3]);
+                this.dirPort = Integer.parseInt(items[4]);
+                routerFound = true;
+            } else if (keyword.equals("platform")) {
+                platform = value.intern();
+            } else if (keyword.equals("published")) {
+                publishedStr = value;
+            } else if (keyword.equals("uptime")) {
+                uptime = Integer.parseInt(value.trim());
+            } else if (keyword.equals("fingerprint")) {
+                fingerprintStr = value;
+            } else if (keyword.equals("contact")) {
+                contact = value;
+            } else if (keyword.equals("bandwidth")) {
+                String[] items = value.split(" ");
+                bandwidthAvg = Integer.parseInt(items[0]);
+                bandwidthBurst = Integer.parseInt(items[1]);
+                bandwidthObserved = (items.length>2) ? Integer.parseInt(items[2]) : 0;
+            } else if (keyword.equals("family")) {
+                familyStr = (familyStr==null) ? value : familyStr;
+            } else if (keyword.equals("onion-key")) {
+                nextLineStart = endOfObject(rd, nextLineStart);
+                stringOnionKey = rd.substring(lineEnd+1, nextLineStart);
+            } else if (keyword.equals("signing-key")) {
+                nextLineStart = endOfObject(rd, nextLineStart);
+                stringSigningKey = rd.substring(lineEnd+1, nextLineStart);
+            } else if (keyword.equals("router-signature")) {
+                sha1InputEnd = nextLineStart;
+                nextLineStart = endOfObject(rd, nextLineStart);
+                signatureStr = rd.substring(lineEnd+1, nextLineStart);
+            } else if ((keyword.equalsIgnoreCase("accept") || keyword.equalsIgnoreCase("reject")) && epList.size()<MAX_EXITPOLICY_ITEMS) {
+                RouterExitPolicy ep = parseExitPolicyItem(keyword.equals("accept"), value);
+                if (ep!=null) {
+                    epList.add(ep);
+                }
+            }
+            lineStart = nextLineStart;
+        }
+        if (!routerFound) {
+            throw new TorException("router descriptor without router item");
+        }
 
         // secondary information
-        platform = Parsing.parseStringByRE(rd, PLATFORM_PATTERN, "unknown");
-        published = Util.parseUtcTimestamp(Parsing.parseStringByRE(rd, PUBLISHED_PATTERN, ""));
+        published = parseUtcTimestamp(publishedStr);
         validUntil = new Date(published.getTime()+TorConfig.ROUTER_DESCRIPTION_VALID_PERIOD_MS);
-        uptime = Integer.parseInt(Parsing.parseStringByRE(rd, UPTIME_PATTERN, "0"));
         try {
-            fingerprint = new FingerprintImpl(Encoding.parseHex(Parsing.parseStringByRE(rd, FINGERPRINT_PATTERN, "")));
+            fingerprint = new FingerprintImpl(Encoding.parseHex(fingerprintStr));
         } catch (Exception e) {
                 throw new TorException("Server " + nickname + " skipped as router");
         }
-        contact = Parsing.parseStringByRE(rd, CONTACT_PATTERN, "");
-
-        // make that IF description is from a trusted server, that fingerprint is correct
-        /* not needed:
-                if (tor.config.trustedServers.containsKey(nickname)) {
-                    String fingerprintFromConfig = (String) (tor.config.trustedServers.get(nickname)).get("fingerprint");
-                    if (!fingerprint.getHex().equalsIgnoreCase(fingerprintFromConfig))
-                        throw new TorException("Server " + nickname + " is trusted, but fingerprint check failed");
-                }
-        */
-        
-        // bandwidth
-        m = ROUTER_PATTERN2.matcher(rd);
-        if (m.find()) {
-            bandwidthAvg = Integer.parseInt(m.group(1));
-            bandwidthBurst = Integer.parseInt(m.group(2));
-            bandwidthObserved = Integer.parseInt(m.group(3));
-        }
-
-        // onion key
-        String stringOnionKey = Parsing.parseStringByRE(rd, ONIONKEY_PATTERN, "");
-        onionKey = Encryption.extractPublicRSAKey(stringOnionKey);
 
-        // signing key
-        String stringSigningKey = Parsing.parseStringByRE(rd, SIGNINGKEY_PATTERN, "");
-        signingKey = Encryption.extractPublicRSAKey(stringSigningKey);
+        // keys: only kept encoded, decoded at their first use
+        onionKeyEncoded = parseRSAPublicKeyObject(stringOnionKey);
+        signingKeyEncoded = parseRSAPublicKeyObject(stringSigningKey);
 
         // verify signing-key against fingerprint
-        try {
-            byte[] pkcs = Encryption.getPKCS1EncodingFromRSAPublicKey(signingKey);
-            byte[] keyHash = Encryption.getDigest(pkcs);
-            if (!new FingerprintImpl(keyHash).equals(fingerprint)) {
-                throw new TorException("Server " + nickname + " doesn't verify signature vs fingerprint");
-            }
-        } catch (TorException e) {
-            throw e;
-        } catch (Exception e) {
-            throw new TorException("Server " + nickname
-                    + " doesn't verify signature vs fingerprint");
+        if (signingKeyEncoded==null || !new FingerprintImpl(Encryption.getDigest(signingKeyEncoded)).equals(fingerprint)) {
+            throw new TorException("Server " + nickname + " doesn't verify signature vs fingerprint");
         }
 
         // parse family
-        String stringFamily = Parsing.parseStringByRE(rd, STRINGFAMILY_PATTERN, "");
-        if (stringFamily.length()==0) {
-            stringFamily = Parsing.parseStringByRE(rd, STRINGOPTFAMILY_PATTERN_PATTERN, "");
-        }
-        Matcher mFamily = PFAMILY_PATTERN.matcher(stringFamily);
-        while (mFamily.find()) {
-            String host = mFamily.group(1);
-            family.add(host);
+        if (familyStr!=null) {
+            family = parseFamily(familyStr);
         }
 
         // check the validity of the signature    
-        routerSignature = Encoding.parseBase64(Parsing.parseStringByRE(rd, ROUTERSIGNATURE_PATTERN, ""));
-        byte[] sha1Input = (Parsing.parseStringByRE(rd, SHA1INPUT_PATTERN, "")).getBytes();
-        if (!Encryption.verifySignature(routerSignature, signingKey, sha1Input)) {
+        byte[] routerSignature = Encoding.parseBase64(signatureStr.replace("-----BEGIN SIGNATURE-----", "").replace("-----END SIGNATURE-----", ""));
+        byte[] sha1Input = (sha1InputEnd<0) ? new byte[0] : rd.substring(0, sha1InputEnd).getBytes();
+        // the digest of the signed part identifies the descriptor in the consensus
+        digestDescriptor = Encryption.getDigest(sha1Input);
+        boolean signatureValid;
+        if (verifiedSignatures==null) {
+            // decoded key is not kept
+            RSAPublicKey key = Encryption.extractBinaryRSAKey(signingKeyEncoded);
+            signatureValid = (key!=null) && Encryption.verifySignatureOfDigest(routerSignature, key, digestDescriptor);
+        } else {
+            signatureValid = verifiedSignatures.verifySignatureOfDigest(routerSignature, signingKeyEncoded, digestDescriptor);
+        }
+        if (!signatureValid) {
             log.info("Server -> router-signature check failed for " + nickname);
             throw new TorException("Server " + nickname + ": description signature verification failed");
         }
 
         // exit policy
-        exitpolicy = parseExitPolicy(rd);
+        setExitPolicy(SharedExitPolicy.get(epList.toArray(new RouterExitPolicy[epList.size()])));
         // usually in directory the hostname is already set to the IP
         // so, following resolve just converts it to the InetAddress
         try {
@@ -550,6 +817,276 @@ public class RouterImpl implements Router, Cloneable {
         }
     }
 
+    /**
+     * Split multiple microdescriptors.
+     * 
+     * @param microdescriptors    concatenated microdescriptors, e.g. the answer of a /tor/micro/d/ request
+     * @return the microdescriptors by their SHA-256 digest
+     */
+    static Map<Fingerprint,String> splitMicrodescriptors(String microdescriptors) {
+        Map<Fingerprint,String> result = new HashMap<Fingerprint,String>();
+        int start = microdescriptors.startsWith(MICRODESCRIPTOR_START) ? 0 : nextMicrodescriptor(microdescriptors, 0);
+        while (start>=0) {
+            int next = nextMicrodescriptor(microdescriptors, start+1);
+            int end = (next<0) ? microdescriptors.length() : next;
+            // avoid reference to the very big microdescriptors String:
+            addMicrodescriptor(result, new String(microdescriptors.substring(start, end)));
+            start = next;
+        }
+        return result;
+    }
+
+    /**
+     * Same as splitMicrodescriptors(String), but line by line: only the single microdescriptors
+     * are kept in memory, not the complete text.
+     * 
+     * @param microdescriptors    concatenated microdescriptors, e.g. from the local cache; is not closed
+     * @return the microdescriptors by their SHA-256 digest
+     */
+    static Map<Fingerprint,String> splitMicrodescriptors(BufferedReader microdescriptors) throws IOException {
+        Map<Fingerprint,String> result = new HashMap<Fingerprint,String>();
+        String microdescriptor;
+        while ((microdescriptor=readMicrodescriptor(microdescriptors))!=null) {
+            addMicrodescriptor(result, microdescriptor);
+        }
+        return result;
+    }
+
+    /**
+     * Read the next microdescriptor: from a line "onion-key" to the next one (exclusive).
+     * 
+     * @param microdescriptors    concatenated microdescriptors
+     * @return the microdescriptor; null if there is none
+     */
+    static String readMicrodescriptor(BufferedReader microdescriptors) throws IOException {
+        StringBuilder microdescriptor = null;
+        while (true) {
+            microdescriptors.mark(MAX_ROUTERDESCRIPTOR_LENGTH);
+            String line = microdescriptors.readLine();
+            if (line==null) {
+                break;
+            }
+            if (line.startsWith(MICRODESCRIPTOR_START)) {
+                if (microdescriptor!=null) {
+                    // start of the next microdescriptor
+                    microdescriptors.reset();
+                    break;
+                }
+                microdescriptor = new StringBuilder();
+            }
+            if (microdescriptor!=null) {
+                microdescriptor.append(line).append('\n');
+            }
+        }
+        return (microdescriptor==null) ? null : microdescriptor.toString();
+    }
+
+    /**
+     * Add the microdescriptor to result, keyed by its SHA-256 digest.
+     */
+    private static void addMicrodescriptor(Map<Fingerprint,String> result, String microdescriptor) {
+        result.put(getMicrodescriptorDigest(microdescriptor), microdescriptor);
+    }
+
+    /**
+     * @return the SHA-256 digest of the microdescriptor (as referred by the consensus)
+     */
+    static Fingerprint getMicrodescriptorDigest(String microdescriptor) {
+        try {
+            return new FingerprintImpl(Encryption.getDigest(MICRODESCRIPTOR_DIGEST_ALGORITHM, microdescriptor.getBytes(Util.UTF8)));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return start of the next line "onion-key" after position from; -1 if there is none
+     */
+    private static int nextMicrodescriptor(String microdescriptors, int from) {
+        int lineStart = microdescriptors.indexOf("\n"+MICRODESCRIPTOR_START, from-1);
+        return (lineStart<0) ? -1 : lineStart+1;
+    }
+
+    /**
+     * Extracts the information of a microdescriptor and the consensus entry
+     * and saves it in the member variables.
+     * 
+     * @param status   entry of the microdesc consensus
+     * @param md       microdescriptor
+     */
+    private void parseMicrodescriptor(RouterStatusDescription status, String md) throws TorException {
+        parseConsensusEntry(status);
+
+        // information of the microdescriptor
+        String stringOnionKey = "";
+        String policySummary = null;
+        List<String> familyEntries = null;
+        int lineStart = 0;
+        while (lineStart<md.length()) {
+            int lineEnd = md.indexOf('\n', lineStart);
+            if (lineEnd<0) {
+                lineEnd = md.length();
+            }
+            String line = md.substring(lineStart, lineEnd);
+            int nextLineStart = lineEnd+1;
+            int space = line.indexOf(' ');
+            String keyword = (space<0) ? line : line.substring(0, space);
+            String value = (space<0) ? "" : line.substring(space+1);
+
+            if (keyword.equals("onion-key")) {
+                nextLineStart = endOfObject(md, nextLineStart);
+                stringOnionKey = md.substring(lineEnd+1, nextLineStart);
+            } else if (keyword.equals("family")) {
+                if (familyEntries==null) {
+                    familyEntries = new ArrayList<String>();
+                }
+                familyEntries.addAll(Arrays.asList(parseFamily(value)));
+            } else if (keyword.equals("p") && policySummary==null) {
+                policySummary = value;
+            }
+            lineStart = nextLineStart;
+        }
+        if (familyEntries!=null) {
+            family = familyEntries.toArray(new String[familyEntries.size()]);
+        }
+
+        // onion key: decoded at the first use
+        onionKeyEncoded = parseRSAPublicKeyObject(stringOnionKey);
+        if (onionKeyEncoded==null) {
+            throw new TorException("Server " + nickname + ": microdescriptor without valid onion-key");
+        }
+
+        // exit policy: a missing summary means "reject 1-65535"
+        setExitPolicy(SharedExitPolicy.get(parsePortPolicySummary((policySummary==null) ? "reject 1-65535" : policySummary)));
+    }
+
+    /**
+     * Extracts the information of the entry of a microdesc consensus
+     * and saves it in the member variables.
+     * 
+     * @param status   entry of the microdesc consensus
+     */
+    private void parseConsensusEntry(RouterStatusDescription status) throws TorException {
+        this.digestMicrodescriptor = status.getDigestMicrodescriptor();
+
+        // information of the consensus
+        nickname = status.getNickname();
+        hostname = status.getIp();
+        orPort = status.getOrPort();
+        dirPort = status.getDirPort();
+        fingerprint = status.getFingerprint();
+        published = status.getLastPublication();
+        if (fingerprint==null || published==null) {
+            throw new TorException("Server " + nickname + " skipped: incomplete consensus entry");
+        }
+        validUntil = new Date(published.getTime()+TorConfig.ROUTER_DESCRIPTION_VALID_PERIOD_MS);
+        if (status.getBandwidth()>=0) {
+            // kilobytes per second -> bytes per second
+            bandwidthAvg = status.getBandwidth()*1000;
+            bandwidthObserved = bandwidthAvg;
+        }
+        platform = "unknown";
+        contact = "";
+
+        try {
+            address = InetAddress.getByName(hostname); 
+        } catch (UnknownHostException e) {
+            throw new TorException("Server.parseMicrodescriptor: Unresolvable hostname " + hostname);
+        }
+    }
+
+    /**
+     * Convert a port policy summary (line "p" of a microdescriptor) into exit policy items
+     * that apply to all addresses.
+     * 
+     * @param summary    e.g. "accept 80,443,6660-6669" or "reject 25,119"
+     * @return the exit policy; rejects everything if the summary is invalid
+     */
+    static RouterExitPolicy[] parsePortPolicySummary(String summary) {
+        String[] items = summary.trim().split(" ");
+        if (items.length==2 && (items[0].equals("accept") || items[0].equals("reject"))) {
+            boolean accept = items[0].equals("accept");
+            try {
+                String[] ranges = items[1].split(",");
+                RouterExitPolicy[] result = new RouterExitPolicy[ranges.length+1];
+                for (int i=0; i<ranges.length; i++) {
+                    int dash = ranges[i].indexOf('-');
+                    int loPort = Integer.parseInt((dash<0) ? ranges[i] : ranges[i].substring(0, dash));
+                    int hiPort = (dash<0) ? loPort : Integer.parseInt(ranges[i].substring(dash+1));
+                    result[i] = new RouterExitPolicyImpl(accept, 0, 0, loPort, hiPort);
+                }
+                // all other ports
+                result[ranges.length] = new RouterExitPolicyImpl(!accept, 0, 0, 0, 65535);
+                return result;
+            } catch (NumberFormatException e) {
+                log.info("invalid port policy summary: "+summary);
+            }
+        }
+        return new RouterExitPolicy[] {new RouterExitPolicyImpl(false, 0, 0, 0, 65535)};
+    }
+
+    /**
+     * @param rd       router descriptor
+     * @param start    start of the first line of an object ("-----BEGIN ...")
+     * @return the start of the line after the line "-----END ..." of the object
+     */
+    private static int endOfObject(String rd, int start) {
+        int end = rd.indexOf("-----END ", start);
+        if (end<0) {
+            return rd.length();
+        }
+        int lineEnd = rd.indexOf('\n', end);
+        return (lineEnd<0) ? rd.length() : lineEnd+1;
+    }
+
+    /**
+     * @param object    "-----BEGIN RSA PUBLIC KEY-----" ... "-----END RSA PUBLIC KEY-----"
+     * @return the PKCS#1 encoded key (not checked); null if object is not a public key
+     */
+    private static byte[] parseRSAPublicKeyObject(String object) {
+        final String BEGIN = "-----BEGIN RSA PUBLIC KEY-----";
+        int start = object.indexOf(BEGIN);
+        int end = object.indexOf("-----END ", start+1);
+        if (start<0 || end<0) {
+            return null;
+        }
+        byte[] result = Encoding.parseBase64(object.substring(start+BEGIN.length(), end));
+        return (result.length==0) ? null : result;
+    }
+
+    /**
+     * @param value    content of a family line
+     * @return the entries
+     */
+    private static String[] parseFamily(String value) {
+        List<String> result = new ArrayList<String>();
+        for (String host : value.split("\\s+")) {
+            if (host.length()>0) {
+                result.add(host);
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    private void setExitPolicy(SharedExitPolicy sharedExitPolicy) {
+        exitpolicy = sharedExitPolicy.getPolicy();
+        compiledExitPolicy = sharedExitPolicy.getCompiledPolicy();
+    }
+
+    /**
+     * Parse a time stamp without the synchronization of Util.parseUtcTimestamp(String)
+     * (descriptors are parsed in parallel).
+     */
+    private static Date parseUtcTimestamp(String timestamp) {
+        Date result = null;
+        try {
+            result = Util.parseUtcTimestamp(timestamp.trim().getBytes(Util.UTF8), 0);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        return (result!=null) ? result : Util.parseUtcTimestamp(timestamp);
+    }
+
     /**
      * converts exit policy objects back into an item
      * 
@@ -615,14 +1152,13 @@ public class RouterImpl implements Router, Cloneable {
         }
         rawServer.append("bandwidth " + bandwidthAvg + " " + bandwidthBurst + " " + bandwidthObserved + "\n");
 
-        rawServer.append("onion-key\n" + Encryption.getPEMStringFromRSAPublicKey(onionKey) + "\n");
+        rawServer.append("onion-key\n" + Encryption.getPEMStringFromRSAPublicKey(getOnionKey()) + "\n");
 
-        rawServer.append("signing-key\n" + Encryption.getPEMStringFromRSAPublicKey(signingKey) + "\n");
+        rawServer.append("signing-key\n" + Encryption.getPEMStringFromRSAPublicKey(getSigningKey()) + "\n");
 
         String stringFamily = "";
-        Iterator<String> familyIterator = family.iterator();
-        while (familyIterator.hasNext()) {
-            stringFamily += " " + familyIterator.next();
+        for (String host : family) {
+            stringFamily += " " + host;
         }
 
         rawServer.append("opt family" + stringFamily + "\n");
@@ -710,6 +1246,23 @@ public class RouterImpl implements Router, Cloneable {
      * @return a boolean value wether the conenction would be allowed
      */
     public boolean exitPolicyAccepts(InetAddress addr, int port) {
+        // HACK: if no IP and port is given, always return true
+        if (addr == null && port == 0)
+            return true;
+
+        if (compiledExitPolicy != null) {
+            // fast path: no temporary objects
+            long ip;
+            if (addr != null) {
+                byte[] a = addr.getAddress();
+                ip = ((a[0] & 0xffL) << 24) | ((a[1] & 0xffL) << 16) | ((a[2] & 0xffL) << 8) | (a[3] & 0xffL);
+            } else {
+                ip = CompiledExitPolicy.UNKNOWN_ADDRESS;
+            }
+            return compiledExitPolicy.accepts(ip, port);
+        }
+
+        // legacy: linear scan
         long ip;
         if (addr != null) { // set IP as given
             byte[] temp1 = addr.getAddress();
@@ -722,15 +1275,11 @@ public class RouterImpl implements Router, Cloneable {
             ;
             ip = ((temp[0] << 24) | (temp[1] << 16) | (temp[2] << 8) | temp[3]);
         } else {
-            // HACK: if no IP and port is given, always return true
-            if (port == 0)
-                return true;
             // HACK: if no IP is given, use only exits that allow ALL ip-ranges
             // this should possibly be replaced by some other way of checking it
-            ip = 0xffffffffL;
+            ip = CompiledExitPolicy.UNKNOWN_ADDRESS;
         }
         ;
-    
         for (int i = 0; i < exitpolicy.length; ++i) {
             if ((exitpolicy[i].getLoPort() <= port)
                     && (exitpolicy[i].getHiPort() >= port)
@@ -750,26 +1299,6 @@ public class RouterImpl implements Router, Cloneable {
         return (dirPort > 0);
     }
 
-    /**
-     * used for debugging purposes
-     * 
-     * @param b
-     *            an array t be printed in hex
-     */
-    private String toStringArray(byte[] b) {
-        String hex = "0123456789abcdef";
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < b.length; ++i) {
-            int x = b[i];
-            if (x < 0)
-                x = 256 + x; // why are there no unsigned bytes in java?
-            sb.append(hex.substring(x >> 4, (x >> 4) + 1));
-            sb.append(hex.substring(x % 16, (x % 16) + 1));
-            sb.append(" ");
-        }
-        return sb.toString();
-    }
-
     /**
      * used for debugging purposes
      */
@@ -799,9 +1328,8 @@ public class RouterImpl implements Router, Cloneable {
                 + " " + bandwidthObserved + "\n");
         sb.append("fingerprint:" + fingerprint + "\n");
         sb.append("validUntil:" + validUntil + "\n");
-        sb.append("onion key:" + onionKey + "\n");
-        sb.append("signing key:" + signingKey + "\n");
-        sb.append("signature:" + toStringArray(routerSignature) + "\n");
+        sb.append("onion key:" + getOnionKey() + "\n");
+        sb.append("signing key:" + getSigningKey() + "\n");
         sb.append("exit policies:" + "\n");
         for (int i = 0; i < exitpolicy.length; ++i) {
             sb.append("  ").append(exitpolicy[i]).append("\n");
@@ -809,6 +1337,137 @@ public class RouterImpl implements Router, Cloneable {
         return sb.toString();
     }
     
+    /**
+     * Write the router into a binary directory snapshot.
+     * The fingerprint is not written, it is part of the consensus entry.
+     * 
+     * @see #readSnapshot(TorConfig, Fingerprint, ByteBuffer)
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        BinaryDirectorySnapshot.writeString(out, nickname);
+        BinaryDirectorySnapshot.writeBytes(out, address.getAddress());
+        out.writeInt(orPort);
+        out.writeInt(socksPort);
+        out.writeInt(dirPort);
+        out.writeInt(bandwidthAvg);
+        out.writeInt(bandwidthBurst);
+        out.writeInt(bandwidthObserved);
+        out.writeInt(consensusBandwidth);
+        out.writeInt(uptime);
+        out.writeFloat(rankingIndex);
+        BinaryDirectorySnapshot.writeDate(out, published);
+        BinaryDirectorySnapshot.writeDate(out, validUntil);
+        BinaryDirectorySnapshot.writeString(out, countryCode);
+        out.writeInt(getFlags());
+        BinaryDirectorySnapshot.writeBytes(out, digestDescriptor);
+        BinaryDirectorySnapshot.writeBytes(out, digestMicrodescriptor);
+        BinaryDirectorySnapshot.writeBytes(out, (onionKeyEncoded!=null || onionKey==null)
+                ? onionKeyEncoded : Encryption.getPKCS1EncodingFromRSAPublicKey(onionKey));
+        BinaryDirectorySnapshot.writeBytes(out, (signingKeyEncoded!=null || signingKey==null)
+                ? signingKeyEncoded : Encryption.getPKCS1EncodingFromRSAPublicKey(signingKey));
+
+        RouterExitPolicy[] items = (exitpolicy==null) ? new RouterExitPolicy[0] : exitpolicy;
+        out.writeInt(items.length);
+        for (RouterExitPolicy item : items) {
+            out.writeBoolean(item.isAccept());
+            out.writeInt((int)item.getIp());
+            out.writeInt((int)item.getNetmask());
+            out.writeInt(item.getLoPort());
+            out.writeInt(item.getHiPort());
+        }
+        out.writeBoolean(compiledExitPolicy!=null);
+        if (compiledExitPolicy!=null) {
+            compiledExitPolicy.write(out);
+        }
+
+        out.writeInt(family.length);
+        for (String host : family) {
+            BinaryDirectorySnapshot.writeString(out, host);
+        }
+    }
+
+    /**
+     * Read a router from a binary directory snapshot:
+     * nothing is parsed, verified or looked up (country code) again,
+     * the keys are decoded at their first use.
+     * 
+     * @param fingerprint    of the consensus entry
+     * @see #writeSnapshot(DataOutputStream)
+     */
+    static RouterImpl readSnapshot(TorConfig torConfig, Fingerprint fingerprint, ByteBuffer in) throws UnknownHostException {
+        RouterImpl r = new RouterImpl(torConfig, fingerprint);
+        r.nickname = BinaryDirectorySnapshot.readString(in);
+        r.address = InetAddress.getByAddress(BinaryDirectorySnapshot.readBytes(in));
+        r.hostname = r.address.getHostAddress();
+        r.orPort = in.getInt();
+        r.socksPort = in.getInt();
+        r.dirPort = in.getInt();
+        r.bandwidthAvg = in.getInt();
+        r.bandwidthBurst = in.getInt();
+        r.bandwidthObserved = in.getInt();
+        r.consensusBandwidth = in.getInt();
+        r.uptime = in.getInt();
+        r.rankingIndex = in.getFloat();
+        r.published = BinaryDirectorySnapshot.readDate(in);
+        r.validUntil = BinaryDirectorySnapshot.readDate(in);
+        r.countryCode = BinaryDirectorySnapshot.readString(in);
+        r.setFlags(in.getInt());
+        r.digestDescriptor = BinaryDirectorySnapshot.readBytes(in);
+        r.digestMicrodescriptor = BinaryDirectorySnapshot.readBytes(in);
+        r.onionKeyEncoded = BinaryDirectorySnapshot.readBytes(in);
+        r.signingKeyEncoded = BinaryDirectorySnapshot.readBytes(in);
+
+        RouterExitPolicy[] exitpolicy = new RouterExitPolicy[in.getInt()];
+        for (int i=0; i<exitpolicy.length; i++) {
+            boolean accept = in.get()!=0;
+            long ip = in.getInt() & 0xffffffffL;
+            long netmask = in.getInt() & 0xffffffffL;
+            int loPort = in.getInt();
+            int hiPort = in.getInt();
+            exitpolicy[i] = new RouterExitPolicyImpl(accept, ip, netmask, loPort, hiPort);
+        }
+        CompiledExitPolicy compiledExitPolicy = (in.get()!=0) ? CompiledExitPolicy.read(in) : null;
+        r.setExitPolicy(SharedExitPolicy.get(exitpolicy, compiledExitPolicy));
+
+        int familySize = in.getInt();
+        if (familySize>0) {
+            r.family = new String[familySize];
+            for (int i=0; i<familySize; i++) {
+                r.family[i] = BinaryDirectorySnapshot.readString(in);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the dirv2 flags as bits, see setFlags()
+     */
+    private int getFlags() {
+        return (dirv2Authority ? 1 : 0)
+            | (dirv2Exit ? 1<<1 : 0)
+            | (dirv2Fast ? 1<<2 : 0)
+            | (dirv2Guard ? 1<<3 : 0)
+            | (dirv2Named ? 1<<4 : 0)
+            | (dirv2Stable ? 1<<5 : 0)
+            | (dirv2Running ? 1<<6 : 0)
+            | (dirv2Valid ? 1<<7 : 0)
+            | (dirv2V2dir ? 1<<8 : 0)
+            | (dirv2HSDir ? 1<<9 : 0);
+    }
+
+    private void setFlags(int flags) {
+        dirv2Authority = (flags & 1)!=0;
+        dirv2Exit = (flags & 1<<1)!=0;
+        dirv2Fast = (flags & 1<<2)!=0;
+        dirv2Guard = (flags & 1<<3)!=0;
+        dirv2Named = (flags & 1<<4)!=0;
+        dirv2Stable = (flags & 1<<5)!=0;
+        dirv2Running = (flags & 1<<6)!=0;
+        dirv2Valid = (flags & 1<<7)!=0;
+        dirv2V2dir = (flags & 1<<8)!=0;
+        dirv2HSDir = (flags & 1<<9)!=0;
+    }
+
     /**
      * Check if the router description is still valid.
      */
@@ -909,17 +1568,35 @@ public class RouterImpl implements Router, Cloneable {
         return uptime;
     }
     public RSAPublicKey getOnionKey() {
-        return onionKey;
+        RSAPublicKey result = onionKey;
+        if (result==null && onionKeyEncoded!=null) {
+            // router of a snapshot: decode when it is used the first time, e.g. for a hop
+            result = Encryption.extractBinaryRSAKey(onionKeyEncoded);
+            onionKey = result;
+        }
+        return result;
     }
 
     public RSAPublicKey getSigningKey() {
-        return signingKey;
+        RSAPublicKey result = signingKey;
+        if (result==null && signingKeyEncoded!=null) {
+            result = Encryption.extractBinaryRSAKey(signingKeyEncoded);
+            signingKey = result;
+        }
+        return result;
     }
 
     public RouterExitPolicy[] getExitpolicy() {
         return exitpolicy;
     }
 
+    /**
+     * @return the compiled exit policy; null if not available (see exitPolicyAccepts())
+     */
+    CompiledExitPolicy getCompiledExitPolicy() {
+        return compiledExitPolicy;
+    }
+
     public String getContact() {
         return contact;
     }
@@ -929,6 +1606,32 @@ public class RouterImpl implements Router, Cloneable {
         return new HashSet<Fingerprint>();
     }
 
+    /**
+     * Share the fingerprint object of the consensus:
+     * equality checks of map lookups become reference checks.
+     *
+     * @param consensusFingerprint    equal fingerprint of the consensus
+     */
+    void internFingerprint(Fingerprint consensusFingerprint) {
+        if (fingerprint.equals(consensusFingerprint)) {
+            fingerprint = consensusFingerprint;
+        }
+    }
+
+    /**
+     * @return the entries of the family line of the router descriptor: "$hexfingerprint" or nickname
+     */
+    List<String> getFamilyEntries() {
+        return Collections.unmodifiableList(Arrays.asList(family));
+    }
+
+    /**
+     * @param familyEntries    entries of the family line of the router descriptor: "$hexfingerprint" or nickname
+     */
+    void setFamilyEntries(Collection<String> familyEntries) {
+        family = familyEntries.toArray(new String[familyEntries.size()]);
+    }
+
     public Date getValidUntil() {
         return validUntil;
     }
@@ -1024,11 +1727,31 @@ public class RouterImpl implements Router, Cloneable {
         this.rankingIndex = rankingIndex;
     }
 
+    public int getConsensusBandwidth() {
+        return consensusBandwidth;
+    }
+
+    public void setConsensusBandwidth(int consensusBandwidth) {
+        this.consensusBandwidth = consensusBandwidth;
+    }
+
     public static int getHighBandwidth() {
         return highBandwidth;
     }
 
-    public String getRouterDescriptor() {
-        return routerDescriptor;
+    /**
+     * @param digest    SHA-1 digest of a router descriptor; null=unknown
+     * @return true if the router was created from the router descriptor with this digest
+     *              or if the digest is unknown
+     */
+    boolean hasDescriptor(byte[] digest) {
+        return digest==null || Arrays.equals(digestDescriptor, digest);
+    }
+
+    /**
+     * @return true if the router was created from the microdescriptor with this SHA-256 digest
+     */
+    boolean hasMicrodescriptor(byte[] digest) {
+        return digestMicrodescriptor!=null && Arrays.equals(digestMicrodescriptor, digest);
     }
 }
@@ -0,0 +1,296 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Random;
+
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Weighted random selection of the routers of one role (guard, middle or exit).
+ * Created once per consensus update (and periodically after ranking changes).
+ *
+ * The weight of a router is its refined ranking index
+ * rankingIndex*p + rankingIndexEffect*(1-p) (see RouterImpl.getRefinedRankingIndex()),
+ * multiplied by its bandwidth factor: the consensus bandwidth weighted for the position
+ * (see BandwidthWeights), relative to the average of all routers of the role.
+ * The weight is linear in p: cumulative sums allow to sample for any p with a binary search.
+ *
+ * Excluded routers (a BitSet of the slots of the consensus, see RouterSlots) are rejected and sampled again; if too many attempts are rejected
+ * the selection falls back to a scan over the remaining routers.
+ * Rankings that were punished after the creation of the sampler are taken into account
+ * in the same step: a sample is accepted with the probability current weight / weight at creation time.
+ *
+ * The routers whose exit policy accepts a destination are determined by an ExitPolicyIndex
+ * that lives as long as the routers of the sampler (i.e. until the next consensus update).
+ */
+class RouterSampler {
+    /** role: routers with Guard flag */
+    static final int GUARD = 0;
+    /** role: all running routers */
+    static final int MIDDLE = 1;
+    /** role: routers with Exit flag */
+    static final int EXIT = 2;
+    static final int NUMBER_OF_ROLES = 3;
+    /** index of the sampler of all running routers in role EXIT (if untrusted exits are allowed) */
+    static final int UNTRUSTED_EXIT = 3;
+    /** samplers per snapshot: one per role + UNTRUSTED_EXIT */
+    static final int NUMBER_OF_SAMPLERS = 4;
+
+    /** after this number of rejected samples: scan all candidates */
+    private static final int MAX_SAMPLING_ATTEMPTS = 32;
+
+    private final RouterSlots slots;
+    private final RouterImpl[] routers;
+    /** slot of each router */
+    private final int[] slotOfIndex;
+    /** ranking index of each router at creation time (never negative); the routers can have lower ones meanwhile */
+    private final double[] rankings;
+    /** bandwidth factor of each router (average=1) */
+    private final double[] factors;
+    /** cumulativeRankings[i] = sum of rankings[j]*factors[j] for j=0..i-1 */
+    private final double[] cumulativeRankings;
+    /** cumulativeFactors[i] = sum of factors[0..i-1] */
+    private final double[] cumulativeFactors;
+    /** routers that accept a destination; shared with samplers of the same routers */
+    private final ExitPolicyIndex exitIndex;
+
+    /**
+     * Sampler without bandwidth factors, the candidates get their own slots.
+     *
+     * @param candidates    all routers of the role
+     */
+    RouterSampler(Collection<RouterImpl> candidates) {
+        this(new RouterSlots(candidates), candidates, null, MIDDLE);
+    }
+
+    /**
+     * @param slots               slots of all valid routers
+     * @param candidates          all routers of the role (all of them must have a slot)
+     * @param bandwidthWeights    null=all routers have the same bandwidth factor
+     * @param role                GUARD, MIDDLE or EXIT
+     */
+    RouterSampler(RouterSlots slots, Collection<RouterImpl> candidates, BandwidthWeights bandwidthWeights, int role) {
+        int n = candidates.size();
+        this.slots = slots;
+        routers = candidates.toArray(new RouterImpl[n]);
+        slotOfIndex = new int[n];
+        for (int i=0; i<n; i++) {
+            slotOfIndex[i] = slots.getSlot(routers[i].getFingerprint());
+        }
+        exitIndex = new ExitPolicyIndex(routers);
+        factors = createFactors(routers, bandwidthWeights, role);
+        cumulativeFactors = new double[n+1];
+        for (int i=0; i<n; i++) {
+            cumulativeFactors[i+1] = cumulativeFactors[i] + factors[i];
+        }
+        rankings = new double[n];
+        cumulativeRankings = new double[n+1];
+        initRankings();
+    }
+
+    /**
+     * @return the bandwidth factor of each router
+     */
+    private static double[] createFactors(RouterImpl[] routers, BandwidthWeights bandwidthWeights, int role) {
+        int n = routers.length;
+        double[] result = new double[n];
+        boolean consensusBandwidthKnown = false;
+        for (RouterImpl r : routers) {
+            if (r.getConsensusBandwidth()>=0) {
+                consensusBandwidthKnown = true;
+                break;
+            }
+        }
+        double sum = 0;
+        if (bandwidthWeights!=null && consensusBandwidthKnown) {
+            for (int i=0; i<n; i++) {
+                RouterImpl r = routers[i];
+                // fallback: self-reported bandwidth in kilobytes per second
+                int bandwidth = (r.getConsensusBandwidth()>=0) ? r.getConsensusBandwidth() : r.getBandwidthAvg()/1000;
+                result[i] = bandwidthWeights.getWeightedBandwidth(role, r.isDirv2Guard(), r.isDirv2Exit(), bandwidth);
+                sum += result[i];
+            }
+        }
+        if (sum<=0) {
+            // no usable bandwidth information
+            Arrays.fill(result, 1.0);
+        } else {
+            double average = sum/n;
+            for (int i=0; i<n; i++) {
+                result[i] /= average;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create a sampler with the same routers, but with their current ranking indexes.
+     * Keeps the cached exit index.
+     */
+    private RouterSampler(RouterSampler previous) {
+        slots = previous.slots;
+        routers = previous.routers;
+        slotOfIndex = previous.slotOfIndex;
+        exitIndex = previous.exitIndex;
+        factors = previous.factors;
+        cumulativeFactors = previous.cumulativeFactors;
+        rankings = new double[routers.length];
+        cumulativeRankings = new double[routers.length+1];
+        initRankings();
+    }
+
+    private void initRankings() {
+        for (int i=0; i<routers.length; i++) {
+            rankings[i] = Math.max(0, routers[i].getRankingIndex());
+            cumulativeRankings[i+1] = cumulativeRankings[i] + rankings[i]*factors[i];
+        }
+    }
+
+    /**
+     * @return a sampler with the same routers, taking into account changed ranking indexes
+     */
+    RouterSampler withUpdatedRankings() {
+        return new RouterSampler(this);
+    }
+
+    /**
+     * Determine the routers whose exit policy accepts the destination.
+     *
+     * @param addr    destination address; null=unknown
+     * @param port    destination port
+     * @return the routers as BitSet - do not modify it
+     */
+    BitSet getExitPolicyAccepting(InetAddress addr, int port) {
+        return exitIndex.getAccepting(addr, port);
+    }
+
+    /**
+     * Select a router randomly, weighted by the refined ranking index.
+     *
+     * @param excludedRouters         these routers will not be selected; null=none
+     * @param p                       user preference of considering the ranking index, see RouterImpl.getRefinedRankingIndex()
+     * @param eligible                only these routers can be selected, e.g. result of getExitPolicyAccepting(); null=all
+     * @param rnd
+     * @return the selected router; null if no router is suitable
+     */
+    RouterImpl select(ExcludedRouters excludedRouters, float p, BitSet eligible, Random rnd) {
+        int n = routers.length;
+        if (n==0 || (eligible!=null && eligible.isEmpty())) {
+            return null;
+        }
+        BitSet excluded = (excludedRouters==null) ? new BitSet() : excludedRouters.getExcludedSlots(slots);
+        double effect = TorConfig.rankingIndexEffect;
+
+        // fast path: sample and reject
+        double total = prefixWeight(n, p, effect);
+        if (total>0) {
+            for (int attempt=0; attempt<MAX_SAMPLING_ATTEMPTS; attempt++) {
+                int index = indexOfPrefixWeight(rnd.nextDouble()*total, p, effect);
+                if (!excluded.get(slotOfIndex[index]) && (eligible==null || eligible.get(index))) {
+                    // ranking punished since the creation: accept with the reduced weight only
+                    double initialWeight = weight(index, p, effect);
+                    double currentWeight = currentWeight(index, p, effect);
+                    if (currentWeight>=initialWeight || rnd.nextDouble()*initialWeight<currentWeight) {
+                        return routers[index];
+                    }
+                }
+            }
+        }
+
+        // slow path: most candidates are excluded - scan the remaining ones
+        BitSet suitable = new BitSet(n);
+        for (int i=0; i<n; i++) {
+            if (!excluded.get(slotOfIndex[i]) && (eligible==null || eligible.get(i))) {
+                suitable.set(i);
+            }
+        }
+        double sum = 0;
+        for (int i=suitable.nextSetBit(0); i>=0; i=suitable.nextSetBit(i+1)) {
+            sum += currentWeight(i, p, effect);
+        }
+        double random = rnd.nextDouble()*sum;
+        RouterImpl last = null;
+        for (int i=suitable.nextSetBit(0); i>=0; i=suitable.nextSetBit(i+1)) {
+            last = routers[i];
+            random -= currentWeight(i, p, effect);
+            if (random<=0) {
+                return last;
+            }
+        }
+        // only reached because of rounding errors or without suitable router
+        return last;
+    }
+
+    /**
+     * @return weight of the router at creation time of the sampler
+     */
+    private double weight(int index, float p, double effect) {
+        return factors[index]*(rankings[index]*p + effect*(1-p));
+    }
+
+    /**
+     * @return weight of the router with its current ranking index
+     */
+    private double currentWeight(int index, float p, double effect) {
+        return factors[index]*(Math.max(0, routers[index].getRankingIndex())*p + effect*(1-p));
+    }
+
+    /**
+     * @return sum of the weights of the first k routers
+     */
+    private double prefixWeight(int k, float p, double effect) {
+        return cumulativeRankings[k]*p + effect*(1-p)*cumulativeFactors[k];
+    }
+
+    /**
+     * @return index i of the router with prefixWeight(i) <= value < prefixWeight(i+1)
+     */
+    private int indexOfPrefixWeight(double value, float p, double effect) {
+        int low = 0;
+        int high = routers.length-1;
+        while (low<high) {
+            int mid = (low+high+1)>>>1;
+            if (prefixWeight(mid, p, effect)<=value) {
+                low = mid;
+            } else {
+                high = mid-1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the slots of the consensus of this sampler
+     */
+    RouterSlots getSlots() {
+        return slots;
+    }
+
+    /**
+     * @return number of routers of the role
+     */
+    int size() {
+        return routers.length;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.util.Encoding;
+
+/**
+ * Dense integer slots of the valid routers of one consensus,
+ * together with the groups of related routers as BitSets (indexed by slot):
+ * family, /16 network and country.
+ * Routers of the same group share one BitSet object.
+ *
+ * Created once per consensus update. An object is read-only.
+ */
+class RouterSlots {
+    /** country codes that do not specify a country */
+    private static final String[] UNKNOWN_COUNTRY_CODES = {"??", "--"};
+
+    private final RouterImpl[] routers;
+    private final Map<Fingerprint,Integer> slotByFingerprint;
+    /** routers of the family (mutually declared), including the router itself */
+    private final BitSet[] familyOfSlot;
+    /** routers in the same /16 network */
+    private final BitSet[] networkOfSlot;
+    /** routers in the same country; null=country unknown */
+    private final BitSet[] countryOfSlot;
+
+    /**
+     * @param validRouters    routers that get a slot
+     */
+    RouterSlots(Collection<RouterImpl> validRouters) {
+        int n = validRouters.size();
+        routers = validRouters.toArray(new RouterImpl[n]);
+        slotByFingerprint = new HashMap<Fingerprint,Integer>(2*n);
+        // nicknames are not unique: only the Named flag binds a nickname to a router
+        Map<String,Integer> slotByNamedNickname = new HashMap<String,Integer>();
+        Map<Long,BitSet> networks = new HashMap<Long,BitSet>();
+        Map<String,BitSet> countries = new HashMap<String,BitSet>();
+        networkOfSlot = new BitSet[n];
+        countryOfSlot = new BitSet[n];
+        for (int slot=0; slot<n; slot++) {
+            RouterImpl r = routers[slot];
+            slotByFingerprint.put(r.getFingerprint(), slot);
+            if (r.isDirv2Named() && r.getNickname()!=null) {
+                slotByNamedNickname.put(r.getNickname().toLowerCase(), slot);
+            }
+            networkOfSlot[slot] = group(networks, networkOf(r), slot);
+            if (isKnownCountry(r.getCountryCode())) {
+                countryOfSlot[slot] = group(countries, r.getCountryCode(), slot);
+            }
+        }
+
+        // family: only routers that declare each other
+        BitSet[] declared = new BitSet[n];
+        for (int slot=0; slot<n; slot++) {
+            declared[slot] = new BitSet();
+            for (String member : routers[slot].getFamilyEntries()) {
+                int memberSlot = resolveFamilyMember(member, slotByNamedNickname);
+                if (memberSlot>=0) {
+                    declared[slot].set(memberSlot);
+                }
+            }
+        }
+        familyOfSlot = new BitSet[n];
+        for (int slot=0; slot<n; slot++) {
+            BitSet family = new BitSet();
+            family.set(slot);
+            for (int m=declared[slot].nextSetBit(0); m>=0; m=declared[slot].nextSetBit(m+1)) {
+                if (declared[m].get(slot)) {
+                    family.set(m);
+                }
+            }
+            familyOfSlot[slot] = family;
+        }
+    }
+
+    private static <K> BitSet group(Map<K,BitSet> groups, K key, int slot) {
+        BitSet result = groups.get(key);
+        if (result==null) {
+            result = new BitSet();
+            groups.put(key, result);
+        }
+        result.set(slot);
+        return result;
+    }
+
+    /**
+     * @return the /16 network of the router
+     */
+    private static Long networkOf(RouterImpl r) {
+        byte[] ip = r.getAddress().getAddress();
+        if (ip.length<2) {
+            return 0L;
+        }
+        return ((ip.length&0xffL)<<16) | ((ip[0]&0xffL)<<8) | (ip[1]&0xffL);
+    }
+
+    private static boolean isKnownCountry(String countryCode) {
+        if (countryCode==null) {
+            return false;
+        }
+        for (String unknown : UNKNOWN_COUNTRY_CODES) {
+            if (unknown.equals(countryCode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param member    entry of the family line: "$hexfingerprint" (optionally followed by "=nickname" or "~nickname") or nickname
+     * @param slotByNamedNickname    routers with the Named flag, by lower case nickname
+     * @return the slot; -1 if not found or if the nickname is not bound to a router
+     */
+    private int resolveFamilyMember(String member, Map<String,Integer> slotByNamedNickname) {
+        Integer result;
+        if (member.startsWith("$")) {
+            String hex = member.substring(1);
+            int end = hex.indexOf('=');
+            if (end<0) {
+                end = hex.indexOf('~');
+            }
+            if (end>=0) {
+                hex = hex.substring(0, end);
+            }
+            try {
+                result = slotByFingerprint.get(new FingerprintImpl(Encoding.parseHex(hex)));
+            } catch (Exception e) {
+                result = null;
+            }
+        } else {
+            result = slotByNamedNickname.get(member.toLowerCase());
+        }
+        return (result==null) ? -1 : result.intValue();
+    }
+
+    /**
+     * @return the slot of the router; -1 if the router has no slot
+     */
+    int getSlot(Fingerprint fingerprint) {
+        Integer result = slotByFingerprint.get(fingerprint);
+        return (result==null) ? -1 : result.intValue();
+    }
+
+    RouterImpl getRouter(int slot) {
+        return routers[slot];
+    }
+
+    int size() {
+        return routers.length;
+    }
+
+    /**
+     * Add the router and all related routers (family, /16 network and country - as configured in TorConfig)
+     * to target.
+     *
+     * @param slot      slot of the router
+     * @param target    BitSet of slots
+     */
+    void addRelated(int slot, BitSet target) {
+        target.or(familyOfSlot[slot]);
+        if (TorConfig.routeUniqueClassC) {
+            target.or(networkOfSlot[slot]);
+        }
+        if (TorConfig.routeUniqueCountry && countryOfSlot[slot]!=null) {
+            target.or(countryOfSlot[slot]);
+        }
+    }
+}
@@ -33,10 +33,14 @@ public class RouterStatusDescription {
     private String nickname;
     private Fingerprint fingerprint;
     private byte[] digestDescriptor;
+    /** SHA-256 digest of the microdescriptor (line "m" of the microdesc consensus flavour); null=unknown */
+    private byte[] digestMicrodescriptor;
     private Date lastPublication;
     private String ip;
     private int orPort, dirPort;
     private String flags;
+    /** bandwidth from line "w Bandwidth=" in kilobytes per second; -1=unknown */
+    private int bandwidth = -1;
     private Random rnd = new Random();
 
     /**
@@ -106,6 +110,14 @@ public class RouterStatusDescription {
         this.digestDescriptor = digestDescriptor;
     }
 
+    public byte[] getDigestMicrodescriptor() {
+        return digestMicrodescriptor;
+    }
+
+    public void setDigestMicrodescriptor(byte[] digestMicrodescriptor) {
+        this.digestMicrodescriptor = digestMicrodescriptor;
+    }
+
     public Date getLastPublication() {
         return lastPublication;
     }
@@ -146,6 +158,14 @@ public class RouterStatusDescription {
         this.flags = flags;
     }
 
+    public int getBandwidth() {
+        return bandwidth;
+    }
+
+    public void setBandwidth(int bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
     public Random getRnd() {
         return rnd;
     }
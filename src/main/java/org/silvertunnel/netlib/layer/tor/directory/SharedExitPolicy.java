@@ -0,0 +1,121 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.silvertunnel.netlib.layer.tor.api.RouterExitPolicy;
+
+/**
+ * Exit policy (and its compiled form) shared by all routers with the same policy.
+ * 
+ * Most routers have one of a few policies (e.g. "reject *:*" or the default exit policy):
+ * each distinct policy is kept in memory and compiled only once.
+ * 
+ * An object is read-only.
+ */
+class SharedExitPolicy {
+    /** maximum number of remembered distinct policies */
+    private static final int MAX_ENTRIES = 4096;
+
+    /**
+     * key: content of the policy (see key()), value: the shared policy;
+     * guarded by itself
+     */
+    private static final Map<String,SharedExitPolicy> POLICIES = new LinkedHashMap<String,SharedExitPolicy>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,SharedExitPolicy> eldest) {
+            return size()>MAX_ENTRIES;
+        }
+    };
+
+    private final RouterExitPolicy[] policy;
+    /** null=policy cannot be compiled */
+    private final CompiledExitPolicy compiledPolicy;
+
+    private SharedExitPolicy(RouterExitPolicy[] policy, CompiledExitPolicy compiledPolicy) {
+        this.policy = policy;
+        this.compiledPolicy = compiledPolicy;
+    }
+
+    /**
+     * @param policy    rules, the first matching rule decides
+     * @return the shared object of an equal policy; a new one (with compiled policy) if there is none
+     */
+    static SharedExitPolicy get(RouterExitPolicy[] policy) {
+        return get(policy, null);
+    }
+
+    /**
+     * @param policy            rules, the first matching rule decides
+     * @param compiledPolicy    the compiled policy if already known, e.g. of a binary snapshot; null=compile it if needed
+     * @return the shared object of an equal policy; a new one if there is none
+     */
+    static SharedExitPolicy get(RouterExitPolicy[] policy, CompiledExitPolicy compiledPolicy) {
+        String key = key(policy);
+        synchronized (POLICIES) {
+            SharedExitPolicy result = POLICIES.get(key);
+            if (result!=null) {
+                return result;
+            }
+        }
+        // compile outside of the lock: descriptors are parsed in parallel
+        SharedExitPolicy newPolicy = new SharedExitPolicy(policy,
+                (compiledPolicy!=null) ? compiledPolicy : CompiledExitPolicy.compile(policy));
+        synchronized (POLICIES) {
+            SharedExitPolicy result = POLICIES.get(key);
+            if (result!=null) {
+                return result;
+            }
+            POLICIES.put(key, newPolicy);
+            return newPolicy;
+        }
+    }
+
+    /**
+     * @return the content of the policy as compact String
+     */
+    private static String key(RouterExitPolicy[] policy) {
+        StringBuilder result = new StringBuilder(policy.length*24);
+        for (RouterExitPolicy item : policy) {
+            result.append(item.isAccept() ? 'a' : 'r')
+                .append(Long.toHexString(item.getIp())).append('/')
+                .append(Long.toHexString(item.getNetmask())).append(':')
+                .append(item.getLoPort()).append('-')
+                .append(item.getHiPort()).append(' ');
+        }
+        return result.toString();
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    RouterExitPolicy[] getPolicy() {
+        return policy;
+    }
+
+    CompiledExitPolicy getCompiledPolicy() {
+        return compiledPolicy;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.silvertunnel.netlib.layer.tor.util.Encoding;
+import org.silvertunnel.netlib.layer.tor.util.Encryption;
+import org.silvertunnel.netlib.util.StringStorage;
+
+/**
+ * Memo of successfully verified signatures of directory documents
+ * (consensus and router descriptors).
+ * 
+ * An entry is the digest of (digest of the signed data, signature, public key),
+ * i.e. a document is only accepted without RSA operation
+ * if exactly the same data was signed with exactly the same signature and key before.
+ * The memo is kept in the StringStorage to avoid the verification of cached documents
+ * after each startup; it is as trustworthy as the cached documents themselves.
+ * 
+ * The methods are thread-safe.
+ */
+class VerifiedSignatures {
+    private static final Logger log = Logger.getLogger(VerifiedSignatures.class.getName());
+
+    /** key in the StringStorage */
+    static final String STORAGEKEY_VERIFIED_SIGNATURES_TXT = "verified-signatures.txt";
+    /** oldest entries are removed first; enough for all router descriptors of a few consensuses */
+    private static final int MAX_ENTRIES = 16384;
+
+    /** hex encoded digests in insertion order */
+    private final Set<String> entries = new LinkedHashSet<String>();
+    /** true=entries changed since the last save() */
+    private boolean modified;
+
+    /**
+     * Empty memo.
+     */
+    VerifiedSignatures() {
+    }
+
+    /**
+     * Load the memo.
+     * 
+     * @param stringStorage
+     * @return the memo from stringStorage; an empty memo if nothing is stored
+     */
+    static VerifiedSignatures load(StringStorage stringStorage) {
+        VerifiedSignatures result = new VerifiedSignatures();
+        String stored = stringStorage.get(STORAGEKEY_VERIFIED_SIGNATURES_TXT);
+        if (stored!=null) {
+            for (String line : stored.split("\n")) {
+                line = line.trim();
+                if (line.length()>0) {
+                    result.entries.add(line);
+                }
+            }
+            log.info("loaded "+result.entries.size()+" verified signatures");
+        }
+        return result;
+    }
+
+    /**
+     * Store the memo if it was changed.
+     * 
+     * @param stringStorage
+     */
+    void save(StringStorage stringStorage) {
+        StringBuffer content = new StringBuffer();
+        synchronized (this) {
+            if (!modified) {
+                return;
+            }
+            for (String entry : entries) {
+                content.append(entry).append("\n");
+            }
+            modified = false;
+        }
+        stringStorage.put(STORAGEKEY_VERIFIED_SIGNATURES_TXT, content.toString());
+    }
+
+    /**
+     * Check a PKCS#1 signature, see Encryption.verifySignatureOfDigest().
+     * 
+     * @param signature     signature to check
+     * @param signingKey    public key from signing
+     * @param dataDigest    SHA1 hash of the data the signature is made over
+     * @return true, if the signature is correct
+     */
+    boolean verifySignatureOfDigest(byte[] signature, PublicKey signingKey, byte[] dataDigest) {
+        String entry = getEntry(signature, signingKey.getEncoded(), dataDigest);
+        if (contains(entry)) {
+            return true;
+        }
+        if (!Encryption.verifySignatureOfDigest(signature, signingKey, dataDigest)) {
+            return false;
+        }
+        add(entry);
+        return true;
+    }
+
+    /**
+     * Same as verifySignatureOfDigest(byte[], PublicKey, byte[]),
+     * but the key is only decoded if the signature is not in the memo.
+     * 
+     * @param signature           signature to check
+     * @param signingKeyPkcs1     PKCS#1 encoded public key from signing
+     * @param dataDigest          SHA1 hash of the data the signature is made over
+     * @return true, if the signature is correct
+     */
+    boolean verifySignatureOfDigest(byte[] signature, byte[] signingKeyPkcs1, byte[] dataDigest) {
+        String entry = getEntry(signature, signingKeyPkcs1, dataDigest);
+        if (contains(entry)) {
+            return true;
+        }
+        PublicKey signingKey = Encryption.extractBinaryRSAKey(signingKeyPkcs1);
+        if (signingKey==null || !Encryption.verifySignatureOfDigest(signature, signingKey, dataDigest)) {
+            return false;
+        }
+        add(entry);
+        return true;
+    }
+
+    /**
+     * Check a PKCS#1 signature, see Encryption.verifySignature().
+     * 
+     * @param signature     signature to check
+     * @param signingKey    public key from signing
+     * @param data          the data the signature is made over
+     * @return true, if the signature is correct
+     */
+    boolean verifySignature(byte[] signature, PublicKey signingKey, byte[] data) {
+        return verifySignatureOfDigest(signature, signingKey, Encryption.getDigest(data));
+    }
+
+    /**
+     * @return number of entries
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    ///////////////////////////////////////////////////////
+    // internal helper methods
+    ///////////////////////////////////////////////////////
+
+    private static String getEntry(byte[] signature, byte[] key, byte[] dataDigest) {
+        MessageDigest md = Encryption.getMessagesDigest();
+        md.update(dataDigest);
+        md.update(signature);
+        md.update(key);
+        return Encoding.toHexStringNoColon(md.digest());
+    }
+
+    private synchronized boolean contains(String entry) {
+        return entries.contains(entry);
+    }
+
+    private synchronized void add(String entry) {
+        if (entries.add(entry)) {
+            modified = true;
+            if (entries.size()>MAX_ENTRIES) {
+                entries.remove(entries.iterator().next());
+            }
+        }
+    }
+}
@@ -34,8 +34,10 @@ import org.silvertunnel.netlib.layer.tor.circuit.CellRelayConnected;
 import org.silvertunnel.netlib.layer.tor.circuit.CellRelayDrop;
 import org.silvertunnel.netlib.layer.tor.circuit.CellRelayEnd;
 import org.silvertunnel.netlib.layer.tor.circuit.Circuit;
+import org.silvertunnel.netlib.layer.tor.circuit.CircuitStatistics;
 import org.silvertunnel.netlib.layer.tor.circuit.Queue;
 import org.silvertunnel.netlib.layer.tor.circuit.QueueFlowControlHandler;
+import org.silvertunnel.netlib.layer.tor.circuit.QueueHandler;
 import org.silvertunnel.netlib.layer.tor.circuit.Stream;
 import org.silvertunnel.netlib.layer.tor.clientimpl.Tor;
 import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
@@ -74,6 +76,8 @@ public class TCPStream implements Stream, NetSocket {
     //TODO: private TCPStreamProperties sp;
     private boolean established;
     private boolean closed;
+    /** state of this stream as counted in the CircuitStatistics of the circuit; guarded by these statistics */
+    private int countedState = CircuitStatistics.NONE;
 
     /** set by CellRelay. descriptive Strings are in CellRelay.REASON_TO_STRING */
     private int closedForReason;
@@ -109,7 +113,6 @@ public class TCPStream implements Stream, NetSocket {
         lastAction = created;
         lastCellSentDate = created;
         // stream establishment duration
-        int setupDuration; 
         long startSetupTime; 
 
         // attach stream to circuit
@@ -121,6 +124,8 @@ public class TCPStream implements Stream, NetSocket {
         log.fine("TCPStream: building new stream " + toString());
 
         startSetupTime = System.currentTimeMillis();
+        countState(CircuitStatistics.BUILDING);
+        circuit.getTorEventService().fireEvent(new TorEvent(TorEvent.STREAM_BEGIN,this,"Stream begin: "+toString()));
         // send RELAY-BEGIN
         sendCell(new CellRelayBegin(this, sp));
 
@@ -131,29 +136,143 @@ public class TCPStream implements Stream, NetSocket {
             relay = queue.receiveRelayCell(CellRelay.RELAY_CONNECTED);
             log.fine("TCPStream: Got Relay-Connected Cell");
         } catch (TorException e) {
-            if (!closed) {
-                // only msg, if closing was unintentionally
-                log.log(Level.WARNING, "TCPStream: Closed: " + toString() + " due to TorException:" + e.getMessage());
-            }
-            closed = true;
-            
-            // MRK: when the circuit does not work at this point: close it
-            // Lexi: please do it soft! there might be other streams
-            //       working on this circuit...
-            //c.close(false);
-            // Lexi: even better: increase only a counter for this circuit
-            //       otherwise circuits will close on an average after 3 or 4 
-            //       streams. this is nothing we'd like to happen
-            c.reportStreamFailure(this);
-            
+            connectFailed(e, false);
             throw e;
         } catch (IOException e) {
             closed = true;
+            countState(CircuitStatistics.CLOSED);
             log.warning("TCPStream: Closed:" + toString() + " due to IOException:" + e.getMessage());
             throw e;
         }
 
-        setupDuration = (int) (System.currentTimeMillis() - startSetupTime);
+        connected(relay, sp, startSetupTime);
+    }
+
+    /**
+     * Start to build a stream on top of a existing circuit, but do not wait for
+     * the answer (RELAY_CONNECTED) of the exit node.
+     * Users and programmers should never call this function, but Tor.connect() instead.
+     * 
+     * @param c
+     *            the circuit to build the stream through
+     * @param sp
+     *            the host etc. to connect to
+     * @return the future of the stream; cancel() during the setup sends RELAY_END immediately
+     */
+    public static TCPStreamFuture connectAsync(Circuit c, TCPStreamProperties sp) throws IOException, TorException {
+        TCPStream stream = new TCPStream(c);
+        stream.established = false;
+        stream.created = new Date();
+        stream.lastAction = stream.created;
+        stream.lastCellSentDate = stream.created;
+        stream.closed = false;
+        stream.closedForReason = 0;
+
+        // the queue and its handler must exist before the stream is visible to the TLSDispatcherThread
+        TCPStreamFuture future = new TCPStreamFuture(stream);
+        stream.queue = new Queue(stream.queueTimeout);
+        stream.queue.addHandler(stream.new ConnectHandler(sp, System.currentTimeMillis(), future));
+        c.assignStreamId(stream);
+        log.fine("TCPStream: building new stream (async) " + stream.toString());
+        stream.countState(CircuitStatistics.BUILDING);
+        c.getTorEventService().fireEvent(new TorEvent(TorEvent.STREAM_BEGIN,stream,"Stream begin: "+stream.toString()));
+
+        // send RELAY-BEGIN
+        stream.sendCell(new CellRelayBegin(stream, sp));
+        return future;
+    }
+
+    /**
+     * Waits for RELAY_CONNECTED of an asynchronous stream setup.
+     * After the setup it passes all cells to the next handlers.
+     */
+    private class ConnectHandler implements QueueHandler {
+        private final TCPStreamProperties sp;
+        private final long startSetupTime;
+        private final TCPStreamFuture future;
+        private boolean done;
+
+        ConnectHandler(TCPStreamProperties sp, long startSetupTime, TCPStreamFuture future) {
+            this.sp = sp;
+            this.startSetupTime = startSetupTime;
+            this.future = future;
+        }
+
+        public synchronized boolean handleCell(Cell cell) throws TorException {
+            if (done) {
+                return false;
+            }
+            done = true;
+            try {
+                if (!(cell instanceof CellRelay)) {
+                    throw new TorException("TCPStream: expected cell of type "
+                            + Cell.type(Cell.CELL_RELAY) + " received type " + cell.type());
+                }
+                CellRelay relay = (CellRelay)cell;
+                if (relay.getRelayCommand()!=CellRelay.RELAY_CONNECTED) {
+                    TorException e;
+                    if ((relay.getRelayCommand()==CellRelay.RELAY_END) && (relay.getData()!=null)) {
+                        e = new TorException("TCPStream: expected relay-cell of type "
+                                + CellRelay.relayCommand(CellRelay.RELAY_CONNECTED)
+                                + ", received END-CELL for reason: " + relay.reasonForClosing());
+                    } else {
+                        e = new TorException("TCPStream: expected relay-cell of type "
+                                + CellRelay.relayCommand(CellRelay.RELAY_CONNECTED)
+                                + " received type " + relay.relayCommand());
+                    }
+                    connectFailed(e, true);
+                    throw e;
+                }
+                connected(relay, sp, startSetupTime);
+                future.setSucceeded();
+            } catch (Exception e) {
+                future.setFailed(e);
+            }
+            return true;
+        }
+
+        public synchronized void close() {
+            if (!done) {
+                done = true;
+                closed = true;
+                countState(CircuitStatistics.CLOSED);
+                future.setFailed(new IOException("TCPStream: " + TCPStream.this.toString() + " closed during setup"));
+            }
+        }
+    }
+
+    /**
+     * The exit node refused the stream.
+     *
+     * @param reportLater    true=called by the TLSDispatcherThread: update the circuit in background
+     */
+    private void connectFailed(TorException e, boolean reportLater) {
+        if (!closed) {
+            // only msg, if closing was unintentionally
+            log.log(Level.WARNING, "TCPStream: Closed: " + toString() + " due to TorException:" + e.getMessage());
+        }
+        closed = true;
+        countState(CircuitStatistics.CLOSED);
+        
+        // MRK: when the circuit does not work at this point: close it
+        // Lexi: please do it soft! there might be other streams
+        //       working on this circuit...
+        //c.close(false);
+        // Lexi: even better: increase only a counter for this circuit
+        //       otherwise circuits will close on an average after 3 or 4 
+        //       streams. this is nothing we'd like to happen
+        if (reportLater) {
+            circuit.reportStreamFailureLater(this);
+        } else {
+            circuit.reportStreamFailure(this);
+        }
+    }
+
+    /**
+     * RELAY_CONNECTED received: finish the setup of the stream.
+     */
+    private void connected(CellRelay relay, TCPStreamProperties sp, long startSetupTime) throws TorException {
+        int setupDuration = (int) (System.currentTimeMillis() - startSetupTime);
 
         // store resolved IP in TCPStreamProperties
         switch (relay.getLength()) {
@@ -189,6 +308,7 @@ public class TCPStream implements Stream, NetSocket {
         // attach stream to history
         circuit.registerStream(sp, setupDuration);
         established = true;
+        countState(CircuitStatistics.ESTABLISHED);
         // Tor.lastSuccessfulConnection = new Date(System.currentTimeMillis());
         circuit.getTorEventService().fireEvent(new TorEvent(TorEvent.STREAM_BUILD,this,"Stream build: "+toString()));
     }
@@ -271,11 +391,28 @@ public class TCPStream implements Stream, NetSocket {
         TCPStreamProperties sp = new TCPStreamProperties();
         circuit.registerStream(sp, setupDuration);
         established = true;
+        countState(CircuitStatistics.ESTABLISHED);
         // Tor.lastSuccessfulConnection = new Date(System.currentTimeMillis());
         circuit.getTorEventService().fireEvent(new TorEvent(TorEvent.STREAM_BUILD,this,"Stream build: "+toString()));
     }
 
     
+    /**
+     * Update the counters of the circuit.
+     * Streams only move forward: BUILDING, ESTABLISHED, CLOSED;
+     * streams that were never counted are not counted as closed.
+     */
+    private void countState(int newState) {
+        CircuitStatistics statistics = circuit.getStatistics();
+        synchronized (statistics) {
+            if (newState<=countedState || (countedState==CircuitStatistics.NONE && newState==CircuitStatistics.CLOSED)) {
+                return;
+            }
+            statistics.streamStateChanged(countedState, newState);
+            countedState = newState;
+        }
+    }
+
     /** called from derived ResolveStream */
     protected TCPStream(Circuit c) {
         circuit = c;
@@ -335,6 +472,7 @@ public class TCPStream implements Stream, NetSocket {
         }
         // terminate threads gracefully
         closed = true;
+        countState(CircuitStatistics.CLOSED);
         /*if (!force) {
             try {
                 this.wait(3);
@@ -432,6 +570,9 @@ public class TCPStream implements Stream, NetSocket {
     
     void setClosed(boolean closed) {
         this.closed = closed;
+        if (closed) {
+            countState(CircuitStatistics.CLOSED);
+        }
     }
     
     public Circuit getCircuit() {
@@ -0,0 +1,172 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Result of an asynchronous stream setup, see TCPStream.connectAsync().
+ *
+ * There is no timeout inside: callers use get(timeout, unit) or cancel().
+ */
+public class TCPStreamFuture implements Future<TCPStream> {
+    private static final Logger log = Logger.getLogger(TCPStreamFuture.class.getName());
+
+    private final TCPStream stream;
+
+    private boolean done;
+    private boolean cancelled;
+    /** reason of the failure; null=success */
+    private Exception exception;
+    private List<TCPStreamListener> listeners = new ArrayList<TCPStreamListener>(2);
+
+
+    TCPStreamFuture(TCPStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Register a callback for the end of the setup.
+     * If the setup is already finished the listener is called immediately.
+     *
+     * @param listener
+     */
+    public void addListener(TCPStreamListener listener) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        // already finished
+        notifyListener(listener);
+    }
+
+    void setSucceeded() {
+        finish(null);
+    }
+
+    void setFailed(Exception e) {
+        finish(e);
+    }
+
+    private void finish(Exception e) {
+        List<TCPStreamListener> listenersToNotify;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            exception = e;
+            listenersToNotify = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (TCPStreamListener listener : listenersToNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(TCPStreamListener listener) {
+        try {
+            if (exception==null) {
+                listener.streamConnected(stream);
+            } else {
+                listener.streamFailed(stream, exception);
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "unexpected exception in TCPStreamListener", e);
+        }
+    }
+
+    /**
+     * Cancel the setup: a stream that is still in setup gets a RELAY_END cell immediately.
+     * A stream whose setup already finished is left untouched - the caller owns it.
+     *
+     * @param mayInterruptIfRunning    ignored: no thread is blocked by the setup
+     * @return false if the setup was already finished
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+        }
+        // send RELAY_END and release the queue: this finishes the setup
+        stream.close();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    public synchronized TCPStream get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    public synchronized TCPStream get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long endMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!done) {
+            long waitMillis = endMillis - System.currentTimeMillis();
+            if (waitMillis<=0) {
+                throw new TimeoutException("stream not yet connected: " + stream);
+            }
+            wait(waitMillis);
+        }
+        return getResult();
+    }
+
+    private TCPStream getResult() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException("TCPStream: setup of " + stream + " cancelled");
+        }
+        if (exception!=null) {
+            throw new ExecutionException(exception);
+        }
+        return stream;
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    /**
+     * @return the stream in setup (also available before the setup finished)
+     */
+    public TCPStream getStream() {
+        return stream;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.stream;
+
+/**
+ * Callback of an asynchronous stream setup, see TCPStream.connectAsync().
+ *
+ * The methods are called by the TLSDispatcherThread of the circuit:
+ * implementations must return quickly and must not block.
+ */
+public interface TCPStreamListener {
+    /**
+     * RELAY_CONNECTED was received, the stream can be used.
+     *
+     * @param stream
+     */
+    void streamConnected(TCPStream stream);
+
+    /**
+     * The stream could not be established.
+     *
+     * @param stream
+     * @param e         the reason of the failure
+     */
+    void streamFailed(TCPStream stream, Exception e);
+}
@@ -0,0 +1,155 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.silvertunnel.netlib.layer.tor.circuit.Circuit;
+import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+
+/**
+ * Build the same stream over several circuits (hedged): start on the first circuit,
+ * race the next circuit after the hedge delay (or immediately if all started
+ * setups failed) and take the first RELAY_CONNECTED.
+ * All other streams are closed with RELAY_END as soon as the winner is known.
+ *
+ * Replaces the former StreamThread/ClosingThread combination:
+ * only the calling thread waits, no thread per circuit is needed.
+ */
+public class TCPStreamRace implements TCPStreamListener {
+    private static final Logger log = Logger.getLogger(TCPStreamRace.class.getName());
+
+    private final Circuit[] circuits;
+    private final TCPStreamProperties sp;
+    private final long hedgeDelayMs;
+
+    private final List<TCPStreamFuture> futures;
+    private TCPStream winner;
+    private int failed;
+
+    /**
+     * @param circuits        candidates, ordered by preference
+     * @param sp              the host etc. to connect to
+     * @param hedgeDelayMs    wait this time before racing the next circuit; 0=start all at once
+     */
+    public TCPStreamRace(Circuit[] circuits, TCPStreamProperties sp, long hedgeDelayMs) {
+        this.circuits = circuits;
+        this.sp = sp;
+        this.hedgeDelayMs = Math.max(0, hedgeDelayMs);
+        this.futures = new ArrayList<TCPStreamFuture>(circuits.length);
+    }
+
+    /**
+     * Run the race.
+     *
+     * @param timeoutMs    maximum time to wait for each started stream
+     * @return the first connected stream; null if no stream could be connected in time
+     */
+    public TCPStream run(long timeoutMs) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long nextStartMillis = now;
+        long endMillis = now + timeoutMs;
+        int started = 0;
+        try {
+            while (true) {
+                // start next stream?
+                boolean startNext;
+                synchronized (this) {
+                    if (winner!=null) {
+                        return winner;
+                    }
+                    now = System.currentTimeMillis();
+                    startNext = started<circuits.length && (now>=nextStartMillis || failed>=started);
+                    if (!startNext) {
+                        if (failed>=circuits.length || now>=endMillis) {
+                            // nothing left to wait for
+                            return null;
+                        }
+                        // wait for the first answer or the next start time
+                        long waitUntil = (started<circuits.length) ? Math.min(nextStartMillis, endMillis) : endMillis;
+                        wait(Math.max(1, waitUntil-now));
+                        continue;
+                    }
+                }
+
+                // start next stream - without holding the lock
+                Circuit circuit = circuits[started++];
+                nextStartMillis = now + hedgeDelayMs;
+                endMillis = Math.max(endMillis, now + timeoutMs);
+                try {
+                    TCPStreamFuture future = TCPStream.connectAsync(circuit, sp);
+                    synchronized (this) {
+                        futures.add(future);
+                    }
+                    future.addListener(this);
+                } catch (Exception e) {
+                    log.info("TCPStreamRace: could not start stream on circuit " + circuit + ": " + e.getMessage());
+                    synchronized (this) {
+                        failed++;
+                    }
+                }
+            }
+        } finally {
+            cancelLosers();
+        }
+    }
+
+    /**
+     * Close all streams except the winner - immediately,
+     * also the streams that connected after the winner.
+     */
+    private void cancelLosers() {
+        List<TCPStreamFuture> losers = new ArrayList<TCPStreamFuture>();
+        synchronized (this) {
+            for (TCPStreamFuture future : futures) {
+                if (winner==null || future.getStream()!=winner) {
+                    losers.add(future);
+                }
+            }
+        }
+        for (TCPStreamFuture future : losers) {
+            try {
+                if (!future.cancel(true)) {
+                    // setup already finished: close it here
+                    future.getStream().close();
+                }
+            } catch (Exception e) {
+                log.warning("TCPStreamRace: " + e.getMessage());
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // TCPStreamListener
+    ///////////////////////////////////////////////////////
+
+    public synchronized void streamConnected(TCPStream stream) {
+        if (winner==null) {
+            winner = stream;
+        }
+        notifyAll();
+    }
+
+    public synchronized void streamFailed(TCPStream stream, Exception e) {
+        failed++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Read a document line by line as bytes, without creating a String per line.
+ * 
+ * The current line is stored in a buffer that is reused for the next line:
+ * getBuffer()[0..getLength()) is the content without line terminator,
+ * getBuffer()[0..getRawLength()) includes the line terminator (needed to hash the raw document).
+ * 
+ * An object is not thread-safe.
+ */
+public class ByteLineReader {
+    private static final int INITIAL_LINE_CAPACITY = 256;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private int readPos;
+    private int readEnd;
+
+    private byte[] line = new byte[INITIAL_LINE_CAPACITY];
+    private int length;
+    private int rawLength;
+
+    public ByteLineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next line.
+     * 
+     * @return false if the end of the stream is reached (no line available)
+     */
+    public boolean readLine() throws IOException {
+        rawLength = 0;
+        while (true) {
+            if (readPos>=readEnd) {
+                readEnd = in.read(readBuffer, 0, readBuffer.length);
+                readPos = 0;
+                if (readEnd<=0) {
+                    readEnd = 0;
+                    break;
+                }
+            }
+            // copy up to the end of the line
+            int start = readPos;
+            boolean endOfLine = false;
+            while (readPos<readEnd) {
+                if (readBuffer[readPos++]=='\n') {
+                    endOfLine = true;
+                    break;
+                }
+            }
+            append(start, readPos);
+            if (endOfLine) {
+                break;
+            }
+        }
+        if (rawLength==0) {
+            return false;
+        }
+        length = rawLength;
+        if (length>0 && line[length-1]=='\n') {
+            length--;
+        }
+        if (length>0 && line[length-1]=='\r') {
+            length--;
+        }
+        return true;
+    }
+
+    private void append(int start, int end) {
+        int n = end-start;
+        if (rawLength+n>line.length) {
+            byte[] newLine = new byte[Math.max(2*line.length, rawLength+n)];
+            System.arraycopy(line, 0, newLine, 0, rawLength);
+            line = newLine;
+        }
+        System.arraycopy(readBuffer, start, line, rawLength, n);
+        rawLength += n;
+    }
+
+    /**
+     * @return true if the current line starts with the ASCII prefix
+     */
+    public boolean startsWith(String prefix) {
+        int n = prefix.length();
+        if (n>length) {
+            return false;
+        }
+        for (int i=0; i<n; i++) {
+            if (line[i]!=prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split the current line at spaces.
+     * 
+     * @param bounds    result: start and end (exclusive) of token i at bounds[2*i] and bounds[2*i+1]
+     * @return number of tokens found (at most bounds.length/2; the last token contains the rest of the line)
+     */
+    public int split(int[] bounds) {
+        int maxTokens = bounds.length/2;
+        int tokens = 0;
+        int pos = 0;
+        while (pos<length && tokens<maxTokens) {
+            while (pos<length && line[pos]==' ') {
+                pos++;
+            }
+            if (pos>=length) {
+                break;
+            }
+            int start = pos;
+            if (tokens==maxTokens-1) {
+                // rest of the line
+                pos = length;
+                while (pos>start && line[pos-1]==' ') {
+                    pos--;
+                }
+            } else {
+                while (pos<length && line[pos]!=' ') {
+                    pos++;
+                }
+            }
+            bounds[2*tokens] = start;
+            bounds[2*tokens+1] = pos;
+            tokens++;
+        }
+        return tokens;
+    }
+
+    /**
+     * @return the UTF-8 decoded part of the current line
+     */
+    public String getString(int start, int end) {
+        try {
+            return new String(line, start, end-start, Util.UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the decimal number at line[start..end); -1 if it is not a valid non-negative number
+     */
+    public int parseInt(int start, int end) {
+        if (start>=end || end-start>9) {
+            return -1;
+        }
+        int result = 0;
+        for (int i=start; i<end; i++) {
+            int digit = line[i]-'0';
+            if (digit<0 || digit>9) {
+                return -1;
+            }
+            result = 10*result + digit;
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters
+    ///////////////////////////////////////////////////////
+
+    /**
+     * @return the buffer of the current line - do not modify it
+     */
+    public byte[] getBuffer() {
+        return line;
+    }
+
+    /**
+     * @return the length of the current line without line terminator
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the length of the current line including the line terminator
+     */
+    public int getRawLength() {
+        return rawLength;
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.silvertunnel.netlib.layer.tor.util;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -69,6 +70,14 @@ public class Encoding {
     };
 
     private static final String BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    /** value of each ASCII character in BASE64_CHARS; -1 if not contained */
+    private static final int[] BASE64_VALUES = new int[128];
+    static {
+        Arrays.fill(BASE64_VALUES, -1);
+        for (int i=0; i<BASE64_CHARS.length(); i++) {
+            BASE64_VALUES[BASE64_CHARS.charAt(i)] = i;
+        }
+    }
 
     private static final Pattern HIDDENADDRESS_X_PATTERN = Parsing.compileRegexPattern("(.*?)\\.");
     private static final Pattern HIDDENADDRESS_Y_PATTERN = Parsing.compileRegexPattern("(.*?)\\.");
@@ -324,6 +333,46 @@ public class Encoding {
         return ret;
     }
 
+    /**
+     * parses base64 encoded bytes (e.g. a part of a line of a document),
+     * characters other than the base64 alphabet are ignored.
+     * 
+     * @param b        ASCII characters
+     * @param start    first index
+     * @param end      index after the last character
+     * @return the decoded array
+     */
+    public static byte[] parseBase64(byte[] b, int start, int end) {
+        byte[] result = new byte[(end-start)*3/4 + 3];
+        int fill = 0;
+        int temp = 0; // stores the reconstructed bitfield
+        int tempFill = 0;
+        for (int i=start; i<end; i++) {
+            int v = (b[i]>=0) ? BASE64_VALUES[b[i]] : -1;
+            if (v>=0) {
+                temp = (temp<<6) | v;
+                if (++tempFill==4) {
+                    result[fill++] = (byte)(temp>>16);
+                    result[fill++] = (byte)(temp>>8);
+                    result[fill++] = (byte)temp;
+                    tempFill = 0;
+                    temp = 0;
+                }
+            }
+        }
+        // remaining bits: 2 chars=1 byte, 3 chars=2 bytes
+        if (tempFill>=2) {
+            temp <<= 6*(4-tempFill);
+            result[fill++] = (byte)(temp>>16);
+            if (tempFill==3) {
+                result[fill++] = (byte)(temp>>8);
+            }
+        }
+        byte[] ret = new byte[fill];
+        System.arraycopy(result, 0, ret, 0, fill);
+        return ret;
+    }
+
     /**
      * parses a hex-string into a byte-array.<br>
      * <b>Q</b>: Why doesn't provide Java us with such a functionality? <br>
@@ -245,11 +245,22 @@ public class Encryption {
     }
 
     public static boolean verifySignature(byte[] signature, PublicKey signingKey, byte[] data) {
+        return verifySignatureOfDigest(signature, signingKey, getDigest(DIGEST_ALGORITHM, data));
+    }
+
+    /**
+     * Check a PKCS#1 signature of data.
+     * 
+     * @param signature     signature to check
+     * @param signingKey    public key from signing
+     * @param dataDigest    SHA1 hash of the data the signature is made over, e.g. calculated while parsing
+     * @return true, if the signature is correct
+     */
+    public static boolean verifySignatureOfDigest(byte[] signature, PublicKey signingKey, byte[] dataDigest) {
         try {
             Cipher cipher = Cipher.getInstance(PK_ALGORITHM);
             cipher.init(Cipher.DECRYPT_MODE, signingKey);
             byte[] decryptedDigest = cipher.doFinal(signature);
-            byte[] dataDigest = getDigest(DIGEST_ALGORITHM, data);
             if (decryptedDigest!=null && dataDigest!=null && decryptedDigest.length>dataDigest.length) {
                 // try to fix bug in security calculation with OpenJDK-6 java web start (ticket #59)
                 log.warning("verifySignature(): try to fix bug in security calculation with OpenJDK-6 java web start (ticket #59)");
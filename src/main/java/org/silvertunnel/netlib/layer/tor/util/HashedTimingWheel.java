@@ -0,0 +1,190 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel (Varghese/Lauck): O(1) to schedule and to cancel a timer,
+ * the cost of advance() depends on the number of expiring timers only
+ * and not on the number of scheduled timers.
+ *
+ * The wheel has no own thread: the owner calls advance() regularly
+ * (at least once per tick to keep the precision). Expired tasks are executed
+ * by the thread that calls advance(), without holding the lock of the wheel;
+ * tasks may schedule new timers.
+ */
+public class HashedTimingWheel {
+    private static final Logger log = Logger.getLogger(HashedTimingWheel.class.getName());
+
+    private final long tickMillis;
+    private final long startMillis;
+    /** bucket heads (sentinels of double linked lists) */
+    private final Timeout[] buckets;
+    private final int mask;
+    /** last processed tick */
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis       duration of one tick in milliseconds (=precision)
+     * @param ticksPerWheel    number of buckets, will be rounded up to a power of 2
+     */
+    public HashedTimingWheel(long tickMillis, int ticksPerWheel) {
+        this(tickMillis, ticksPerWheel, System.currentTimeMillis());
+    }
+
+    HashedTimingWheel(long tickMillis, int ticksPerWheel, long startMillis) {
+        if (tickMillis<=0) {
+            throw new IllegalArgumentException("invalid tickMillis="+tickMillis);
+        }
+        int n = 1;
+        while (n<ticksPerWheel) {
+            n <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.startMillis = startMillis;
+        this.buckets = new Timeout[n];
+        this.mask = n-1;
+        for (int i=0; i<n; i++) {
+            Timeout head = new Timeout(this, null, -1);
+            head.prev = head;
+            head.next = head;
+            buckets[i] = head;
+        }
+    }
+
+    /**
+     * Schedule a task.
+     *
+     * @param task       will be executed by advance()
+     * @param delayMs    minimum delay in milliseconds
+     * @return handle to cancel the timer
+     */
+    public Timeout schedule(Runnable task, long delayMs) {
+        return schedule(task, delayMs, System.currentTimeMillis());
+    }
+
+    synchronized Timeout schedule(Runnable task, long delayMs, long nowMillis) {
+        // round up: never expire too early
+        long deadlineTick = (nowMillis + Math.max(0, delayMs) - startMillis + tickMillis - 1) / tickMillis;
+        if (deadlineTick<=currentTick) {
+            deadlineTick = currentTick+1;
+        }
+        Timeout timeout = new Timeout(this, task, deadlineTick);
+        Timeout head = buckets[(int)(deadlineTick & mask)];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+        size++;
+        return timeout;
+    }
+
+    /**
+     * Execute all tasks that are expired until now.
+     *
+     * @return number of executed tasks
+     */
+    public int advance() {
+        return advance(System.currentTimeMillis());
+    }
+
+    int advance(long nowMillis) {
+        List<Timeout> expired = new ArrayList<Timeout>();
+        synchronized (this) {
+            long targetTick = (nowMillis - startMillis) / tickMillis;
+            // a full revolution visits each bucket once: no need to process more ticks
+            long firstTick = Math.max(currentTick+1, targetTick-mask);
+            for (long tick=firstTick; tick<=targetTick; tick++) {
+                Timeout head = buckets[(int)(tick & mask)];
+                Timeout t = head.next;
+                while (t!=head) {
+                    Timeout next = t.next;
+                    if (t.deadlineTick<=targetTick) {
+                        unlink(t);
+                        expired.add(t);
+                    }
+                    t = next;
+                }
+            }
+            if (targetTick>currentTick) {
+                currentTick = targetTick;
+            }
+        }
+
+        // execute without holding the lock
+        for (Timeout t : expired) {
+            try {
+                t.task.run();
+            } catch (Exception e) {
+                log.log(Level.WARNING, "unexpected exception in timer task", e);
+            }
+        }
+        return expired.size();
+    }
+
+    private void unlink(Timeout t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+        size--;
+    }
+
+    /**
+     * @return number of scheduled timers
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public static class Timeout {
+        private final HashedTimingWheel wheel;
+        private final Runnable task;
+        private final long deadlineTick;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(HashedTimingWheel wheel, Runnable task, long deadlineTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        /**
+         * @return true=cancelled; false=already expired or cancelled
+         */
+        public boolean cancel() {
+            synchronized (wheel) {
+                if (next==null) {
+                    return false;
+                }
+                wheel.unlink(this);
+                return true;
+            }
+        }
+    }
+}
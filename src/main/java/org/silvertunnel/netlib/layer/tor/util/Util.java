@@ -54,6 +54,52 @@ public class Util {
         }
     }
     
+    /**
+     * Parse with format "yyyy-MM-dd HH:mm:ss" without DateFormat (and without synchronization).
+     * 
+     * @param b         ASCII characters, interpret the time as UTC
+     * @param offset    index of the first character
+     * @return the time stamp; null in the case of an error
+     */
+    public static Date parseUtcTimestamp(byte[] b, int offset) {
+        if (offset<0 || offset+UTC_TIMESTAMP_FORMAT.length()>b.length
+                || b[offset+4]!='-' || b[offset+7]!='-' || b[offset+10]!=' ' || b[offset+13]!=':' || b[offset+16]!=':') {
+            return null;
+        }
+        int year = parseDigits(b, offset, 4);
+        int month = parseDigits(b, offset+5, 2);
+        int day = parseDigits(b, offset+8, 2);
+        int hour = parseDigits(b, offset+11, 2);
+        int minute = parseDigits(b, offset+14, 2);
+        int second = parseDigits(b, offset+17, 2);
+        if (year<0 || month<1 || month>12 || day<1 || day>31 || hour<0 || hour>23 || minute<0 || minute>59 || second<0 || second>60) {
+            return null;
+        }
+        // days since 1970-01-01 of the proleptic Gregorian calendar (year>=0)
+        int y = (month<=2) ? year-1 : year;
+        int era = y/400;
+        int yearOfEra = y-era*400;
+        int dayOfYear = (153*(month>2 ? month-3 : month+9)+2)/5 + day-1;
+        int dayOfEra = yearOfEra*365 + yearOfEra/4 - yearOfEra/100 + dayOfYear;
+        long days = era*146097L + dayOfEra - 719468;
+        return new Date(((days*24 + hour)*60 + minute)*60000L + second*1000L);
+    }
+
+    /**
+     * @return the decimal value of the digits; -1 if a character is not a digit
+     */
+    private static int parseDigits(byte[] b, int offset, int len) {
+        int result = 0;
+        for (int i=offset; i<offset+len; i++) {
+            int digit = b[i]-'0';
+            if (digit<0 || digit>9) {
+                return -1;
+            }
+            result = 10*result + digit;
+        }
+        return result;
+    }
+
     /**
      * Parse with format "yyyy-MM-dd HH:mm:ss".
      * 
@@ -19,7 +19,9 @@
 package org.silvertunnel.netlib.tool;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -27,10 +29,12 @@ import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.InflaterInputStream;
 
 import org.silvertunnel.netlib.adapter.url.NetlibURLStreamHandlerFactory;
 import org.silvertunnel.netlib.api.NetLayer;
 import org.silvertunnel.netlib.api.util.TcpipNetAddress;
+import org.silvertunnel.netlib.util.FileUtil;
 
 /**
  * This class provides methods for easy HTTP GET and HTTP POST requests.
@@ -70,31 +74,10 @@ public class SimpleHttpClient {
      * @throws IOException in the case of any error
      */
     public String get(NetLayer netLayer, TcpipNetAddress hostAndPort, String path) throws IOException {
-        String urlStr = null;
         BufferedReader in = null;
         try {
-            if (log.isLoggable(Level.FINE)) {
-                log.fine("start download with hostAndPort="+hostAndPort+" and path="+path);
-            }
-            
-            // prepare URL handling on top of the lowerNetLayer
-            NetlibURLStreamHandlerFactory factory = new NetlibURLStreamHandlerFactory(false);
-            factory.setNetLayerForHttpHttpsFtp(netLayer);
-    
-            // create the suitable URL object
-            if (path!=null && !path.startsWith("/")) {
-                path = "/"+path;
-            }
-            urlStr = PROTOCOL_HTTP+"://"+hostAndPort.getHostnameOrIpaddress()+":"+hostAndPort.getPort()+path;
-            URLStreamHandler handler = factory.createURLStreamHandler("http");
-            URL context = null;
-            URL url = new URL(context, urlStr, handler);
-    
             // open connection and read response
-            URLConnection conn = url.openConnection();
-            conn.setDoOutput(false); 
-            conn.setDoInput(true);
-            conn.connect();
+            URLConnection conn = openConnection(netLayer, hostAndPort, path);
             in = new BufferedReader(new InputStreamReader(conn.getInputStream(), UTF8));
             String inputLine;
             StringBuffer response = new StringBuffer();
@@ -104,19 +87,7 @@ public class SimpleHttpClient {
             }
             
             // read response code
-            if (conn instanceof HttpURLConnection) {
-                HttpURLConnection httpConnection = (HttpURLConnection) conn;
-                int code = httpConnection.getResponseCode();
-                
-                // is it a "successful" code?
-                if (!(code>=200 && code <300)) {
-                    // no: not successful
-                    throw new IOException(PROTOCOL_HTTP+" transfer was not successful for url="+urlStr);
-                }
-            } else {
-                // wrong protocol (handler)
-                throw new IOException(PROTOCOL_HTTP+" response code could not be determined for url="+urlStr);
-            }
+            checkResponseCode(conn);
            
             // result
             if (log.isLoggable(Level.FINE)) {
@@ -129,12 +100,116 @@ public class SimpleHttpClient {
             throw e;
         } finally {
             // close stream(s)
-            if (in!=null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    log.warning("Exception while closing InputStream from url="+urlStr);
-                }
+            close(in, hostAndPort, path);
+        }
+    }
+
+    /**
+     * Execute HTTP GET request of a zlib compressed resource
+     * (e.g. the ".z" URLs of a Tor directory server)
+     * and inflate the response.
+     * 
+     * @param netLayer
+     * @param hostAndPort
+     * @param path
+     * @return inflated response as String, not null
+     * @throws IOException in the case of any error
+     */
+    public String getInflated(NetLayer netLayer, TcpipNetAddress hostAndPort, String path) throws IOException {
+        InputStream in = getInputStream(netLayer, hostAndPort, path);
+        try {
+            String response = FileUtil.getInstance().readFileFromInputStream(new InflaterInputStream(in));
+            if (log.isLoggable(Level.FINE)) {
+                log.fine("end download with hostAndPort="+hostAndPort+" and path="+path+" finished with inflated result of length="+response.length());
+            }
+            return response;
+        } finally {
+            close(in, hostAndPort, path);
+        }
+    }
+
+    /**
+     * Execute HTTP GET request and provide the response body as stream,
+     * e.g. to parse it while it is downloaded.
+     * 
+     * The response code is checked before the stream is returned.
+     * The caller must close the stream.
+     * 
+     * @param netLayer
+     * @param hostAndPort
+     * @param path
+     * @return response body, not null
+     * @throws IOException in the case of any error
+     */
+    public InputStream getInputStream(NetLayer netLayer, TcpipNetAddress hostAndPort, String path) throws IOException {
+        InputStream in = null;
+        try {
+            URLConnection conn = openConnection(netLayer, hostAndPort, path);
+            in = conn.getInputStream();
+            checkResponseCode(conn);
+            return in;
+
+        } catch (IOException e) {
+            log.fine("end download with hostAndPort="+hostAndPort+" and path="+path+" with "+e);
+            close(in, hostAndPort, path);
+            throw e;
+        }
+    }
+
+    /**
+     * Open the connection of a HTTP GET request.
+     */
+    private URLConnection openConnection(NetLayer netLayer, TcpipNetAddress hostAndPort, String path) throws IOException {
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("start download with hostAndPort="+hostAndPort+" and path="+path);
+        }
+        
+        // prepare URL handling on top of the lowerNetLayer
+        NetlibURLStreamHandlerFactory factory = new NetlibURLStreamHandlerFactory(false);
+        factory.setNetLayerForHttpHttpsFtp(netLayer);
+
+        // create the suitable URL object
+        if (path!=null && !path.startsWith("/")) {
+            path = "/"+path;
+        }
+        String urlStr = PROTOCOL_HTTP+"://"+hostAndPort.getHostnameOrIpaddress()+":"+hostAndPort.getPort()+path;
+        URLStreamHandler handler = factory.createURLStreamHandler("http");
+        URL context = null;
+        URL url = new URL(context, urlStr, handler);
+
+        // open connection
+        URLConnection conn = url.openConnection();
+        conn.setDoOutput(false); 
+        conn.setDoInput(true);
+        conn.connect();
+        return conn;
+    }
+
+    /**
+     * @throws IOException if the response code of the connection is not "successful"
+     */
+    private void checkResponseCode(URLConnection conn) throws IOException {
+        if (conn instanceof HttpURLConnection) {
+            HttpURLConnection httpConnection = (HttpURLConnection) conn;
+            int code = httpConnection.getResponseCode();
+            
+            // is it a "successful" code?
+            if (!(code>=200 && code <300)) {
+                // no: not successful
+                throw new IOException(PROTOCOL_HTTP+" transfer was not successful for url="+conn.getURL());
+            }
+        } else {
+            // wrong protocol (handler)
+            throw new IOException(PROTOCOL_HTTP+" response code could not be determined for url="+conn.getURL());
+        }
+    }
+
+    private void close(Closeable in, TcpipNetAddress hostAndPort, String path) {
+        if (in!=null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.warning("Exception while closing InputStream from hostAndPort="+hostAndPort+" and path="+path);
             }
         }
     }
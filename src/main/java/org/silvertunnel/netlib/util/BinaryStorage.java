@@ -0,0 +1,48 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Optional extension of a StringStorage to store binary values,
+ * e.g. snapshots of parsed data that can be used without parsing again.
+ * 
+ * Keys follow the rules of StringStorage; binary and String values share the same keys.
+ */
+public interface BinaryStorage {
+    /**
+     * Store a value atomically: a later get sees the old or the new value,
+     * but never a partially written value.
+     * 
+     * @param key      a valid key (see StringStorage doc for details)
+     * @param value    not null
+     * @throws IllegalArgumentException
+     */
+    public void putBytes(String key, byte[] value) throws IllegalArgumentException;
+
+    /**
+     * Retrieve a value.
+     * 
+     * @param key      a valid key (see StringStorage doc for details)
+     * @return the value as read-only buffer (memory-mapped if supported); null if no value found
+     */
+    public ByteBuffer getBytes(String key);
+}
@@ -0,0 +1,88 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * InputStream that copies all data read from the underlying stream into an OutputStream,
+ * e.g. to keep the compressed form of a download while it is inflated and parsed.
+ */
+public class CopyingInputStream extends FilterInputStream {
+    private OutputStream copy;
+
+    /**
+     * @param is      underlying stream
+     * @param copy    receives a copy of all bytes read from is
+     */
+    public CopyingInputStream(InputStream is, OutputStream copy) {
+        super(is);
+        this.copy = copy;
+    }
+
+    public int read() throws IOException {
+        int result = in.read();
+        if (result>=0) {
+            copy.write(result);
+        }
+        return result;
+    }
+
+    public int read(byte b[], int off, int len) throws IOException {
+        int numOfBytes = in.read(b, off, len);
+        if (numOfBytes>0) {
+            copy.write(b, off, numOfBytes);
+        }
+        return numOfBytes;
+    }
+
+    public long skip(long n) throws IOException {
+        // skipped bytes must be copied, too
+        byte[] buffer = new byte[(int)Math.min(Math.max(n, 0), 4096)];
+        long skipped = 0;
+        while (skipped<n) {
+            int numOfBytes = read(buffer, 0, (int)Math.min(buffer.length, n-skipped));
+            if (numOfBytes<0) {
+                break;
+            }
+            skipped += numOfBytes;
+        }
+        return skipped;
+    }
+
+    /**
+     * Read (and copy) the rest of the underlying stream.
+     * 
+     * @throws IOException
+     */
+    public void copyRemaining() throws IOException {
+        byte[] buffer = new byte[4096];
+        while (read(buffer, 0, buffer.length)>=0) {
+            // nothing else to do
+        }
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Stream to write a value of a StreamStorage.
+ * 
+ * The value is replaced atomically by commit().
+ * close() without commit() discards everything written, e.g. after an exception:
+ * <pre>
+ *   StorageOutputStream out = streamStorage.putStream(key, true);
+ *   try {
+ *       ... write ...
+ *       out.commit();
+ *   } finally {
+ *       out.close();
+ *   }
+ * </pre>
+ */
+public abstract class StorageOutputStream extends FilterOutputStream {
+    private boolean finished;
+
+    /**
+     * @param out    stream to write the new value to
+     */
+    protected StorageOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    public void write(byte b[], int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
+    /**
+     * Make the written value visible and close the stream.
+     * 
+     * @throws IOException if the value could not be stored; the old value is kept
+     */
+    public void commit() throws IOException {
+        if (finished) {
+            throw new IOException("stream already closed");
+        }
+        finished = true;
+        out.close();
+        store();
+    }
+
+    /**
+     * Close the stream; discard the written value if commit() was not called.
+     */
+    public void close() throws IOException {
+        if (!finished) {
+            finished = true;
+            try {
+                out.close();
+            } finally {
+                discard();
+            }
+        }
+    }
+
+    /**
+     * Replace the value by the written data, called by commit() after the stream was closed.
+     */
+    protected abstract void store() throws IOException;
+
+    /**
+     * Forget the written data, called by close() without commit().
+     */
+    protected abstract void discard();
+}
@@ -0,0 +1,54 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Optional extension of a StringStorage to write and read (big) values as streams,
+ * without building them as String.
+ * 
+ * Keys follow the rules of StringStorage; stream and String values share the same keys.
+ * See StreamStorageAdapter to use any StringStorage as StreamStorage.
+ */
+public interface StreamStorage {
+    /**
+     * Write a value. It is replaced atomically by StorageOutputStream.commit():
+     * readers see the old or the new value, but never a partially written value.
+     * 
+     * @param key         a valid key (see StringStorage doc for details)
+     * @param compress    true=store the value compressed; reading decompresses it transparently
+     * @return the stream to write the value to; not null
+     * @throws IllegalArgumentException
+     * @throws IOException
+     */
+    public StorageOutputStream putStream(String key, boolean compress) throws IllegalArgumentException, IOException;
+
+    /**
+     * Read a value.
+     * 
+     * @param key      a valid key (see StringStorage doc for details)
+     * @return the (decompressed) value, to be closed by the caller; null if no value found
+     * @throws IllegalArgumentException
+     * @throws IOException
+     */
+    public InputStream getStream(String key) throws IllegalArgumentException, IOException;
+}
@@ -0,0 +1,114 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Use any StringStorage as StreamStorage.
+ * 
+ * A plain StringStorage can only store complete Strings: the values are buffered in memory
+ * and stored base64 encoded (binary and compressed values are allowed).
+ */
+public class StreamStorageAdapter implements StreamStorage {
+    /** first two bytes of GZIP compressed data - not possible at the beginning of ASCII text */
+    private static final int GZIP_MAGIC_0 = 0x1f;
+    private static final int GZIP_MAGIC_1 = 0x8b;
+
+    private StringStorage stringStorage;
+
+    /**
+     * @param stringStorage
+     * @return stringStorage itself if it supports streams; otherwise an adapter
+     */
+    public static StreamStorage getStreamStorage(StringStorage stringStorage) {
+        if (stringStorage instanceof StreamStorage) {
+            return (StreamStorage)stringStorage;
+        }
+        return new StreamStorageAdapter(stringStorage);
+    }
+
+    protected StreamStorageAdapter(StringStorage stringStorage) {
+        this.stringStorage = stringStorage;
+    }
+
+    public StorageOutputStream putStream(final String key, boolean compress) throws IllegalArgumentException, IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        return new StorageOutputStream(compressIfRequested(buffer, compress)) {
+            @Override
+            protected void store() throws IOException {
+                stringStorage.put(key, Base64.encode(buffer.toByteArray()));
+            }
+
+            @Override
+            protected void discard() {
+                buffer.reset();
+            }
+        };
+    }
+
+    public InputStream getStream(String key) throws IllegalArgumentException, IOException {
+        String value = stringStorage.get(key);
+        if (value==null) {
+            return null;
+        }
+        byte[] bytes = Base64.decode(value);
+        if (bytes==null) {
+            throw new IOException("value of key="+key+" is not base64 encoded");
+        }
+        return decompressIfNeeded(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Wrap a compressing stream around out, if requested.
+     * 
+     * @param out
+     * @param compress    true=compress what is written
+     * @return the stream to write to
+     */
+    static OutputStream compressIfRequested(OutputStream out, boolean compress) throws IOException {
+        return compress ? new GZIPOutputStream(out) : out;
+    }
+
+    /**
+     * Decompress the stream transparently if it starts with the GZIP header.
+     * 
+     * @param in    value of a storage
+     * @return the decompressed value
+     */
+    static InputStream decompressIfNeeded(InputStream in) throws IOException {
+        InputStream bufferedIn = in.markSupported() ? in : new BufferedInputStream(in);
+        bufferedIn.mark(2);
+        int b0 = bufferedIn.read();
+        int b1 = bufferedIn.read();
+        bufferedIn.reset();
+        if (b0==GZIP_MAGIC_0 && b1==GZIP_MAGIC_1) {
+            return new GZIPInputStream(bufferedIn);
+        }
+        return bufferedIn;
+    }
+}
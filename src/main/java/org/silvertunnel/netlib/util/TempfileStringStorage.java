@@ -18,25 +18,43 @@
 
 package org.silvertunnel.netlib.util;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * This class stores String in text files in the temp directory of the operating system.
  * Filenames are: st-[key]
  * 
+ * All values are written to a temporary file st-[key]-[random]~tmp first and renamed afterwards,
+ * i.e. a value is replaced atomically. Values can be streamed (see StreamStorage),
+ * optionally GZIP compressed; binary values are memory-mapped for reading.
+ * 
  * @author hapke
  */
-public class TempfileStringStorage implements StringStorage {
+public class TempfileStringStorage implements StringStorage, BinaryStorage, StreamStorage {
     private static final Logger log = Logger.getLogger(TempfileStringStorage.class.getName());
 
     private static final String TEMPDIR = System.getProperty("java.io.tmpdir");
     private static final Pattern KEY_PATTERN = Pattern.compile("[a-z0-9\\_\\-\\.]+");
     private static final String FILENAME_PREFIX = "st-";
+    /** suffix of files during writing; not allowed in keys */
+    private static final String TEMPFILE_SUFFIX = "~tmp";
+    private static final String FILE_CHARSET_NAME = "UTF-8";
+    private static final int BUFFER_SIZE = 64*1024;
 
     private static FileUtil fileUtil = FileUtil.getInstance();
     
@@ -57,28 +75,28 @@ public class TempfileStringStorage implements StringStorage {
     }
     
     /**
-     * Store a value.
+     * Store a value atomically.
      * 
      * @param key      a valid key (see interface doc for details)
      * @param value    a not null ASCII String; non-ASCII characters are not guaranteed to be stored correctly
      * @throws IllegalArgumentException
      */
-    public synchronized void put(String key, String value) throws IllegalArgumentException {
+    public void put(String key, String value) throws IllegalArgumentException {
         // parameter check
-        if (key==null) {
-            throw new IllegalArgumentException("key=null");
-        }
-        if (!KEY_PATTERN.matcher(key).matches()) {
-            throw new IllegalArgumentException("invalid characters in key="+key);
-        }
         if (value==null) {
             throw new IllegalArgumentException("value=null");
         }
 
         // action
         try {
-            fileUtil.writeFile(getTempfileFile(key), value);
-        } catch (Exception e) {
+            StorageOutputStream out = putStream(key, false);
+            try {
+                out.write(value.getBytes(FILE_CHARSET_NAME));
+                out.commit();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
             log.log(Level.WARNING, "could not write value for key=" + key, e);
         }
     }
@@ -87,20 +105,143 @@ public class TempfileStringStorage implements StringStorage {
      * Retrieve a value.
      * 
      * @param key      a valid key (see interface doc for details)
-     * @return the values; null if no value found
+     * @return the values (decompressed if it was stored compressed); null if no value found
+     */
+    public String get(String key) {
+        // action
+        try {
+            InputStream in = getStream(key);
+            if (in==null) {
+                return null;
+            }
+            return fileUtil.readFileFromInputStream(in);
+        } catch (IOException e) {
+            log.log(Level.WARNING, "could not read value for key=" + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a value atomically.
+     * 
+     * @param key      a valid key (see interface doc for details)
+     * @param value    not null
+     * @throws IllegalArgumentException
      */
-    public synchronized String get(String key) {
+    public void putBytes(String key, byte[] value) throws IllegalArgumentException {
         // parameter check
-        if (key==null) {
-            throw new IllegalArgumentException("key=null");
+        if (value==null) {
+            throw new IllegalArgumentException("value=null");
         }
-        if (!KEY_PATTERN.matcher(key).matches()) {
-            throw new IllegalArgumentException("invalid characters in key="+key);
+
+        // action
+        try {
+            StorageOutputStream out = putStream(key, false);
+            try {
+                out.write(value);
+                out.commit();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, "could not write value for key=" + key, e);
         }
+    }
+
+    /**
+     * Write a value: to a temporary file st-[key]-[random]~tmp first
+     * that is renamed by StorageOutputStream.commit().
+     * 
+     * @param key         a valid key (see interface doc for details)
+     * @param compress    true=store GZIP compressed
+     * @throws IllegalArgumentException
+     * @throws IOException
+     */
+    public StorageOutputStream putStream(String key, boolean compress) throws IllegalArgumentException, IOException {
+        checkKey(key);
 
         // action
+        final File file = getTempfileFile(key);
+        // unique name: parallel writers of the same key do not disturb each other
+        final File tempFile = File.createTempFile(FILENAME_PREFIX+key+"-", TEMPFILE_SUFFIX, file.getParentFile());
+        final FileOutputStream fileOut = new FileOutputStream(tempFile);
+        OutputStream out = new BufferedOutputStream(fileOut, BUFFER_SIZE);
         try {
-            return fileUtil.readFile(getTempfileFile(key));
+            out = StreamStorageAdapter.compressIfRequested(out, compress);
+        } catch (IOException e) {
+            fileOut.close();
+            tempFile.delete();
+            throw e;
+        }
+        return new StorageOutputStream(out) {
+            @Override
+            public void commit() throws IOException {
+                // all data must be in the file before it is synced
+                if (out instanceof DeflaterOutputStream) {
+                    ((DeflaterOutputStream)out).finish();
+                }
+                flush();
+                fileOut.getFD().sync();
+                super.commit();
+            }
+
+            @Override
+            protected void store() throws IOException {
+                rename(tempFile, file);
+            }
+
+            @Override
+            protected void discard() {
+                tempFile.delete();
+            }
+        };
+    }
+
+    /**
+     * Read a value.
+     * 
+     * @param key      a valid key (see interface doc for details)
+     * @return the value, decompressed if it was stored compressed; null if no value found
+     * @throws IllegalArgumentException
+     * @throws IOException
+     */
+    public InputStream getStream(String key) throws IllegalArgumentException, IOException {
+        checkKey(key);
+
+        // action
+        FileInputStream in;
+        try {
+            in = new FileInputStream(getTempfileFile(key));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            return StreamStorageAdapter.decompressIfNeeded(new BufferedInputStream(in, BUFFER_SIZE));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieve a value.
+     * 
+     * @param key      a valid key (see interface doc for details)
+     * @return the value, memory-mapped read-only; null if no value found
+     */
+    public ByteBuffer getBytes(String key) {
+        checkKey(key);
+
+        // action
+        try {
+            RandomAccessFile file = new RandomAccessFile(getTempfileFile(key), "r");
+            try {
+                // the mapping stays valid after closing the file
+                FileChannel channel = file.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                file.close();
+            }
         } catch (FileNotFoundException e) {
             return null;
         } catch (Exception e) {
@@ -113,6 +254,31 @@ public class TempfileStringStorage implements StringStorage {
     ///////////////////////////////////////////////////////
     // internal helper methods
     ///////////////////////////////////////////////////////
+
+    private static void checkKey(String key) throws IllegalArgumentException {
+        if (key==null) {
+            throw new IllegalArgumentException("key=null");
+        }
+        if (!KEY_PATTERN.matcher(key).matches()) {
+            throw new IllegalArgumentException("invalid characters in key="+key);
+        }
+    }
+
+    /**
+     * Replace file by tempFile.
+     */
+    private static void rename(File tempFile, File file) throws IOException {
+        if (!tempFile.renameTo(file)) {
+            // e.g. Windows: the target must not exist
+            synchronized (TempfileStringStorage.class) {
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    tempFile.delete();
+                    throw new IOException("could not rename "+tempFile+" to "+file);
+                }
+            }
+        }
+    }
      
     /**
      * Create the file(path) for a key.
@@ -0,0 +1,84 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the circuit availability condition.
+ */
+public class CircuitAvailabilityLocalTest {
+    private CircuitAvailability circuitAvailability;
+
+    @Before
+    public void setUp() {
+        circuitAvailability = new CircuitAvailability(2);
+    }
+
+    @Test(timeout=5000)
+    public void testSignalWakesUpWaiter() throws Exception {
+        final long version = circuitAvailability.getVersion();
+        final boolean[] result = new boolean[1];
+        Thread waiter = new Thread() {
+            public void run() {
+                try {
+                    result[0] = circuitAvailability.awaitChange(version, 4000);
+                } catch (InterruptedException e) {
+                    result[0] = false;
+                }
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+
+        long startMillis = System.currentTimeMillis();
+        circuitAvailability.signal();
+        waiter.join();
+        assertTrue("waiter not signaled", result[0]);
+        assertTrue("waiter woken up too late", System.currentTimeMillis()-startMillis < 2000);
+    }
+
+    @Test(timeout=5000)
+    public void testSignalBeforeWaitIsNotLost() throws Exception {
+        long version = circuitAvailability.getVersion();
+        circuitAvailability.signal();
+        assertTrue("signal lost", circuitAvailability.awaitChange(version, 1000));
+    }
+
+    /**
+     * Each instance has its own condition: a signal does not wake up waiters of another instance.
+     */
+    @Test(timeout=5000)
+    public void testInstancesAreIndependent() throws Exception {
+        CircuitAvailability other = new CircuitAvailability(2);
+        long version = circuitAvailability.getVersion();
+        other.signal();
+        assertFalse("signal of another instance", circuitAvailability.awaitChange(version, 50));
+    }
+
+    @Test(timeout=5000)
+    public void testTimeout() throws Exception {
+        long version = circuitAvailability.getVersion();
+        assertFalse("unexpected signal", circuitAvailability.awaitChange(version, 50));
+    }
+}
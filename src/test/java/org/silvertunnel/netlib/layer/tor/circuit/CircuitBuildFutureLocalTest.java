@@ -0,0 +1,121 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ * Test the result handling of asynchronous circuit builds.
+ */
+public class CircuitBuildFutureLocalTest {
+
+    /** counts the callbacks */
+    private static class CountingListener implements CircuitBuildListener {
+        int succeeded;
+        int failed;
+        Exception lastException;
+
+        public void circuitBuildSucceeded(Circuit circuit) {
+            succeeded++;
+        }
+        public void circuitBuildFailed(Circuit circuit, Exception e) {
+            failed++;
+            lastException = e;
+        }
+    }
+
+    @Test
+    public void testListenerAddedBeforeSuccess() throws Exception {
+        CircuitBuildFuture future = new CircuitBuildFuture(null);
+        CountingListener listener = new CountingListener();
+        future.addListener(listener);
+        assertEquals("listener called too early", 0, listener.succeeded);
+
+        future.setSucceeded();
+        assertTrue("not done", future.isDone());
+        assertEquals("wrong number of success callbacks", 1, listener.succeeded);
+        assertEquals("wrong number of failure callbacks", 0, listener.failed);
+
+        // finishing twice must not notify again
+        future.setFailed(new IOException("ignored"));
+        assertEquals("wrong number of success callbacks", 1, listener.succeeded);
+        assertEquals("wrong number of failure callbacks", 0, listener.failed);
+    }
+
+    @Test
+    public void testListenerAddedAfterFailure() throws Exception {
+        CircuitBuildFuture future = new CircuitBuildFuture(null);
+        IOException reason = new IOException("no route");
+        future.setFailed(reason);
+
+        CountingListener listener = new CountingListener();
+        future.addListener(listener);
+        assertEquals("wrong number of failure callbacks", 1, listener.failed);
+        assertEquals("wrong exception", reason, listener.lastException);
+
+        try {
+            future.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertEquals("wrong cause", reason, e.getCause());
+        }
+    }
+
+    @Test
+    public void testGetWithTimeout() throws Exception {
+        CircuitBuildFuture future = new CircuitBuildFuture(null);
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+            fail("TimeoutException expected");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertFalse("must not be done", future.isDone());
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        CircuitBuildFuture future = new CircuitBuildFuture(null);
+        CountingListener listener = new CountingListener();
+        future.addListener(listener);
+
+        assertTrue("cancel failed", future.cancel(true));
+        assertTrue("not cancelled", future.isCancelled());
+        assertTrue("not done", future.isDone());
+        assertEquals("wrong number of failure callbacks", 1, listener.failed);
+        assertFalse("second cancel must fail", future.cancel(true));
+        try {
+            future.get();
+            fail("CancellationException expected");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
+import org.silvertunnel.netlib.layer.tor.directory.RouterTestUtil;
+import org.silvertunnel.netlib.layer.tor.util.TorException;
+
+/**
+ * Test the state machine of the circuit build with simulated routers.
+ */
+public class CircuitBuilderLocalTest {
+    private long oldMaxAllowedSetupDurationMs;
+    private int oldReconnectCircuit;
+
+    private SimulatedTLSConnectionAdmin tlsConnectionAdmin;
+    private RouterImpl[] route;
+    private RouterImpl[] restoredRoute;
+
+    @Before
+    public void setUp() throws Exception {
+        oldMaxAllowedSetupDurationMs = TorConfig.maxAllowedSetupDurationMs;
+        oldReconnectCircuit = TorConfig.reconnectCircuit;
+        TorConfig.maxAllowedSetupDurationMs = 10000;
+        TorConfig.reconnectCircuit = 3;
+
+        tlsConnectionAdmin = new SimulatedTLSConnectionAdmin();
+        RouterImpl router1 = RouterTestUtil.createRouter(1);
+        RouterImpl router2 = RouterTestUtil.createRouter(2);
+        RouterImpl router3 = RouterTestUtil.createRouter(3);
+        RouterImpl router4 = RouterTestUtil.createRouter(4);
+        route = new RouterImpl[] {router1, router2, router3};
+        // first hop replaced
+        restoredRoute = new RouterImpl[] {router4, router2, router3};
+    }
+
+    @After
+    public void tearDown() {
+        TorConfig.maxAllowedSetupDurationMs = oldMaxAllowedSetupDurationMs;
+        TorConfig.reconnectCircuit = oldReconnectCircuit;
+    }
+
+    /**
+     * CONNECTING -> CREATING -> EXTENDING (twice) -> ESTABLISHED
+     */
+    @Test(timeout=30000)
+    public void testCreatedAndExtended() throws Exception {
+        TestCircuitBuilder builder = createBuilder();
+        Circuit circuit = builder.start().get(10, TimeUnit.SECONDS);
+
+        assertTrue("circuit not established", circuit.isEstablished());
+        assertEquals("wrong number of established hops", 3, circuit.getRouteEstablished());
+        assertSame("wrong last hop", route[2], circuit.getRoute()[2]);
+        List<Cell> sentCells = getConnection(route[0]).getSentCells();
+        assertEquals("wrong first cell", Cell.CELL_CREATE, sentCells.get(0).getCommand());
+        assertEquals("wrong number of EXTEND cells", 2, getConnection(route[0]).countSentRelayCells(CellRelay.RELAY_EXTEND));
+        assertEquals("unexpected retry", 0, builder.getRestores());
+    }
+
+    /**
+     * The first hop answers with a RELAY instead of a CREATED cell: the build fails without retry.
+     */
+    @Test(timeout=30000)
+    public void testUnexpectedCellFails() throws Exception {
+        TorConfig.reconnectCircuit = 1;
+        getConnection(route[0]).setSetupMode(SimulatedTLSConnection.MODE_REFUSE);
+        TestCircuitBuilder builder = createBuilder();
+        CircuitBuildFuture future = builder.start();
+
+        Throwable cause = getFailure(future);
+        assertTrue("wrong exception: "+cause, cause instanceof TorException);
+        assertTrue("circuit not closed", future.getCircuit().isClosed());
+        assertEquals("unexpected retry", 0, builder.getRestores());
+    }
+
+    /**
+     * The first hop fails: the next attempt uses the route of restoreCircuit.
+     */
+    @Test(timeout=30000)
+    public void testRetryWithRestoredRoute() throws Exception {
+        getConnection(route[0]).setSetupMode(SimulatedTLSConnection.MODE_REFUSE);
+        TestCircuitBuilder builder = createBuilder();
+        Circuit circuit = builder.start().get(10, TimeUnit.SECONDS);
+
+        assertTrue("circuit not established", circuit.isEstablished());
+        assertEquals("wrong number of retries", 1, builder.getRestores());
+        assertEquals("wrong failed node", 0, builder.getFailedNode());
+        assertSame("restored route not used", restoredRoute[0], circuit.getRoute()[0]);
+        assertEquals("wrong number of EXTEND cells", 2, getConnection(restoredRoute[0]).countSentRelayCells(CellRelay.RELAY_EXTEND));
+    }
+
+    /**
+     * The first hop does not answer: the build fails after maxAllowedSetupDurationMs.
+     */
+    @Test(timeout=30000)
+    public void testDeadline() throws Exception {
+        TorConfig.maxAllowedSetupDurationMs = 300;
+        getConnection(route[0]).setSetupMode(SimulatedTLSConnection.MODE_SILENT);
+        long startMillis = System.currentTimeMillis();
+        CircuitBuildFuture future = createBuilder().start();
+
+        Throwable cause = getFailure(future);
+        long durationMs = System.currentTimeMillis()-startMillis;
+        assertTrue("wrong exception: "+cause, cause instanceof IOException);
+        assertTrue("failed before the deadline", durationMs >= TorConfig.maxAllowedSetupDurationMs);
+        assertTrue("failed too late (step timeout?)", durationMs < TorConfig.queueTimeoutCircuit*1000L);
+        assertTrue("circuit not closed", future.getCircuit().isClosed());
+    }
+
+    @Test(timeout=30000)
+    public void testAbort() throws Exception {
+        SimulatedTLSConnection connection = getConnection(route[0]);
+        connection.setSetupMode(SimulatedTLSConnection.MODE_SILENT);
+        CircuitBuildFuture future = createBuilder().start();
+        // wait for CREATING
+        while (connection.getSentCells().isEmpty()) {
+            Thread.sleep(10);
+        }
+
+        assertTrue("not cancelled", future.cancel(true));
+        assertTrue("not cancelled", future.isCancelled());
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("CancellationException expected");
+        } catch (CancellationException e) {
+            // expected
+        }
+        assertTrue("circuit not closed", future.getCircuit().isClosed());
+    }
+
+    /**
+     * More hanging TLS connects than build threads: other builds and the deadlines still proceed.
+     */
+    @Test(timeout=30000)
+    public void testSlowConnectsDoNotBlockOtherBuilds() throws Exception {
+        TorConfig.maxAllowedSetupDurationMs = 500;
+        int numberOfSlowBuilds = TorConfig.circuitBuildThreads+2;
+        List<CircuitBuildFuture> slowBuilds = new ArrayList<CircuitBuildFuture>();
+        try {
+            for (int i=0; i<numberOfSlowBuilds; i++) {
+                RouterImpl slowFirstHop = RouterTestUtil.createRouter(100+i);
+                tlsConnectionAdmin.blockConnect(slowFirstHop);
+                slowBuilds.add(createBuilder(new RouterImpl[] {slowFirstHop, route[1], route[2]}).start());
+            }
+
+            Circuit circuit = createBuilder().start().get(10, TimeUnit.SECONDS);
+            assertTrue("circuit not established", circuit.isEstablished());
+            for (CircuitBuildFuture future : slowBuilds) {
+                Throwable cause = getFailure(future);
+                assertTrue("wrong exception: "+cause, cause instanceof IOException);
+            }
+        } finally {
+            tlsConnectionAdmin.releaseConnects();
+        }
+    }
+
+    ///////////////////////////////////////////////////////
+    // helper method(s)
+    ///////////////////////////////////////////////////////
+
+    private TestCircuitBuilder createBuilder() {
+        return createBuilder(route);
+    }
+
+    private TestCircuitBuilder createBuilder(RouterImpl[] route) {
+        Circuit circuit = new Circuit(tlsConnectionAdmin, null, tlsConnectionAdmin.getTorEventService());
+        return new TestCircuitBuilder(circuit, tlsConnectionAdmin, route, restoredRoute);
+    }
+
+    private SimulatedTLSConnection getConnection(RouterImpl firstHop) {
+        return tlsConnectionAdmin.getSimulatedConnection(firstHop);
+    }
+
+    /**
+     * @return the cause of the failed build
+     */
+    private static Throwable getFailure(CircuitBuildFuture future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("build did not fail");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    /** builder with fixed routes instead of the directory */
+    private static class TestCircuitBuilder extends CircuitBuilder {
+        private final RouterImpl[] route;
+        private final RouterImpl[] restoredRoute;
+        private int restores;
+        private int failedNode = -1;
+
+        TestCircuitBuilder(Circuit circuit, TLSConnectionAdmin tlsConnectionAdmin, RouterImpl[] route, RouterImpl[] restoredRoute) {
+            super(circuit, tlsConnectionAdmin, new TCPStreamProperties());
+            this.route = route;
+            this.restoredRoute = restoredRoute;
+        }
+
+        @Override
+        RouterImpl[] createRoute() {
+            return route;
+        }
+
+        @Override
+        synchronized RouterImpl[] restoreRoute(RouterImpl[] failedRoute, int failedNode) {
+            restores++;
+            this.failedNode = failedNode;
+            return restoredRoute;
+        }
+
+        synchronized int getRestores() {
+            return restores;
+        }
+
+        synchronized int getFailedNode() {
+            return failedNode;
+        }
+    }
+}
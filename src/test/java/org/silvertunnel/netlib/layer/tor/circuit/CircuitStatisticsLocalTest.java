@@ -0,0 +1,71 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test the live counters of circuits and streams.
+ */
+public class CircuitStatisticsLocalTest {
+
+    @Test
+    public void testCircuitLifecycle() {
+        CircuitStatistics statistics = new CircuitStatistics();
+        statistics.circuitStateChanged(CircuitStatistics.NONE, CircuitStatistics.BUILDING);
+        statistics.circuitStateChanged(CircuitStatistics.NONE, CircuitStatistics.BUILDING);
+        statistics.circuitStateChanged(CircuitStatistics.BUILDING, CircuitStatistics.ESTABLISHED);
+
+        CircuitsStatus status = statistics.getStatus();
+        assertEquals("wrong total", 2, status.getCircuitsTotal());
+        assertEquals("wrong alive", 2, status.getCircuitsAlive());
+        assertEquals("wrong established", 1, status.getCircuitsEstablished());
+        assertEquals("wrong closed", 0, status.getCircuitsClosed());
+
+        statistics.circuitStateChanged(CircuitStatistics.ESTABLISHED, CircuitStatistics.CLOSED);
+        status = statistics.getStatus();
+        assertEquals("wrong total", 2, status.getCircuitsTotal());
+        assertEquals("wrong alive", 1, status.getCircuitsAlive());
+        assertEquals("wrong established", 0, status.getCircuitsEstablished());
+        assertEquals("wrong closed", 1, status.getCircuitsClosed());
+
+        statistics.circuitDestructed();
+        statistics.circuitStateChanged(CircuitStatistics.CLOSED, CircuitStatistics.NONE);
+        status = statistics.getStatus();
+        assertEquals("wrong total", 1, status.getCircuitsTotal());
+        assertEquals("wrong closed", 0, status.getCircuitsClosed());
+        assertEquals("wrong destructed", 1, status.getCircuitsDestructed());
+    }
+
+    @Test
+    public void testStreamLifecycle() {
+        CircuitStatistics statistics = new CircuitStatistics();
+        statistics.streamStateChanged(CircuitStatistics.NONE, CircuitStatistics.BUILDING);
+        statistics.streamStateChanged(CircuitStatistics.NONE, CircuitStatistics.BUILDING);
+        statistics.streamStateChanged(CircuitStatistics.BUILDING, CircuitStatistics.ESTABLISHED);
+        statistics.streamStateChanged(CircuitStatistics.BUILDING, CircuitStatistics.CLOSED);
+
+        CircuitsStatus status = statistics.getStatus();
+        assertEquals("wrong building", 0, status.getStreamsBuilding());
+        assertEquals("wrong established", 1, status.getStreamsEstablished());
+        assertEquals("wrong closed", 1, status.getStreamsClosed());
+    }
+}
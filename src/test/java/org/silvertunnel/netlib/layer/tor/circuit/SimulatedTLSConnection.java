@@ -0,0 +1,180 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
+
+/**
+ * TLS connection without network that simulates the routers of the circuits built over it.
+ *
+ * All sent cells are recorded. CREATE and EXTEND cells are answered according to the setup mode,
+ * RELAY_BEGIN cells according to the stream mode. The answers are delivered by a separate thread,
+ * like by the TLSDispatcherThread of a real connection.
+ */
+public class SimulatedTLSConnection extends TLSConnection {
+    /** answer like a Tor router */
+    public static final int MODE_ANSWER = 0;
+    /** never answer */
+    public static final int MODE_SILENT = 1;
+    /** answer with an unexpected cell (setup) or with RELAY_END (stream) */
+    public static final int MODE_REFUSE = 2;
+
+    private static final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SimulatedTLSConnection dispatcher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final List<Cell> sentCells = new ArrayList<Cell>();
+    private final List<Long> sentMillis = new ArrayList<Long>();
+    private volatile int setupMode = MODE_ANSWER;
+    private volatile int streamMode = MODE_SILENT;
+    private volatile long streamAnswerDelayMs;
+
+    /**
+     * @param firstHop    the router this connection leads to
+     */
+    public SimulatedTLSConnection(RouterImpl firstHop) {
+        super(firstHop);
+    }
+
+    @Override
+    synchronized void sendCell(Cell c) throws IOException {
+        sentCells.add(c);
+        sentMillis.add(System.currentTimeMillis());
+        notifyAll();
+
+        if (c instanceof CellCreate) {
+            answerSetup(c.outCircuit, true);
+        } else if (c instanceof CellRelayExtend) {
+            answerSetup(c.outCircuit, false);
+        } else if (c instanceof CellRelayBegin) {
+            Stream stream = c.outCircuit.getStreams().get(((CellRelay)c).getStreamId());
+            if (stream!=null) {
+                answerBegin(stream);
+            }
+        }
+    }
+
+    private void answerSetup(Circuit circuit, boolean create) {
+        if (setupMode==MODE_SILENT) {
+            return;
+        }
+        Cell answer;
+        if (setupMode==MODE_REFUSE) {
+            answer = new CellRelay(circuit, CellRelay.RELAY_DATA);
+        } else {
+            // second half of the DH handshake, calculated like the router does
+            Node client = circuit.getRouteNodes()[circuit.getRouteEstablished()];
+            Node router = new Node(client.getRouter(), client.getDhXBytes());
+            byte[] data;
+            if (create) {
+                answer = new Cell(circuit, Cell.CELL_CREATED);
+                data = answer.payload;
+            } else {
+                CellRelay relay = new CellRelay(circuit, CellRelay.RELAY_EXTENDED);
+                answer = relay;
+                data = relay.data;
+            }
+            System.arraycopy(router.getDhYBytes(), 0, data, 0, 128);
+            System.arraycopy(router.getKh(), 0, data, 128, 20);
+        }
+        deliver(circuit.getQueue(), answer, 0);
+    }
+
+    private void answerBegin(Stream stream) {
+        if (streamMode==MODE_ANSWER) {
+            deliver(stream.getQueue(), new CellRelay(stream, CellRelay.RELAY_CONNECTED), streamAnswerDelayMs);
+        } else if (streamMode==MODE_REFUSE) {
+            deliver(stream.getQueue(), new CellRelay(stream, CellRelay.RELAY_END), streamAnswerDelayMs);
+        }
+    }
+
+    private static void deliver(final Queue queue, final Cell cell, long delayMs) {
+        dispatcher.schedule(new Runnable() {
+            public void run() {
+                queue.add(cell);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    /**
+     * @param setupMode    answer to CREATE and EXTEND cells: MODE_ANSWER, MODE_SILENT or MODE_REFUSE
+     */
+    public void setSetupMode(int setupMode) {
+        this.setupMode = setupMode;
+    }
+
+    /**
+     * @param streamMode    answer to RELAY_BEGIN cells: MODE_ANSWER, MODE_SILENT or MODE_REFUSE
+     * @param delayMs       delay of the answer
+     */
+    public void setStreamMode(int streamMode, long delayMs) {
+        this.streamMode = streamMode;
+        this.streamAnswerDelayMs = delayMs;
+    }
+
+    /**
+     * @return all cells sent so far
+     */
+    public synchronized List<Cell> getSentCells() {
+        return new ArrayList<Cell>(sentCells);
+    }
+
+    /**
+     * @param relayCommand    e.g. CellRelay.RELAY_END
+     * @return the number of sent relay cells with this command
+     */
+    public synchronized int countSentRelayCells(int relayCommand) {
+        int result = 0;
+        for (Cell cell : sentCells) {
+            if (cell instanceof CellRelay && ((CellRelay)cell).getRelayCommand()==relayCommand) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param relayCommand    e.g. CellRelay.RELAY_BEGIN
+     * @return the time of the first sent relay cell with this command; -1 if none was sent
+     */
+    public synchronized long getFirstSentMillis(int relayCommand) {
+        for (int i=0; i<sentCells.size(); i++) {
+            Cell cell = sentCells.get(i);
+            if (cell instanceof CellRelay && ((CellRelay)cell).getRelayCommand()==relayCommand) {
+                return sentMillis.get(i);
+            }
+        }
+        return -1;
+    }
+}
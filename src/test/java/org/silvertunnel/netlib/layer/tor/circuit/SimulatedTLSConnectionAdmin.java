@@ -0,0 +1,114 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel.netlib.layer.tor.circuit;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+import org.silvertunnel.netlib.layer.tor.common.TorEventService;
+import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
+
+/**
+ * Connection admin without network: provides one SimulatedTLSConnection per first hop.
+ */
+public class SimulatedTLSConnectionAdmin extends TLSConnectionAdmin {
+    private final Map<Fingerprint,SimulatedTLSConnection> connections = new HashMap<Fingerprint,SimulatedTLSConnection>();
+    private final TorEventService torEventService = new TorEventService();
+    /** first hops whose connect blocks until releaseConnects() */
+    private final Set<Fingerprint> blockedFirstHops = new HashSet<Fingerprint>();
+    private final CountDownLatch connectsReleased = new CountDownLatch(1);
+
+    public SimulatedTLSConnectionAdmin() throws IOException {
+        super(null, null);
+    }
+
+    @Override
+    TLSConnection getConnection(RouterImpl router) throws IOException {
+        boolean blocked;
+        synchronized (this) {
+            blocked = blockedFirstHops.contains(router.getFingerprint());
+        }
+        if (blocked) {
+            // like a slow TLS handshake
+            try {
+                connectsReleased.await();
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+        }
+        return getSimulatedConnection(router);
+    }
+
+    /**
+     * Let the connect to the router block until releaseConnects() is called.
+     */
+    public synchronized void blockConnect(RouterImpl router) {
+        blockedFirstHops.add(router.getFingerprint());
+    }
+
+    /**
+     * Finish all blocked connects.
+     */
+    public void releaseConnects() {
+        connectsReleased.countDown();
+    }
+
+    /**
+     * @return the (new or existing) simulated connection to the router
+     */
+    public synchronized SimulatedTLSConnection getSimulatedConnection(RouterImpl router) {
+        SimulatedTLSConnection result = connections.get(router.getFingerprint());
+        if (result==null) {
+            result = new SimulatedTLSConnection(router);
+            connections.put(router.getFingerprint(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Build a circuit over a fixed route, without directory.
+     *
+     * @param route    the route; the first hop must answer (see SimulatedTLSConnection.setSetupMode())
+     * @return the established circuit
+     */
+    public Circuit createCircuit(final RouterImpl[] route) throws Exception {
+        Circuit circuit = new Circuit(this, null, torEventService);
+        CircuitBuilder builder = new CircuitBuilder(circuit, this, new TCPStreamProperties()) {
+            @Override
+            RouterImpl[] createRoute() {
+                return route;
+            }
+        };
+        return builder.start().get(10, TimeUnit.SECONDS);
+    }
+
+    ///////////////////////////////////////////////////////
+    // getters and setters
+    ///////////////////////////////////////////////////////
+
+    public TorEventService getTorEventService() {
+        return torEventService;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Test parsing and usage of the bandwidth weights of a consensus.
+ */
+public class BandwidthWeightsLocalTest {
+    private static final double DELTA = 0.0001;
+    private static final String EXAMPLE_LINE =
+        "Wbd=0 Wbe=0 Wbg=4194 Wbm=10000 Wdb=10000 Web=10000 Wed=10000 Wee=10000 Weg=10000 Wem=10000 "
+        + "Wgb=10000 Wgd=0 Wgg=5806 Wgm=5806 Wmb=10000 Wmd=0 Wme=0 Wmg=4194 Wmm=10000";
+
+    @Test
+    public void testParsedWeights() {
+        BandwidthWeights weights = new BandwidthWeights(EXAMPLE_LINE, BandwidthWeights.DEFAULT_SCALE);
+        assertEquals("Wgg", 580.6, weights.getWeightedBandwidth(RouterSampler.GUARD, true, false, 1000), DELTA);
+        assertEquals("Wgd", 0.0, weights.getWeightedBandwidth(RouterSampler.GUARD, true, true, 1000), DELTA);
+        assertEquals("Wmg", 419.4, weights.getWeightedBandwidth(RouterSampler.MIDDLE, true, false, 1000), DELTA);
+        assertEquals("Wme", 0.0, weights.getWeightedBandwidth(RouterSampler.MIDDLE, false, true, 1000), DELTA);
+        assertEquals("Wmm", 1000.0, weights.getWeightedBandwidth(RouterSampler.MIDDLE, false, false, 1000), DELTA);
+        assertEquals("Wee", 1000.0, weights.getWeightedBandwidth(RouterSampler.EXIT, false, true, 1000), DELTA);
+    }
+
+    @Test
+    public void testScaleAndMissingWeights() {
+        BandwidthWeights weights = new BandwidthWeights("Wmm=50", 100);
+        assertEquals("Wmm", 500.0, weights.getWeightedBandwidth(RouterSampler.MIDDLE, false, false, 1000), DELTA);
+        assertEquals("missing Wee must be neutral", 1000.0, weights.getWeightedBandwidth(RouterSampler.EXIT, false, true, 1000), DELTA);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.util.Util;
+import org.silvertunnel.netlib.util.FileUtil;
+import org.silvertunnel.netlib.util.TempfileStringStorage;
+
+/**
+ * Test writing and reading of the binary directory snapshot.
+ */
+public class BinaryDirectorySnapshotLocalTest {
+    private static final String EXAMPLE_CONSENSUS_PATH = "/org/silvertunnel/netlib/layer/tor/example-consensus.txt";
+    private static final String EXAMPLE_AUTHORITY_KEYS_PATH = "/org/silvertunnel/netlib/layer/tor/example-authority-keys.txt";
+    private static final String EXAMPLE_ROUTER_DESCRIPTORS_PATH = "/org/silvertunnel/netlib/layer/tor/example-router-descriptors.txt";
+    private static final Date EXAMPLE_CONSENSUS_VALID_DATE = Util.parseUtcTimestamp("2010-01-25 22:30:00");
+    private static final String TEST_STORAGEKEY = "test-directory-snapshot.bin";
+
+    private static TorConfig torConfig;
+    private static DirectoryConsensus consensus;
+    /** routers of the example descriptors that are part of the example consensus */
+    private static Map<Fingerprint,RouterImpl> routers;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // install BC, if not already done
+        if (Security.getProvider("BC")==null) {
+            Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        }
+
+        torConfig = new TorConfig(false);
+        String allCertsStr = FileUtil.getInstance().readFileFromClasspath(EXAMPLE_AUTHORITY_KEYS_PATH);
+        consensus = new DirectoryConsensus(FileUtil.getInstance().readFileFromClasspath(EXAMPLE_CONSENSUS_PATH),
+                new AuthorityKeyCertificates(allCertsStr, EXAMPLE_CONSENSUS_VALID_DATE), EXAMPLE_CONSENSUS_VALID_DATE);
+        Map<Fingerprint,RouterImpl> allRouters = RouterImpl.parseRouterDescriptors(torConfig,
+                FileUtil.getInstance().readFileFromClasspath(EXAMPLE_ROUTER_DESCRIPTORS_PATH));
+        routers = new HashMap<Fingerprint,RouterImpl>();
+        for (Fingerprint fingerprint : consensus.getFingerprintsNetworkStatusDescriptors().keySet()) {
+            RouterImpl r = allRouters.get(fingerprint);
+            if (r!=null) {
+                r.updateServerStatus(consensus.getFingerprintsNetworkStatusDescriptors().get(fingerprint).getFlags());
+                routers.put(fingerprint, r);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        assertTrue("too few routers in the example consensus: "+routers.size(), routers.size()>100);
+        byte[] snapshotBytes = BinaryDirectorySnapshot.write(consensus, routers);
+        BinaryDirectorySnapshot snapshot = BinaryDirectorySnapshot.read(torConfig, ByteBuffer.wrap(snapshotBytes));
+
+        // consensus
+        DirectoryConsensus readConsensus = snapshot.getConsensus();
+        assertEquals("wrong validUntil", consensus.getValidUntil(), readConsensus.getValidUntil());
+        assertEquals("wrong freshUntil", consensus.getFreshUntil(), readConsensus.getFreshUntil());
+        assertEquals("wrong number of entries", consensus.getFingerprintsNetworkStatusDescriptors().size(),
+                readConsensus.getFingerprintsNetworkStatusDescriptors().size());
+        assertTrue("consensus of the snapshot not valid", readConsensus.isValid(EXAMPLE_CONSENSUS_VALID_DATE));
+        for (RouterStatusDescription status : consensus.getFingerprintsNetworkStatusDescriptors().values()) {
+            RouterStatusDescription readStatus = readConsensus.getFingerprintsNetworkStatusDescriptors().get(status.getFingerprint());
+            assertNotNull("entry missing", readStatus);
+            assertEquals("wrong nickname", status.getNickname(), readStatus.getNickname());
+            assertEquals("wrong flags", status.getFlags(), readStatus.getFlags());
+            assertEquals("wrong lastPublication", status.getLastPublication(), readStatus.getLastPublication());
+            assertTrue("wrong digest", Arrays.equals(status.getDigestDescriptor(), readStatus.getDigestDescriptor()));
+        }
+
+        // routers
+        assertEquals("wrong number of routers", routers.size(), snapshot.getRouters().size());
+        InetAddress destination = InetAddress.getByName("1.2.3.4");
+        for (RouterImpl r : routers.values()) {
+            RouterImpl readRouter = snapshot.getRouters().get(r.getFingerprint());
+            assertNotNull("router missing", readRouter);
+            assertEquals("wrong nickname", r.getNickname(), readRouter.getNickname());
+            assertEquals("wrong address", r.getAddress(), readRouter.getAddress());
+            assertEquals("wrong orPort", r.getOrPort(), readRouter.getOrPort());
+            assertEquals("wrong dirPort", r.getDirPort(), readRouter.getDirPort());
+            assertEquals("wrong country code", r.getCountryCode(), readRouter.getCountryCode());
+            assertEquals("wrong validUntil", r.getValidUntil(), readRouter.getValidUntil());
+            assertEquals("wrong ranking", r.getRankingIndex(), readRouter.getRankingIndex(), 0.0f);
+            assertEquals("wrong flag Guard", r.isDirv2Guard(), readRouter.isDirv2Guard());
+            assertEquals("wrong flag Exit", r.isDirv2Exit(), readRouter.isDirv2Exit());
+            assertEquals("wrong flag HSDir", r.isDirv2HSDir(), readRouter.isDirv2HSDir());
+            assertEquals("wrong family", r.getFamilyEntries(), readRouter.getFamilyEntries());
+            assertEquals("wrong exit policy", r.getExitpolicy().length, readRouter.getExitpolicy().length);
+            for (int port : new int[] {22, 25, 80, 443, 6667}) {
+                assertEquals("wrong exit policy decision for port "+port,
+                        r.exitPolicyAccepts(destination, port), readRouter.exitPolicyAccepts(destination, port));
+            }
+        }
+
+        // keys are decoded at the first use
+        RouterImpl r = routers.values().iterator().next();
+        RouterImpl readRouter = snapshot.getRouters().get(r.getFingerprint());
+        assertEquals("wrong onion key", r.getOnionKey(), readRouter.getOnionKey());
+        assertEquals("wrong signing key", r.getSigningKey(), readRouter.getSigningKey());
+    }
+
+    @Test
+    public void testOtherVersionIsIgnored() throws Exception {
+        byte[] snapshotBytes = BinaryDirectorySnapshot.write(consensus, routers);
+        snapshotBytes[7]++;
+        try {
+            BinaryDirectorySnapshot.read(torConfig, ByteBuffer.wrap(snapshotBytes));
+            fail("snapshot of other version accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTruncatedSnapshotIsIgnored() throws Exception {
+        byte[] snapshotBytes = BinaryDirectorySnapshot.write(consensus, routers);
+        try {
+            BinaryDirectorySnapshot.read(torConfig, ByteBuffer.wrap(snapshotBytes, 0, snapshotBytes.length/2).slice());
+            fail("truncated snapshot accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMemoryMappedStorage() throws Exception {
+        byte[] snapshotBytes = BinaryDirectorySnapshot.write(consensus, routers);
+        TempfileStringStorage storage = TempfileStringStorage.getInstance();
+        storage.putBytes(TEST_STORAGEKEY, snapshotBytes);
+        BinaryDirectorySnapshot snapshot = BinaryDirectorySnapshot.read(torConfig, storage.getBytes(TEST_STORAGEKEY));
+        assertEquals("wrong number of routers", routers.size(), snapshot.getRouters().size());
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.api.RouterExitPolicy;
+
+/**
+ * Test that the compiled exit policy decides like the linear evaluation of the rules.
+ */
+public class CompiledExitPolicyLocalTest {
+    private static final long ANY = 0L;
+
+    @Test
+    public void testTypicalPolicy() {
+        RouterExitPolicy[] policy = new RouterExitPolicy[] {
+                new RouterExitPolicyImpl(false, 0x0a000000L, 0xff000000L, 0, 65535),  // reject 10.0.0.0/8:*
+                new RouterExitPolicyImpl(true, ANY, ANY, 80, 80),                     // accept *:80
+                new RouterExitPolicyImpl(true, ANY, ANY, 443, 443),                   // accept *:443
+                new RouterExitPolicyImpl(false, ANY, ANY, 0, 65535),                  // reject *:*
+        };
+        CompiledExitPolicy compiled = CompiledExitPolicy.compile(policy);
+
+        assertTrue("port 80", compiled.accepts(0x01020304L, 80));
+        assertTrue("port 443", compiled.accepts(0x01020304L, 443));
+        assertFalse("port 22", compiled.accepts(0x01020304L, 22));
+        assertFalse("private network", compiled.accepts(0x0a010203L, 80));
+        assertTrue("unknown address", compiled.accepts(CompiledExitPolicy.UNKNOWN_ADDRESS, 443));
+        assertFalse("unknown address", compiled.accepts(CompiledExitPolicy.UNKNOWN_ADDRESS, 444));
+    }
+
+    @Test
+    public void testNonPrefixNetmaskIsNotCompiled() {
+        RouterExitPolicy[] policy = new RouterExitPolicy[] {
+                new RouterExitPolicyImpl(true, 0x00ff0000L, 0x00ff0000L, 0, 65535),
+        };
+        assertNull("netmask is not a prefix", CompiledExitPolicy.compile(policy));
+    }
+
+    @Test
+    public void testRandomPoliciesLikeLinearEvaluation() {
+        Random rnd = new Random(4711);
+        for (int p=0; p<200; p++) {
+            RouterExitPolicy[] policy = new RouterExitPolicy[1+rnd.nextInt(20)];
+            for (int i=0; i<policy.length; i++) {
+                int prefixLength = rnd.nextInt(5)*8;
+                long netmask = (0xffffffffL << (32-prefixLength)) & 0xffffffffL;
+                long ip = (rnd.nextInt(4) << 24 | rnd.nextInt(4) << 16) & netmask;
+                int loPort = rnd.nextInt(100);
+                int hiPort = loPort + rnd.nextInt(50);
+                policy[i] = new RouterExitPolicyImpl(rnd.nextBoolean(), ip, netmask, loPort, hiPort);
+            }
+            CompiledExitPolicy compiled = CompiledExitPolicy.compile(policy);
+            for (int q=0; q<200; q++) {
+                long address = rnd.nextInt(10)==0 ? CompiledExitPolicy.UNKNOWN_ADDRESS : ((long)rnd.nextInt(4) << 24 | rnd.nextInt(4) << 16 | rnd.nextInt(2));
+                int port = rnd.nextInt(160);
+                assertEquals("policy "+p+" address "+address+" port "+port,
+                        linearAccepts(policy, address, port), compiled.accepts(address, port));
+            }
+        }
+    }
+
+    /** reference implementation, see RouterImpl.exitPolicyAccepts() */
+    private static boolean linearAccepts(RouterExitPolicy[] policy, long ip, int port) {
+        for (int i = 0; i < policy.length; ++i) {
+            if ((policy[i].getLoPort() <= port)
+                    && (policy[i].getHiPort() >= port)
+                    && (policy[i].getIp() == (ip & policy[i].getNetmask()))) {
+                return policy[i].isAccept();
+            }
+        }
+        return false;
+    }
+}
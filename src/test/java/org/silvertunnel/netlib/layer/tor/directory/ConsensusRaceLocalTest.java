@@ -0,0 +1,238 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.util.Util;
+import org.silvertunnel.netlib.util.FileUtil;
+
+/**
+ * Test the hedged consensus download with simulated directory servers.
+ */
+public class ConsensusRaceLocalTest {
+    private static final String EXAMPLE_CONSENSUS_PATH = "/org/silvertunnel/netlib/layer/tor/example-consensus.txt";
+    private static final String EXAMPLE_AUTHORITY_KEYS_PATH = "/org/silvertunnel/netlib/layer/tor/example-authority-keys.txt";
+    private static final Date EXAMPLE_CONSENSUS_VALID_DATE = Util.parseUtcTimestamp("2010-01-25 22:30:00");
+    /** still valid, but after every possible refresh time of the example consensus */
+    private static final Date EXAMPLE_CONSENSUS_REFRESH_DATE = Util.parseUtcTimestamp("2010-01-25 23:55:00");
+    private static final long HEDGE_DELAY_MS = 200;
+
+    private static byte[] compressedConsensus;
+    private static AuthorityKeyCertificates authorityKeyCertificates;
+
+    private RouterImpl slowRouter;
+    private RouterImpl failingRouter;
+    private RouterImpl fastRouter;
+    private BlockingInputStream slowStream;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // install BC, if not already done
+        if (Security.getProvider("BC")==null) {
+            Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        }
+
+        byte[] consensus = FileUtil.getInstance().readFileFromClasspath(EXAMPLE_CONSENSUS_PATH).getBytes(Util.UTF8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed);
+        out.write(consensus);
+        out.close();
+        compressedConsensus = compressed.toByteArray();
+
+        String allCertsStr = FileUtil.getInstance().readFileFromClasspath(EXAMPLE_AUTHORITY_KEYS_PATH);
+        authorityKeyCertificates = new AuthorityKeyCertificates(allCertsStr, EXAMPLE_CONSENSUS_VALID_DATE);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        TorConfig torConfig = new TorConfig(false);
+        slowRouter = createRouter(torConfig, 1);
+        failingRouter = createRouter(torConfig, 2);
+        fastRouter = createRouter(torConfig, 3);
+        slowStream = new BlockingInputStream();
+    }
+
+    /**
+     * The first directory server does not answer: the second one is started after the hedge delay
+     * and wins, the first download is cancelled.
+     */
+    @Test(timeout=30000)
+    public void testSlowServerIsOvertaken() throws Exception {
+        long startMillis = System.currentTimeMillis();
+        ConsensusRace.Download winner = createRace().run(Arrays.asList(slowRouter, fastRouter), new FirstCandidateRandom());
+
+        assertNotNull("no winner", winner);
+        assertEquals("wrong winner", fastRouter, winner.getDirRouter());
+        assertEquals("wrong number of parsed entries", 1448, winner.getConsensus().getFingerprintsNetworkStatusDescriptors().size());
+        assertTrue("compressed consensus not kept", Arrays.equals(compressedConsensus, winner.getCompressedConsensus()));
+        assertTrue("second download started before the hedge delay", System.currentTimeMillis()-startMillis >= HEDGE_DELAY_MS);
+        assertTrue("slow download not cancelled", slowStream.isClosed());
+    }
+
+    /**
+     * A failed download starts the next one immediately.
+     */
+    @Test(timeout=30000)
+    public void testFailedServerIsReplaced() throws Exception {
+        ConsensusRace.Download winner = createRace().run(Arrays.asList(failingRouter, fastRouter), new FirstCandidateRandom());
+
+        assertNotNull("no winner", winner);
+        assertEquals("wrong winner", fastRouter, winner.getDirRouter());
+    }
+
+    /**
+     * A failed download is replaced at once, also while another (slow) download is still running.
+     */
+    @Test(timeout=30000)
+    public void testFailedServerIsReplacedWhileOtherDownloadRuns() throws Exception {
+        final long hedgeDelayMs = 1000;
+        long startMillis = System.currentTimeMillis();
+        ConsensusRace.Download winner = createRace(hedgeDelayMs).run(Arrays.asList(slowRouter, failingRouter, fastRouter), new FirstCandidateRandom());
+
+        assertNotNull("no winner", winner);
+        assertEquals("wrong winner", fastRouter, winner.getDirRouter());
+        assertTrue("failed download not replaced at once", System.currentTimeMillis()-startMillis < 2*hedgeDelayMs);
+        assertTrue("slow download not cancelled", slowStream.isClosed());
+    }
+
+    /**
+     * A mirror that still serves the current consensus after its refresh time delivers a usable document.
+     */
+    @Test(timeout=30000)
+    public void testConsensusAfterRefreshTimeIsAccepted() throws Exception {
+        Date validAfter = Util.parseUtcTimestamp("2010-01-25 21:00:00");
+        ConsensusRace.Download winner = createRace(HEDGE_DELAY_MS, EXAMPLE_CONSENSUS_REFRESH_DATE, validAfter)
+                .run(Arrays.asList(fastRouter), new FirstCandidateRandom());
+
+        assertNotNull("consensus after its refresh time not accepted", winner);
+        assertTrue("consensus should need a refresh", winner.getConsensus().needsToBeRefreshed(EXAMPLE_CONSENSUS_REFRESH_DATE));
+    }
+
+    /**
+     * A consensus older than the current one is not usable.
+     */
+    @Test(timeout=30000)
+    public void testOlderConsensusIsRejected() throws Exception {
+        Date validAfter = Util.parseUtcTimestamp("2010-01-25 22:00:00");
+        assertNull("older consensus accepted", createRace(HEDGE_DELAY_MS, EXAMPLE_CONSENSUS_VALID_DATE, validAfter)
+                .run(Arrays.asList(fastRouter), new FirstCandidateRandom()));
+    }
+
+    @Test(timeout=30000)
+    public void testAllServersFail() throws Exception {
+        List<RouterImpl> dirRouters = new ArrayList<RouterImpl>();
+        dirRouters.add(failingRouter);
+        assertNull("unexpected winner", createRace().run(dirRouters, new Random()));
+    }
+
+    ///////////////////////////////////////////////////////
+    // helper method(s)
+    ///////////////////////////////////////////////////////
+
+    private ConsensusRace createRace() {
+        return createRace(HEDGE_DELAY_MS);
+    }
+
+    private ConsensusRace createRace(long hedgeDelayMs) {
+        return createRace(hedgeDelayMs, EXAMPLE_CONSENSUS_VALID_DATE, null);
+    }
+
+    private ConsensusRace createRace(long hedgeDelayMs, Date now, Date minValidAfter) {
+        // throughput threshold: the slow server is too slow
+        return new ConsensusRace(null, "/tor/status-vote/current/consensus.z", authorityKeyCertificates, now,
+                minValidAfter, null, 3, hedgeDelayMs, 1) {
+            @Override
+            InputStream openDownload(RouterImpl dirRouter) throws IOException {
+                if (dirRouter==slowRouter) {
+                    return slowStream;
+                } else if (dirRouter==fastRouter) {
+                    return new ByteArrayInputStream(compressedConsensus);
+                } else {
+                    throw new IOException("simulated connection error");
+                }
+            }
+        };
+    }
+
+    private static RouterImpl createRouter(TorConfig torConfig, int i) throws Exception {
+        byte[] id = new byte[20];
+        id[0] = (byte)i;
+        return new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(new byte[] {10, 0, 0, (byte)i}),
+                9001, 9030, null, new FingerprintImpl(id));
+    }
+
+    /** always choose the first remaining candidate */
+    private static class FirstCandidateRandom extends Random {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int nextInt(int n) {
+            return 0;
+        }
+    }
+
+    /** stream of a directory server that never answers */
+    private static class BlockingInputStream extends InputStream {
+        private boolean closed;
+
+        @Override
+        public synchronized int read() throws IOException {
+            while (!closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+            }
+            throw new IOException("stream closed");
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+    }
+}
@@ -18,13 +18,21 @@
 package org.silvertunnel.netlib.layer.tor.directory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.Security;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Random;
 import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -36,6 +44,7 @@ import org.silvertunnel.netlib.layer.tor.directory.RouterStatusDescription;
 import org.silvertunnel.netlib.layer.tor.util.Encoding;
 import org.silvertunnel.netlib.layer.tor.util.TorException;
 import org.silvertunnel.netlib.layer.tor.util.Util;
+import org.silvertunnel.netlib.util.CopyingInputStream;
 import org.silvertunnel.netlib.util.FileUtil;
 
 
@@ -90,12 +99,79 @@ public class DirectoryConsensusLocalTest {
         assertEquals("one specific result router entry: wrong fingerprint", fingerprint, desc.getFingerprint());
         assertEquals("one specific result router entry: wrong nick name", "dannenberg", desc.getNickname());
         assertEquals("one specific result router entry: wrong IP address", "213.73.91.31", desc.getIp());
+        assertEquals("one specific result router entry: wrong bandwidth", 10, desc.getBandwidth());
+        assertNull("the example consensus has no bandwidth weights", consensus.getBandwidthWeights());
         
         // check the validity checks
         assertTrue("invalid freshUntil="+consensus.getFreshUntil(),
                 consensus.getFreshUntil().before(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE));
         assertTrue("wrong result for needsToBeRefreshed with date="+EXAMPLE_CONSENSUS_INVALID_DATE,
                 consensus.needsToBeRefreshed(EXAMPLE_CONSENSUS_INVALID_DATE));
+
+        // refresh between fresh-until+45min and valid-until-9min22.5s
+        assertFalse("wrong result for needsToBeRefreshed with date="+EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE,
+                consensus.needsToBeRefreshed(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE));
+        assertTrue("wrong result for needsToBeRefreshed with date=2010-01-25 23:55:00",
+                consensus.needsToBeRefreshed(Util.parseUtcTimestamp("2010-01-25 23:55:00")));
+    }
+
+    /**
+     * Test that the refresh times are spread over the interval recommended by the spec.
+     */
+    @Test
+    public void testChooseRefreshTime() {
+        Date validAfter = Util.parseUtcTimestamp("2010-01-25 21:00:00");
+        Date freshUntil = Util.parseUtcTimestamp("2010-01-25 22:00:00");
+        Date validUntil = Util.parseUtcTimestamp("2010-01-26 00:00:00");
+        long earliest = Util.parseUtcTimestamp("2010-01-25 22:45:00").getTime();
+        long latest = earliest + (validUntil.getTime()-earliest)*7/8;
+
+        Random rnd = new Random(4711);
+        final int SAMPLES = 1000;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i=0; i<SAMPLES; i++) {
+            long refreshTime = DirectoryConsensus.chooseRefreshTime(validAfter, freshUntil, validUntil, rnd).getTime();
+            assertTrue("refresh time too early", refreshTime>=earliest);
+            assertTrue("refresh time too late", refreshTime<=latest);
+            min = Math.min(min, refreshTime);
+            max = Math.max(max, refreshTime);
+        }
+        assertTrue("refresh times not spread", max-min > (latest-earliest)*9/10);
+
+        // unusual times
+        assertEquals("valid-until before the interval", freshUntil,
+                DirectoryConsensus.chooseRefreshTime(validAfter, freshUntil, freshUntil, rnd));
+    }
+    
+    /**
+     * Test parsing of a valid consensus document while it is inflated,
+     * like a download of the ".z" URL
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testParsingCompressedConsensus() throws Exception {
+        // compress
+        byte[] directoryConsensus = FileUtil.getInstance().readFileFromClasspath(EXAMPLE_CONSENSUS_PATH).getBytes(Util.UTF8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(compressed);
+        out.write(directoryConsensus);
+        out.close();
+
+        // inflate and parse, keep a copy of the compressed data
+        ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        CopyingInputStream in = new CopyingInputStream(new ByteArrayInputStream(compressed.toByteArray()), copy);
+        DirectoryConsensus consensus = new DirectoryConsensus(
+                new InflaterInputStream(in),
+                getAllExampleAuthorityKeys(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE),
+                EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE);
+        in.copyRemaining();
+
+        // check result
+        assertEquals("invalid number of parsed entries", 1448, consensus.getFingerprintsNetworkStatusDescriptors().size());
+        assertTrue("compressed copy differs", Arrays.equals(compressed.toByteArray(), copy.toByteArray()));
+        assertTrue("not compressed", compressed.size()<directoryConsensus.length/2);
     }
     
     /**
@@ -0,0 +1,103 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Test the immutable view of the directory.
+ */
+public class DirectorySnapshotLocalTest {
+    private static final int NUMBER_OF_ROUTERS = 10;
+
+    private Map<Fingerprint,RouterImpl> routers;
+    private RouterSampler[] samplers;
+
+    @Before
+    public void setUp() throws Exception {
+        TorConfig torConfig = new TorConfig(false);
+        routers = new HashMap<Fingerprint,RouterImpl>();
+        for (int i=0; i<NUMBER_OF_ROUTERS; i++) {
+            byte[] id = new byte[20];
+            // descending fingerprints
+            id[0] = (byte)(NUMBER_OF_ROUTERS-i);
+            // odd routers are hidden service directories, router 1 without dir port
+            RouterImpl router = new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(new byte[] {10, 0, 0, (byte)i}),
+                    9001, (i==1) ? 0 : 9030, null, new FingerprintImpl(id));
+            router.updateServerStatus((i%2==1) ? "Running HSDir" : "Running");
+            router.setRankingIndex(i);
+            routers.put(router.getFingerprint(), router);
+        }
+        RouterSampler sampler = new RouterSampler(routers.values());
+        samplers = new RouterSampler[] {sampler, sampler, sampler, sampler};
+    }
+
+    @Test
+    public void testHiddenDirectoryServersOrderedByFingerprint() {
+        DirectorySnapshot snapshot = new DirectorySnapshot(null, routers, NUMBER_OF_ROUTERS, samplers);
+        RouterImpl[] hsDirs = snapshot.getHiddenDirectoryRing().toArray();
+        assertEquals("number of hidden service directories", NUMBER_OF_ROUTERS/2-1, hsDirs.length);
+        for (int i=0; i<hsDirs.length; i++) {
+            assertTrue("not a hidden service directory", hsDirs[i].isDirv2HSDir() && hsDirs[i].getDirPort()>0);
+            if (i>0) {
+                assertTrue("wrong order", hsDirs[i-1].getFingerprint().compareTo(hsDirs[i].getFingerprint())<0);
+            }
+        }
+
+        // the caller's copy does not change the snapshot
+        hsDirs[0] = null;
+        assertEquals("changed by reader", NUMBER_OF_ROUTERS/2-1, snapshot.getHiddenDirectoryRing().toArray().length);
+        assertTrue("changed by reader", snapshot.getHiddenDirectoryRing().toArray()[0]!=null);
+    }
+
+    @Test
+    public void testNotChangedByUpdater() {
+        DirectorySnapshot snapshot = new DirectorySnapshot(null, routers, NUMBER_OF_ROUTERS, samplers);
+        routers.clear();
+        assertEquals("changed by updater", NUMBER_OF_ROUTERS, snapshot.getValidRoutersByFingerprint().size());
+        try {
+            snapshot.getValidRoutersByFingerprint().clear();
+            fail("valid routers are modifiable");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWithUpdatedRankings() {
+        DirectorySnapshot snapshot = new DirectorySnapshot(null, routers, NUMBER_OF_ROUTERS, samplers);
+        DirectorySnapshot updated = snapshot.withUpdatedRankings();
+        assertSame("routers not shared", snapshot.getValidRoutersByFingerprint(), updated.getValidRoutersByFingerprint());
+        assertSame("old samplers changed", samplers[RouterSampler.MIDDLE], snapshot.getRouterSampler(RouterSampler.MIDDLE));
+        assertTrue("samplers not updated", samplers[RouterSampler.MIDDLE]!=updated.getRouterSampler(RouterSampler.MIDDLE));
+        assertEquals("routers of sampler", NUMBER_OF_ROUTERS, updated.getRouterSampler(RouterSampler.MIDDLE).size());
+    }
+}
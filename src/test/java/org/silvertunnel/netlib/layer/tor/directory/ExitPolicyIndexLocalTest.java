@@ -0,0 +1,134 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.api.RouterExitPolicy;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Test that the exit policy index finds the same routers as RouterImpl.exitPolicyAccepts().
+ */
+public class ExitPolicyIndexLocalTest {
+    private static final long ANY = 0L;
+    private static final int NUMBER_OF_ROUTERS = 100;
+
+    private TorConfig torConfig;
+    private Random rnd;
+
+    @Before
+    public void setUp() throws Exception {
+        torConfig = new TorConfig(false);
+        rnd = new Random(4711);
+    }
+
+    @Test
+    public void testRandomPoliciesLikeRouters() throws Exception {
+        RouterImpl[] routers = new RouterImpl[NUMBER_OF_ROUTERS];
+        for (int r=0; r<routers.length; r++) {
+            RouterExitPolicy[] policy = new RouterExitPolicy[1+rnd.nextInt(10)];
+            for (int i=0; i<policy.length; i++) {
+                long netmask;
+                if (r%25==0 && i==0) {
+                    // not a prefix: not compiled
+                    netmask = 0x00ff0000L;
+                } else {
+                    int prefixLength = rnd.nextInt(3)==0 ? rnd.nextInt(5)*8 : 0;
+                    netmask = (0xffffffffL << (32-prefixLength)) & 0xffffffffL;
+                }
+                long ip = (rnd.nextInt(4) << 24 | rnd.nextInt(4) << 16) & netmask;
+                int loPort = rnd.nextInt(100);
+                int hiPort = loPort + rnd.nextInt(50);
+                policy[i] = new RouterExitPolicyImpl(rnd.nextBoolean(), ip, netmask, loPort, hiPort);
+            }
+            routers[r] = createRouter(r, policy);
+        }
+        ExitPolicyIndex index = new ExitPolicyIndex(routers);
+
+        for (int q=0; q<2000; q++) {
+            InetAddress addr = (rnd.nextInt(10)==0) ? null
+                    : InetAddress.getByAddress(new byte[] {(byte)rnd.nextInt(4), (byte)rnd.nextInt(4), 0, (byte)rnd.nextInt(2)});
+            int port = rnd.nextInt(160);
+            assertEquals("address "+addr+" port "+port, expected(routers, addr, port), index.getAccepting(addr, port));
+        }
+    }
+
+    /**
+     * The routers of a port are shared by all destinations without address-specific rules.
+     */
+    @Test
+    public void testPortIndexIsShared() throws Exception {
+        RouterExitPolicy[] privateRejected = new RouterExitPolicy[] {
+                new RouterExitPolicyImpl(false, 0x0a000000L, 0xff000000L, 0, 65535),  // reject 10.0.0.0/8:*
+                new RouterExitPolicyImpl(true, ANY, ANY, 80, 80),                     // accept *:80
+                new RouterExitPolicyImpl(false, ANY, ANY, 0, 65535),                  // reject *:*
+        };
+        RouterExitPolicy[] ownAddressRejected = new RouterExitPolicy[] {
+                new RouterExitPolicyImpl(false, 0x01020304L, 0xffffffffL, 0, 65535), // reject 1.2.3.4:*
+                new RouterExitPolicyImpl(true, ANY, ANY, 0, 65535),                   // accept *:*
+        };
+        RouterImpl[] routers = new RouterImpl[] {createRouter(0, privateRejected), createRouter(1, ownAddressRejected)};
+        ExitPolicyIndex index = new ExitPolicyIndex(routers);
+
+        BitSet result1 = index.getAccepting(InetAddress.getByName("5.6.7.8"), 80);
+        BitSet result2 = index.getAccepting(InetAddress.getByName("9.10.11.12"), 80);
+        assertSame("port index not used", result1, result2);
+        assertEquals("public address", bits(0, 1), result1);
+
+        assertEquals("private address", bits(1), index.getAccepting(InetAddress.getByName("10.1.2.3"), 80));
+        assertEquals("own address", bits(0), index.getAccepting(InetAddress.getByName("1.2.3.4"), 80));
+        assertEquals("port", bits(1), index.getAccepting(InetAddress.getByName("5.6.7.8"), 22));
+    }
+
+    ///////////////////////////////////////////////////////
+    // helper method(s)
+    ///////////////////////////////////////////////////////
+
+    private RouterImpl createRouter(int i, RouterExitPolicy[] policy) throws Exception {
+        byte[] id = new byte[20];
+        id[0] = (byte)i;
+        return new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(new byte[] {10, 0, 0, (byte)i}),
+                9001, 0, 0, 0, 0, 0, new FingerprintImpl(id), 0, null, null, null, null, policy, null, null);
+    }
+
+    private static BitSet expected(RouterImpl[] routers, InetAddress addr, int port) {
+        BitSet result = new BitSet();
+        for (int i=0; i<routers.length; i++) {
+            if (routers[i].exitPolicyAccepts(addr, port)) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    private static BitSet bits(int... indexes) {
+        BitSet result = new BitSet();
+        for (int i : indexes) {
+            result.set(i);
+        }
+        return result;
+    }
+}
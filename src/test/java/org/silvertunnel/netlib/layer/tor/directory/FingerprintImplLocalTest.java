@@ -0,0 +1,86 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.util.Encoding;
+
+/**
+ * Test of FingerprintImpl.
+ */
+public class FingerprintImplLocalTest {
+
+    @Test
+    public void testBytesAndHex() {
+        String hex = "7BE683E65D48141321C5ED92F075C55364AC7123";
+        FingerprintImpl f = new FingerprintImpl(Encoding.parseHex(hex));
+        assertEquals("wrong hex", hex, f.getHex());
+        assertArrayEquals("wrong bytes", Encoding.parseHex(hex), f.getBytes());
+
+        byte[] longBytes = new byte[32];
+        new Random(1).nextBytes(longBytes);
+        assertArrayEquals("wrong bytes of long fingerprint", longBytes, new FingerprintImpl(longBytes).getBytes());
+    }
+
+    @Test
+    public void testOrderLikeHex() {
+        Random rnd = new Random(4711);
+        for (int i=0; i<10000; i++) {
+            FingerprintImpl a = randomFingerprint(rnd);
+            FingerprintImpl b = (rnd.nextInt(10)==0) ? new FingerprintImpl(a.getBytes()) : randomFingerprint(rnd);
+            int expected = Integer.signum(a.getHex().compareTo(b.getHex()));
+            assertEquals("wrong order of "+a+" and "+b, expected, Integer.signum(a.compareTo(b)));
+            assertEquals("equals of "+a+" and "+b, expected==0, a.equals(b));
+            if (expected==0) {
+                assertEquals("hash code of "+a, a.hashCode(), b.hashCode());
+            }
+        }
+    }
+
+    @Test
+    public void testHashDistribution() {
+        Set<Integer> buckets = new HashSet<Integer>();
+        for (int i=0; i<1000; i++) {
+            byte[] bytes = new byte[20];
+            bytes[19] = (byte)i;
+            bytes[18] = (byte)(i>>8);
+            buckets.add(new FingerprintImpl(bytes).hashCode() & 0xfff);
+        }
+        assertTrue("hash codes are not distributed: "+buckets.size(), buckets.size()>700);
+        assertFalse("different length", new FingerprintImpl(new byte[20]).equals(new FingerprintImpl(new byte[21])));
+    }
+
+    private static FingerprintImpl randomFingerprint(Random rnd) {
+        // few different values and lengths to get equal prefixes
+        byte[] bytes = new byte[16+rnd.nextInt(3)*4];
+        for (int i=0; i<bytes.length; i++) {
+            bytes[i] = (byte)(rnd.nextInt(3)*0x7f);
+        }
+        return new FingerprintImpl(bytes);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Test that the successor lookup of the hidden service directory ring
+ * finds the same routers as a scan of the ordered routers.
+ */
+public class HiddenDirectoryRingLocalTest {
+    private static final int NUMBER_OF_REPLICA_ROUTERS = 3;
+
+    @Test
+    public void testSuccessorsLikeLinearScan() throws Exception {
+        Random rnd = new Random(4711);
+        TorConfig torConfig = new TorConfig(false);
+        for (int size : new int[] {0, 1, 2, 3, 50}) {
+            List<RouterImpl> routers = new ArrayList<RouterImpl>();
+            for (int i=0; i<size; i++) {
+                routers.add(new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(new byte[] {10, 0, 0, (byte)i}),
+                        9001, 9030, null, randomFingerprint(rnd)));
+            }
+            HiddenDirectoryRing ring = new HiddenDirectoryRing(routers);
+            assertEquals("size", size, ring.size());
+
+            // ordered by fingerprint
+            RouterImpl[] ordered = ring.toArray();
+            for (int i=1; i<ordered.length; i++) {
+                assertTrue("wrong order", ordered[i-1].getFingerprint().compareTo(ordered[i].getFingerprint())<0);
+            }
+
+            // lookup of random descriptor ids and of the fingerprints themselves
+            List<Fingerprint> descriptorIds = new ArrayList<Fingerprint>();
+            for (int i=0; i<100; i++) {
+                descriptorIds.add(randomFingerprint(rnd));
+            }
+            for (RouterImpl r : routers) {
+                descriptorIds.add(r.getFingerprint());
+            }
+            for (Fingerprint descriptorId : descriptorIds) {
+                assertEquals("successors of "+descriptorId, linearSuccessors(ordered, descriptorId),
+                        ring.getSuccessors(descriptorId, NUMBER_OF_REPLICA_ROUTERS));
+            }
+        }
+    }
+
+    /**
+     * Fingerprints with the same first 8 bytes are ordered by the remaining bytes.
+     */
+    @Test
+    public void testSamePrefix() throws Exception {
+        TorConfig torConfig = new TorConfig(false);
+        List<RouterImpl> routers = new ArrayList<RouterImpl>();
+        for (int i=0; i<5; i++) {
+            byte[] id = new byte[20];
+            id[0] = 0x42;
+            id[19] = (byte)(10*i);
+            routers.add(new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(new byte[] {10, 0, 0, (byte)i}),
+                    9001, 9030, null, new FingerprintImpl(id)));
+        }
+        Collections.shuffle(routers, new Random(1));
+        HiddenDirectoryRing ring = new HiddenDirectoryRing(routers);
+
+        byte[] descriptorId = new byte[20];
+        descriptorId[0] = 0x42;
+        descriptorId[19] = 25;
+        List<RouterImpl> successors = ring.getSuccessors(new FingerprintImpl(descriptorId), NUMBER_OF_REPLICA_ROUTERS);
+        assertEquals("first successor", 30, successors.get(0).getFingerprint().getBytes()[19]);
+        assertEquals("second successor", 40, successors.get(1).getFingerprint().getBytes()[19]);
+        assertEquals("wrapped successor", 0, successors.get(2).getFingerprint().getBytes()[19]);
+    }
+
+    private static Fingerprint randomFingerprint(Random rnd) {
+        byte[] id = new byte[20];
+        rnd.nextBytes(id);
+        return new FingerprintImpl(id);
+    }
+
+    /** reference implementation: scan of the ordered routers, the first router follows the last one */
+    private static List<RouterImpl> linearSuccessors(RouterImpl[] routers, Fingerprint f) {
+        List<RouterImpl> result = new ArrayList<RouterImpl>();
+        int numOfRoutersToFind = Math.min(NUMBER_OF_REPLICA_ROUTERS, routers.length);
+        boolean takeNextRouters = false;
+        for (int i=0; i<2*routers.length && numOfRoutersToFind>0; i++) {
+            RouterImpl r = routers[i%routers.length];
+            if (!takeNextRouters && (r.getFingerprint().compareTo(f)>=0 || i==routers.length)) {
+                takeNextRouters = true;
+            }
+            if (takeNextRouters) {
+                result.add(r);
+                numOfRoutersToFind--;
+            }
+        }
+        return result;
+    }
+}
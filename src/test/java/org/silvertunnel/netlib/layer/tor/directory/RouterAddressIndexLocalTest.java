@@ -0,0 +1,74 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Test the lookup of routers by address and onion router port.
+ */
+public class RouterAddressIndexLocalTest {
+    private static final int NUMBER_OF_ROUTERS = 1000;
+
+    @Test
+    public void testLookup() throws Exception {
+        TorConfig torConfig = new TorConfig(false);
+        List<RouterImpl> routers = new ArrayList<RouterImpl>();
+        for (int i=0; i<NUMBER_OF_ROUTERS; i++) {
+            byte[] id = new byte[20];
+            id[0] = (byte)(i>>8);
+            id[1] = (byte)i;
+            // two routers per address
+            routers.add(new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(address(i/2)),
+                    9001+(i%2), 0, null, new FingerprintImpl(id)));
+        }
+        RouterAddressIndex index = new RouterAddressIndex(routers);
+
+        for (int i=0; i<NUMBER_OF_ROUTERS; i++) {
+            assertSame("router "+i, routers.get(i), index.get(address(i/2), 9001+(i%2)));
+        }
+        assertNull("unknown port", index.get(address(0), 9003));
+        assertNull("unknown address", index.get(address(NUMBER_OF_ROUTERS), 9001));
+        assertNull("byte order", index.get(new byte[] {(byte)1, 0, (byte)168, (byte)192}, 9001));
+        assertNull("IPv6", index.get(new byte[16], 9001));
+        assertNull("no address", index.get(null, 9001));
+    }
+
+    @Test
+    public void testEmpty() {
+        RouterAddressIndex index = new RouterAddressIndex(Collections.<RouterImpl>emptyList());
+        assertNull("empty index", index.get(address(0), 9001));
+    }
+
+    /**
+     * @return address 192.168.x.y of router i
+     */
+    private static byte[] address(int i) {
+        return new byte[] {(byte)192, (byte)168, (byte)(i>>8), (byte)i};
+    }
+}
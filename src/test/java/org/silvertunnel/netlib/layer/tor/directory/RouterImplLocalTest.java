@@ -0,0 +1,170 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.security.Security;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel.netlib.layer.tor.api.RouterExitPolicy;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel.netlib.layer.tor.util.Encoding;
+import org.silvertunnel.netlib.layer.tor.util.Encryption;
+import org.silvertunnel.netlib.layer.tor.util.Util;
+import org.silvertunnel.netlib.util.FileUtil;
+
+/**
+ * Test parsing of router descriptors.
+ */
+public class RouterImplLocalTest {
+    private static final String EXAMPLE_ROUTER_DESCRIPTORS_PATH = "/org/silvertunnel/netlib/layer/tor/example-router-descriptors.txt";
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // install BC, if not already done
+        if (Security.getProvider("BC")==null) {
+            Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        }    
+    }
+
+    @Test
+    public void testParseRouterDescriptors() throws Exception {
+        String allDescriptors = FileUtil.getInstance().readFileFromClasspath(EXAMPLE_ROUTER_DESCRIPTORS_PATH);
+        Map<Fingerprint,RouterImpl> routers = RouterImpl.parseRouterDescriptors(new TorConfig(false), allDescriptors);
+        // 4 of the descriptors have an invalid signature or key
+        assertEquals("wrong number of parsed routers", 1713, routers.size());
+
+        // check one router
+        RouterImpl r = routers.get(new FingerprintImpl(Encoding.parseHex("03A3F43DF0CA5F7A4D538DA4D4D7C72C99576BE7")));
+        assertNotNull("router hendi2 not found", r);
+        assertEquals("wrong nickname", "hendi2", r.getNickname());
+        assertEquals("wrong address", "81.169.168.60", r.getHostname());
+        assertEquals("wrong orPort", 9090, r.getOrPort());
+        assertEquals("wrong platform", "Tor 0.1.2.18 on Linux i686", r.getPlatform());
+        assertEquals("wrong published", Util.parseUtcTimestamp("2009-08-09 10:04:35"), r.getPublished());
+        assertEquals("wrong uptime", 6, r.getUptime());
+        assertEquals("wrong observed bandwidth", 1131569, r.getBandwidthObserved());
+        assertEquals("wrong contact", "1024D/E642F2B0 Hendrik Richter <h.richter naggel com>", r.getContact());
+        assertTrue("wrong family", r.getFamilyEntries().contains("$65430026300F34DE6273559A26C7FE6F1C513198"));
+        assertNotNull("onion key missing", r.getOnionKey());
+        assertEquals("wrong exit policy", 1, r.getExitpolicy().length);
+        assertFalse("reject *:* expected", r.exitPolicyAccepts(null, 80));
+
+        // digest of the signed part, as referred by the consensus
+        int start = allDescriptors.indexOf("router hendi2 ");
+        String signedPart = allDescriptors.substring(start, allDescriptors.indexOf("router-signature\n", start)+"router-signature\n".length());
+        byte[] digest = Encryption.getDigest(signedPart.getBytes(Util.UTF8));
+        assertTrue("wrong descriptor digest", r.hasDescriptor(digest));
+        assertFalse("wrong descriptor digest", r.hasDescriptor(new byte[20]));
+        assertEquals("wrong digest of descriptor text", new FingerprintImpl(digest),
+                RouterImpl.getDescriptorDigest(allDescriptors.substring(start, allDescriptors.indexOf("END SIGNATURE-----", start))));
+
+        // routers with equal exit policies share them
+        Set<RouterExitPolicy[]> exitPolicies = Collections.newSetFromMap(new IdentityHashMap<RouterExitPolicy[],Boolean>());
+        for (RouterImpl router : routers.values()) {
+            exitPolicies.add(router.getExitpolicy());
+        }
+        assertTrue("exit policies are not shared: "+exitPolicies.size(), exitPolicies.size()<routers.size()*2/3);
+    }
+
+    @Test
+    public void testParseRouterDescriptorsFromReader() throws Exception {
+        String allDescriptors = FileUtil.getInstance().readFileFromClasspath(EXAMPLE_ROUTER_DESCRIPTORS_PATH);
+        Map<Fingerprint,RouterImpl> expected = RouterImpl.parseRouterDescriptors(new TorConfig(false), allDescriptors);
+        Map<Fingerprint,RouterImpl> routers = RouterImpl.parseRouterDescriptors(new TorConfig(false),
+                new BufferedReader(new StringReader(allDescriptors)), null);
+        assertEquals("wrong routers", expected.keySet(), routers.keySet());
+        for (RouterImpl r : routers.values()) {
+            RouterImpl expectedRouter = expected.get(r.getFingerprint());
+            assertEquals("wrong nickname", expectedRouter.getNickname(), r.getNickname());
+            assertEquals("wrong published", expectedRouter.getPublished(), r.getPublished());
+        }
+    }
+
+    @Test
+    public void testParseMicrodescriptors() throws Exception {
+        RSAPublicKey onionKey1 = Encryption.createNewRSAKeyPair().getPublic();
+        RSAPublicKey onionKey2 = Encryption.createNewRSAKeyPair().getPublic();
+        String md1 = "onion-key\n"+Encryption.getPEMStringFromRSAPublicKey(onionKey1)
+                + "family $65430026300F34DE6273559A26C7FE6F1C513198 hendi2\n"
+                + "p accept 80,443,6660-6669\n";
+        String md2 = "onion-key\n"+Encryption.getPEMStringFromRSAPublicKey(onionKey2);
+        Map<Fingerprint,String> microdescriptors = RouterImpl.splitMicrodescriptors(md1+md2);
+        assertEquals("wrong number of microdescriptors", 2, microdescriptors.size());
+        byte[] digest1 = Encryption.getDigest("SHA-256", md1.getBytes(Util.UTF8));
+        assertEquals("wrong microdescriptor of digest", md1, microdescriptors.get(new FingerprintImpl(digest1)));
+        assertEquals("split line by line", microdescriptors,
+                RouterImpl.splitMicrodescriptors(new BufferedReader(new StringReader("junk\n"+md1+md2))));
+
+        // router of consensus entry + microdescriptor
+        RouterStatusDescription status = new RouterStatusDescription();
+        status.setNickname("micro1");
+        status.setFingerprint(new FingerprintImpl(Encoding.parseHex("03A3F43DF0CA5F7A4D538DA4D4D7C72C99576BE7")));
+        status.setDigestMicrodescriptor(digest1);
+        status.setLastPublication(new Date());
+        status.setIp("81.169.168.60");
+        status.setOrPort(9090);
+        status.setBandwidth(500);
+        RouterImpl r = new RouterImpl(new TorConfig(false), status, md1);
+        assertEquals("wrong nickname", "micro1", r.getNickname());
+        assertEquals("wrong orPort", 9090, r.getOrPort());
+        assertEquals("wrong onion key", onionKey1, r.getOnionKey());
+        assertEquals("wrong bandwidth", 500000, r.getBandwidthAvg());
+        assertTrue("wrong family", r.getFamilyEntries().contains("hendi2"));
+        assertTrue("microdescriptor not remembered", r.hasMicrodescriptor(digest1));
+        assertTrue("port 443 is accepted", r.exitPolicyAccepts(null, 443));
+        assertTrue("port 6665 is accepted", r.exitPolicyAccepts(InetAddress.getByName("1.2.3.4"), 6665));
+        assertFalse("port 22 is rejected", r.exitPolicyAccepts(null, 22));
+        assertTrue("valid", r.isValid());
+
+        // without summary: no exit
+        status.setDigestMicrodescriptor(Encryption.getDigest("SHA-256", md2.getBytes(Util.UTF8)));
+        RouterImpl r2 = new RouterImpl(new TorConfig(false), status, md2);
+        assertFalse("port 80 is rejected", r2.exitPolicyAccepts(null, 80));
+    }
+
+    @Test
+    public void testParsePortPolicySummary() {
+        RouterExitPolicy[] reject = RouterImpl.parsePortPolicySummary("reject 25,119,135-139");
+        assertEquals("wrong number of items", 4, reject.length);
+        assertFalse("port 25 is rejected", reject[0].isAccept());
+        assertEquals("wrong lo port", 135, reject[2].getLoPort());
+        assertEquals("wrong hi port", 139, reject[2].getHiPort());
+        assertTrue("other ports are accepted", reject[3].isAccept());
+
+        RouterExitPolicy[] invalid = RouterImpl.parsePortPolicySummary("accept 80,x");
+        assertEquals("invalid summary must reject all", 1, invalid.length);
+        assertFalse("invalid summary must reject all", invalid[0].isAccept());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Test the weighted router selection.
+ */
+public class RouterSamplerLocalTest {
+    private static final int NUMBER_OF_ROUTERS = 10;
+
+    private List<RouterImpl> routers;
+    private Random rnd;
+
+    @Before
+    public void setUp() throws Exception {
+        TorConfig torConfig = new TorConfig(false);
+        routers = new ArrayList<RouterImpl>();
+        for (int i=0; i<NUMBER_OF_ROUTERS; i++) {
+            byte[] id = new byte[20];
+            id[0] = (byte)i;
+            RouterImpl router = new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(new byte[] {10, 0, 0, (byte)i}),
+                    9001, 0, null, new FingerprintImpl(id));
+            router.setRankingIndex(i);
+            routers.add(router);
+        }
+        rnd = new Random(1);
+    }
+
+    @Test
+    public void testWeightedByRanking() {
+        RouterSampler sampler = new RouterSampler(routers);
+        int[] counts = new int[NUMBER_OF_ROUTERS];
+        final int SAMPLES = 45000;
+        for (int i=0; i<SAMPLES; i++) {
+            RouterImpl r = sampler.select(null, 1.0f, null, rnd);
+            counts[routers.indexOf(r)]++;
+        }
+        // p=1: probability of router i is i/45
+        assertEquals("router with ranking 0 selected", 0, counts[0]);
+        for (int i=1; i<NUMBER_OF_ROUTERS; i++) {
+            assertTrue("router "+i+" selected "+counts[i]+" times", Math.abs(counts[i]-1000*i) < 300);
+        }
+    }
+
+    /**
+     * Rankings changed after the creation of the sampler are taken into account without recreation.
+     */
+    @Test
+    public void testPunishedRanking() {
+        RouterSampler sampler = new RouterSampler(routers);
+        routers.get(9).setRankingIndex(0);
+        routers.get(8).setRankingIndex(4);
+        int[] counts = new int[NUMBER_OF_ROUTERS];
+        final int SAMPLES = 32000;
+        for (int i=0; i<SAMPLES; i++) {
+            RouterImpl r = sampler.select(null, 1.0f, null, rnd);
+            counts[routers.indexOf(r)]++;
+        }
+        // p=1: probability of router i is i/32 (router 8: 4/32, router 9: 0)
+        assertEquals("router with punished ranking 0 selected", 0, counts[9]);
+        assertTrue("router 8 selected "+counts[8]+" times", Math.abs(counts[8]-4000) < 300);
+        for (int i=1; i<8; i++) {
+            assertTrue("router "+i+" selected "+counts[i]+" times", Math.abs(counts[i]-1000*i) < 300);
+        }
+    }
+
+    @Test
+    public void testWeightedByConsensusBandwidth() {
+        for (int i=0; i<NUMBER_OF_ROUTERS; i++) {
+            routers.get(i).setConsensusBandwidth(100*(NUMBER_OF_ROUTERS-i));
+        }
+        // Wmm=5000: must not change the relation between routers without flags
+        RouterSampler sampler = new RouterSampler(new RouterSlots(routers), routers, new BandwidthWeights("Wmm=5000", BandwidthWeights.DEFAULT_SCALE), RouterSampler.MIDDLE);
+        int[] counts = new int[NUMBER_OF_ROUTERS];
+        final int SAMPLES = 55000;
+        for (int i=0; i<SAMPLES; i++) {
+            // p=0: ignore the ranking index
+            RouterImpl r = sampler.select(null, 0.0f, null, rnd);
+            counts[routers.indexOf(r)]++;
+        }
+        // probability of router i is (10-i)/55
+        for (int i=0; i<NUMBER_OF_ROUTERS; i++) {
+            int expected = 1000*(NUMBER_OF_ROUTERS-i);
+            assertTrue("router "+i+" selected "+counts[i]+" times", Math.abs(counts[i]-expected) < 400);
+        }
+    }
+
+    /**
+     * Routers without Exit flag in exit position (untrusted exits) are weighted with Wem, not Wmm.
+     */
+    @Test
+    public void testExitPositionWithoutExitFlag() {
+        for (int i=0; i<NUMBER_OF_ROUTERS; i++) {
+            routers.get(i).setConsensusBandwidth(100);
+            routers.get(i).setDirv2Exit(i<NUMBER_OF_ROUTERS/2);
+        }
+        BandwidthWeights bandwidthWeights = new BandwidthWeights("Wee=10000 Wem=0 Wme=0 Wmm=10000", BandwidthWeights.DEFAULT_SCALE);
+        RouterSlots slots = new RouterSlots(routers);
+        RouterSampler exitSampler = new RouterSampler(slots, routers, bandwidthWeights, RouterSampler.EXIT);
+        RouterSampler middleSampler = new RouterSampler(slots, routers, bandwidthWeights, RouterSampler.MIDDLE);
+        for (int i=0; i<1000; i++) {
+            assertTrue("router without Exit flag selected as exit", exitSampler.select(null, 0.0f, null, rnd).isDirv2Exit());
+            assertTrue("router with Exit flag selected as middle", !middleSampler.select(null, 0.0f, null, rnd).isDirv2Exit());
+        }
+    }
+
+    @Test
+    public void testExcludedByFingerprint() {
+        RouterSampler sampler = new RouterSampler(routers);
+        ExcludedRouters excluded = new ExcludedRouters(sampler.getSlots());
+        for (int i=0; i<NUMBER_OF_ROUTERS-1; i++) {
+            excluded.add(routers.get(i).getFingerprint());
+        }
+        for (int i=0; i<100; i++) {
+            assertEquals("excluded router selected", routers.get(NUMBER_OF_ROUTERS-1), sampler.select(excluded, 0.5f, null, rnd));
+        }
+
+        excluded.add(routers.get(NUMBER_OF_ROUTERS-1).getFingerprint());
+        assertNull("all routers are excluded", sampler.select(excluded, 0.5f, null, rnd));
+    }
+
+    @Test
+    public void testEligible() {
+        RouterSampler sampler = new RouterSampler(routers);
+        BitSet eligible = new BitSet();
+        eligible.set(3);
+        eligible.set(5);
+        ExcludedRouters excluded = new ExcludedRouters(sampler.getSlots());
+        excluded.add(routers.get(5).getFingerprint());
+        for (int i=0; i<100; i++) {
+            assertEquals("eligible routers ignored", routers.get(3), sampler.select(excluded, 0.0f, eligible, rnd));
+        }
+
+        excluded.add(routers.get(3).getFingerprint());
+        assertNull("all eligible routers are excluded", sampler.select(excluded, 0.0f, eligible, rnd));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Test the exclusion of related routers.
+ */
+public class RouterSlotsLocalTest {
+    private List<RouterImpl> routers;
+    private boolean oldRouteUniqueClassC;
+    private boolean oldRouteUniqueCountry;
+
+    @Before
+    public void setUp() throws Exception {
+        oldRouteUniqueClassC = TorConfig.routeUniqueClassC;
+        oldRouteUniqueCountry = TorConfig.routeUniqueCountry;
+        TorConfig torConfig = new TorConfig(false);
+        routers = new ArrayList<RouterImpl>();
+        // router0+1 in 10.1.0.0/16, router2+3 in 10.2.0.0/16
+        for (int i=0; i<4; i++) {
+            byte[] id = new byte[20];
+            id[0] = (byte)i;
+            RouterImpl router = new RouterImpl(torConfig, "router"+i, InetAddress.getByAddress(new byte[] {10, (byte)(1+i/2), (byte)i, 1}),
+                    9001, 0, null, new FingerprintImpl(id));
+            routers.add(router);
+        }
+        // router0 and router2 declare each other, router3 declares router1 only one-sided
+        routers.get(0).setDirv2Named(true);
+        routers.get(1).setDirv2Named(true);
+        routers.get(0).setFamilyEntries(Arrays.asList("$"+routers.get(2).getFingerprint().getHex()));
+        routers.get(2).setFamilyEntries(Arrays.asList("router0"));
+        routers.get(3).setFamilyEntries(Arrays.asList("router1"));
+    }
+
+    @After
+    public void tearDown() {
+        TorConfig.routeUniqueClassC = oldRouteUniqueClassC;
+        TorConfig.routeUniqueCountry = oldRouteUniqueCountry;
+    }
+
+    @Test
+    public void testFamily() {
+        TorConfig.routeUniqueClassC = false;
+        ExcludedRouters excluded = new ExcludedRouters(new RouterSlots(routers));
+        excluded.addRelated(routers.get(0));
+        assertTrue("router itself", excluded.contains(routers.get(0).getFingerprint()));
+        assertFalse("other network", excluded.contains(routers.get(1).getFingerprint()));
+        assertTrue("mutual family", excluded.contains(routers.get(2).getFingerprint()));
+        assertEquals("number of excluded routers", 2, excluded.getFingerprints().size());
+
+        excluded = new ExcludedRouters(new RouterSlots(routers));
+        excluded.addRelated(routers.get(3));
+        assertFalse("one-sided family", excluded.contains(routers.get(1).getFingerprint()));
+    }
+
+    /**
+     * A nickname without the Named flag can be used by any router: it does not declare a family member.
+     */
+    @Test
+    public void testFamilyNicknameNotNamed() {
+        TorConfig.routeUniqueClassC = false;
+        routers.get(1).setFamilyEntries(Arrays.asList("router3"));
+        routers.get(3).setFamilyEntries(Arrays.asList("$"+routers.get(1).getFingerprint().getHex()));
+        ExcludedRouters excluded = new ExcludedRouters(new RouterSlots(routers));
+        excluded.addRelated(routers.get(1));
+        assertFalse("nickname of a router without the Named flag", excluded.contains(routers.get(3).getFingerprint()));
+
+        routers.get(3).setDirv2Named(true);
+        excluded = new ExcludedRouters(new RouterSlots(routers));
+        excluded.addRelated(routers.get(1));
+        assertTrue("nickname of a Named router", excluded.contains(routers.get(3).getFingerprint()));
+    }
+
+    @Test
+    public void testNetwork() {
+        TorConfig.routeUniqueClassC = true;
+        ExcludedRouters excluded = new ExcludedRouters(new RouterSlots(routers));
+        excluded.addRelated(routers.get(1));
+        assertTrue("same /16 network", excluded.contains(routers.get(0).getFingerprint()));
+        assertTrue("router itself", excluded.contains(routers.get(1).getFingerprint()));
+        assertFalse("other network", excluded.contains(routers.get(3).getFingerprint()));
+    }
+
+    @Test
+    public void testOtherSlots() {
+        TorConfig.routeUniqueClassC = false;
+        RouterSlots oldSlots = new RouterSlots(routers.subList(0, 2));
+        RouterSlots newSlots = new RouterSlots(routers);
+        ExcludedRouters excluded = new ExcludedRouters(oldSlots);
+        excluded.add(routers.get(1).getFingerprint());
+        excluded.add(routers.get(3).getFingerprint());
+        assertEquals("excluded slots of the new consensus", 2, excluded.getExcludedSlots(newSlots).cardinality());
+        assertTrue("router without slot", excluded.contains(routers.get(3).getFingerprint()));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import java.net.InetAddress;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+
+import org.silvertunnel.netlib.layer.tor.common.TorConfig;
+
+/**
+ * Create routers for test cases of other packages.
+ */
+public class RouterTestUtil {
+    /** shared by all routers: key generation is slow */
+    private static RSAPublicKey onionKey;
+
+    /**
+     * @param i    number of the router: used for nickname, IP address and fingerprint
+     * @return a router with an onion key, e.g. to be used as hop of a simulated circuit
+     */
+    public static RouterImpl createRouter(int i) throws Exception {
+        byte[] id = new byte[20];
+        id[0] = (byte)(i>>8);
+        id[1] = (byte)i;
+        return new RouterImpl(new TorConfig(false), "router"+i, InetAddress.getByAddress(new byte[] {10, 0, (byte)(i>>8), (byte)i}),
+                9001, 0, 0, 0, 0, 0, new FingerprintImpl(id), 0, getOnionKey(), null, null, null, null, null, null);
+    }
+
+    private static synchronized RSAPublicKey getOnionKey() throws Exception {
+        if (onionKey==null) {
+            // 1024 bit as used by the Tor network
+            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+            keyPairGenerator.initialize(1024);
+            onionKey = (RSAPublicKey)keyPairGenerator.generateKeyPair().getPublic();
+        }
+        return onionKey;
+    }
+}
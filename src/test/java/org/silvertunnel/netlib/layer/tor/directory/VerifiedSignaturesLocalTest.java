@@ -0,0 +1,105 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.directory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.util.Encryption;
+import org.silvertunnel.netlib.util.StringStorage;
+
+/**
+ * Test the memo of verified signatures.
+ */
+public class VerifiedSignaturesLocalTest {
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        keyPair = keyPairGenerator.generateKeyPair();
+    }
+
+    @Test
+    public void testOnlyVerifiedSignaturesAreRemembered() throws Exception {
+        byte[] data = "signed data".getBytes();
+        byte[] otherData = "other data".getBytes();
+        byte[] signature = sign(data);
+
+        VerifiedSignatures verifiedSignatures = new VerifiedSignatures();
+        assertFalse("wrong data accepted", verifiedSignatures.verifySignature(signature, keyPair.getPublic(), otherData));
+        assertEquals("invalid signature remembered", 0, verifiedSignatures.size());
+
+        assertTrue("valid signature rejected", verifiedSignatures.verifySignature(signature, keyPair.getPublic(), data));
+        assertEquals("valid signature not remembered", 1, verifiedSignatures.size());
+        assertTrue("remembered signature rejected", verifiedSignatures.verifySignature(signature, keyPair.getPublic(), data));
+        assertFalse("wrong data accepted after remembering the signature",
+                verifiedSignatures.verifySignature(signature, keyPair.getPublic(), otherData));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        byte[] data = "signed data".getBytes();
+        byte[] signature = sign(data);
+        StringStorage stringStorage = new MapStringStorage();
+
+        VerifiedSignatures verifiedSignatures = new VerifiedSignatures();
+        assertTrue("valid signature rejected", verifiedSignatures.verifySignature(signature, keyPair.getPublic(), data));
+        verifiedSignatures.save(stringStorage);
+        assertNotNull("memo not saved", stringStorage.get(VerifiedSignatures.STORAGEKEY_VERIFIED_SIGNATURES_TXT));
+
+        VerifiedSignatures loaded = VerifiedSignatures.load(stringStorage);
+        assertEquals("wrong number of loaded entries", 1, loaded.size());
+        assertTrue("loaded signature rejected", loaded.verifySignature(signature, keyPair.getPublic(), data));
+        assertEquals("loaded signature added again", 1, loaded.size());
+    }
+
+    /**
+     * @return PKCS#1 signature of the digest of data, like in directory documents
+     */
+    private static byte[] sign(byte[] data) throws Exception {
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPrivate());
+        return cipher.doFinal(Encryption.getDigest(data));
+    }
+
+    private static class MapStringStorage implements StringStorage {
+        private Map<String,String> values = new HashMap<String,String>();
+
+        public void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        public String get(String key) {
+            return values.get(key);
+        }
+    }
+}
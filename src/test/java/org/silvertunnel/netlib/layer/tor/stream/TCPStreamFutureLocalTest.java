@@ -0,0 +1,132 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel.netlib.layer.tor.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.circuit.CellRelay;
+import org.silvertunnel.netlib.layer.tor.circuit.Circuit;
+import org.silvertunnel.netlib.layer.tor.circuit.SimulatedTLSConnection;
+import org.silvertunnel.netlib.layer.tor.circuit.SimulatedTLSConnectionAdmin;
+import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
+import org.silvertunnel.netlib.layer.tor.directory.RouterTestUtil;
+import org.silvertunnel.netlib.layer.tor.util.TorException;
+
+/**
+ * Test TCPStream.connectAsync() and TCPStreamFuture with a simulated circuit.
+ */
+public class TCPStreamFutureLocalTest {
+    private Circuit circuit;
+    private SimulatedTLSConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        SimulatedTLSConnectionAdmin tlsConnectionAdmin = new SimulatedTLSConnectionAdmin();
+        RouterImpl router = RouterTestUtil.createRouter(1);
+        circuit = tlsConnectionAdmin.createCircuit(new RouterImpl[] {router});
+        connection = tlsConnectionAdmin.getSimulatedConnection(router);
+    }
+
+    @Test(timeout=30000)
+    public void testConnected() throws Exception {
+        connection.setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 50);
+
+        TCPStreamFuture future = TCPStream.connectAsync(circuit, createStreamProperties());
+        TCPStream stream = future.get(5, TimeUnit.SECONDS);
+
+        assertSame("wrong stream", future.getStream(), stream);
+        assertTrue("not done", future.isDone());
+        assertFalse("cancelled", future.isCancelled());
+        assertFalse("closed", stream.isClosed());
+        assertEquals("RELAY_BEGIN", 1, connection.countSentRelayCells(CellRelay.RELAY_BEGIN));
+    }
+
+    @Test(timeout=30000)
+    public void testRefused() throws Exception {
+        connection.setStreamMode(SimulatedTLSConnection.MODE_REFUSE, 0);
+
+        TCPStreamFuture future = TCPStream.connectAsync(circuit, createStreamProperties());
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue("wrong cause: "+e.getCause(), e.getCause() instanceof TorException);
+        }
+        assertTrue("not closed", future.getStream().isClosed());
+    }
+
+    /**
+     * cancel() during the setup sends RELAY_END and closes the stream.
+     */
+    @Test(timeout=30000)
+    public void testCancel() throws Exception {
+        connection.setStreamMode(SimulatedTLSConnection.MODE_SILENT, 0);
+
+        TCPStreamFuture future = TCPStream.connectAsync(circuit, createStreamProperties());
+        assertFalse("done without answer", future.isDone());
+
+        assertTrue("cancel() of running setup", future.cancel(true));
+        assertTrue("not done", future.isDone());
+        assertTrue("not cancelled", future.isCancelled());
+        assertTrue("not closed", future.getStream().isClosed());
+        assertEquals("RELAY_END", 1, connection.countSentRelayCells(CellRelay.RELAY_END));
+        assertTrue("stream still in circuit", circuit.getStreams().isEmpty());
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * cancel() after the setup leaves the connected stream to the caller.
+     */
+    @Test(timeout=30000)
+    public void testCancelAfterConnect() throws Exception {
+        connection.setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 0);
+
+        TCPStreamFuture future = TCPStream.connectAsync(circuit, createStreamProperties());
+        TCPStream stream = future.get(5, TimeUnit.SECONDS);
+
+        assertFalse("cancel() of finished setup", future.cancel(true));
+        assertFalse("cancelled", future.isCancelled());
+        assertFalse("closed", stream.isClosed());
+        assertEquals("RELAY_END", 0, connection.countSentRelayCells(CellRelay.RELAY_END));
+        assertSame("wrong stream", stream, future.get());
+    }
+
+    ///////////////////////////////////////////////////////
+    // helper method(s)
+    ///////////////////////////////////////////////////////
+
+    private TCPStreamProperties createStreamProperties() {
+        return new TCPStreamProperties("example.com", 80);
+    }
+}
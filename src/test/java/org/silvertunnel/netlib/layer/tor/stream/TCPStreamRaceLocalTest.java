@@ -0,0 +1,177 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel.netlib.layer.tor.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.silvertunnel.netlib.layer.tor.circuit.CellRelay;
+import org.silvertunnel.netlib.layer.tor.circuit.Circuit;
+import org.silvertunnel.netlib.layer.tor.circuit.SimulatedTLSConnection;
+import org.silvertunnel.netlib.layer.tor.circuit.SimulatedTLSConnectionAdmin;
+import org.silvertunnel.netlib.layer.tor.common.TCPStreamProperties;
+import org.silvertunnel.netlib.layer.tor.directory.RouterImpl;
+import org.silvertunnel.netlib.layer.tor.directory.RouterTestUtil;
+
+/**
+ * Test the hedged stream setup over several simulated circuits.
+ */
+public class TCPStreamRaceLocalTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private SimulatedTLSConnectionAdmin tlsConnectionAdmin;
+    private Circuit[] circuits;
+    private SimulatedTLSConnection[] connections;
+
+    @Before
+    public void setUp() throws Exception {
+        tlsConnectionAdmin = new SimulatedTLSConnectionAdmin();
+        // single hop circuits, each with its own connection
+        circuits = new Circuit[3];
+        connections = new SimulatedTLSConnection[circuits.length];
+        for (int i=0; i<circuits.length; i++) {
+            RouterImpl router = RouterTestUtil.createRouter(i+1);
+            circuits[i] = tlsConnectionAdmin.createCircuit(new RouterImpl[] {router});
+            connections[i] = tlsConnectionAdmin.getSimulatedConnection(router);
+        }
+    }
+
+    /**
+     * All streams start at once, the fastest RELAY_CONNECTED wins.
+     */
+    @Test(timeout=30000)
+    public void testFirstConnectWins() throws Exception {
+        connections[0].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 1000);
+        connections[1].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 50);
+        connections[2].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 1000);
+
+        TCPStream stream = createRace(0).run(TIMEOUT_MS);
+
+        assertNotNull("no stream connected", stream);
+        assertSame("wrong winner", circuits[1], stream.getCircuit());
+        assertFalse("winner closed", stream.isClosed());
+        assertEquals("RELAY_END of winner", 0, connections[1].countSentRelayCells(CellRelay.RELAY_END));
+    }
+
+    /**
+     * The streams still in setup are closed with RELAY_END as soon as the winner is known.
+     */
+    @Test(timeout=30000)
+    public void testLosersAreClosed() throws Exception {
+        connections[0].setStreamMode(SimulatedTLSConnection.MODE_SILENT, 0);
+        connections[1].setStreamMode(SimulatedTLSConnection.MODE_SILENT, 0);
+        connections[2].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 50);
+
+        TCPStream stream = createRace(0).run(TIMEOUT_MS);
+
+        assertSame("wrong winner", circuits[2], stream.getCircuit());
+        for (int i=0; i<2; i++) {
+            assertEquals("RELAY_BEGIN of loser "+i, 1, connections[i].countSentRelayCells(CellRelay.RELAY_BEGIN));
+            assertEquals("RELAY_END of loser "+i, 1, connections[i].countSentRelayCells(CellRelay.RELAY_END));
+            assertTrue("streams of loser "+i, circuits[i].getStreams().isEmpty());
+        }
+        assertEquals("RELAY_END of winner", 0, connections[2].countSentRelayCells(CellRelay.RELAY_END));
+    }
+
+    /**
+     * Both answers arrive at (almost) the same time: the stream that connected
+     * after the winner is closed, too.
+     */
+    @Test(timeout=30000)
+    public void testConnectedLoserIsClosed() throws Exception {
+        connections[0].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 100);
+        connections[1].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 100);
+
+        TCPStream stream = createRace(0).run(TIMEOUT_MS);
+
+        int winner = (stream.getCircuit()==circuits[0]) ? 0 : 1;
+        int loser = 1-winner;
+        assertEquals("RELAY_END of winner", 0, connections[winner].countSentRelayCells(CellRelay.RELAY_END));
+        assertEquals("RELAY_END of loser", 1, connections[loser].countSentRelayCells(CellRelay.RELAY_END));
+        assertTrue("streams of loser", circuits[loser].getStreams().isEmpty());
+    }
+
+    /**
+     * The second circuit is raced only after the hedge delay.
+     */
+    @Test(timeout=30000)
+    public void testSecondAttemptAfterHedgeDelay() throws Exception {
+        final long hedgeDelayMs = 500;
+        connections[0].setStreamMode(SimulatedTLSConnection.MODE_SILENT, 0);
+        connections[1].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 0);
+
+        TCPStream stream = createRace(hedgeDelayMs).run(TIMEOUT_MS);
+
+        assertSame("wrong winner", circuits[1], stream.getCircuit());
+        long firstBegin = connections[0].getFirstSentMillis(CellRelay.RELAY_BEGIN);
+        long secondBegin = connections[1].getFirstSentMillis(CellRelay.RELAY_BEGIN);
+        // tolerance: the start time is taken before the first RELAY_BEGIN is sent
+        assertTrue("second attempt too early: "+(secondBegin-firstBegin)+" ms",
+                secondBegin-firstBegin >= hedgeDelayMs-50);
+        assertEquals("third circuit used", 0, connections[2].countSentRelayCells(CellRelay.RELAY_BEGIN));
+    }
+
+    /**
+     * A stream that connects within the hedge delay is not raced at all.
+     */
+    @Test(timeout=30000)
+    public void testNoSecondAttemptBeforeHedgeDelay() throws Exception {
+        connections[0].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 0);
+        connections[1].setStreamMode(SimulatedTLSConnection.MODE_ANSWER, 0);
+
+        TCPStream stream = createRace(1000).run(TIMEOUT_MS);
+
+        assertSame("wrong winner", circuits[0], stream.getCircuit());
+        assertEquals("second circuit used", 0, connections[1].countSentRelayCells(CellRelay.RELAY_BEGIN));
+        assertEquals("third circuit used", 0, connections[2].countSentRelayCells(CellRelay.RELAY_BEGIN));
+    }
+
+    /**
+     * All exits refuse: null, without waiting for the hedge delay or the timeout.
+     */
+    @Test(timeout=30000)
+    public void testAllAttemptsFail() throws Exception {
+        for (SimulatedTLSConnection connection : connections) {
+            connection.setStreamMode(SimulatedTLSConnection.MODE_REFUSE, 0);
+        }
+
+        long startMillis = System.currentTimeMillis();
+        TCPStream stream = createRace(1000).run(TIMEOUT_MS);
+        long durationMs = System.currentTimeMillis() - startMillis;
+
+        assertNull("stream connected", stream);
+        for (int i=0; i<connections.length; i++) {
+            assertEquals("RELAY_BEGIN of circuit "+i, 1, connections[i].countSentRelayCells(CellRelay.RELAY_BEGIN));
+        }
+        assertTrue("failed attempts not replaced at once: "+durationMs+" ms", durationMs<1000);
+    }
+
+    ///////////////////////////////////////////////////////
+    // helper method(s)
+    ///////////////////////////////////////////////////////
+
+    private TCPStreamRace createRace(long hedgeDelayMs) {
+        return new TCPStreamRace(circuits, new TCPStreamProperties("example.com", 80), hedgeDelayMs);
+    }
+}
@@ -62,4 +62,19 @@ public class EncodingLocalTest {
         byte[] result = Encoding.intToNByteArray(value, 4);
         assertEquals("wrong intToNByteArray() (2) result", Arrays.toString(new byte[] {(byte)0x11, (byte)0xfc, (byte)0x00, (byte)0xee}), Arrays.toString(result));
     }
+
+    @Test
+    public void testParseBase64OfBytes() throws Exception {
+        // as in a consensus: without padding, embedded in a line
+        String line = "r nickname ZQ83hN46Q3bvtLrKeKt9VYALbNA 2012-01-01";
+        byte[] bytes = line.getBytes(Util.UTF8);
+        byte[] result = Encoding.parseBase64(bytes, 11, 38);
+        assertEquals("wrong length", 20, result.length);
+        assertEquals("wrong parseBase64() result", Arrays.toString(Encoding.parseBase64("ZQ83hN46Q3bvtLrKeKt9VYALbNA")), Arrays.toString(result));
+
+        // with padding and line breaks
+        byte[] padded = "9RbfLMl\nCs1iddw==".getBytes(Util.UTF8);
+        assertEquals("wrong parseBase64() result with padding", Arrays.toString(new byte[] {-11, 22, -33, 44, -55, 66, -77, 88, -99, 119}),
+                Arrays.toString(Encoding.parseBase64(padded, 0, padded.length)));
+    }
 }
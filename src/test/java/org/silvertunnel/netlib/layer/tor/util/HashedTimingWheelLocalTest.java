@@ -0,0 +1,118 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Test the timing wheel with a simulated clock.
+ */
+public class HashedTimingWheelLocalTest {
+    private static final long START = 1000000L;
+
+    /** records the names of the executed tasks */
+    private static class NamedTask implements Runnable {
+        private final String name;
+        private final List<String> executed;
+
+        NamedTask(String name, List<String> executed) {
+            this.name = name;
+            this.executed = executed;
+        }
+        public void run() {
+            executed.add(name);
+        }
+    }
+
+    @Test
+    public void testExpireInOrder() {
+        List<String> executed = new ArrayList<String>();
+        HashedTimingWheel wheel = new HashedTimingWheel(100, 8, START);
+        wheel.schedule(new NamedTask("b", executed), 500, START);
+        wheel.schedule(new NamedTask("a", executed), 150, START);
+
+        assertEquals("nothing may expire too early", 0, wheel.advance(START+100));
+        assertEquals("wrong number of expired tasks", 1, wheel.advance(START+200));
+        assertEquals("wrong task", "a", executed.get(0));
+        assertEquals("nothing may expire too early", 0, wheel.advance(START+499));
+        assertEquals("wrong number of expired tasks", 1, wheel.advance(START+500));
+        assertEquals("wrong task", "b", executed.get(1));
+        assertEquals("wheel must be empty", 0, wheel.size());
+    }
+
+    @Test
+    public void testDelayLongerThanOneRevolution() {
+        List<String> executed = new ArrayList<String>();
+        // one revolution = 8*100ms
+        HashedTimingWheel wheel = new HashedTimingWheel(100, 8, START);
+        wheel.schedule(new NamedTask("late", executed), 2500, START);
+
+        for (long t=START; t<START+2500; t+=100) {
+            assertEquals("expired too early at t="+(t-START), 0, wheel.advance(t));
+        }
+        assertEquals("wrong number of expired tasks", 1, wheel.advance(START+2500));
+        assertEquals("wrong task", "late", executed.get(0));
+    }
+
+    @Test
+    public void testAdvanceOverManyTicksAtOnce() {
+        List<String> executed = new ArrayList<String>();
+        HashedTimingWheel wheel = new HashedTimingWheel(100, 8, START);
+        for (int i=0; i<20; i++) {
+            wheel.schedule(new NamedTask("t"+i, executed), 100L*i, START);
+        }
+        assertEquals("all tasks must expire", 20, wheel.advance(START+10000));
+        assertEquals("wheel must be empty", 0, wheel.size());
+    }
+
+    @Test
+    public void testCancel() {
+        List<String> executed = new ArrayList<String>();
+        HashedTimingWheel wheel = new HashedTimingWheel(100, 8, START);
+        HashedTimingWheel.Timeout timeout = wheel.schedule(new NamedTask("x", executed), 300, START);
+        assertTrue("cancel failed", timeout.cancel());
+        assertFalse("second cancel must fail", timeout.cancel());
+        assertEquals("cancelled task executed", 0, wheel.advance(START+1000));
+        assertTrue("cancelled task executed", executed.isEmpty());
+    }
+
+    @Test
+    public void testTaskCanReschedule() {
+        final List<String> executed = new ArrayList<String>();
+        final HashedTimingWheel wheel = new HashedTimingWheel(100, 8, START);
+        wheel.schedule(new Runnable() {
+            public void run() {
+                executed.add("first");
+                wheel.schedule(new NamedTask("second", executed), 200, START+100);
+            }
+        }, 100, START);
+
+        assertEquals("wrong number of expired tasks", 1, wheel.advance(START+100));
+        assertEquals("wrong number of expired tasks", 0, wheel.advance(START+200));
+        assertEquals("wrong number of expired tasks", 1, wheel.advance(START+300));
+        assertEquals("wrong order", "[first, second]", executed.toString());
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel.netlib.layer.tor.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Test of Util.
+ */
+public class UtilLocalTest {
+
+    @Test
+    public void testParseUtcTimestampOfBytes() throws Exception {
+        String[] examples = {"1970-01-01 00:00:00", "2000-02-29 23:59:59", "2012-03-01 12:34:56", "2100-12-31 01:02:03"};
+        for (String example : examples) {
+            byte[] line = ("published "+example+"\n").getBytes(Util.UTF8);
+            assertEquals("wrong result for "+example, Util.parseUtcTimestamp(example), Util.parseUtcTimestamp(line, 10));
+        }
+        assertNull("invalid month", Util.parseUtcTimestamp("2012-13-01 00:00:00".getBytes(Util.UTF8), 0));
+        assertNull("too short", Util.parseUtcTimestamp("2012-12-01 00:00".getBytes(Util.UTF8), 0));
+    }
+}
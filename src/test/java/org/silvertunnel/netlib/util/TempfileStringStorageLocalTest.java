@@ -0,0 +1,111 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.silvertunnel.netlib.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test the streaming and atomic writing of TempfileStringStorage and StreamStorageAdapter.
+ */
+public class TempfileStringStorageLocalTest {
+    private static final String UTF8 = "UTF-8";
+    private static final String KEY = "test-stream-storage.txt";
+    private static final String VALUE = "line 1\nline 2\n";
+
+    @Test
+    public void testStreamRoundTrip() throws Exception {
+        checkStreamRoundTrip(TempfileStringStorage.getInstance());
+    }
+
+    @Test
+    public void testAdapterStreamRoundTrip() throws Exception {
+        StreamStorage storage = StreamStorageAdapter.getStreamStorage(new MapStringStorage());
+        checkStreamRoundTrip(storage);
+    }
+
+    @Test
+    public void testStreamingOfTempfileStorageIsNotAdapted() {
+        assertEquals("adapter not needed", TempfileStringStorage.getInstance(),
+                StreamStorageAdapter.getStreamStorage(TempfileStringStorage.getInstance()));
+    }
+
+    @Test
+    public void testTextValueIsReadableAsStream() throws Exception {
+        TempfileStringStorage storage = TempfileStringStorage.getInstance();
+        storage.put(KEY, VALUE);
+        assertEquals("wrong value", VALUE, read(storage, KEY));
+
+        // compressed values are decompressed for get() as well
+        write(storage, KEY, "compressed "+VALUE, true);
+        assertEquals("wrong value", "compressed "+VALUE, storage.get(KEY));
+    }
+
+    private void checkStreamRoundTrip(StreamStorage storage) throws Exception {
+        write(storage, KEY, VALUE, false);
+        assertEquals("wrong value", VALUE, read(storage, KEY));
+
+        write(storage, KEY, VALUE+VALUE, true);
+        assertEquals("wrong compressed value", VALUE+VALUE, read(storage, KEY));
+
+        // not committed: old value is kept
+        StorageOutputStream out = storage.putStream(KEY, false);
+        out.write("incomplete".getBytes(UTF8));
+        out.close();
+        assertEquals("uncommitted value visible", VALUE+VALUE, read(storage, KEY));
+
+        assertNull("unknown key", storage.getStream("test-stream-storage-unknown"));
+    }
+
+    private static void write(StreamStorage storage, String key, String value, boolean compress) throws IOException {
+        StorageOutputStream out = storage.putStream(key, compress);
+        try {
+            out.write(value.getBytes(UTF8));
+            out.commit();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(StreamStorage storage, String key) throws IOException {
+        InputStream in = storage.getStream(key);
+        return (in==null) ? null : FileUtil.getInstance().readFileFromInputStream(in);
+    }
+
+    /** StringStorage without stream support */
+    private static class MapStringStorage implements StringStorage {
+        private Map<String,String> values = new HashMap<String,String>();
+
+        public void put(String key, String value) {
+            values.put(key, value);
+        }
+
+        public String get(String key) {
+            return values.get(key);
+        }
+    }
+}